@@ -15,6 +15,7 @@
  */
 package org.whispercomm.c2dm4j;
 
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -48,6 +49,10 @@ public class MessageBuilder {
 
 	private boolean delayWhileIdle;
 
+	private long deadline;
+
+	private int priority;
+
 	/**
 	 * Constructs a new, empty {@code MessageBuilder}.
 	 */
@@ -56,6 +61,8 @@ public class MessageBuilder {
 		this.collapseKey = null;
 		this.data = new HashMap<String, String>();
 		this.delayWhileIdle = false;
+		this.deadline = ScheduledMessage.NO_DEADLINE;
+		this.priority = ScheduledMessage.DEFAULT_PRIORITY;
 	}
 
 	/**
@@ -70,10 +77,13 @@ public class MessageBuilder {
 		this.collapseKey = that.collapseKey;
 		this.data = new HashMap<String, String>(that.data);
 		this.delayWhileIdle = that.delayWhileIdle;
+		this.deadline = that.deadline;
+		this.priority = that.priority;
 	}
 
 	/**
-	 * Constructs a {@code Message} from the builder.
+	 * Constructs a {@code Message} from the builder. The message implements
+	 * {@link ScheduledMessage}, carrying the deadline and priority.
 	 * 
 	 * @return the newly constructed message.
 	 */
@@ -85,7 +95,7 @@ public class MessageBuilder {
 			throw new IllegalStateException(
 					"Required parameter 'Collapse Key' was not specified.");
 		return new MessageImpl(registrationId, collapseKey, data,
-				delayWhileIdle);
+				delayWhileIdle, deadline, priority);
 	}
 
 	/**
@@ -124,6 +134,49 @@ public class MessageBuilder {
 		return this;
 	}
 
+	/**
+	 * Sets the deadline for future messages. The deadline is only used locally
+	 * and is not sent to the C2DM service.
+	 * 
+	 * @param deadline
+	 *            the time by which future messages should be sent, or
+	 *            {@code null} for no deadline
+	 * @return this builder
+	 */
+	public MessageBuilder deadline(Date deadline) {
+		return deadline((deadline == null) ? ScheduledMessage.NO_DEADLINE
+				: deadline.getTime());
+	}
+
+	/**
+	 * Sets the deadline for future messages. The deadline is only used locally
+	 * and is not sent to the C2DM service.
+	 * 
+	 * @param deadline
+	 *            the time in milliseconds since the epoch by which future
+	 *            messages should be sent, or
+	 *            {@link ScheduledMessage#NO_DEADLINE} for no deadline
+	 * @return this builder
+	 */
+	public MessageBuilder deadline(long deadline) {
+		this.deadline = deadline;
+		return this;
+	}
+
+	/**
+	 * Sets the priority for future messages. The priority is only used locally
+	 * and is not sent to the C2DM service.
+	 * 
+	 * @param priority
+	 *            the priority for future messages, higher for more valuable
+	 *            messages
+	 * @return this builder
+	 */
+	public MessageBuilder priority(int priority) {
+		this.priority = priority;
+		return this;
+	}
+
 	/**
 	 * Adds a key-value pair to the payload data for future messages.
 	 * 
@@ -172,13 +225,13 @@ public class MessageBuilder {
 	}
 
 	/**
-	 * Implementation of {@link Message} returned by
+	 * Implementation of {@link ScheduledMessage} returned by
 	 * {@link MessageBuilder#build()}.
 	 * 
 	 * @author David R. Bild
 	 * 
 	 */
-	private static class MessageImpl implements Message {
+	private static class MessageImpl implements ScheduledMessage {
 
 		private final String registrationId;
 
@@ -188,12 +241,19 @@ public class MessageBuilder {
 
 		private final boolean delayWhileIdle;
 
+		private final long deadline;
+
+		private final int priority;
+
 		public MessageImpl(String registrationId, String collapseKey,
-				Map<String, String> data, boolean delayWhileIdle) {
+				Map<String, String> data, boolean delayWhileIdle,
+				long deadline, int priority) {
 			this.registrationId = registrationId;
 			this.collapseKey = collapseKey;
 			this.data = new HashMap<String, String>(data);
 			this.delayWhileIdle = delayWhileIdle;
+			this.deadline = deadline;
+			this.priority = priority;
 		}
 
 		@Override
@@ -216,6 +276,16 @@ public class MessageBuilder {
 			return delayWhileIdle;
 		}
 
+		@Override
+		public long getDeadline() {
+			return deadline;
+		}
+
+		@Override
+		public int getPriority() {
+			return priority;
+		}
+
 		@Override
 		public String toString() {
 			return String
@@ -231,6 +301,8 @@ public class MessageBuilder {
 					+ ((collapseKey == null) ? 0 : collapseKey.hashCode());
 			result = prime * result + ((data == null) ? 0 : data.hashCode());
 			result = prime * result + (delayWhileIdle ? 1231 : 1237);
+			result = prime * result + (int) (deadline ^ (deadline >>> 32));
+			result = prime * result + priority;
 			result = prime
 					* result
 					+ ((registrationId == null) ? 0 : registrationId.hashCode());
@@ -258,6 +330,10 @@ public class MessageBuilder {
 				return false;
 			if (delayWhileIdle != other.delayWhileIdle)
 				return false;
+			if (deadline != other.deadline)
+				return false;
+			if (priority != other.priority)
+				return false;
 			if (registrationId == null) {
 				if (other.registrationId != null)
 					return false;
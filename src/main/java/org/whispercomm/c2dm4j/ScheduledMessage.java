@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j;
+
+/**
+ * A {@link Message} that also carries local scheduling hints. The hints are
+ * not sent to the C2DM service; they are used to order and drop pending
+ * messages. Messages built by {@link MessageBuilder} implement this
+ * interface. Other {@code Message} implementations are treated as having no
+ * deadline and the default priority.
+ *
+ * @author David R. Bild
+ *
+ */
+public interface ScheduledMessage extends Message {
+
+	/**
+	 * The deadline of a message that has none. It follows every real
+	 * deadline.
+	 */
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	/**
+	 * The priority of a message that does not specify one.
+	 */
+	public static final int DEFAULT_PRIORITY = 0;
+
+	/**
+	 * Gets the time by which the message should be sent. It is used to order
+	 * pending messages (see
+	 * {@link org.whispercomm.c2dm4j.async.AsyncC2dmManagerFactory}).
+	 *
+	 * @return the deadline in milliseconds since the epoch, or
+	 *         {@link #NO_DEADLINE} if the message has none
+	 */
+	public long getDeadline();
+
+	/**
+	 * Gets the relative value of the message. It is used to choose which
+	 * messages to drop under overload (see
+	 * {@link org.whispercomm.c2dm4j.async.handler.LoadShedder}).
+	 *
+	 * @return the priority, higher for more valuable messages
+	 */
+	public int getPriority();
+
+}
@@ -15,10 +15,13 @@
  */
 package org.whispercomm.c2dm4j.async;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.async.handler.Context;
+import org.whispercomm.c2dm4j.async.handler.ContextKey;
+
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Implementation of {@link Context} useful across all object types.
@@ -44,15 +47,24 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 
 	private E decision;
 
-	private Map<Object, Object> map;
+	private boolean decisionFinal;
+
+	private final ContextAttributes attributes;
+
+	private final long submitted;
+
+	private int attempts;
 
 	private AbstractContext(FutureResponse futureResponse, T wrapped,
-			E defaultDecision, long delay, Map<Object, Object> map) {
+			E defaultDecision, long delay, ContextAttributes attributes,
+			long submitted, int attempts) {
 		this.wrapped = wrapped;
 		this.futureResponse = futureResponse;
 		this.decision = defaultDecision;
 		this.delay = delay;
-		this.map = map;
+		this.attributes = attributes;
+		this.submitted = submitted;
+		this.attempts = attempts;
 	}
 
 	/**
@@ -68,15 +80,15 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 	 */
 	public AbstractContext(FutureResponse futureResponse, T wrapped,
 			E defaultDecision) {
-		this(futureResponse, wrapped, defaultDecision, 0,
-				new HashMap<Object, Object>());
+		this(futureResponse, wrapped, defaultDecision, 0, ContextAttributes
+				.obtain(), System.nanoTime(), 0);
 	}
 
 	/**
 	 * Constructs a new {@code AbstractContext} from an existing context,
-	 * object, and initial decision. The future, delay, and internal context map
-	 * are copied. This constructor is useful for transforming, for example, a
-	 * {@link MessageContext} into a {@link ResponseContext} when a response is
+	 * object, and initial decision. The future, delay, submission time,
+	 * attempt count, and internal context map are copied. This constructor is useful for
+	 * transforming, for example, a {@link MessageContext} into a {@link ResponseContext} when a response is
 	 * received.
 	 * 
 	 * @param context
@@ -90,7 +102,7 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 	public AbstractContext(AbstractContext<?, ?> context, T wrapped,
 			E defaultDecision) {
 		this(context.futureResponse, wrapped, defaultDecision, context.delay,
-				context.map);
+				context.attributes, context.submitted, context.attempts);
 	}
 
 	@Override
@@ -105,9 +117,36 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 
 	@Override
 	public void setDecision(E decision) {
+		if (!decisionFinal)
+			this.decision = decision;
+	}
+
+	@Override
+	public void setFinalDecision(E decision) {
+		if (!decisionFinal) {
+			this.decision = decision;
+			this.decisionFinal = true;
+		}
+	}
+
+	@Override
+	public void overrideDecision(E decision) {
 		this.decision = decision;
 	}
 
+	@Override
+	public boolean isDecisionFinal() {
+		return decisionFinal;
+	}
+
+	/**
+	 * Clears the final mark before the context enters another chain, e.g.,
+	 * the dequeue filters after the enqueue filters.
+	 */
+	void clearDecisionFinal() {
+		decisionFinal = false;
+	}
+
 	@Override
 	public long getDelay() {
 		return delay;
@@ -118,24 +157,96 @@ abstract class AbstractContext<T, E extends Enum<E>> implements Context<T, E> {
 		this.delay = delay;
 	}
 
+	@Override
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Records an attempt to send the message.
+	 */
+	void addAttempt() {
+		++attempts;
+	}
+
+	@Override
+	public long getAge() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted);
+	}
+
 	@Override
 	public void put(Object key, Object value) {
-		map.put(key, value);
+		if (key instanceof ContextKey)
+			attributes.put((ContextKey<?>) key, value);
+		else
+			attributes.put(key, value);
 	}
 
 	@Override
 	public Object get(Object key) {
-		return map.get(key);
+		if (key instanceof ContextKey)
+			return attributes.get((ContextKey<?>) key);
+		else
+			return attributes.get(key);
 	}
 
 	// It's up to callers to provide the correct returnType.
 	@SuppressWarnings("unchecked")
 	@Override
 	public <C> C get(Object key, Class<? extends C> returnType) {
-		return (C) map.get(key);
+		return (C) get(key);
+	}
+
+	@Override
+	public <C> void put(ContextKey<C> key, C value) {
+		attributes.put(key, value);
+	}
+
+	// Type safety ensured by only storing values via the type-parameterized
+	// put(ContextKey<C>, C) method.
+	@SuppressWarnings("unchecked")
+	@Override
+	public <C> C get(ContextKey<C> key) {
+		return (C) attributes.get(key);
+	}
+
+	/**
+	 * Releases the internal context storage for reuse once the message is
+	 * complete. Neither this context nor any context sharing its storage
+	 * (i.e., those created from it by the copying constructor) may be used
+	 * afterwards.
+	 */
+	void recycle() {
+		attributes.recycle();
+	}
+
+	/**
+	 * Gets the time the message was first submitted, as reported by
+	 * {@link System#nanoTime()}. Retries keep the original submission time.
+	 * 
+	 * @return the submission time in nanoseconds
+	 */
+	long getSubmitted() {
+		return submitted;
 	}
 
 	public FutureResponse getFutureResponse() {
 		return futureResponse;
 	}
+
+	@Override
+	public ListenableFuture<Response> getFuture() {
+		return futureResponse;
+	}
+
+	@Override
+	public boolean fail(Throwable cause) {
+		return futureResponse.setThrowable(cause);
+	}
+
+	@Override
+	public void follow(ListenableFuture<Response> future) {
+		throw new UnsupportedOperationException(
+				"Only message contexts may follow another message.");
+	}
 }
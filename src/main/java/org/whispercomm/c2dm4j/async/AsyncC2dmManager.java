@@ -15,6 +15,8 @@
  */
 package org.whispercomm.c2dm4j.async;
 
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import org.whispercomm.c2dm4j.Message;
@@ -22,6 +24,8 @@ import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.async.handler.AsyncHandlers;
 import org.whispercomm.c2dm4j.async.handler.AsyncHandlersFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * An interface for asynchronously pushing messages to clients via the C2DM
  * service. Configuration details (e.g., providing authentication tokens) are
@@ -44,13 +48,62 @@ public interface AsyncC2dmManager {
 	/**
 	 * Queues a message to be sent to the C2DM service for delivery to the
 	 * client specified in the message header. The response or error is
-	 * accessible via the returned {@link Future} when available.
+	 * accessible via the returned {@link Future} when available. Listeners
+	 * may be registered on the future to be notified on completion.
 	 * 
 	 * @param msg
 	 *            the message to deliver
 	 * @return a future for accessing the response from the C2DM service or an
 	 *         exception
 	 */
-	public Future<Response> pushMessage(Message msg);
+	public ListenableFuture<Response> pushMessage(Message msg);
+
+	/**
+	 * Queues a message to be sent to the C2DM service at a future time. The
+	 * message is held until the given time and then handled as if passed to
+	 * {@link #pushMessage(Message)}. It is pending, and may be cancelled via
+	 * {@link #cancelPending(String)}, while held.
+	 * 
+	 * @param msg
+	 *            the message to deliver
+	 * @param time
+	 *            the time at which to send the message. A time in the past
+	 *            sends the message immediately.
+	 * @return a future for accessing the response from the C2DM service or an
+	 *         exception
+	 */
+	public ListenableFuture<Response> pushMessageAt(Message msg, Date time);
+
+	/**
+	 * Gets the messages pushed to a client that are not yet complete.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the client
+	 * @return the pending messages, in the order they were pushed
+	 */
+	public List<Message> getPending(String registrationId);
+
+	/**
+	 * Gets the number of messages pushed to a client that are not yet
+	 * complete.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the client
+	 * @return the number of pending messages
+	 */
+	public int getPendingCount(String registrationId);
+
+	/**
+	 * Cancels all messages pushed to a client that are not yet complete, e.g.,
+	 * because the client has unregistered. Their futures are completed as
+	 * cancelled and they are not sent, or retried, again. A message already
+	 * sent to the C2DM service may still be delivered; its response is
+	 * discarded.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the client
+	 * @return the number of messages cancelled
+	 */
+	public int cancelPending(String registrationId);
 
 }
@@ -15,15 +15,22 @@
  */
 package org.whispercomm.c2dm4j.async;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.http.client.HttpClient;
 import org.whispercomm.c2dm4j.C2dmManager;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.ScheduledMessage;
 import org.whispercomm.c2dm4j.async.handler.AsyncHandlers;
 import org.whispercomm.c2dm4j.async.handler.AsyncHandlersFactory;
 import org.whispercomm.c2dm4j.auth.AuthTokenProvider;
 import org.whispercomm.c2dm4j.impl.DefaultC2dmManager;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Provides static methods for creating {@link AsyncC2dmManager} instances.
  * 
@@ -32,6 +39,8 @@ import org.whispercomm.c2dm4j.impl.DefaultC2dmManager;
  */
 public class AsyncC2dmManagerFactory {
 
+	private static final int DEFAULT_RING_SIZE = 1024;
+
 	/**
 	 * Should not be instantiated.
 	 */
@@ -79,7 +88,9 @@ public class AsyncC2dmManagerFactory {
 	 * and <code>Quota
 	 * Exceeded</code> errors and per-device for
 	 * <code>Device Quota Exceeded</code> errors) and honors
-	 * <code>Retry-After</code> headers is registered.
+	 * <code>Retry-After</code> headers is registered. Messages waiting on the
+	 * global back-off are parked in a single queue, timed by the executor, and
+	 * released gradually when it expires.
 	 * <p>
 	 * The given {@code C2dmManager} must be thread-safe for as many threads as
 	 * the {@code ScheduleExecutorService} might run concurrently.
@@ -99,7 +110,7 @@ public class AsyncC2dmManagerFactory {
 	 */
 	public static AsyncC2dmManager create(C2dmManager manager,
 			ScheduledExecutorService executor) {
-		return create(manager, AsyncHandlersFactory.create(), executor);
+		return create(manager, AsyncHandlersFactory.create(executor), executor);
 	}
 
 	/**
@@ -156,7 +167,9 @@ public class AsyncC2dmManagerFactory {
 	 * and <code>Quota
 	 * Exceeded</code> errors and per-device for
 	 * <code>Device Quota Exceeded</code> errors) and honors
-	 * <code>Retry-After</code> headers is registered.
+	 * <code>Retry-After</code> headers is registered. Messages waiting on the
+	 * global back-off are parked in a single queue, timed by the executor, and
+	 * released gradually when it expires.
 	 * <p>
 	 * The given {@code HttpClient} must be thread-safe for as many threads as
 	 * the {@code ScheduleExecutorService} will run concurrently. An
@@ -185,7 +198,299 @@ public class AsyncC2dmManagerFactory {
 	 */
 	public static AsyncC2dmManager create(HttpClient client,
 			AuthTokenProvider provider, ScheduledExecutorService executor) {
-		return create(client, provider, AsyncHandlersFactory.create(), executor);
+		return create(client, provider, AsyncHandlersFactory.create(executor),
+				executor);
+	}
+
+	/**
+	 * Creates a sharded {@code AsyncC2dmManager} instance that partitions
+	 * messages by registration id across one independent pipeline per
+	 * {@link ScheduledExecutorService}. Messages for a given device are always
+	 * handled by the same shard, each with its own {@link AsyncHandlers}.
+	 * <p>
+	 * The given {@code C2dmManager} must be thread-safe for as many threads as
+	 * all of the {@code ScheduleExecutorService} instances might run
+	 * concurrently.
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param handlers
+	 *            the handlers for each shard. Must be the same size as
+	 *            {@code executors}.
+	 * @param executors
+	 *            the executors for each shard
+	 * @return the constructed async manager
+	 */
+	public static AsyncC2dmManager createSharded(C2dmManager manager,
+			List<AsyncHandlers> handlers,
+			List<? extends ScheduledExecutorService> executors) {
+		if (handlers.size() != executors.size())
+			throw new IllegalArgumentException(
+					"One AsyncHandlers instance is required per executor.");
+		List<AsyncC2dmManager> shards = new ArrayList<AsyncC2dmManager>(
+				executors.size());
+		for (int i = 0; i < executors.size(); ++i) {
+			shards.add(create(manager, handlers.get(i), executors.get(i)));
+		}
+		return new ShardedAsyncC2dmManager(shards);
+	}
+
+	/**
+	 * Creates a sharded {@code AsyncC2dmManager} instance that partitions
+	 * messages by registration id across one independent pipeline per
+	 * {@link ScheduledExecutorService}.
+	 * <p>
+	 * Default {@link AsyncHandlers} instances are registered as by
+	 * {@link AsyncHandlersFactory#createSharded(int)}: each shard keeps its own
+	 * per-device backoff state, while the global backoff state for
+	 * <code>Service Unavailable</code> and <code>Quota Exceeded</code> errors
+	 * is shared by all shards.
+	 * <p>
+	 * An executor for each of {@code SHARDS} shards with {@code MAX_THREADS}
+	 * concurrent threads can be created like this: </br> <code> 
+	 *   for (int i = 0; i < SHARDS; ++i) </br>
+	 *   &nbsp;&nbsp;&nbsp;&nbsp;executors.add(new ScheduledThreadPoolExecutor(MAX_THREADS));
+	 * </code>
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param executors
+	 *            the executors for each shard
+	 * @return the constructed async manager
+	 */
+	public static AsyncC2dmManager createSharded(C2dmManager manager,
+			List<? extends ScheduledExecutorService> executors) {
+		return createSharded(manager,
+				AsyncHandlersFactory.createSharded(executors.size()),
+				executors);
+	}
+
+	/**
+	 * Creates a sharded {@code AsyncC2dmManager} instance that partitions
+	 * messages by registration id across one independent pipeline per
+	 * {@link ScheduledExecutorService}, delivering messages via an
+	 * {@link C2dmManager} instance constructed from the given
+	 * {@link HttpClient} and {@link AuthTokenProvider}.
+	 * <p>
+	 * Default {@link AsyncHandlers} instances are registered as by
+	 * {@link AsyncHandlersFactory#createSharded(int)}.
+	 * <p>
+	 * The given {@code HttpClient} must be thread-safe for as many threads as
+	 * all of the {@code ScheduleExecutorService} instances will run
+	 * concurrently.
+	 * 
+	 * @param client
+	 *            the client used to send HTTP requests
+	 * @param provider
+	 *            the provider used to retrieve and persist authentication
+	 *            tokens
+	 * @param executors
+	 *            the executors for each shard
+	 * @return the constructed async manager
+	 */
+	public static AsyncC2dmManager createSharded(HttpClient client,
+			AuthTokenProvider provider,
+			List<? extends ScheduledExecutorService> executors) {
+		return createSharded(new DefaultC2dmManager(client, provider),
+				executors);
+	}
+
+
+	/**
+	 * Creates an {@code AsyncC2dmManager} instance that sends ready messages
+	 * earliest deadline first (see {@link ScheduledMessage#getDeadline()})
+	 * instead of in the order they became ready. Messages without a deadline,
+	 * including those not built by {@link MessageBuilder}, follow those with
+	 * one, in order of submission. A message delayed by a filter, e.g.,
+	 * for backoff, becomes ready when its delay expires.
+	 * <p>
+	 * The given {@code C2dmManager} must be thread-safe for as many threads as
+	 * the {@code ScheduleExecutorService} will run concurrently.
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @return the constructed async manager
+	 */
+	public static AsyncC2dmManager createDeadlineOrdered(C2dmManager manager,
+			AsyncHandlers handlers, ScheduledExecutorService executor) {
+		return new AsyncC2dmManagerImpl(manager, handlers, executor, true);
+	}
+
+	/**
+	 * Creates an {@code AsyncC2dmManager} instance that sends ready messages
+	 * earliest deadline first.
+	 * <p>
+	 * A default {@link AsyncHandlers} instance is registered, as for
+	 * {@link #create(C2dmManager, ScheduledExecutorService)}.
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @return the constructed async manager
+	 */
+	public static AsyncC2dmManager createDeadlineOrdered(C2dmManager manager,
+			ScheduledExecutorService executor) {
+		return createDeadlineOrdered(manager,
+				AsyncHandlersFactory.create(executor), executor);
+	}
+
+	/**
+	 * Creates an {@code AsyncC2dmManager} instance whose
+	 * {@link AsyncC2dmManager#pushMessage(Message) pushMessage} only appends
+	 * the message to a lock-free ring buffer and returns. The
+	 * {@link AsyncHandlers} enqueue filters then run on a dedicated daemon
+	 * thread, so the cost to the calling thread does not depend on the
+	 * registered filters. This is a {@link RingBufferAsyncC2dmManager} with a
+	 * ring of 1024 slots (see
+	 * {@link #createRingBuffer(C2dmManager, AsyncHandlers, ScheduledExecutorService, int)}
+	 * ). If the ring is full, the returned future has already failed with a
+	 * {@link java.util.concurrent.RejectedExecutionException}.
+	 * <p>
+	 * The given {@code C2dmManager} must be thread-safe for as many threads as
+	 * the {@code ScheduleExecutorService} will run concurrently.
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @return the constructed async manager
+	 */
+	public static AsyncC2dmManager createAsyncEnqueue(C2dmManager manager,
+			AsyncHandlers handlers, ScheduledExecutorService executor) {
+		return createRingBuffer(manager, handlers, executor,
+				DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * Creates an {@code AsyncC2dmManager} instance that runs the enqueue
+	 * filters for pushed messages on a dedicated thread instead of the calling
+	 * thread.
+	 * <p>
+	 * A default {@link AsyncHandlers} instance is registered, as for
+	 * {@link #create(C2dmManager, ScheduledExecutorService)}.
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @return the constructed async manager
+	 */
+	public static AsyncC2dmManager createAsyncEnqueue(C2dmManager manager,
+			ScheduledExecutorService executor) {
+		return createAsyncEnqueue(manager,
+				AsyncHandlersFactory.create(executor), executor);
+	}
+
+	/**
+	 * Creates a {@link RingBufferAsyncC2dmManager} instance that hands pushed
+	 * messages to the pipeline through a lock-free ring buffer. A dedicated
+	 * daemon thread runs the {@link AsyncHandlers} enqueue filters. The
+	 * remaining stages run on the {@link ScheduledExecutorService}, as for
+	 * {@link #create(C2dmManager, AsyncHandlers, ScheduledExecutorService)}.
+	 * Messages pushed while the ring is full are rejected; their futures have
+	 * already failed with a
+	 * {@link java.util.concurrent.RejectedExecutionException}.
+	 * <p>
+	 * The given {@code C2dmManager} must be thread-safe for as many threads as
+	 * the {@code ScheduleExecutorService} will run concurrently.
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param ringSize
+	 *            the number of slots in the ring buffer. Must be a power of
+	 *            two.
+	 * @return the constructed async manager
+	 */
+	public static RingBufferAsyncC2dmManager createRingBuffer(
+			C2dmManager manager, AsyncHandlers handlers,
+			ScheduledExecutorService executor, int ringSize) {
+		return createRingBuffer(manager, handlers, executor, ringSize, false);
+	}
+
+	/**
+	 * Creates a {@link RingBufferAsyncC2dmManager} instance that hands pushed
+	 * messages to the pipeline through a lock-free ring buffer, as for
+	 * {@link #createRingBuffer(C2dmManager, AsyncHandlers, ScheduledExecutorService, int)}
+	 * , but optionally blocking producers while the ring is full. A blocked
+	 * producer spins and then yields until a slot frees, so it waits for as
+	 * long as the pipeline's enqueue filters are stalled.
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param ringSize
+	 *            the number of slots in the ring buffer. Must be a power of
+	 *            two.
+	 * @param blockWhenFull
+	 *            {@code true} to make producers wait while the ring is full,
+	 *            {@code false} to reject their messages
+	 * @return the constructed async manager
+	 */
+	public static RingBufferAsyncC2dmManager createRingBuffer(
+			C2dmManager manager, AsyncHandlers handlers,
+			ScheduledExecutorService executor, int ringSize,
+			boolean blockWhenFull) {
+		return new RingBufferAsyncC2dmManager(new AsyncC2dmManagerImpl(
+				manager, handlers, executor), ringSize, blockWhenFull,
+				new ThreadFactoryBuilder().setDaemon(true)
+						.setNameFormat("c2dm4j-ring-consumer-%d").build());
+	}
+
+	/**
+	 * Creates a {@link RingBufferAsyncC2dmManager} instance that hands pushed
+	 * messages to the pipeline through a lock-free ring buffer.
+	 * <p>
+	 * A default {@link AsyncHandlers} instance is registered, as for
+	 * {@link #create(C2dmManager, ScheduledExecutorService)}.
+	 * 
+	 * @param manager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param ringSize
+	 *            the number of slots in the ring buffer. Must be a power of
+	 *            two.
+	 * @return the constructed async manager
+	 */
+	public static RingBufferAsyncC2dmManager createRingBuffer(
+			C2dmManager manager, ScheduledExecutorService executor,
+			int ringSize) {
+		return createRingBuffer(manager, AsyncHandlersFactory.create(executor),
+				executor, ringSize);
 	}
 
 }
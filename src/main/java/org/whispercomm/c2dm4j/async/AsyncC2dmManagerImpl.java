@@ -15,6 +15,11 @@
  */
 package org.whispercomm.c2dm4j.async;
 
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -23,11 +28,17 @@ import org.slf4j.LoggerFactory;
 import org.whispercomm.c2dm4j.C2dmManager;
 import org.whispercomm.c2dm4j.Message;
 import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ScheduledMessage;
 import org.whispercomm.c2dm4j.async.handler.AsyncHandlers;
+import org.whispercomm.c2dm4j.async.handler.AsyncMessageFilter;
+import org.whispercomm.c2dm4j.async.handler.AsyncResponseHandler;
 import org.whispercomm.c2dm4j.async.handler.MessageFilter;
 import org.whispercomm.c2dm4j.async.handler.ResponseHandler;
 import org.whispercomm.c2dm4j.async.handler.ThrowableHandler;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 /**
  * Default implementation of {@link AsyncC2dmManager}. Instances can be created
  * using the factory methods in {@link AsyncC2dmManagerFactory}.
@@ -40,12 +51,23 @@ import org.whispercomm.c2dm4j.async.handler.ThrowableHandler;
  * {@link MessageFilter#enqueueFilter(Context)} before being enqueued to await
  * sending and passed through all registered
  * {@link MessageFilter#dequeueFilter(Context)} when dequeued for sending. Any
- * filter may choose to cancel or delay the message. Responses are passed
+ * filter may choose to cancel or delay the message, or to complete it with the
+ * outcome of another message (see {@link Context#follow}). Responses are passed
  * through all registered {@link ResponseHandler#handleResponse(Context)} when
  * received. Similarly, exceptions are passed through all registered
  * {@link ThrowableHandler#handleThrowable(Context)} when thrown. Each handler
  * may choose to return the response/throwable via the {@link Future} or retry
  * the message (with delay).
+ * <p>
+ * {@link AsyncMessageFilter} and {@link AsyncResponseHandler} instances may
+ * complete later. The pipeline continues inline when the chains complete
+ * immediately and otherwise resumes on the executor once they complete, so no
+ * executor thread waits on them.
+ * <p>
+ * Pushed messages are indexed by registration id until complete, for
+ * {@link #getPending(String)} and {@link #cancelPending(String)}. A cancelled
+ * message leaves the pipeline at its next stage, and is never sent. Messages pushed for a future
+ * time wait in a timing wheel, outside the pipeline, until due.
  * 
  * @author David R. Bild
  * 
@@ -54,12 +76,25 @@ class AsyncC2dmManagerImpl implements AsyncC2dmManager {
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(AsyncC2dmManagerImpl.class);
 
+	/*
+	 * Scheduled messages are released at most this many milliseconds late.
+	 */
+	private static final long SCHEDULE_TICK = 20;
+
+	private static final int SCHEDULE_WHEEL_SIZE = 512;
+
 	private ScheduledExecutorService executor;
 
 	private AsyncHandlers handlers;
 
 	private C2dmManager c2dm;
 
+	private DeadlineReadyQueue ready;
+
+	private PendingIndex pending;
+
+	private TimingWheel scheduled;
+
 	/**
 	 * Constructs a new asynchronous manager.
 	 * <p>
@@ -81,46 +116,205 @@ class AsyncC2dmManagerImpl implements AsyncC2dmManager {
 		this.c2dm = c2dmManager;
 		this.executor = executor;
 		this.handlers = handlers;
+		this.pending = new PendingIndex();
+		this.scheduled = new TimingWheel(executor, SCHEDULE_TICK,
+				SCHEDULE_WHEEL_SIZE, new TimingWheel.Releaser() {
+					@Override
+					public void release(final MessageContext context) {
+						new Step(context) {
+							@Override
+							protected void step() {
+								submit(context);
+							}
+						}.run();
+					}
+				});
+	}
+
+	/**
+	 * Constructs a new asynchronous manager that optionally sends ready
+	 * messages earliest deadline first (see
+	 * {@link ScheduledMessage#getDeadline()}) instead of in the order they
+	 * became ready.
+	 * <p>
+	 * The {@code C2dmManager} must be thread-safe up to the number of
+	 * concurrent threads backing the executor.
+	 * 
+	 * @param c2dmManager
+	 *            the synchronous manager for communicating with the C2DM
+	 *            service
+	 * @param handlers
+	 *            the handlers for automatically handling responses and
+	 *            exceptions
+	 * @param executor
+	 *            the executor providing the background threads to deliver
+	 *            queued messages
+	 * @param earliestDeadlineFirst
+	 *            {@code true} to order ready messages by deadline
+	 */
+	public AsyncC2dmManagerImpl(C2dmManager c2dmManager,
+			AsyncHandlers handlers, ScheduledExecutorService executor,
+			boolean earliestDeadlineFirst) {
+		this(c2dmManager, handlers, executor);
+		if (earliestDeadlineFirst)
+			this.ready = new DeadlineReadyQueue(executor,
+					new DeadlineReadyQueue.Processor() {
+						@Override
+						public void process(MessageContext context) {
+							new MessageRunnable(context).run();
+						}
+					});
 	}
 
 	@Override
 	public FutureResponse pushMessage(Message msg) {
 		FutureResponse future = new FutureResponse();
-		submit(new MessageContext(future, msg));
+		push(new MessageContext(future, msg));
 		return future;
 	}
 
-	private void submit(MessageContext context) {
-		handlers.filterMessageEnqueue(context);
+	@Override
+	public FutureResponse pushMessageAt(Message msg, Date time) {
+		FutureResponse future = new FutureResponse();
+		MessageContext context = new MessageContext(future, msg);
+		long delay = time.getTime() - System.currentTimeMillis();
+		if (delay > 0) {
+			pending.add(context);
+			scheduled.schedule(context, delay);
+		} else {
+			push(context);
+		}
+		return future;
+	}
+
+	@Override
+	public List<Message> getPending(String registrationId) {
+		return pending.get(registrationId);
+	}
+
+	@Override
+	public int getPendingCount(String registrationId) {
+		return pending.count(registrationId);
+	}
+
+	@Override
+	public int cancelPending(String registrationId) {
+		return pending.cancel(registrationId);
+	}
+
+	/**
+	 * Indexes a newly pushed message and passes it into the pipeline.
+	 * 
+	 * @param context
+	 *            the context of the message
+	 */
+	void push(MessageContext context) {
+		pending.add(context);
+		submit(context);
+	}
+
+	/**
+	 * Passes the message through the enqueue filters and queues it for sending.
+	 * 
+	 * @param context
+	 *            the context of the message
+	 */
+	void submit(final MessageContext context) {
+		if (abandoned(context))
+			return;
+		context.clearDecisionFinal();
+		final ListenableFuture<Void> filtered = handlers
+				.filterMessageEnqueue(context);
+		if (filtered.isDone()) {
+			enqueue(context, filtered);
+		} else {
+			filtered.addListener(new Step(context) {
+				@Override
+				protected void step() {
+					enqueue(context, filtered);
+				}
+			}, executor);
+		}
+	}
+
+	private void enqueue(MessageContext context, Future<Void> filtered) {
+		if (failed(context, filtered))
+			return;
 		switch (context.getDecision()) {
 		case SEND:
-			executor.schedule(new MessageRunnable(context), context.getDelay(),
-					TimeUnit.MILLISECONDS);
+			schedule(context);
 			return;
 		case CANCEL:
 			context.getFutureResponse().setCancelled();
+			context.recycle();
+			return;
+		case FOLLOW:
+			follow(context);
 			return;
 		}
 	}
 
-	private void process(MessageContext context) {
+	private void schedule(final MessageContext context) {
+		if (ready == null) {
+			executor.schedule(new MessageRunnable(context), context.getDelay(),
+					TimeUnit.MILLISECONDS);
+		} else if (context.getDelay() > 0) {
+			// Join the ready queue only once the earliest send time is reached
+			executor.schedule(new Step(context) {
+				@Override
+				protected void step() {
+					ready.add(context);
+				}
+			}, context.getDelay(), TimeUnit.MILLISECONDS);
+		} else {
+			ready.add(context);
+		}
+	}
+
+	private void process(final MessageContext context) {
+		if (abandoned(context))
+			return;
 		context.setDelay(0);
-		handlers.filterMessageDequeue(context);
+		context.clearDecisionFinal();
+		final ListenableFuture<Void> filtered = handlers
+				.filterMessageDequeue(context);
+		if (filtered.isDone()) {
+			dequeue(context, filtered);
+		} else {
+			filtered.addListener(new Step(context) {
+				@Override
+				protected void step() {
+					dequeue(context, filtered);
+				}
+			}, executor);
+		}
+	}
+
+	private void dequeue(MessageContext context, Future<Void> filtered) {
+		if (failed(context, filtered))
+			return;
 		switch (context.getDecision()) {
 		case SEND:
 			if (context.getDelay() > 0) {
 				submit(context);
-			} else {
+			} else if (!abandoned(context)) {
+				// Re-checked, as the message may have been cancelled while
+				// an asynchronous dequeue filter held it
 				issue(context);
 			}
 			return;
 		case CANCEL:
 			context.getFutureResponse().setCancelled();
+			context.recycle();
+			return;
+		case FOLLOW:
+			follow(context);
 			return;
 		}
 	}
 
 	private void issue(MessageContext context) {
+		context.addAttempt();
 		try {
 			Response response = c2dm.pushMessage(context.unwrap());
 			handleResponse(context, response);
@@ -131,12 +325,33 @@ class AsyncC2dmManagerImpl implements AsyncC2dmManager {
 		}
 	}
 
-	private void handleResponse(MessageContext messageContext, Response response) {
-		ResponseContext context = new ResponseContext(messageContext, response);
-		handlers.handleResponse(context);
+	private void handleResponse(final MessageContext messageContext,
+			Response response) {
+		final ResponseContext responseContext = new ResponseContext(
+				messageContext, response);
+		final ListenableFuture<Void> handled = handlers
+				.handleResponse(responseContext);
+		if (handled.isDone()) {
+			decide(messageContext, responseContext, handled);
+		} else {
+			handled.addListener(new Step(messageContext) {
+				@Override
+				protected void step() {
+					decide(messageContext, responseContext, handled);
+				}
+			}, executor);
+		}
+	}
+
+	private void decide(MessageContext messageContext,
+			ResponseContext context, Future<Void> handled) {
+		if (failed(context, handled))
+			return;
+		Response response = context.unwrap();
 		switch (context.getDecision()) {
 		case RETURN:
 			context.getFutureResponse().setResponse(response);
+			context.recycle();
 			return;
 		case RETRY:
 			submit(new MessageContext(context, messageContext.unwrap()));
@@ -152,6 +367,7 @@ class AsyncC2dmManagerImpl implements AsyncC2dmManager {
 		switch (context.getDecision()) {
 		case RETURN:
 			context.getFutureResponse().setThrowable(throwable);
+			context.recycle();
 			return;
 		case RETRY:
 			submit(new MessageContext(context, messageContext.unwrap()));
@@ -159,18 +375,100 @@ class AsyncC2dmManagerImpl implements AsyncC2dmManager {
 		}
 	}
 
-	private class MessageRunnable implements Runnable {
+	private void follow(final MessageContext context) {
+		final ListenableFuture<Response> followed = context.getFollowed();
+		followed.addListener(new Runnable() {
+			@Override
+			public void run() {
+				FutureResponse future = context.getFutureResponse();
+				try {
+					future.setResponse(followed.get());
+				} catch (ExecutionException e) {
+					future.setThrowable(e.getCause());
+				} catch (CancellationException e) {
+					future.setCancelled();
+				} catch (InterruptedException e) {
+					// Not reached, as the followed future is complete
+					Thread.currentThread().interrupt();
+					future.setThrowable(e);
+				}
+				context.recycle();
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	/**
+	 * Drops a message whose future was completed outside the pipeline, e.g.,
+	 * by {@link #cancelPending(String)}. Checked before each chain of filters
+	 * and again before sending. Filters that hold resources for a message
+	 * release them when its future completes, so dropping the message does
+	 * not leak them.
+	 * 
+	 * @return {@code true} if the message was dropped
+	 */
+	private static boolean abandoned(MessageContext context) {
+		if (!context.getFutureResponse().isComplete())
+			return false;
+		context.recycle();
+		return true;
+	}
+
+	/**
+	 * Completes the message with the failure of an asynchronous filter or
+	 * handler chain, if it failed.
+	 * 
+	 * @return {@code true} if the chain failed
+	 */
+	private static boolean failed(AbstractContext<?, ?> context,
+			Future<Void> chain) {
+		try {
+			chain.get();
+			return false;
+		} catch (ExecutionException e) {
+			context.getFutureResponse().setThrowable(e.getCause());
+			return true;
+		} catch (CancellationException e) {
+			context.getFutureResponse().setCancelled();
+			return true;
+		} catch (InterruptedException e) {
+			// Not reached, as the chain is complete
+			Thread.currentThread().interrupt();
+			context.getFutureResponse().setThrowable(e);
+			return true;
+		}
+	}
 
-		private final MessageContext context;
+	private class MessageRunnable extends Step {
 
 		public MessageRunnable(MessageContext context) {
+			super(context);
+		}
+
+		@Override
+		protected void step() {
+			AsyncC2dmManagerImpl.this.process(context);
+		}
+
+	}
+
+	/**
+	 * A step of the pipeline run on the executor. Unexpected runtime exceptions
+	 * are returned via the message's {@code Future}.
+	 */
+	private abstract class Step implements Runnable {
+
+		protected final MessageContext context;
+
+		public Step(MessageContext context) {
 			this.context = context;
 		}
 
+		protected abstract void step();
+
 		@Override
 		public void run() {
 			try {
-				AsyncC2dmManagerImpl.this.process(context);
+				step();
 			} catch (RuntimeException e) {
 				LOGGER.warn(
 						"Unexpected RuntimeException while processing C2DM message.",
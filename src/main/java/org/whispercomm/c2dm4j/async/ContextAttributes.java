@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.whispercomm.c2dm4j.async.handler.ContextKey;
+
+/**
+ * Storage for the values held by an {@link AbstractContext}. Values stored
+ * under a {@link ContextKey} live in an array slot indexed by the key. Values
+ * stored under any other key live in a map that is only allocated if needed.
+ * <p>
+ * Instances are pooled. {@link #obtain()} reuses a recycled instance if one is
+ * available and {@link #recycle()} clears an instance and returns it to the
+ * pool. The pool is a small array of slots exchanged atomically, so it never
+ * blocks and never allocates.
+ *
+ * @author David R. Bild
+ *
+ */
+final class ContextAttributes {
+
+	private static final int POOL_SIZE = 256;
+
+	private static final int POOL_PROBES = 4;
+
+	private static final AtomicReferenceArray<ContextAttributes> POOL = new AtomicReferenceArray<ContextAttributes>(
+			POOL_SIZE);
+
+	private Object[] slots;
+
+	private Map<Object, Object> map;
+
+	private ContextAttributes() {
+		this.slots = new Object[ContextKey.count()];
+	}
+
+	/**
+	 * Gets an empty instance, reusing a recycled one if available.
+	 *
+	 * @return an empty instance
+	 */
+	static ContextAttributes obtain() {
+		int start = probeStart();
+		for (int i = 0; i < POOL_PROBES; ++i) {
+			int index = (start + i) & (POOL_SIZE - 1);
+			if (POOL.get(index) != null) {
+				ContextAttributes attributes = POOL.getAndSet(index, null);
+				if (attributes != null)
+					return attributes;
+			}
+		}
+		return new ContextAttributes();
+	}
+
+	/**
+	 * Clears this instance and returns it to the pool. The instance must not
+	 * be used afterwards.
+	 */
+	void recycle() {
+		Arrays.fill(slots, null);
+		map = null;
+		int start = probeStart();
+		for (int i = 0; i < POOL_PROBES; ++i) {
+			int index = (start + i) & (POOL_SIZE - 1);
+			if (POOL.get(index) == null && POOL.compareAndSet(index, null, this))
+				return;
+		}
+	}
+
+	private static int probeStart() {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) * 0x9E3779B9;
+	}
+
+	Object get(ContextKey<?> key) {
+		Object[] s = slots;
+		int index = key.index();
+		return (index < s.length) ? s[index] : null;
+	}
+
+	void put(ContextKey<?> key, Object value) {
+		int index = key.index();
+		if (index >= slots.length)
+			slots = Arrays.copyOf(slots,
+					Math.max(index + 1, ContextKey.count()));
+		slots[index] = value;
+	}
+
+	Object get(Object key) {
+		return (map == null) ? null : map.get(key);
+	}
+
+	void put(Object key, Object value) {
+		if (map == null)
+			map = new HashMap<Object, Object>();
+		map.put(key, value);
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.ScheduledMessage;
+
+/**
+ * The queue of messages ready to be sent, ordered earliest deadline first.
+ * Messages without a deadline follow all messages with one. Ties are broken by
+ * the time the message was first submitted, so retries keep their place.
+ * <p>
+ * Each message added hands one task to the executor. The task, when run,
+ * processes whichever message is at the head of the queue at that moment
+ * rather than the message that was added, so urgent messages overtake those
+ * already waiting for a thread. Messages delayed by a filter (e.g., a backoff)
+ * join the queue only once their delay expires.
+ * 
+ * @author David R. Bild
+ * 
+ */
+final class DeadlineReadyQueue {
+
+	/**
+	 * Processes a ready message.
+	 */
+	interface Processor {
+		void process(MessageContext context);
+	}
+
+	private final Executor executor;
+
+	private final Processor processor;
+
+	// Guarded by this
+	private final PriorityQueue<Entry> ready;
+
+	// Guarded by this
+	private long sequence;
+
+	private final Runnable pollTask = new Runnable() {
+		@Override
+		public void run() {
+			Entry entry;
+			synchronized (DeadlineReadyQueue.this) {
+				entry = ready.poll();
+			}
+			if (entry != null)
+				processor.process(entry.context);
+		}
+	};
+
+	/**
+	 * Constructs a new queue.
+	 * 
+	 * @param executor
+	 *            the executor on which to process messages
+	 * @param processor
+	 *            the processor to which ready messages are passed
+	 */
+	DeadlineReadyQueue(Executor executor, Processor processor) {
+		this.executor = executor;
+		this.processor = processor;
+		this.ready = new PriorityQueue<Entry>();
+	}
+
+	/**
+	 * Adds a message that is ready to be sent.
+	 * 
+	 * @param context
+	 *            the context of the message
+	 */
+	void add(MessageContext context) {
+		Message message = context.unwrap();
+		long deadline = (message instanceof ScheduledMessage) ? ((ScheduledMessage) message)
+				.getDeadline() : ScheduledMessage.NO_DEADLINE;
+		synchronized (this) {
+			ready.add(new Entry(context, deadline, sequence++));
+		}
+		executor.execute(pollTask);
+	}
+
+	/**
+	 * Gets the number of messages waiting for a thread.
+	 * 
+	 * @return the number of ready messages
+	 */
+	synchronized int size() {
+		return ready.size();
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		private final MessageContext context;
+		private final long deadline;
+		private final long submitted;
+		private final long sequence;
+
+		Entry(MessageContext context, long deadline, long sequence) {
+			this.context = context;
+			this.deadline = deadline;
+			this.submitted = context.getSubmitted();
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry that) {
+			if (this.deadline != that.deadline)
+				return (this.deadline < that.deadline) ? -1 : 1;
+			// nanoTime values must be compared by difference
+			long diff = this.submitted - that.submitted;
+			if (diff != 0)
+				return (diff < 0) ? -1 : 1;
+			return (this.sequence < that.sequence) ? -1
+					: (this.sequence == that.sequence ? 0 : 1);
+		}
+	}
+
+}
@@ -18,29 +18,44 @@ package org.whispercomm.c2dm4j.async;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.whispercomm.c2dm4j.Response;
 
+import com.google.common.util.concurrent.ExecutionList;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Future implementation for {@link Response} objects. This class does not
  * support canceling the underlying task, i.e., {@link #cancel(boolean)} always
  * returns {@code false}.
+ * <p>
+ * Listeners registered via {@link #addListener(Runnable, Executor)} are run
+ * once the future is done or cancelled.
+ * <p>
+ * The first of {@link #setCancelled()}, {@link #setResponse(Response)}, and
+ * {@link #setThrowable(Throwable)} to be called completes the future. Later
+ * calls have no effect, so a message cancelled while in the pipeline is not
+ * later completed with its response.
  * 
  * @author David R. Bild
  * 
  */
-class FutureResponse implements Future<Response> {
+class FutureResponse implements ListenableFuture<Response> {
 
 	private final static int WAITING = 0;
 	private final static int DONE = 1;
 	private final static int CANCELLED = 2;
+	private final static int COMPLETING = 3;
 
 	private final CountDownLatch latch;
 
-	private volatile int state;
+	private final ExecutionList listeners;
+
+	private final AtomicInteger state;
 
 	private volatile Response response;
 
@@ -48,7 +63,13 @@ class FutureResponse implements Future<Response> {
 
 	public FutureResponse() {
 		latch = new CountDownLatch(1);
-		state = WAITING;
+		listeners = new ExecutionList();
+		state = new AtomicInteger(WAITING);
+	}
+
+	@Override
+	public void addListener(Runnable listener, Executor executor) {
+		listeners.add(listener, executor);
 	}
 
 	@Override
@@ -56,26 +77,62 @@ class FutureResponse implements Future<Response> {
 		return false;
 	}
 
-	void setCancelled() {
-		state = CANCELLED;
-		latch.countDown();
+	/**
+	 * Completes the future as cancelled, unless already complete.
+	 * 
+	 * @return {@code true} if this call completed the future
+	 */
+	boolean setCancelled() {
+		if (!state.compareAndSet(WAITING, COMPLETING))
+			return false;
+		complete(CANCELLED);
+		return true;
 	}
 
-	void setResponse(Response response) {
+	/**
+	 * Completes the future with a response, unless already complete.
+	 * 
+	 * @return {@code true} if this call completed the future
+	 */
+	boolean setResponse(Response response) {
+		if (!state.compareAndSet(WAITING, COMPLETING))
+			return false;
 		this.response = response;
-		state = DONE;
-		latch.countDown();
+		complete(DONE);
+		return true;
 	}
 
-	void setThrowable(Throwable exception) {
+	/**
+	 * Completes the future with an exception, unless already complete.
+	 * 
+	 * @return {@code true} if this call completed the future
+	 */
+	boolean setThrowable(Throwable exception) {
+		if (!state.compareAndSet(WAITING, COMPLETING))
+			return false;
 		this.exception = exception;
-		state = DONE;
+		complete(DONE);
+		return true;
+	}
+
+	private void complete(int finalState) {
+		state.set(finalState);
 		latch.countDown();
+		listeners.execute();
+	}
+
+	/**
+	 * Indicates if the future is complete, whether done or cancelled.
+	 * 
+	 * @return {@code true} if the future is complete
+	 */
+	boolean isComplete() {
+		return state.get() != WAITING;
 	}
 
 	@Override
 	public boolean isCancelled() {
-		return (state == CANCELLED);
+		return (state.get() == CANCELLED);
 	}
 
 	@Override
@@ -105,7 +162,7 @@ class FutureResponse implements Future<Response> {
 
 	@Override
 	public boolean isDone() {
-		return (state == DONE);
+		return (state.get() == DONE);
 	}
 
 }
@@ -16,9 +16,12 @@
 package org.whispercomm.c2dm4j.async;
 
 import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.async.handler.Context;
 import org.whispercomm.c2dm4j.async.handler.MessageDecision;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * A {@link Context} implementation for {@link Message} instances.
  * 
@@ -27,6 +30,8 @@ import org.whispercomm.c2dm4j.async.handler.MessageDecision;
  */
 class MessageContext extends AbstractContext<Message, MessageDecision> {
 
+	private ListenableFuture<Response> followed;
+
 	/**
 	 * Constructs a new {@code MessageContext} wrapping the given
 	 * {@code FutureResponse} and {@code Message}.
@@ -56,4 +61,21 @@ class MessageContext extends AbstractContext<Message, MessageDecision> {
 		super(context, message, MessageDecision.SEND);
 	}
 
+	@Override
+	public void follow(ListenableFuture<Response> future) {
+		if (isDecisionFinal())
+			return;
+		this.followed = future;
+		setDecision(MessageDecision.FOLLOW);
+	}
+
+	/**
+	 * Gets the future passed to {@link #follow(ListenableFuture)}.
+	 * 
+	 * @return the followed future, or {@code null} if none
+	 */
+	ListenableFuture<Response> getFollowed() {
+		return followed;
+	}
+
 }
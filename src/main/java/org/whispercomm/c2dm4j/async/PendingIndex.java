@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.whispercomm.c2dm4j.Message;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Index of the pending messages, i.e., those pushed but not yet complete, by
+ * registration id. Each device's messages are kept in a small list that is
+ * created with the device's first pending message and discarded with its
+ * last, so lookups and bulk cancellation take time proportional to the
+ * device's pending messages. There is no lock shared between devices.
+ * 
+ * @author David R. Bild
+ * 
+ */
+final class PendingIndex {
+
+	private final ConcurrentMap<String, Device> devices;
+
+	PendingIndex() {
+		this.devices = new ConcurrentHashMap<String, Device>();
+	}
+
+	/**
+	 * Adds a message to the index. It is removed when its future completes.
+	 * 
+	 * @param context
+	 *            the context of the message
+	 */
+	void add(final MessageContext context) {
+		String registrationId = context.unwrap().getRegistrationId();
+		for (;;) {
+			Device device = devices.get(registrationId);
+			if (device == null) {
+				Device newDevice = new Device(registrationId);
+				device = devices.putIfAbsent(registrationId, newDevice);
+				if (device == null)
+					device = newDevice;
+			}
+			if (device.add(context)) {
+				final Device owner = device;
+				context.getFutureResponse().addListener(new Runnable() {
+					@Override
+					public void run() {
+						owner.remove(context);
+					}
+				}, MoreExecutors.sameThreadExecutor());
+				return;
+			}
+			// The device was discarded concurrently, so retry with a new one
+		}
+	}
+
+	/**
+	 * Gets the pending messages for a device.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the device
+	 * @return the pending messages, in the order they were pushed
+	 */
+	List<Message> get(String registrationId) {
+		Device device = devices.get(registrationId);
+		if (device == null)
+			return Collections.emptyList();
+		List<MessageContext> contexts = device.snapshot();
+		List<Message> messages = new ArrayList<Message>(contexts.size());
+		for (MessageContext context : contexts) {
+			messages.add(context.unwrap());
+		}
+		return messages;
+	}
+
+	/**
+	 * Gets the number of pending messages for a device.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the device
+	 * @return the number of pending messages
+	 */
+	int count(String registrationId) {
+		Device device = devices.get(registrationId);
+		return (device == null) ? 0 : device.size();
+	}
+
+	/**
+	 * Cancels the pending messages for a device. Messages already sent to the
+	 * C2DM service are cancelled locally; their responses are discarded.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the device
+	 * @return the number of messages cancelled
+	 */
+	int cancel(String registrationId) {
+		Device device = devices.get(registrationId);
+		if (device == null)
+			return 0;
+		int cancelled = 0;
+		// Cancelling runs listeners that remove the message from the device
+		for (MessageContext context : device.snapshot()) {
+			if (context.getFutureResponse().setCancelled())
+				++cancelled;
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Gets the number of devices with pending messages.
+	 * 
+	 * @return the number of devices
+	 */
+	int devices() {
+		return devices.size();
+	}
+
+	/**
+	 * The pending messages for a single device.
+	 */
+	private class Device {
+		private final String registrationId;
+
+		// Guarded by this
+		private final ArrayList<MessageContext> pending;
+
+		// Guarded by this
+		private boolean closed;
+
+		Device(String registrationId) {
+			this.registrationId = registrationId;
+			this.pending = new ArrayList<MessageContext>(2);
+		}
+
+		synchronized boolean add(MessageContext context) {
+			if (closed)
+				return false;
+			pending.add(context);
+			return true;
+		}
+
+		synchronized void remove(MessageContext context) {
+			for (int i = 0; i < pending.size(); ++i) {
+				if (pending.get(i) == context) {
+					pending.remove(i);
+					break;
+				}
+			}
+			if (pending.isEmpty()) {
+				closed = true;
+				devices.remove(registrationId, this);
+			}
+		}
+
+		synchronized List<MessageContext> snapshot() {
+			return new ArrayList<MessageContext>(pending);
+		}
+
+		synchronized int size() {
+			return pending.size();
+		}
+	}
+
+}
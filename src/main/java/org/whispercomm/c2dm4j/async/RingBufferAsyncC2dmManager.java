@@ -0,0 +1,319 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.async.handler.MessageFilter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An {@link AsyncC2dmManager} that hands messages from producers to the
+ * pipeline through a preallocated ring buffer, so that {@link #pushMessage}
+ * never takes a lock or touches the executor.
+ * <p>
+ * Producers claim a sequence number with a single atomic increment, write the
+ * message into the corresponding reusable slot, and publish it by setting the
+ * slot's availability flag. A single consumer thread, the only writer of the
+ * consumer sequence, reads the slots in order and runs the
+ * {@link MessageFilter#enqueueFilter(Context)} chain before passing each
+ * message to the underlying pipeline. Delays, the dequeue filters, sending,
+ * and response handling then run on the pipeline's executor as usual.
+ * <p>
+ * If the ring is full, {@link #pushMessage} by default returns a future that
+ * has already failed with a {@link RejectedExecutionException}, so a stalled
+ * pipeline cannot stall the producers. Alternatively, the manager can be
+ * created to block instead, in which case producers spin and then yield until
+ * the consumer frees a slot.
+ * <p>
+ * Instances can be created using the factory methods in
+ * {@link AsyncC2dmManagerFactory}. The consumer thread runs until
+ * {@link #shutdown()} is called.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public final class RingBufferAsyncC2dmManager implements AsyncC2dmManager {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(RingBufferAsyncC2dmManager.class);
+
+	private static final int SPIN_TRIES = 100;
+
+	private static final long PARK_NANOS = 100000L;
+
+	private final AsyncC2dmManagerImpl pipeline;
+
+	private final int mask;
+
+	private final int shift;
+
+	private final Slot[] slots;
+
+	/*
+	 * For each slot, the lap (sequence / size) of the message most recently
+	 * published to it.
+	 */
+	private final AtomicIntegerArray published;
+
+	/*
+	 * Next sequence to be claimed by a producer.
+	 */
+	private final AtomicLong claimed;
+
+	/*
+	 * Next sequence to be read by the consumer. Written only by the consumer.
+	 */
+	private final AtomicLong consumed;
+
+	private final boolean blockWhenFull;
+
+	private final Thread consumer;
+
+	private volatile boolean consumerWaiting;
+
+	private volatile boolean running;
+
+	/**
+	 * Constructs a new ring buffer manager feeding the given pipeline.
+	 * 
+	 * @param pipeline
+	 *            the pipeline to which messages are handed
+	 * @param size
+	 *            the number of slots in the ring. Must be a power of two.
+	 * @param blockWhenFull
+	 *            {@code true} to make producers wait while the ring is full,
+	 *            {@code false} to reject their messages
+	 * @param threadFactory
+	 *            the factory used to create the consumer thread
+	 */
+	RingBufferAsyncC2dmManager(AsyncC2dmManagerImpl pipeline, int size,
+			boolean blockWhenFull, ThreadFactory threadFactory) {
+		if (size < 1 || Integer.bitCount(size) != 1)
+			throw new IllegalArgumentException(
+					"Ring size must be a positive power of two.");
+		this.pipeline = pipeline;
+		this.blockWhenFull = blockWhenFull;
+		this.mask = size - 1;
+		this.shift = Integer.numberOfTrailingZeros(size);
+		this.slots = new Slot[size];
+		this.published = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; ++i) {
+			slots[i] = new Slot();
+			published.set(i, -1);
+		}
+		this.claimed = new AtomicLong();
+		this.consumed = new AtomicLong();
+		this.running = true;
+		this.consumer = threadFactory.newThread(new Consumer());
+		this.consumer.start();
+	}
+
+	@Override
+	public ListenableFuture<Response> pushMessage(Message msg) {
+		if (!running)
+			throw new IllegalStateException("Manager has been shut down.");
+		FutureResponse future = new FutureResponse();
+
+		long sequence;
+		if (blockWhenFull) {
+			sequence = claimed.getAndIncrement();
+			awaitCapacity(sequence);
+		} else {
+			sequence = tryClaim();
+			if (sequence < 0) {
+				future.setThrowable(new RejectedExecutionException(
+						"Ring buffer is full."));
+				return future;
+			}
+		}
+
+		int index = (int) sequence & mask;
+		Slot slot = slots[index];
+		slot.message = msg;
+		slot.future = future;
+		// A full fence, not a lazy set, so that the publish cannot be
+		// reordered after the read of consumerWaiting. Otherwise a consumer
+		// announcing that it waits could miss the publish and park.
+		published.set(index, lap(sequence));
+
+		if (consumerWaiting)
+			LockSupport.unpark(consumer);
+		return future;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Scheduled messages bypass the ring; they are held by the pipeline.
+	 */
+	@Override
+	public ListenableFuture<Response> pushMessageAt(Message msg, Date time) {
+		if (!running)
+			throw new IllegalStateException("Manager has been shut down.");
+		return pipeline.pushMessageAt(msg, time);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Messages still in the ring are not included.
+	 */
+	@Override
+	public List<Message> getPending(String registrationId) {
+		return pipeline.getPending(registrationId);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Messages still in the ring are not included.
+	 */
+	@Override
+	public int getPendingCount(String registrationId) {
+		return pipeline.getPendingCount(registrationId);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Messages still in the ring are not cancelled.
+	 */
+	@Override
+	public int cancelPending(String registrationId) {
+		return pipeline.cancelPending(registrationId);
+	}
+
+	/**
+	 * Claims the next sequence if its slot is free.
+	 * 
+	 * @return the claimed sequence, or -1 if the ring is full
+	 */
+	private long tryClaim() {
+		for (;;) {
+			long sequence = claimed.get();
+			if (sequence - consumed.get() > mask)
+				return -1;
+			if (claimed.compareAndSet(sequence, sequence + 1))
+				return sequence;
+		}
+	}
+
+	private void awaitCapacity(long sequence) {
+		int tries = 0;
+		while (sequence - consumed.get() > mask) {
+			if (++tries < SPIN_TRIES)
+				continue;
+			if (consumerWaiting)
+				LockSupport.unpark(consumer);
+			Thread.yield();
+		}
+	}
+
+	private int lap(long sequence) {
+		return (int) (sequence >>> shift);
+	}
+
+	/**
+	 * Stops accepting new messages. Messages already pushed are still handed
+	 * to the pipeline before the consumer thread exits. Producers must have
+	 * stopped pushing messages before this is called.
+	 */
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Gets the number of messages pushed but not yet handed to the pipeline.
+	 * 
+	 * @return the number of messages waiting in the ring
+	 */
+	public long backlog() {
+		return Math.max(0, claimed.get() - consumed.get());
+	}
+
+	private class Consumer implements Runnable {
+		@Override
+		public void run() {
+			long next = consumed.get();
+			int idle = 0;
+			while (running || next < claimed.get()) {
+				int index = (int) next & mask;
+				if (published.get(index) != lap(next)) {
+					idle = idle(idle, index, next);
+					continue;
+				}
+				idle = 0;
+
+				Slot slot = slots[index];
+				Message msg = slot.message;
+				FutureResponse future = slot.future;
+				slot.message = null;
+				slot.future = null;
+				consumed.lazySet(++next);
+
+				handOff(msg, future);
+			}
+		}
+
+		private int idle(int idle, int index, long next) {
+			if (idle < SPIN_TRIES) {
+				return idle + 1;
+			} else if (idle < 2 * SPIN_TRIES) {
+				Thread.yield();
+				return idle + 1;
+			} else {
+				consumerWaiting = true;
+				// Re-check after announcing, so a racing publish is not missed
+				if (published.get(index) != lap(next) && running)
+					LockSupport.parkNanos(PARK_NANOS);
+				consumerWaiting = false;
+				return idle;
+			}
+		}
+
+		private void handOff(Message msg, FutureResponse future) {
+			try {
+				pipeline.push(new MessageContext(future, msg));
+			} catch (RuntimeException e) {
+				LOGGER.warn(
+						"Unexpected RuntimeException while processing C2DM message.",
+						e);
+				future.setThrowable(e);
+			}
+		}
+	}
+
+	/**
+	 * A reusable slot in the ring.
+	 */
+	private static class Slot {
+		private Message message;
+		private FutureResponse future;
+	}
+
+}
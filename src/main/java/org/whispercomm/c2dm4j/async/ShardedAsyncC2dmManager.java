@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import java.util.Date;
+import java.util.List;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An {@link AsyncC2dmManager} that partitions messages across several
+ * independent shards by the hash of their registration id. Instances can be
+ * created using the factory methods in {@link AsyncC2dmManagerFactory}.
+ * <p>
+ * All messages for a given device are always handled by the same shard, so
+ * per-device state (e.g., that kept by a {@code DeviceBackoffThrottle}) stays
+ * local to one shard and one executor. Each shard should be backed by its own
+ * executor so that shards do not contend on a single work queue. State that
+ * must be global, e.g., a {@code GlobalBackoffThrottle} tracking the sender's
+ * quota, may be shared by registering the same instance with every shard.
+ *
+ * @author David R. Bild
+ *
+ */
+class ShardedAsyncC2dmManager implements AsyncC2dmManager {
+
+	private final AsyncC2dmManager[] shards;
+
+	/**
+	 * Constructs a new sharded manager over the given shards.
+	 *
+	 * @param shards
+	 *            the managers to which messages are partitioned
+	 */
+	public ShardedAsyncC2dmManager(List<? extends AsyncC2dmManager> shards) {
+		if (shards.isEmpty())
+			throw new IllegalArgumentException(
+					"At least one shard must be specified.");
+		this.shards = shards.toArray(new AsyncC2dmManager[shards.size()]);
+	}
+
+	@Override
+	public ListenableFuture<Response> pushMessage(Message msg) {
+		return shardFor(msg.getRegistrationId()).pushMessage(msg);
+	}
+
+	@Override
+	public ListenableFuture<Response> pushMessageAt(Message msg, Date time) {
+		return shardFor(msg.getRegistrationId()).pushMessageAt(msg, time);
+	}
+
+	@Override
+	public List<Message> getPending(String registrationId) {
+		return shardFor(registrationId).getPending(registrationId);
+	}
+
+	@Override
+	public int getPendingCount(String registrationId) {
+		return shardFor(registrationId).getPendingCount(registrationId);
+	}
+
+	@Override
+	public int cancelPending(String registrationId) {
+		return shardFor(registrationId).cancelPending(registrationId);
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return the number of shards
+	 */
+	int shardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Selects the shard responsible for the given registration id.
+	 *
+	 * @param registrationId
+	 *            the registration id of the device
+	 * @return the shard handling messages for the device
+	 */
+	AsyncC2dmManager shardFor(String registrationId) {
+		return shards[shardIndex(registrationId, shards.length)];
+	}
+
+	/**
+	 * Maps a registration id to a shard index. The string hash is spread so
+	 * that registration ids differing only in their trailing characters are
+	 * still distributed evenly.
+	 *
+	 * @param registrationId
+	 *            the registration id of the device
+	 * @param count
+	 *            the number of shards
+	 * @return the index of the shard in {@code [0, count)}
+	 */
+	static int shardIndex(String registrationId, int count) {
+		int h = (registrationId == null) ? 0 : registrationId.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return (h & Integer.MAX_VALUE) % count;
+	}
+
+}
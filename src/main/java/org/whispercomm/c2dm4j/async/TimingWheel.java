@@ -0,0 +1,310 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * A hashed timing wheel holding messages to be released at a future time.
+ * Time is divided into ticks and each message is placed in the bucket for its
+ * release tick, modulo the number of buckets. A single task on the timer
+ * advances the wheel once per tick, releasing the due messages in the current
+ * bucket. Messages due more than one revolution away stay in their bucket
+ * until the revolution in which they are due.
+ * <p>
+ * Scheduling a message costs one small allocation and a non-blocking queue
+ * insert, regardless of how many messages are held or how far in the future
+ * they are due, so the wheel can hold very many messages cheaply. Messages are
+ * released at most one tick late, provided the timer keeps up.
+ * <p>
+ * A message whose {@code Future} completes while it waits, e.g., because it
+ * was cancelled, is unlinked from its bucket right away. The wheel starts
+ * ticking when a message is scheduled and stops again once it holds none.
+ * 
+ * @author David R. Bild
+ * 
+ */
+final class TimingWheel {
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(TimingWheel.class);
+
+	/**
+	 * Receives messages as they come due.
+	 */
+	interface Releaser {
+		void release(MessageContext context);
+	}
+
+	private final ScheduledExecutorService timer;
+
+	private final long tickNanos;
+
+	private final int mask;
+
+	private final Releaser releaser;
+
+	private final long start;
+
+	private final AtomicBoolean started;
+
+	private final AtomicInteger size;
+
+	/*
+	 * Newly scheduled messages, moved into the buckets by the ticking task.
+	 */
+	private final ConcurrentLinkedQueue<Entry> incoming;
+
+	private final Runnable tickTask = new Runnable() {
+		@Override
+		public void run() {
+			advance();
+			stopIfIdle();
+		}
+	};
+
+	// Written only by the holder of started
+	private volatile ScheduledFuture<?> ticking;
+
+	// Guarded by this
+	private final Entry[] buckets;
+
+	// Guarded by this
+	private long tick;
+
+	/**
+	 * Constructs a new wheel.
+	 * 
+	 * @param timer
+	 *            the timer on which to advance the wheel
+	 * @param tickMillis
+	 *            the duration of a tick in milliseconds
+	 * @param wheelSize
+	 *            the number of buckets. Must be a power of two.
+	 * @param releaser
+	 *            the receiver of due messages
+	 */
+	TimingWheel(ScheduledExecutorService timer, long tickMillis,
+			int wheelSize, Releaser releaser) {
+		if (tickMillis < 1)
+			throw new IllegalArgumentException("Tick must be at least 1 ms.");
+		if (wheelSize < 1 || Integer.bitCount(wheelSize) != 1)
+			throw new IllegalArgumentException(
+					"Wheel size must be a power of two.");
+		this.timer = timer;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.mask = wheelSize - 1;
+		this.releaser = releaser;
+		this.start = System.nanoTime();
+		this.started = new AtomicBoolean();
+		this.size = new AtomicInteger();
+		this.incoming = new ConcurrentLinkedQueue<Entry>();
+		this.buckets = new Entry[wheelSize];
+	}
+
+	/**
+	 * Schedules a message for release.
+	 * 
+	 * @param context
+	 *            the context of the message
+	 * @param delayMillis
+	 *            the delay in milliseconds before releasing the message
+	 */
+	void schedule(MessageContext context, long delayMillis) {
+		long due = System.nanoTime() - start
+				+ TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		// Round up, so messages are never released early
+		long dueTick = (due + tickNanos - 1) / tickNanos;
+		Entry entry = new Entry(context, dueTick);
+		size.incrementAndGet();
+		incoming.add(entry);
+		context.getFuture().addListener(entry,
+				MoreExecutors.sameThreadExecutor());
+		startTicking();
+	}
+
+	private void startTicking() {
+		if (!started.get() && started.compareAndSet(false, true))
+			ticking = timer.scheduleAtFixedRate(tickTask, tickNanos,
+					tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Cancels the ticking task if no messages are held. Called only from the
+	 * ticking task, which holds {@code started}.
+	 */
+	private void stopIfIdle() {
+		ScheduledFuture<?> self = ticking;
+		// The first tick may run before the task is stored; stop on the next
+		if (size.get() > 0 || self == null)
+			return;
+		self.cancel(false);
+		started.set(false);
+		// A message scheduled before started was cleared saw the wheel
+		// ticking and did not restart it
+		if (size.get() > 0)
+			startTicking();
+	}
+
+	/**
+	 * Gets the number of messages waiting to be released.
+	 * 
+	 * @return the number of scheduled messages
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Advances the wheel to the current time, releasing due messages.
+	 */
+	void advance() {
+		Entry due = null;
+		synchronized (this) {
+			long now = (System.nanoTime() - start) / tickNanos;
+			for (Entry entry; (entry = incoming.poll()) != null;) {
+				if (entry.state != Entry.INCOMING)
+					continue;
+				if (entry.dueTick <= tick) {
+					due = take(entry, due);
+				} else {
+					link(entry);
+				}
+			}
+			// One revolution visits every bucket, so after a long pause (e.g.,
+			// while idle) the earlier ones can be skipped
+			tick = Math.max(tick, now - buckets.length);
+			while (tick < now) {
+				++tick;
+				due = expire((int) tick & mask, due);
+			}
+		}
+		// Released outside the lock, as releasing runs the pipeline
+		while (due != null) {
+			Entry next = due.next;
+			due.next = null;
+			release(due);
+			due = next;
+		}
+	}
+
+	private Entry expire(int index, Entry due) {
+		Entry entry = buckets[index];
+		while (entry != null) {
+			Entry next = entry.next;
+			// Entries due in a later revolution stay linked
+			if (entry.dueTick <= tick) {
+				unlink(entry);
+				due = take(entry, due);
+			}
+			entry = next;
+		}
+		return due;
+	}
+
+	/**
+	 * Marks an entry released and prepends it to the list of due entries.
+	 */
+	private Entry take(Entry entry, Entry due) {
+		entry.state = Entry.DONE;
+		size.decrementAndGet();
+		entry.next = due;
+		return entry;
+	}
+
+	private void link(Entry entry) {
+		int index = (int) entry.dueTick & mask;
+		entry.state = Entry.LINKED;
+		entry.prev = null;
+		entry.next = buckets[index];
+		if (entry.next != null)
+			entry.next.prev = entry;
+		buckets[index] = entry;
+	}
+
+	private void unlink(Entry entry) {
+		if (entry.prev != null)
+			entry.prev.next = entry.next;
+		else
+			buckets[(int) entry.dueTick & mask] = entry.next;
+		if (entry.next != null)
+			entry.next.prev = entry.prev;
+		entry.prev = null;
+		entry.next = null;
+	}
+
+	/**
+	 * Drops an entry whose message completed while waiting.
+	 */
+	private synchronized void remove(Entry entry) {
+		switch (entry.state) {
+		case Entry.LINKED:
+			unlink(entry);
+			break;
+		case Entry.INCOMING:
+			// Skipped when the ticking task polls it
+			break;
+		default:
+			return;
+		}
+		entry.state = Entry.DONE;
+		size.decrementAndGet();
+	}
+
+	private void release(Entry entry) {
+		try {
+			releaser.release(entry.context);
+		} catch (RuntimeException e) {
+			// Keep ticking; an exception would cancel the periodic task
+			LOGGER.warn("Unexpected RuntimeException releasing C2DM message.",
+					e);
+		}
+	}
+
+	private final class Entry implements Runnable {
+		private static final int INCOMING = 0;
+		private static final int LINKED = 1;
+		private static final int DONE = 2;
+
+		private final MessageContext context;
+		private final long dueTick;
+
+		// Guarded by the wheel
+		private int state;
+		private Entry prev;
+		private Entry next;
+
+		Entry(MessageContext context, long dueTick) {
+			this.context = context;
+			this.dueTick = dueTick;
+		}
+
+		@Override
+		public void run() {
+			remove(this);
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.flow;
+
+/**
+ * Interfaces for demand-driven streams of items. The interfaces and their
+ * contracts mirror those of the <a
+ * href="http://www.reactive-streams.org/">Reactive Streams</a> specification
+ * (and {@code java.util.concurrent.Flow}), so adapting to and from other
+ * implementations requires only trivial delegating wrappers.
+ *
+ * @see MessageSubscriber
+ *
+ * @author David R. Bild
+ *
+ */
+public final class Flow {
+
+	/**
+	 * Should not be instantiated.
+	 */
+	private Flow() {
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * A producer of items received by one or more {@link Subscriber}
+	 * instances.
+	 *
+	 * @param <T>
+	 *            the type of published items
+	 */
+	public static interface Publisher<T> {
+
+		/**
+		 * Adds the given subscriber. The publisher calls
+		 * {@link Subscriber#onSubscribe(Subscription)} and then signals items
+		 * as requested via the subscription.
+		 *
+		 * @param subscriber
+		 *            the subscriber
+		 */
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * A receiver of items. Each method is invoked serially for a given
+	 * subscription.
+	 *
+	 * @param <T>
+	 *            the type of received items
+	 */
+	public static interface Subscriber<T> {
+
+		/**
+		 * Invoked before any other method for the subscription.
+		 *
+		 * @param subscription
+		 *            the subscription through which to request items
+		 */
+		public void onSubscribe(Subscription subscription);
+
+		/**
+		 * Invoked with the next item, only as requested via the subscription.
+		 *
+		 * @param item
+		 *            the item
+		 */
+		public void onNext(T item);
+
+		/**
+		 * Invoked when the publisher fails. No further methods are invoked.
+		 *
+		 * @param throwable
+		 *            the cause of the failure
+		 */
+		public void onError(Throwable throwable);
+
+		/**
+		 * Invoked when the publisher has no further items. No further methods
+		 * are invoked.
+		 */
+		public void onComplete();
+	}
+
+	/**
+	 * The link between a {@link Publisher} and a {@link Subscriber}.
+	 */
+	public static interface Subscription {
+
+		/**
+		 * Requests up to {@code n} additional items.
+		 *
+		 * @param n
+		 *            the number of additional items, which must be positive
+		 */
+		public void request(long n);
+
+		/**
+		 * Requests that the publisher stop sending items.
+		 */
+		public void cancel();
+	}
+
+}
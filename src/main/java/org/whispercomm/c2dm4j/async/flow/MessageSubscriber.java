@@ -0,0 +1,288 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.flow;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.async.AsyncC2dmManager;
+import org.whispercomm.c2dm4j.async.flow.Flow.Publisher;
+import org.whispercomm.c2dm4j.async.flow.Flow.Subscriber;
+import org.whispercomm.c2dm4j.async.flow.Flow.Subscription;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * A {@link Subscriber} that pushes each received {@link Message} via an
+ * {@link AsyncC2dmManager} and a {@link Publisher} of the completed
+ * {@link Future} for each message.
+ * <p>
+ * At most {@code maxInFlight} messages are outstanding at any time. Upstream
+ * demand is replenished only as messages complete, so a producer is slowed to
+ * the rate at which the manager, including any backoff and retry imposed by
+ * its handlers, actually delivers messages. If a results subscriber is
+ * attached, a message also counts as outstanding until its result has been
+ * requested by and delivered to that subscriber, so a slow results consumer
+ * likewise slows the producer and nothing is buffered without bound.
+ * <p>
+ * Results are published in completion order. Each is a {@code Future} that is
+ * already done, whose {@code get()} returns the response or throws the
+ * exception for the message. Any results subscriber should be attached before
+ * this instance is subscribed to its upstream publisher; results completing
+ * while no results subscriber is attached are discarded.
+ *
+ * @author David R. Bild
+ *
+ */
+public class MessageSubscriber implements Subscriber<Message>,
+		Publisher<Future<Response>> {
+
+	/*
+	 * Given to rejected results subscribers, so they cannot affect the
+	 * accepted one.
+	 */
+	private static final Subscription INERT_SUBSCRIPTION = new Subscription() {
+		@Override
+		public void request(long n) {
+		}
+
+		@Override
+		public void cancel() {
+		}
+	};
+
+	private final AsyncC2dmManager manager;
+
+	private final int maxInFlight;
+
+	private final Queue<Future<Response>> completed;
+
+	/*
+	 * Messages pushed whose permits have not yet been returned upstream.
+	 */
+	private final AtomicInteger inFlight;
+
+	/*
+	 * Outstanding demand of the results subscriber.
+	 */
+	private final AtomicLong requested;
+
+	/*
+	 * Serializes the drain loop and thus all signals to the results
+	 * subscriber.
+	 */
+	private final AtomicInteger wip;
+
+	private volatile Subscription upstream;
+
+	private final AtomicReference<Subscriber<? super Future<Response>>> downstream;
+
+	private volatile boolean upstreamDone;
+
+	private volatile Throwable upstreamError;
+
+	private volatile boolean cancelled;
+
+	/*
+	 * Set when the results subscriber requested a non-positive number of
+	 * results, to be signalled by the drain loop.
+	 */
+	private volatile Throwable invalidRequest;
+
+	// Accessed only from within drain()
+	private boolean terminated;
+
+	/**
+	 * Constructs a new subscriber that pushes messages via the given manager,
+	 * with at most {@code maxInFlight} messages outstanding.
+	 *
+	 * @param manager
+	 *            the manager via which to push messages
+	 * @param maxInFlight
+	 *            the maximum number of outstanding messages
+	 */
+	public MessageSubscriber(AsyncC2dmManager manager, int maxInFlight) {
+		if (maxInFlight <= 0)
+			throw new IllegalArgumentException("maxInFlight must be positive.");
+		this.manager = manager;
+		this.maxInFlight = maxInFlight;
+		this.completed = new ConcurrentLinkedQueue<Future<Response>>();
+		this.inFlight = new AtomicInteger();
+		this.requested = new AtomicLong();
+		this.wip = new AtomicInteger();
+		this.downstream = new AtomicReference<Subscriber<? super Future<Response>>>();
+	}
+
+	/**
+	 * Gets the number of messages currently outstanding.
+	 *
+	 * @return the number of outstanding messages
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	// ------------------------- Upstream -------------------------------------
+	@Override
+	public void onSubscribe(Subscription subscription) {
+		if (upstream != null || cancelled) {
+			subscription.cancel();
+			return;
+		}
+		upstream = subscription;
+		subscription.request(maxInFlight);
+	}
+
+	@Override
+	public void onNext(Message msg) {
+		inFlight.incrementAndGet();
+		ListenableFuture<Response> future;
+		try {
+			future = manager.pushMessage(msg);
+		} catch (RuntimeException e) {
+			future = Futures.immediateFailedFuture(e);
+		}
+		final ListenableFuture<Response> result = future;
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				completed.offer(result);
+				drain();
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		upstreamError = throwable;
+		upstreamDone = true;
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+		upstreamDone = true;
+		drain();
+	}
+
+	// ------------------------- Downstream -----------------------------------
+	@Override
+	public void subscribe(Subscriber<? super Future<Response>> subscriber) {
+		if (!downstream.compareAndSet(null, subscriber)) {
+			subscriber.onSubscribe(INERT_SUBSCRIPTION);
+			subscriber.onError(new IllegalStateException(
+					"Only one results subscriber is supported."));
+			return;
+		}
+		subscriber.onSubscribe(new ResultsSubscription());
+		drain();
+	}
+
+	private void drain() {
+		if (wip.getAndIncrement() != 0)
+			return;
+
+		int missed = 1;
+		do {
+			Subscriber<? super Future<Response>> d = downstream.get();
+			long released = 0;
+			for (;;) {
+				if (cancelled) {
+					completed.clear();
+					break;
+				}
+				if (d != null && requested.get() == 0)
+					break;
+				Future<Response> result = completed.poll();
+				if (result == null)
+					break;
+				released++;
+				if (d != null) {
+					if (requested.get() != Long.MAX_VALUE)
+						requested.decrementAndGet();
+					d.onNext(result);
+				}
+			}
+
+			if (released > 0) {
+				inFlight.addAndGet((int) -released);
+				if (!upstreamDone && !cancelled)
+					upstream.request(released);
+			}
+
+			if (!terminated && invalidRequest != null) {
+				terminated = true;
+				if (d != null)
+					d.onError(invalidRequest);
+			} else if (!terminated && upstreamDone && inFlight.get() == 0
+					&& completed.isEmpty()) {
+				terminated = true;
+				if (d != null && !cancelled) {
+					if (upstreamError != null)
+						d.onError(upstreamError);
+					else
+						d.onComplete();
+				}
+			}
+
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * The subscription given to the results subscriber.
+	 */
+	private class ResultsSubscription implements Subscription {
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				// Signalled from the drain loop, serialized with onNext
+				invalidRequest = new IllegalArgumentException(
+						"Requested items must be positive.");
+				cancel();
+				return;
+			}
+			for (;;) {
+				long current = requested.get();
+				long next = current + n;
+				if (next < 0)
+					next = Long.MAX_VALUE;
+				if (requested.compareAndSet(current, next))
+					break;
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			Subscription s = upstream;
+			if (s != null)
+				s.cancel();
+			drain();
+		}
+	}
+
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A message filter, response handler, and throwable handler that adaptively
+ * limits the number of requests in flight to the C2DM service.
+ * <p>
+ * The limit is adjusted using additive-increase/multiplicative-decrease. While
+ * the limit is being used and the round-trip latency stays near the lowest
+ * observed latency, the limit grows by about one per round-trip. When latency
+ * rises beyond a tolerance of the lowest observed latency, the limit is cut
+ * gently. On {@link ResponseType#QuotaExceeded QuotaExceeded} or
+ * {@link ResponseType#ServiceUnavailable ServiceUnavailable} responses or a
+ * transport exception, it is cut sharply. Either cut is made at most once per
+ * round-trip, as the requests in flight all reflect the same overload. The
+ * limit thus hovers near the concurrency the service can actually absorb.
+ * <p>
+ * Messages dequeued while the limit is reached wait, in order, until a slot
+ * frees. This filter should be registered as the last dequeue filter, so that
+ * no later filter can delay or cancel a message that already holds one of the
+ * limited slots.
+ * <p>
+ * A slot is normally returned when the response or exception for its request
+ * is handled. It is also returned once the message completes, in case the
+ * message leaves the pipeline without a response being handled, e.g., when it
+ * is cancelled or a runtime exception escapes the send.
+ *
+ * @author David R. Bild
+ *
+ */
+public class AdaptiveConcurrencyLimiter implements AsyncMessageFilter,
+		ResponseHandler<Response>, ThrowableHandler<Throwable> {
+	static final ContextKey<Permit> CONTEXT_KEY = ContextKey.create(
+			AdaptiveConcurrencyLimiter.class.getCanonicalName(), Permit.class);
+
+	private static final ListenableFuture<Void> DONE = Futures
+			.immediateFuture(null);
+
+	private static final int DEFAULT_INITIAL_LIMIT = 20;
+	private static final int DEFAULT_MIN_LIMIT = 1;
+	private static final int DEFAULT_MAX_LIMIT = 1000;
+
+	/*
+	 * Multiplicative decrease on throttling responses or exceptions.
+	 */
+	private static final double THROTTLE_BACKOFF_RATIO = 0.5;
+
+	/*
+	 * Multiplicative decrease on rising latency.
+	 */
+	private static final double LATENCY_BACKOFF_RATIO = 0.9;
+
+	/*
+	 * Latency above this multiple of the lowest observed latency is considered
+	 * rising.
+	 */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/*
+	 * Increases in latency smaller than this (in nanoseconds) are treated as
+	 * jitter, not as rising latency.
+	 */
+	private static final long LATENCY_SLACK = 1000000L;
+
+	/*
+	 * Number of samples after which the lowest observed latency is reset, to
+	 * track long-term drift in the service latency.
+	 */
+	private static final int MIN_RTT_RESET_SAMPLES = 1000;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final AtomicInteger inFlight;
+
+	// Guarded by itself
+	private final Queue<SettableFuture<Permit>> waiters;
+
+	/*
+	 * Size of waiters, read without locking when acquiring.
+	 */
+	private volatile int waiting;
+
+	// Guarded by this
+	private double limit;
+
+	// Guarded by this
+	private long minRtt;
+
+	// Guarded by this
+	private long smoothedRtt;
+
+	// Guarded by this
+	private int samples;
+
+	// Guarded by this
+	private long lastDecrease;
+
+	/*
+	 * Integral part of limit, read without locking when acquiring.
+	 */
+	private volatile int permits;
+
+	/**
+	 * Constructs a new limiter with an initial limit of 20 concurrent
+	 * requests, bounded to between 1 and 1000.
+	 */
+	public AdaptiveConcurrencyLimiter() {
+		this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+	}
+
+	/**
+	 * Constructs a new limiter.
+	 *
+	 * @param initialLimit
+	 *            the initial number of concurrent requests
+	 * @param minLimit
+	 *            the minimum number of concurrent requests
+	 * @param maxLimit
+	 *            the maximum number of concurrent requests
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit,
+			int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+				|| initialLimit > maxLimit)
+			throw new IllegalArgumentException(
+					"Limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit.");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.inFlight = new AtomicInteger();
+		this.waiters = new LinkedList<SettableFuture<Permit>>();
+		this.limit = initialLimit;
+		this.permits = initialLimit;
+		this.minRtt = Long.MAX_VALUE;
+		this.lastDecrease = System.nanoTime();
+	}
+
+	/**
+	 * Constructs a new limiter with an initial limit of 20 concurrent
+	 * requests, bounded to between 1 and 1000, and registers the underlying
+	 * filters and handlers with the provided {@link AsyncHandlers} instance.
+	 *
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public AdaptiveConcurrencyLimiter(AsyncHandlers handlers) {
+		this();
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new limiter and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 *
+	 * @param initialLimit
+	 *            the initial number of concurrent requests
+	 * @param minLimit
+	 *            the minimum number of concurrent requests
+	 * @param maxLimit
+	 *            the maximum number of concurrent requests
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit,
+			int maxLimit, AsyncHandlers handlers) {
+		this(initialLimit, minLimit, maxLimit);
+		register(handlers);
+	}
+
+	private void register(AsyncHandlers handlers) {
+		handlers.appendAsyncEnqueueFilter(this);
+		handlers.appendAsyncDequeueFilter(this);
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, this);
+		}
+		handlers.appendThrowableHandler(IOException.class, this);
+	}
+
+	/**
+	 * Gets the current limit on concurrent requests.
+	 *
+	 * @return the current limit
+	 */
+	public int getLimit() {
+		return permits;
+	}
+
+	/**
+	 * Gets the number of requests currently in flight.
+	 *
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Gets the number of messages waiting for a slot.
+	 *
+	 * @return the number of waiting messages
+	 */
+	public int getWaiting() {
+		return waiting;
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public ListenableFuture<Void> enqueueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		// The message is being (re-)queued, so it no longer needs its slot
+		release(context);
+		return DONE;
+	}
+
+	@Override
+	public ListenableFuture<Void> dequeueFilterAsync(
+			final Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			if (context.getDelay() > 0)
+				return DONE;
+			// Do not overtake messages already waiting
+			Permit permit = (waiting == 0) ? tryAcquire() : null;
+			if (permit != null) {
+				hold(context, permit);
+				return DONE;
+			}
+			SettableFuture<Permit> waiter = SettableFuture.create();
+			synchronized (waiters) {
+				waiters.add(waiter);
+				waiting = waiters.size();
+			}
+			// A slot may have freed before the waiter was added
+			grantWaiters();
+			return Futures.transform(waiter, new Function<Permit, Void>() {
+				@Override
+				public Void apply(Permit permit) {
+					hold(context, permit);
+					return null;
+				}
+			});
+		default:
+			return DONE;
+		}
+	}
+
+	private void hold(Context<Message, MessageDecision> context, Permit permit) {
+		context.put(CONTEXT_KEY, permit);
+		context.getFuture().addListener(permit,
+				MoreExecutors.sameThreadExecutor());
+	}
+
+	private Permit tryAcquire() {
+		for (;;) {
+			int current = inFlight.get();
+			if (current >= permits)
+				return null;
+			if (inFlight.compareAndSet(current, current + 1))
+				return new Permit(System.nanoTime(), current + 1);
+		}
+	}
+
+	/**
+	 * Hands free slots to waiting messages, in order.
+	 */
+	private void grantWaiters() {
+		while (waiting > 0) {
+			SettableFuture<Permit> next;
+			Permit permit;
+			synchronized (waiters) {
+				if (waiters.isEmpty())
+					return;
+				permit = tryAcquire();
+				if (permit == null)
+					return;
+				next = waiters.poll();
+				waiting = waiters.size();
+			}
+			next.set(permit);
+		}
+	}
+
+	/**
+	 * Returns the slot held by a message, if any.
+	 * 
+	 * @return the permit for the slot, or {@code null} if the message held
+	 *         none or it was already returned
+	 */
+	private Permit release(Context<?, ?> context) {
+		Permit permit = context.get(CONTEXT_KEY);
+		if (permit == null)
+			return null;
+		context.put(CONTEXT_KEY, null);
+		return permit.release() ? permit : null;
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		Permit permit = release(context);
+		if (permit == null)
+			return;
+		switch (context.unwrap().getResponseType()) {
+		case QuotaExceeded:
+		case ServiceUnavailable:
+			onThrottled(System.nanoTime() - permit.start);
+			return;
+		default:
+			onSample(System.nanoTime() - permit.start, permit.inFlight);
+			// The limit may have grown
+			grantWaiters();
+			return;
+		}
+	}
+
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		Permit permit = release(context);
+		if (permit != null)
+			onThrottled(System.nanoTime() - permit.start);
+	}
+
+	private synchronized void onThrottled(long rtt) {
+		// Cut at most once per round-trip. Until latency has been sampled, a
+		// request sent before the last cut still counts as the same trip.
+		long now = System.nanoTime();
+		if (now - lastDecrease < Math.max(smoothedRtt, rtt))
+			return;
+		setLimit(limit * THROTTLE_BACKOFF_RATIO);
+		lastDecrease = now;
+	}
+
+	private synchronized void onSample(long rtt, int inFlightAtStart) {
+		if (++samples >= MIN_RTT_RESET_SAMPLES) {
+			samples = 0;
+			minRtt = rtt;
+		} else if (rtt < minRtt) {
+			minRtt = rtt;
+		}
+		smoothedRtt = (smoothedRtt == 0) ? rtt : (7 * smoothedRtt + rtt) / 8;
+
+		long now = System.nanoTime();
+		if (rtt > LATENCY_TOLERANCE * minRtt
+				&& rtt - minRtt > LATENCY_SLACK) {
+			// Cut at most once per round-trip, as the samples in flight all
+			// reflect the same queueing.
+			if (now - lastDecrease >= smoothedRtt) {
+				setLimit(limit * LATENCY_BACKOFF_RATIO);
+				lastDecrease = now;
+			}
+		} else if (2 * inFlightAtStart >= permits) {
+			// Only probe upward if the current limit is actually being used
+			setLimit(limit + 1.0 / limit);
+		}
+	}
+
+	private void setLimit(double newLimit) {
+		limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		permits = (int) limit;
+	}
+
+	/**
+	 * A slot held by a message in flight, returned at most once, whether by a
+	 * handler or on completion of the message.
+	 */
+	class Permit implements Runnable {
+		private final long start;
+		private final int inFlight;
+		private final AtomicBoolean released;
+
+		public Permit(long start, int inFlight) {
+			this.start = start;
+			this.inFlight = inFlight;
+			this.released = new AtomicBoolean();
+		}
+
+		/**
+		 * Returns the slot, unless already returned.
+		 * 
+		 * @return {@code true} if this call returned the slot
+		 */
+		public boolean release() {
+			if (!released.compareAndSet(false, true))
+				return false;
+			AdaptiveConcurrencyLimiter.this.inFlight.decrementAndGet();
+			grantWaiters();
+			return true;
+		}
+
+		@Override
+		public void run() {
+			release();
+		}
+	}
+
+}
@@ -19,6 +19,8 @@ import org.whispercomm.c2dm4j.Message;
 import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.ResponseType;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * A collection of {@link MessageFilter}, {@link ResponseHandler}, and
  * {@link ThrowableHandler} objects used to automatically handle certain
@@ -42,6 +44,15 @@ public interface AsyncHandlers {
 	 */
 	public void appendEnqueueFilter(MessageFilter filter);
 
+	/**
+	 * Appends a new asynchronous filter to the enqueue filter chain. Later
+	 * filters in the chain are not called until the filter completes.
+	 * 
+	 * @param filter
+	 *            the asynchronous enqueue filter
+	 */
+	public void appendAsyncEnqueueFilter(AsyncMessageFilter filter);
+
 	/**
 	 * Appends a new filter to the dequeue filter chain. These fitlers will be
 	 * called when a message is dequeued for sending, but before it is sent.
@@ -51,6 +62,15 @@ public interface AsyncHandlers {
 	 */
 	public void appendDequeueFilter(MessageFilter filter);
 
+	/**
+	 * Appends a new asynchronous filter to the dequeue filter chain. Later
+	 * filters in the chain are not called until the filter completes.
+	 * 
+	 * @param filter
+	 *            the asynchronous dequeue filter
+	 */
+	public void appendAsyncDequeueFilter(AsyncMessageFilter filter);
+
 	/**
 	 * Appends a new handler to the response handler chain. The handlers will be
 	 * called when a response is received from C2DM. A handler that accepts
@@ -64,11 +84,27 @@ public interface AsyncHandlers {
 	public <T extends Response> void appendResponseHandler(ResponseType type,
 			ResponseHandler<T> handler);
 
+	/**
+	 * Appends a new asynchronous handler to the response handler chain. Later
+	 * handlers in the chain are not called until the handler completes. A
+	 * handler that accepts multiple types must be registered once for each
+	 * type.
+	 * 
+	 * @param type
+	 *            the type of response that the handler accepts
+	 * @param handler
+	 *            the asynchronous response handler
+	 */
+	public <T extends Response> void appendAsyncResponseHandler(
+			ResponseType type, AsyncResponseHandler<T> handler);
+
 	/**
 	 * Appends a new handler to the throwable handler chain. The handlers will
 	 * be called when an exception is thrown while processing a message or
-	 * handling a response. A handler that accepts multiple types must be
-	 * registered once for each type.
+	 * handling a response. The handler also receives subclasses of the type,
+	 * so a handler registered for {@code IOException} receives, e.g.,
+	 * {@code SocketTimeoutException}. A handler registered for several types
+	 * is called at most once per exception.
 	 * 
 	 * @param type
 	 *            the type of throwable that the handler accepts
@@ -83,8 +119,10 @@ public interface AsyncHandlers {
 	 * 
 	 * @param messageContext
 	 *            the context of the message to be filtered
+	 * @return a future that completes when the chain is done. It is already
+	 *         complete if no asynchronous filter had to wait.
 	 */
-	public void filterMessageEnqueue(
+	public ListenableFuture<Void> filterMessageEnqueue(
 			Context<Message, MessageDecision> messageContext);
 
 	/**
@@ -92,8 +130,10 @@ public interface AsyncHandlers {
 	 * 
 	 * @param messageContext
 	 *            the context of the message to be filtered
+	 * @return a future that completes when the chain is done. It is already
+	 *         complete if no asynchronous filter had to wait.
 	 */
-	public void filterMessageDequeue(
+	public ListenableFuture<Void> filterMessageDequeue(
 			Context<Message, MessageDecision> messageContext);
 
 	/**
@@ -101,12 +141,15 @@ public interface AsyncHandlers {
 	 * 
 	 * @param responseContext
 	 *            the context of the response to be handled
+	 * @return a future that completes when the chain is done. It is already
+	 *         complete if no asynchronous handler had to wait.
 	 */
-	public <R extends Response> void handleResponse(
+	public <R extends Response> ListenableFuture<Void> handleResponse(
 			Context<R, ResultDecision> responseContext);
 
 	/**
-	 * Passes the exception to all handlers registered for the exception type.
+	 * Passes the exception to all handlers registered for the exception type
+	 * or any of its supertypes.
 	 * 
 	 * @param throwableContext
 	 *            the context of the exception to be handled
@@ -15,6 +15,10 @@
  */
 package org.whispercomm.c2dm4j.async.handler;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
 import org.whispercomm.c2dm4j.backoff.ExponentialBackoff;
 
 /**
@@ -33,9 +37,12 @@ public class AsyncHandlersFactory {
 	}
 
 	/**
-	 * Creates a new {@code AsyncHandlers} instance with two registered
-	 * handlers: {@link DeviceBackoffThrottle} and {@link GlobalBackoffThrottle},
-	 * both using the default {@link ExponentialBackoff} parameters.
+	 * Creates a new {@code AsyncHandlers} instance with four registered
+	 * handlers: {@link DeviceBackoffThrottle}, {@link GlobalBackoffThrottle},
+	 * and {@link TransientIoRetryHandler}, all using the default
+	 * {@link ExponentialBackoff} parameters, and a {@link CircuitBreaker} with
+	 * the default parameters. The {@code TransientIoRetryHandler} gives up on
+	 * a message after its default maximum number of attempts.
 	 * 
 	 * @return the handlers instance with the default throttles registered
 	 */
@@ -44,10 +51,72 @@ public class AsyncHandlersFactory {
 
 		new GlobalBackoffThrottle(new ExponentialBackoff(), handlers);
 		new DeviceBackoffThrottle(new ExponentialBackoff.Provider(), handlers);
+		new TransientIoRetryHandler(new ExponentialBackoff(), handlers);
+		new CircuitBreaker(handlers);
+
+		return handlers;
+	}
+
+	/**
+	 * Creates a new {@code AsyncHandlers} instance with four registered
+	 * handlers: parking versions of {@link DeviceBackoffThrottle} and
+	 * {@link GlobalBackoffThrottle} whose timers run on the given executor, both
+	 * using the default {@link ExponentialBackoff} parameters. Messages waiting
+	 * on the global backoff share a single queue and timer and are released
+	 * gradually when it expires. Messages waiting on a device's backoff share
+	 * a queue and timer for that device. A {@link TransientIoRetryHandler} and
+	 * a parking {@link CircuitBreaker} handle transport failures; messages
+	 * held by the open breaker share a single queue and timer too.
+	 * 
+	 * @param timer
+	 *            the executor on which to run the throttles' and breaker's
+	 *            timers
+	 * @return the handlers instance with the default throttles registered
+	 */
+	public static AsyncHandlers create(ScheduledExecutorService timer) {
+		AsyncHandlers handlers = createEmpty();
+
+		new GlobalBackoffThrottle(new ExponentialBackoff(), timer, handlers);
+		new DeviceBackoffThrottle(new ExponentialBackoff.Provider(), timer,
+				handlers);
+		new TransientIoRetryHandler(new ExponentialBackoff(), handlers);
+		new CircuitBreaker(timer, handlers);
 
 		return handlers;
 	}
 
+	/**
+	 * Creates {@code count} new {@code AsyncHandlers} instances for the shards
+	 * of a sharded manager. Every instance has its own
+	 * {@link DeviceBackoffThrottle}, but all share a single
+	 * {@link GlobalBackoffThrottle}, because the quota it tracks belongs to
+	 * the sender and not to any one shard. For the same reason, all share a
+	 * single {@link TransientIoRetryHandler} and {@link CircuitBreaker} for
+	 * the transport. All use the default parameters.
+	 * 
+	 * @param count
+	 *            the number of shards
+	 * @return the handlers instances, one per shard
+	 */
+	public static List<AsyncHandlers> createSharded(int count) {
+		List<AsyncHandlers> shards = new ArrayList<AsyncHandlers>(count);
+		GlobalBackoffThrottle global = new GlobalBackoffThrottle(
+				new ExponentialBackoff());
+		TransientIoRetryHandler transport = new TransientIoRetryHandler(
+				new ExponentialBackoff());
+		CircuitBreaker breaker = new CircuitBreaker();
+		for (int i = 0; i < count; ++i) {
+			AsyncHandlers handlers = createEmpty();
+			global.register(handlers);
+			new DeviceBackoffThrottle(new ExponentialBackoff.Provider(),
+					handlers);
+			transport.register(handlers);
+			breaker.register(handlers);
+			shards.add(handlers);
+		}
+		return shards;
+	}
+
 	/**
 	 * Creates a new {@code AsyncHandlers} instance with no handlers or filters
 	 * registered.
@@ -15,86 +15,250 @@
  */
 package org.whispercomm.c2dm4j.async.handler;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.whispercomm.c2dm4j.util.CopyOnWriteArrayListMultimap;
 import org.whispercomm.c2dm4j.Message;
 import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.ResponseType;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Implementation of {@code AsyncHandlers}. Can be instantiated using the
  * factory methods in {@link AsyncHandlersFactory}.
+ * <p>
+ * Registrations are compiled into arrays when they change, so dispatch is a
+ * plain loop over an array. Response handlers are indexed by
+ * {@link ResponseType#ordinal()}. The throwable handlers applicable to an
+ * exception class (those registered for the class or any of its supertypes)
+ * are resolved once per class and cached until the registrations change.
+ * <p>
+ * Synchronous and asynchronous filters and handlers share a single chain, run
+ * in order of {@link Prioritized priority} and then registration. Every
+ * filter or handler in a chain runs, even after one marks the decision final
+ * (see {@link Context#setFinalDecision(Enum)}), so those holding resources or
+ * keeping bookkeeping always see the message. Synchronous ones are adapted to
+ * return an already completed future. The chain is run on the calling thread until an
+ * asynchronous one returns an incomplete future; the rest of the chain is then
+ * run by the thread that completes that future.
  * 
  * @author David R. Bild
  * 
  */
 class AsyncHandlersImpl implements AsyncHandlers {
-	private CopyOnWriteArrayListMultimap<ResponseType, ResponseHandler<? extends Response>> responseHandlers;
+	private static final ListenableFuture<Void> DONE = Futures
+			.immediateFuture(null);
+
+	private static final Stage[] NO_STAGES = new Stage[0];
+
+	private static final ThrowableHandler<?>[] NO_THROWABLE_HANDLERS = new ThrowableHandler<?>[0];
+
+	/*
+	 * Registrations, in order. Guarded by this.
+	 */
+	private final List<Stage> enqueueFilterList;
+
+	private final List<Stage> dequeueFilterList;
+
+	private final List<List<Stage>> responseHandlerLists;
+
+	private final List<ThrowableRegistration> throwableRegistrations;
+
+	/*
+	 * Compiled registrations, read without locking.
+	 */
+	private volatile Stage[] enqueueFilters;
 
-	private CopyOnWriteArrayListMultimap<Class<? extends Throwable>, ThrowableHandler<? extends Throwable>> throwableHandlers;
+	private volatile Stage[] dequeueFilters;
 
-	private List<MessageFilter> enqueueFilters;
+	private volatile Stage[][] responseHandlers;
 
-	private List<MessageFilter> dequeueFilters;
+	private volatile ThrowableDispatch throwableHandlers;
 
 	/**
 	 * Constructs a new intance.
 	 */
 	public AsyncHandlersImpl() {
-		responseHandlers = CopyOnWriteArrayListMultimap.create();
-		throwableHandlers = CopyOnWriteArrayListMultimap.create();
-		enqueueFilters = new CopyOnWriteArrayList<MessageFilter>();
-		dequeueFilters = new CopyOnWriteArrayList<MessageFilter>();
+		enqueueFilterList = new ArrayList<Stage>();
+		dequeueFilterList = new ArrayList<Stage>();
+		responseHandlerLists = new ArrayList<List<Stage>>();
+		for (int i = 0; i < ResponseType.values().length; ++i) {
+			responseHandlerLists.add(new ArrayList<Stage>());
+		}
+		throwableRegistrations = new ArrayList<ThrowableRegistration>();
+
+		enqueueFilters = NO_STAGES;
+		dequeueFilters = NO_STAGES;
+		responseHandlers = compileResponseHandlers();
+		throwableHandlers = new ThrowableDispatch(new ThrowableRegistration[0]);
+	}
+
+	@Override
+	public void appendEnqueueFilter(final MessageFilter filter) {
+		appendEnqueueStage(new Stage(filter) {
+			@Override
+			public ListenableFuture<Void> apply(Context<?, ?> context) {
+				filter.enqueueFilter(Stage.messageContext(context));
+				return DONE;
+			}
+		});
+	}
+
+	@Override
+	public void appendAsyncEnqueueFilter(final AsyncMessageFilter filter) {
+		appendEnqueueStage(new Stage(filter) {
+			@Override
+			public ListenableFuture<Void> apply(Context<?, ?> context) {
+				return filter.enqueueFilterAsync(Stage.messageContext(context));
+			}
+		});
+	}
+
+	private synchronized void appendEnqueueStage(Stage stage) {
+		enqueueFilterList.add(stage);
+		enqueueFilters = compile(enqueueFilterList);
 	}
 
 	@Override
-	public void appendEnqueueFilter(MessageFilter filter) {
-		enqueueFilters.add(filter);
+	public void appendDequeueFilter(final MessageFilter filter) {
+		appendDequeueStage(new Stage(filter) {
+			@Override
+			public ListenableFuture<Void> apply(Context<?, ?> context) {
+				filter.dequeueFilter(Stage.messageContext(context));
+				return DONE;
+			}
+		});
 	}
 
 	@Override
-	public void appendDequeueFilter(MessageFilter filter) {
-		dequeueFilters.add(filter);
+	public void appendAsyncDequeueFilter(final AsyncMessageFilter filter) {
+		appendDequeueStage(new Stage(filter) {
+			@Override
+			public ListenableFuture<Void> apply(Context<?, ?> context) {
+				return filter.dequeueFilterAsync(Stage.messageContext(context));
+			}
+		});
+	}
+
+	private synchronized void appendDequeueStage(Stage stage) {
+		dequeueFilterList.add(stage);
+		dequeueFilters = compile(dequeueFilterList);
 	}
 
 	@Override
 	public <T extends Response> void appendResponseHandler(ResponseType type,
-			ResponseHandler<T> handler) {
-		responseHandlers.put(type, handler);
+			final ResponseHandler<T> handler) {
+		appendResponseStage(type, new Stage(handler) {
+			@Override
+			public ListenableFuture<Void> apply(Context<?, ?> context) {
+				handler.handleResponse(Stage.<T> responseContext(context));
+				return DONE;
+			}
+		});
+	}
+
+	@Override
+	public <T extends Response> void appendAsyncResponseHandler(
+			ResponseType type, final AsyncResponseHandler<T> handler) {
+		appendResponseStage(type, new Stage(handler) {
+			@Override
+			public ListenableFuture<Void> apply(Context<?, ?> context) {
+				return handler.handleResponseAsync(Stage
+						.<T> responseContext(context));
+			}
+		});
+	}
+
+	private synchronized void appendResponseStage(ResponseType type,
+			Stage stage) {
+		responseHandlerLists.get(type.ordinal()).add(stage);
+		responseHandlers = compileResponseHandlers();
+	}
+
+	private Stage[][] compileResponseHandlers() {
+		Stage[][] compiled = new Stage[responseHandlerLists.size()][];
+		for (int i = 0; i < compiled.length; ++i) {
+			compiled[i] = compile(responseHandlerLists.get(i));
+		}
+		return compiled;
+	}
+
+	/**
+	 * Orders the stages by priority. The sort is stable, so stages of equal
+	 * priority keep their registration order.
+	 */
+	private static Stage[] compile(List<Stage> stages) {
+		Stage[] compiled = stages.toArray(NO_STAGES);
+		Arrays.sort(compiled, Stage.BY_PRIORITY);
+		return compiled;
+	}
+
+	private static int priorityOf(Object handler) {
+		return (handler instanceof Prioritized) ? ((Prioritized) handler)
+				.getPriority() : Prioritized.DEFAULT_PRIORITY;
 	}
 
 	@Override
-	public <T extends Throwable> void appendThrowableHandler(
+	public synchronized <T extends Throwable> void appendThrowableHandler(
 			Class<? extends T> type, ThrowableHandler<T> handler) {
-		throwableHandlers.put(type, handler);
+		throwableRegistrations.add(new ThrowableRegistration(type, handler));
+		throwableHandlers = new ThrowableDispatch(
+				throwableRegistrations
+						.toArray(new ThrowableRegistration[throwableRegistrations
+								.size()]));
 	}
 
-	public void filterMessageEnqueue(
+	@Override
+	public ListenableFuture<Void> filterMessageEnqueue(
 			Context<Message, MessageDecision> messageContext) {
-		for (MessageFilter f : enqueueFilters) {
-			f.enqueueFilter(messageContext);
-		}
+		return run(enqueueFilters, 0, messageContext);
 	}
 
-	public void filterMessageDequeue(
+	@Override
+	public ListenableFuture<Void> filterMessageDequeue(
 			Context<Message, MessageDecision> messageContext) {
-		for (MessageFilter f : dequeueFilters) {
-			f.dequeueFilter(messageContext);
-		}
+		return run(dequeueFilters, 0, messageContext);
 	}
 
-	// Type safety ensured by only adding elements to the container via the
-	// type-parameterized appendResponseHandler() method.
-	@SuppressWarnings("unchecked")
 	@Override
-	public <R extends Response> void handleResponse(
+	public <R extends Response> ListenableFuture<Void> handleResponse(
 			Context<R, ResultDecision> responseContext) {
-		for (ResponseHandler<? extends Response> h : responseHandlers
-				.get(responseContext.unwrap().getResponseType())) {
-			((ResponseHandler<R>) h).handleResponse(responseContext);
+		return run(responseHandlers[responseContext.unwrap()
+				.getResponseType().ordinal()], 0, responseContext);
+	}
+
+	/**
+	 * Runs the stages, starting at the given index, on the context. Returns
+	 * {@link #DONE} if every stage completed synchronously. Otherwise, returns
+	 * a future completing when the remaining stages, run after the pending
+	 * one completes, are done.
+	 */
+	private static ListenableFuture<Void> run(final Stage[] stages, int from,
+			final Context<?, ?> context) {
+		for (int i = from; i < stages.length; ++i) {
+			ListenableFuture<Void> result = stages[i].apply(context);
+			if (result != DONE) {
+				final int next = i + 1;
+				return Futures.transform(result,
+						new AsyncFunction<Void, Void>() {
+							@Override
+							public ListenableFuture<Void> apply(Void input) {
+								return run(stages, next, context);
+							}
+						});
+			}
 		}
+		return DONE;
 	}
 
 	// Type safety ensured by only adding elements to the container via the
@@ -103,9 +267,108 @@ class AsyncHandlersImpl implements AsyncHandlers {
 	@Override
 	public <T extends Throwable> void handleThrowable(
 			Context<T, ResultDecision> throwableContext) {
-		for (ThrowableHandler<? extends Throwable> h : throwableHandlers
-				.get(throwableContext.unwrap().getClass())) {
+		for (ThrowableHandler<?> h : throwableHandlers
+				.resolve(throwableContext.unwrap().getClass())) {
 			((ThrowableHandler<T>) h).handleThrowable(throwableContext);
 		}
 	}
+
+	/**
+	 * A filter or handler in a chain, adapted to a common asynchronous form.
+	 */
+	private static abstract class Stage {
+		static final Comparator<Stage> BY_PRIORITY = new Comparator<Stage>() {
+			@Override
+			public int compare(Stage a, Stage b) {
+				return (a.priority < b.priority) ? -1
+						: (a.priority == b.priority ? 0 : 1);
+			}
+		};
+
+		private final int priority;
+
+		Stage(Object handler) {
+			this.priority = priorityOf(handler);
+		}
+
+		public abstract ListenableFuture<Void> apply(Context<?, ?> context);
+
+		// Type safety ensured by only running the enqueue and dequeue chains
+		// on message contexts.
+		@SuppressWarnings("unchecked")
+		static Context<Message, MessageDecision> messageContext(
+				Context<?, ?> context) {
+			return (Context<Message, MessageDecision>) context;
+		}
+
+		// Type safety ensured by only adding elements to the chains via the
+		// type-parameterized appendResponseHandler() and
+		// appendAsyncResponseHandler() methods.
+		@SuppressWarnings("unchecked")
+		static <R extends Response> Context<R, ResultDecision> responseContext(
+				Context<?, ?> context) {
+			return (Context<R, ResultDecision>) context;
+		}
+	}
+
+	/**
+	 * A snapshot of the throwable handler registrations with a cache of the
+	 * handlers resolved for each exception class. Replaced as a whole when the
+	 * registrations change, so a cached entry never outlives the registrations
+	 * from which it was resolved.
+	 */
+	private static class ThrowableDispatch {
+		private final ThrowableRegistration[] registrations;
+		private final Map<Class<?>, ThrowableHandler<?>[]> cache;
+
+		public ThrowableDispatch(ThrowableRegistration[] registrations) {
+			this.registrations = registrations;
+			this.cache = new ConcurrentHashMap<Class<?>, ThrowableHandler<?>[]>();
+		}
+
+		/**
+		 * Gets the handlers registered for the given class or any of its
+		 * supertypes, in order of priority and then registration. A handler
+		 * registered for several of those types appears only once.
+		 */
+		public ThrowableHandler<?>[] resolve(Class<?> type) {
+			ThrowableHandler<?>[] resolved = cache.get(type);
+			if (resolved == null) {
+				List<ThrowableRegistration> applicable = new ArrayList<ThrowableRegistration>();
+				for (ThrowableRegistration r : registrations) {
+					if (r.type.isAssignableFrom(type))
+						applicable.add(r);
+				}
+				Collections.sort(applicable, ThrowableRegistration.BY_PRIORITY);
+				Set<ThrowableHandler<?>> matches = new LinkedHashSet<ThrowableHandler<?>>();
+				for (ThrowableRegistration r : applicable) {
+					matches.add(r.handler);
+				}
+				resolved = matches.isEmpty() ? NO_THROWABLE_HANDLERS : matches
+						.toArray(new ThrowableHandler<?>[matches.size()]);
+				cache.put(type, resolved);
+			}
+			return resolved;
+		}
+	}
+
+	private static class ThrowableRegistration {
+		static final Comparator<ThrowableRegistration> BY_PRIORITY = new Comparator<ThrowableRegistration>() {
+			@Override
+			public int compare(ThrowableRegistration a, ThrowableRegistration b) {
+				return (a.priority < b.priority) ? -1
+						: (a.priority == b.priority ? 0 : 1);
+			}
+		};
+
+		private final Class<?> type;
+		private final ThrowableHandler<?> handler;
+		private final int priority;
+
+		public ThrowableRegistration(Class<?> type, ThrowableHandler<?> handler) {
+			this.type = type;
+			this.handler = handler;
+			this.priority = priorityOf(handler);
+		}
+	}
 }
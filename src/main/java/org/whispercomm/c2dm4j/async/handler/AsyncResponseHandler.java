@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import org.whispercomm.c2dm4j.Response;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Interface for a response handler that completes asynchronously, e.g., one
+ * that must delete an unregistered registration id from a datastore. A method
+ * is provided to handle responses from the C2DM service.
+ * <p>
+ * The decision for the response is not acted upon until the returned future
+ * completes, but no executor thread is blocked while waiting. If the future
+ * fails, the message fails with the same cause.
+ * 
+ * @see ResponseHandler
+ * 
+ * @author David R. Bild
+ * 
+ * @param <R>
+ *            the type of {@code Response} to handle
+ */
+public interface AsyncResponseHandler<R extends Response> {
+
+	/**
+	 * Handle a response received from the C2DM service.
+	 * 
+	 * @param context
+	 *            the context associated with the response
+	 * @return a future that completes when the handler is done
+	 */
+	public ListenableFuture<Void> handleResponseAsync(
+			Context<R, ResultDecision> context);
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.whispercomm.c2dm4j.backoff.Backoff;
+import org.whispercomm.c2dm4j.backoff.BackoffProvider;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * A {@link DeviceBackoffStore} holding a {@link Backoff} object per device,
+ * created by a {@link BackoffProvider}, in a cache. The cache holds a bounded
+ * number of devices (by default one million). When it is full, the least
+ * recently used devices are evicted. A device's state is also expired once
+ * the device has been idle for a timeout (by default one hour).
+ * <p>
+ * A device still in backoff is never dropped by eviction or expiry, as that
+ * would let it be retried early. It is instead set aside until its backoff
+ * has expired, and dropped then unless used again. The bound thus applies to
+ * devices not in backoff; devices in backoff are kept for at most the
+ * longest backoff interval.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class CachedDeviceBackoffStore implements DeviceBackoffStore {
+
+	private static final long DEFAULT_MAX_DEVICES = 1000000;
+
+	private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.HOURS
+			.toMillis(1);
+
+	private static final int MIN_SWEEP_INTERVAL = 64;
+
+	private final BackoffProvider provider;
+
+	private final Cache<String, Backoff> cache;
+
+	private final ConcurrentMap<String, Backoff> backoffs;
+
+	/*
+	 * Devices dropped from the cache while still in backoff
+	 */
+	private final ConcurrentMap<String, Backoff> retained;
+
+	/*
+	 * Devices to set aside before the retained ones are next swept, so the
+	 * sweeps cost amortized constant time per device
+	 */
+	private final AtomicInteger sweepCountdown;
+
+	private final AtomicLong expiredCount;
+
+	private final AtomicLong evictedCount;
+
+	/**
+	 * Constructs a new store holding at most one million devices, each for at
+	 * most one hour after its last use.
+	 * 
+	 * @param provider
+	 *            the provider to construct backoff objects as needed
+	 */
+	public CachedDeviceBackoffStore(BackoffProvider provider) {
+		this(provider, DEFAULT_MAX_DEVICES, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Constructs a new store.
+	 * 
+	 * @param provider
+	 *            the provider to construct backoff objects as needed
+	 * @param maxDevices
+	 *            the maximum number of devices for which to keep state
+	 * @param idleTimeout
+	 *            the time in milliseconds after which to drop the state of an
+	 *            idle device
+	 */
+	public CachedDeviceBackoffStore(BackoffProvider provider, long maxDevices,
+			long idleTimeout) {
+		this(provider, maxDevices, idleTimeout, Ticker.systemTicker());
+	}
+
+	CachedDeviceBackoffStore(BackoffProvider provider, long maxDevices,
+			long idleTimeout, Ticker ticker) {
+		this.provider = provider;
+		this.expiredCount = new AtomicLong();
+		this.evictedCount = new AtomicLong();
+		this.retained = new ConcurrentHashMap<String, Backoff>();
+		this.sweepCountdown = new AtomicInteger(MIN_SWEEP_INTERVAL);
+		this.cache = CacheBuilder.newBuilder().maximumSize(maxDevices)
+				.expireAfterAccess(idleTimeout, TimeUnit.MILLISECONDS)
+				.ticker(ticker).removalListener(new RemovalCounter()).build();
+		this.backoffs = cache.asMap();
+	}
+
+	@Override
+	public Backoff get(String registrationId) {
+		Backoff backoff = backoffs.get(registrationId);
+		return (backoff != null) ? backoff : reclaim(registrationId);
+	}
+
+	@Override
+	public Backoff getOrCreate(String registrationId) {
+		Backoff backoff = get(registrationId);
+		if (backoff == null) {
+			Backoff newBackoff = provider.createBackoff();
+			backoff = backoffs.putIfAbsent(registrationId, newBackoff);
+			if (backoff == null)
+				backoff = newBackoff;
+		}
+		return backoff;
+	}
+
+	@Override
+	public void remove(String registrationId) {
+		backoffs.remove(registrationId);
+		retained.remove(registrationId);
+	}
+
+	@Override
+	public long size() {
+		cache.cleanUp();
+		sweep();
+		return cache.size() + retained.size();
+	}
+
+	/**
+	 * Moves a device set aside while in backoff back into the cache.
+	 * 
+	 * @return the backoff of the device, or {@code null} if none was set
+	 *         aside
+	 */
+	private Backoff reclaim(String registrationId) {
+		Backoff backoff = retained.remove(registrationId);
+		if (backoff == null)
+			return null;
+		Backoff existing = backoffs.putIfAbsent(registrationId, backoff);
+		return (existing != null) ? existing : backoff;
+	}
+
+	/**
+	 * Drops the devices set aside whose backoff has since expired.
+	 */
+	private void sweep() {
+		for (Map.Entry<String, Backoff> entry : retained.entrySet()) {
+			if (!inBackoff(entry.getValue())
+					&& retained.remove(entry.getKey(), entry.getValue()))
+				expiredCount.incrementAndGet();
+		}
+		sweepCountdown.set(Math.max(MIN_SWEEP_INTERVAL, retained.size()));
+	}
+
+	private static boolean inBackoff(Backoff backoff) {
+		return backoff.begin().delay() > 0;
+	}
+
+	@Override
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	@Override
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	/**
+	 * Counts devices dropped from the cache by expiry or eviction, setting
+	 * aside those still in backoff.
+	 */
+	private class RemovalCounter implements RemovalListener<String, Backoff> {
+		@Override
+		public void onRemoval(RemovalNotification<String, Backoff> notification) {
+			switch (notification.getCause()) {
+			case EXPIRED:
+				if (!retain(notification))
+					expiredCount.incrementAndGet();
+				return;
+			case SIZE:
+				if (!retain(notification))
+					evictedCount.incrementAndGet();
+				return;
+			default:
+				return;
+			}
+		}
+
+		private boolean retain(RemovalNotification<String, Backoff> notification) {
+			Backoff backoff = notification.getValue();
+			if (!inBackoff(backoff))
+				return false;
+			retained.putIfAbsent(notification.getKey(), backoff);
+			if (sweepCountdown.decrementAndGet() <= 0)
+				sweep();
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * A message filter, response handler, and throwable handler that stops sending
+ * to the C2DM service while the transport is failing.
+ * <p>
+ * The breaker tracks the outcomes of the most recent requests. While
+ * {@link State#CLOSED closed}, messages pass freely. When the fraction of
+ * transient transport failures (see {@link TransientIoRetryHandler}) among
+ * the recent requests reaches a threshold, the breaker {@link State#OPEN
+ * opens} and holds dequeued messages until the open period ends. The breaker
+ * is then {@link State#HALF_OPEN half-open} and lets a few probe messages
+ * through, holding the rest. If a probe gets any response, the breaker
+ * closes; if a probe fails, the breaker opens again. A probe that ends
+ * without an outcome, e.g., because its message was cancelled, frees its
+ * place for another.
+ * <p>
+ * By default, each held message is delayed individually until the open
+ * period ends and then polls for a free probe. If constructed with a
+ * {@link ScheduledExecutorService}, the breaker instead parks held messages
+ * in a single queue (see {@link ParkingQueue}). The queue is closed while the
+ * breaker is open or all probes are in flight, hands out probes one at a
+ * time, and, once the breaker closes, releases the backlog at a paced,
+ * ramping rate.
+ * <p>
+ * This filter should be registered as the last dequeue filter, so that no
+ * later filter can delay or cancel a message after it has been allowed
+ * through as a probe.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class CircuitBreaker implements MessageFilter, AsyncMessageFilter,
+		ResponseHandler<Response>, ThrowableHandler<Throwable> {
+	static final ContextKey<Probe> CONTEXT_KEY = ContextKey.create(
+			CircuitBreaker.class.getCanonicalName(), Probe.class);
+
+	private static final ListenableFuture<Void> DONE = Futures
+			.immediateFuture(null);
+
+	/**
+	 * The state of a {@link CircuitBreaker}.
+	 */
+	public static enum State {
+		/**
+		 * Messages are sent normally.
+		 */
+		CLOSED,
+
+		/**
+		 * Messages are held until the open period ends.
+		 */
+		OPEN,
+
+		/**
+		 * A limited number of probe messages are sent to test the transport.
+		 */
+		HALF_OPEN
+	}
+
+	private static final double DEFAULT_FAILURE_THRESHOLD = 0.5;
+	private static final int DEFAULT_WINDOW_SIZE = 20;
+	private static final long DEFAULT_OPEN_PERIOD = 5000;
+	private static final int DEFAULT_PROBES = 1;
+
+	private static final long PROBE_POLL_INTERVAL = 100;
+
+	private static final long DEFAULT_RELEASE_INTERVAL = 20;
+
+	private static final int DEFAULT_INITIAL_BATCH = 1;
+
+	private final double failureThreshold;
+
+	private final long openPeriod;
+
+	private final int probes;
+
+	private final ParkingQueue parking;
+
+	// Guarded by this
+	private final boolean[] outcomes;
+
+	// Guarded by this
+	private int next;
+
+	// Guarded by this
+	private int recorded;
+
+	// Guarded by this
+	private int failures;
+
+	// Guarded by this
+	private State state;
+
+	// Guarded by this
+	private long openUntil;
+
+	// Guarded by this
+	private int probesInFlight;
+
+	// Guarded by this
+	private long openCount;
+
+	/**
+	 * Constructs a new breaker that opens for 5 seconds when half of the last
+	 * 20 requests failed, and sends a single probe when half-open.
+	 */
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_WINDOW_SIZE,
+				DEFAULT_OPEN_PERIOD, DEFAULT_PROBES);
+	}
+
+	/**
+	 * Constructs a new breaker.
+	 * 
+	 * @param failureThreshold
+	 *            the fraction of failed requests at which to open
+	 * @param windowSize
+	 *            the number of recent requests over which to compute the
+	 *            fraction of failures. The breaker does not open until this
+	 *            many requests have been recorded.
+	 * @param openPeriod
+	 *            the time in milliseconds to stay open before probing
+	 * @param probes
+	 *            the number of probe messages allowed in flight when half-open
+	 */
+	public CircuitBreaker(double failureThreshold, int windowSize,
+			long openPeriod, int probes) {
+		this(failureThreshold, windowSize, openPeriod, probes,
+				(ParkingQueue) null);
+	}
+
+	/**
+	 * Constructs a new breaker that opens for 5 seconds when half of the last
+	 * 20 requests failed, sends a single probe when half-open, and parks held
+	 * messages in a single queue. The queue's timer runs on the provided
+	 * executor.
+	 * 
+	 * @param timer
+	 *            the executor on which to run the parking queue's timer
+	 */
+	public CircuitBreaker(ScheduledExecutorService timer) {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_WINDOW_SIZE,
+				DEFAULT_OPEN_PERIOD, DEFAULT_PROBES, timer);
+	}
+
+	/**
+	 * Constructs a new breaker that parks held messages in a single queue.
+	 * The queue's timer runs on the provided executor.
+	 * 
+	 * @param failureThreshold
+	 *            the fraction of failed requests at which to open
+	 * @param windowSize
+	 *            the number of recent requests over which to compute the
+	 *            fraction of failures
+	 * @param openPeriod
+	 *            the time in milliseconds to stay open before probing
+	 * @param probes
+	 *            the number of probe messages allowed in flight when half-open
+	 * @param timer
+	 *            the executor on which to run the parking queue's timer
+	 */
+	public CircuitBreaker(double failureThreshold, int windowSize,
+			long openPeriod, int probes, ScheduledExecutorService timer) {
+		this(failureThreshold, windowSize, openPeriod, probes,
+				new ParkingQueue(timer, DEFAULT_RELEASE_INTERVAL,
+						DEFAULT_INITIAL_BATCH));
+	}
+
+	CircuitBreaker(double failureThreshold, int windowSize, long openPeriod,
+			int probes, ParkingQueue parking) {
+		if (failureThreshold <= 0 || failureThreshold > 1)
+			throw new IllegalArgumentException(
+					"Failure threshold must be in (0, 1].");
+		if (windowSize < 1)
+			throw new IllegalArgumentException(
+					"Window size must be at least 1.");
+		if (openPeriod < 0)
+			throw new IllegalArgumentException(
+					"Open period must not be negative.");
+		if (probes < 1)
+			throw new IllegalArgumentException("Probes must be at least 1.");
+		this.failureThreshold = failureThreshold;
+		this.openPeriod = openPeriod;
+		this.probes = probes;
+		this.parking = parking;
+		this.outcomes = new boolean[windowSize];
+		this.state = State.CLOSED;
+	}
+
+	/**
+	 * Constructs a new breaker that opens for 5 seconds when half of the last
+	 * 20 requests failed, and sends a single probe when half-open. Registers
+	 * the underlying filters and handlers with the provided
+	 * {@link AsyncHandlers} instance.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public CircuitBreaker(AsyncHandlers handlers) {
+		this();
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new breaker and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param failureThreshold
+	 *            the fraction of failed requests at which to open
+	 * @param windowSize
+	 *            the number of recent requests over which to compute the
+	 *            fraction of failures
+	 * @param openPeriod
+	 *            the time in milliseconds to stay open before probing
+	 * @param probes
+	 *            the number of probe messages allowed in flight when half-open
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public CircuitBreaker(double failureThreshold, int windowSize,
+			long openPeriod, int probes, AsyncHandlers handlers) {
+		this(failureThreshold, windowSize, openPeriod, probes);
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new parking breaker that opens for 5 seconds when half of
+	 * the last 20 requests failed, and sends a single probe when half-open.
+	 * Registers the underlying filters and handlers with the provided
+	 * {@link AsyncHandlers} instance.
+	 * 
+	 * @param timer
+	 *            the executor on which to run the parking queue's timer
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public CircuitBreaker(ScheduledExecutorService timer,
+			AsyncHandlers handlers) {
+		this(timer);
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new parking breaker and registers the underlying filters
+	 * and handlers with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param failureThreshold
+	 *            the fraction of failed requests at which to open
+	 * @param windowSize
+	 *            the number of recent requests over which to compute the
+	 *            fraction of failures
+	 * @param openPeriod
+	 *            the time in milliseconds to stay open before probing
+	 * @param probes
+	 *            the number of probe messages allowed in flight when half-open
+	 * @param timer
+	 *            the executor on which to run the parking queue's timer
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public CircuitBreaker(double failureThreshold, int windowSize,
+			long openPeriod, int probes, ScheduledExecutorService timer,
+			AsyncHandlers handlers) {
+		this(failureThreshold, windowSize, openPeriod, probes, timer);
+		register(handlers);
+	}
+
+	/**
+	 * Registers the underlying filters and handlers with the provided
+	 * {@link AsyncHandlers} instance. A single breaker may be registered with
+	 * several instances, e.g., to share the transport state across the shards
+	 * of a sharded manager.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	void register(AsyncHandlers handlers) {
+		handlers.appendEnqueueFilter(this);
+		if (parking == null)
+			handlers.appendDequeueFilter(this);
+		else
+			handlers.appendAsyncDequeueFilter(this);
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, this);
+		}
+		handlers.appendThrowableHandler(IOException.class, this);
+	}
+
+	/**
+	 * Gets the current state of the breaker.
+	 * 
+	 * @return the current state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Gets the number of times the breaker has opened.
+	 * 
+	 * @return the number of times opened
+	 */
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Gets the number of messages parked waiting for the breaker. Always zero
+	 * unless the breaker was constructed with a
+	 * {@code ScheduledExecutorService}.
+	 * 
+	 * @return the number of parked messages
+	 */
+	public int getParkedCount() {
+		return (parking == null) ? 0 : parking.size();
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		// The message is being (re-)queued, so it is no longer a probe
+		if (isProbe(context))
+			releaseProbe();
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			if (context.getDelay() > 0)
+				return;
+			long delay = admit();
+			if (delay > 0)
+				context.setDelay(delay);
+			else if (delay < 0)
+				sendAsProbe(context);
+			return;
+		default:
+			return;
+		}
+	}
+
+	@Override
+	public ListenableFuture<Void> enqueueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		// Registered only as a dequeue filter
+		return DONE;
+	}
+
+	@Override
+	public ListenableFuture<Void> dequeueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		if (parking == null) {
+			dequeueFilter(context);
+			return DONE;
+		}
+		switch (context.getDecision()) {
+		case SEND:
+			if (context.getDelay() > 0)
+				return DONE;
+			return admitOrPark(context, false);
+		default:
+			return DONE;
+		}
+	}
+
+	/**
+	 * Lets a message through if the breaker admits it, and otherwise parks it
+	 * and tries again once the queue releases it. New messages admitted while
+	 * the breaker is closed still pass through the queue, so they wait behind
+	 * a backlog being released.
+	 */
+	private ListenableFuture<Void> admitOrPark(
+			final Context<Message, MessageDecision> context, boolean released) {
+		for (;;) {
+			long admitted = admit();
+			if (admitted < 0) {
+				sendAsProbe(context);
+				return DONE;
+			}
+			if (admitted == 0 && released)
+				return DONE;
+			ListenableFuture<Void> parked = parking.park();
+			if (!parked.isDone())
+				return Futures.transform(parked,
+						new AsyncFunction<Void, Void>() {
+							@Override
+							public ListenableFuture<Void> apply(Void input) {
+								return admitOrPark(context, true);
+							}
+						});
+			if (admitted == 0)
+				return DONE;
+			// The queue opened since the breaker held the message
+		}
+	}
+
+	/**
+	 * Marks a message as a probe. The probe's place is given back by the
+	 * handlers once its outcome is known, or when the message completes
+	 * without one, e.g., because it was cancelled or the send threw.
+	 */
+	private void sendAsProbe(Context<Message, MessageDecision> context) {
+		Probe probe = new Probe();
+		context.put(CONTEXT_KEY, probe);
+		context.getFuture().addListener(probe,
+				MoreExecutors.sameThreadExecutor());
+	}
+
+	/**
+	 * Decides whether a message may be sent now.
+	 * 
+	 * @return zero to send normally, a negative value to send as a probe, or
+	 *         a positive delay in milliseconds to wait
+	 */
+	private synchronized long admit() {
+		long now = System.currentTimeMillis();
+		switch (state) {
+		case OPEN:
+			if (now < openUntil)
+				return openUntil - now;
+			state = State.HALF_OPEN;
+			probesInFlight = 0;
+			return admitProbe();
+		case HALF_OPEN:
+			return admitProbe();
+		default:
+			return 0;
+		}
+	}
+
+	// Requires lock on this
+	private long admitProbe() {
+		if (probesInFlight >= probes)
+			return PROBE_POLL_INTERVAL;
+		++probesInFlight;
+		if (probesInFlight >= probes && parking != null)
+			// Hold the rest until a probe returns
+			parking.close();
+		return -1;
+	}
+
+	private synchronized void releaseProbe() {
+		if (state == State.HALF_OPEN && probesInFlight > 0) {
+			--probesInFlight;
+			if (parking != null)
+				// Let the next parked message become a probe
+				parking.openAt(System.currentTimeMillis());
+		}
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		// Any response means the transport is working
+		record(isProbe(context), false);
+	}
+
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		boolean probe = isProbe(context);
+		if (TransientIoRetryHandler.isTransient(context.unwrap()))
+			record(probe, true);
+		else if (probe)
+			releaseProbe();
+	}
+
+	/**
+	 * Determines if the message was sent as a probe whose place has not yet
+	 * been given back, and takes the place if so.
+	 */
+	private boolean isProbe(Context<?, ?> context) {
+		Probe probe = context.get(CONTEXT_KEY);
+		if (probe == null)
+			return false;
+		context.put(CONTEXT_KEY, null);
+		return probe.take();
+	}
+
+	private synchronized void record(boolean probe, boolean failure) {
+		if (probe) {
+			if (state != State.HALF_OPEN)
+				return;
+			if (failure)
+				open();
+			else
+				close();
+			return;
+		}
+		if (state != State.CLOSED)
+			// Outcome of a request sent before the breaker opened
+			return;
+		if (recorded == outcomes.length) {
+			if (outcomes[next])
+				--failures;
+		} else {
+			++recorded;
+		}
+		outcomes[next] = failure;
+		if (failure)
+			++failures;
+		next = (next + 1) % outcomes.length;
+		if (recorded == outcomes.length
+				&& failures >= failureThreshold * outcomes.length)
+			open();
+	}
+
+	// Requires lock on this
+	private void open() {
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + openPeriod;
+		++openCount;
+		if (parking != null)
+			parking.openAt(openUntil);
+	}
+
+	// Requires lock on this
+	private void close() {
+		state = State.CLOSED;
+		next = 0;
+		recorded = 0;
+		failures = 0;
+		if (parking != null)
+			parking.openAt(System.currentTimeMillis());
+	}
+
+	/**
+	 * A probe's place, given back at most once, whether by a handler or on
+	 * completion of the message.
+	 */
+	final class Probe implements Runnable {
+		private final AtomicBoolean taken = new AtomicBoolean();
+
+		/**
+		 * Takes the place for giving back.
+		 * 
+		 * @return {@code true} if the place had not already been taken
+		 */
+		boolean take() {
+			return taken.compareAndSet(false, true);
+		}
+
+		@Override
+		public void run() {
+			if (take())
+				releaseProbe();
+		}
+	}
+
+}
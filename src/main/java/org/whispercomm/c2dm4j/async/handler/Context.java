@@ -20,6 +20,8 @@ import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.async.AsyncC2dmManager;
 import java.util.concurrent.Future;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Context associated with an object (i.e., {@link Message}, {@link Response},
  * or {@link Throwable}) in the asynchronous flow. The context holds
@@ -28,8 +30,11 @@ import java.util.concurrent.Future;
  * <li>the {@link Future} returned by the
  * {@link AsyncC2dmManager#pushMessage(Message)} method call,</li>
  * <li>the delay before the object should be sent or retried,</li>
- * <li>the decision (delay, retry, return, etc.) for the object, and</li>
- * <li>an object map for {@link MessageFilter}, and {@link ResponseHandler}, and
+ * <li>the number of attempts to send the message and its age,</li>
+ * <li>the decision (delay, retry, return, etc.) for the object and whether
+ * it is final, and</li>
+ * <li>typed slots (see {@link ContextKey}) and an object map for
+ * {@link MessageFilter}, and {@link ResponseHandler}, and
  * {@link ThrowableHandler} instances to store message-specific context.</li>
  * </ul>
  * 
@@ -59,13 +64,47 @@ public interface Context<T, E extends Enum<E>> {
 
 	/**
 	 * Sets the decision for the associated object (e.g., delay, cancel, or
-	 * retry).
+	 * retry). Has no effect if the decision has been marked final.
 	 * 
 	 * @param e
 	 *            the decision for the associated object
 	 */
 	public void setDecision(E e);
 
+	/**
+	 * Sets the decision for the associated object and marks it final. Later
+	 * calls to {@link #setDecision(Enum)}, {@link #setFinalDecision(Enum)}, or
+	 * {@link #follow(ListenableFuture)} in the current chain have no effect;
+	 * only {@link #overrideDecision(Enum)} can change it. The remaining
+	 * filters or handlers in the chain still run, so those that hold resources
+	 * or keep bookkeeping (e.g., concurrency limiters and throttles) always see
+	 * the message; expensive ones may check {@link #isDecisionFinal()} and
+	 * return early.
+	 * 
+	 * @param e
+	 *            the final decision for the associated object
+	 */
+	public void setFinalDecision(E e);
+
+	/**
+	 * Sets the decision for the associated object even if it has been marked
+	 * final, keeping the mark. This is meant for policy handlers that bound
+	 * the decisions of others (e.g., {@link RetryLimit} giving up on a message
+	 * another handler decided to retry) and should be used sparingly.
+	 * 
+	 * @param e
+	 *            the decision for the associated object
+	 */
+	public void overrideDecision(E e);
+
+	/**
+	 * Determines if the decision has been marked final by
+	 * {@link #setFinalDecision(Enum)} in the current chain.
+	 * 
+	 * @return {@code true} if the decision is final
+	 */
+	public boolean isDecisionFinal();
+
 	/**
 	 * Gets the duration (in milliseconds) that should elapse before the message
 	 * is sent or retried.
@@ -86,8 +125,86 @@ public interface Context<T, E extends Enum<E>> {
 	public void setDelay(long delay);
 
 	/**
-	 * Adds an key-value pair to the internal context map. Handlers and filters
-	 * should use the following convention. Each handler (filter) may store one
+	 * Gets the number of times the message has been sent to the C2DM service,
+	 * including the attempt that produced this context's response or
+	 * throwable, if any.
+	 * 
+	 * @return the number of attempts
+	 */
+	public int getAttempts();
+
+	/**
+	 * Gets the time (in milliseconds) since the message was first pushed.
+	 * Retries do not reset the age.
+	 * 
+	 * @return the age of the message in milliseconds
+	 */
+	public long getAge();
+
+	/**
+	 * Gets the {@link Future} returned by the
+	 * {@link AsyncC2dmManager#pushMessage(Message)} call for the message.
+	 * 
+	 * @return the future for the message
+	 */
+	public ListenableFuture<Response> getFuture();
+
+	/**
+	 * Completes the message with the outcome of another message instead of
+	 * sending it, e.g., because it duplicates a message already pushed. The
+	 * decision is set to {@link MessageDecision#FOLLOW}. Has no effect if the
+	 * decision has been marked final. Only supported for {@link Message}
+	 * contexts.
+	 * 
+	 * @param future
+	 *            the future whose outcome to adopt
+	 * @throws UnsupportedOperationException
+	 *             if this is not a {@code Message} context
+	 */
+	public void follow(ListenableFuture<Response> future);
+
+	/**
+	 * Completes the message's future with an exception right away, e.g., to
+	 * drop a message that is waiting elsewhere in the pipeline. The message
+	 * itself is dropped the next time it would pass through a chain of
+	 * filters. Unlike the other methods, this may be called from any thread
+	 * and after the current chain has finished.
+	 * 
+	 * @param cause
+	 *            the exception with which to complete the future
+	 * @return {@code true} if this call completed the future, {@code false}
+	 *         if it was already complete
+	 */
+	public boolean fail(Throwable cause);
+
+	/**
+	 * Stores a value under a typed key. This is the preferred way for filters
+	 * and handlers to store message-specific context, as the value is held in
+	 * a slot indexed by the key rather than in a map.
+	 * 
+	 * @param key
+	 *            the key, typically a {@code static final} field of the filter
+	 *            or handler
+	 * @param value
+	 *            the value to store
+	 */
+	public <C> void put(ContextKey<C> key, C value);
+
+	/**
+	 * Gets the value stored under a typed key.
+	 * 
+	 * @see #put(ContextKey, Object)
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the value, or {@code null} if none is stored
+	 */
+	public <C> C get(ContextKey<C> key);
+
+	/**
+	 * Adds an key-value pair to the internal context map. Where possible,
+	 * prefer {@link #put(ContextKey, Object)}. Handlers and filters should use
+	 * the following convention. Each handler (filter) may store one
 	 * value, using the handler's canonical name
 	 * (.getClass().getCanonicalName()) as the key. If multiple instances of the
 	 * same type are allowable, the key should be composed of the canonical name
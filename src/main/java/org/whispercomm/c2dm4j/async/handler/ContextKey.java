@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A typed key for storing values in a {@link Context}. Each key is assigned a
+ * fixed slot index when created, so storing and retrieving values are simple
+ * array accesses instead of hash map lookups.
+ * <p>
+ * Keys are intended to be created once, as {@code static final} fields of the
+ * filter or handler that uses them, e.g., <br/>
+ * <code>
+ * static final ContextKey&lt;Attempt&gt; CONTEXT_KEY = ContextKey.create(MyThrottle.class.getCanonicalName(), Attempt.class);
+ * </code>
+ * <p>
+ * Keys are compared by identity. Two keys created with the same name refer to
+ * different slots.
+ *
+ * @author David R. Bild
+ *
+ * @param <T>
+ *            the type of the value stored under the key
+ */
+public final class ContextKey<T> {
+
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	private final int index;
+
+	private final String name;
+
+	private final Class<T> type;
+
+	private ContextKey(int index, String name, Class<T> type) {
+		this.index = index;
+		this.name = name;
+		this.type = type;
+	}
+
+	/**
+	 * Creates a new key, assigning it the next free slot.
+	 *
+	 * @param name
+	 *            a descriptive name for the key--- the using class's canonical
+	 *            name, by convention
+	 * @param type
+	 *            the type of the value stored under the key
+	 * @return the new key
+	 */
+	public static <T> ContextKey<T> create(String name, Class<T> type) {
+		return new ContextKey<T>(COUNT.getAndIncrement(), name, type);
+	}
+
+	/**
+	 * Gets the number of keys created so far. Contexts size their storage to
+	 * this number of slots.
+	 *
+	 * @return the number of keys created
+	 */
+	public static int count() {
+		return COUNT.get();
+	}
+
+	/**
+	 * Gets the slot index of this key.
+	 *
+	 * @return the slot index
+	 */
+	public int index() {
+		return index;
+	}
+
+	/**
+	 * Gets the descriptive name of this key.
+	 *
+	 * @return the name
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Gets the type of the value stored under this key.
+	 *
+	 * @return the value type
+	 */
+	public Class<T> type() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ContextKey(name=\"%s\", index=%d)", name, index);
+	}
+
+}
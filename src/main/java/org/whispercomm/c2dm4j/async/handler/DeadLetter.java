@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.Date;
+
+import org.whispercomm.c2dm4j.Message;
+
+/**
+ * A message given up on after exhausting its retries, with the reason it was
+ * given up. Instances are immutable.
+ * 
+ * @see DeadLetterSink
+ * 
+ * @author David R. Bild
+ * 
+ */
+public final class DeadLetter {
+
+	private final Message message;
+
+	private final int attempts;
+
+	private final long age;
+
+	private final String reason;
+
+	private final long time;
+
+	/**
+	 * Constructs a new dead letter, given up at the current time.
+	 * 
+	 * @param message
+	 *            the message
+	 * @param attempts
+	 *            the number of times the message was sent
+	 * @param age
+	 *            the time in milliseconds since the message was first pushed
+	 * @param reason
+	 *            the last outcome, e.g., the response type or exception
+	 */
+	public DeadLetter(Message message, int attempts, long age, String reason) {
+		this(message, attempts, age, reason, System.currentTimeMillis());
+	}
+
+	DeadLetter(Message message, int attempts, long age, String reason,
+			long time) {
+		this.message = message;
+		this.attempts = attempts;
+		this.age = age;
+		this.reason = reason;
+		this.time = time;
+	}
+
+	/**
+	 * Gets the message.
+	 * 
+	 * @return the message
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * Gets the number of times the message was sent.
+	 * 
+	 * @return the number of attempts
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Gets the time between the message being pushed and given up.
+	 * 
+	 * @return the age in milliseconds
+	 */
+	public long getAge() {
+		return age;
+	}
+
+	/**
+	 * Gets the last outcome for the message, e.g., the response type or
+	 * exception.
+	 * 
+	 * @return the reason the message was given up
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Gets the time the message was given up.
+	 * 
+	 * @return the time
+	 */
+	public Date getTime() {
+		return new Date(time);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"DeadLetter(message=%s, attempts=%d, age=%d, reason=\"%s\")",
+				message, attempts, age, reason);
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+/**
+ * Destination for messages given up on after exhausting their retries.
+ * Implementations must be thread-safe and should not block for long, as
+ * letters are delivered from the threads handling responses.
+ * 
+ * @see RetryLimit
+ * @see MemoryDeadLetterSink
+ * @see FileDeadLetterSink
+ * 
+ * @author David R. Bild
+ * 
+ */
+public interface DeadLetterSink {
+
+	/**
+	 * Accepts a message given up on.
+	 * 
+	 * @param letter
+	 *            the message and the reason it was given up
+	 */
+	public void deadLetter(DeadLetter letter);
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.ScheduledMessage;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * A message filter that counts messages completed before and after their
+ * deadlines (see {@link ScheduledMessage#getDeadline()}). A message counts
+ * once, when its {@code Future} completes, regardless of how many times it was
+ * retried. Only messages completed with a response count as met or missed.
+ * Messages that are cancelled, shed (see {@link MessageShedException}), or
+ * fail with another exception are counted separately. Messages without a
+ * deadline are not counted.
+ * <p>
+ * A growing miss count means that the capacity for sending messages is
+ * insufficient for the offered load.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DeadlineMonitor implements MessageFilter {
+	static final ContextKey<Boolean> CONTEXT_KEY = ContextKey.create(
+			DeadlineMonitor.class.getCanonicalName(), Boolean.class);
+
+	private final AtomicLong met;
+
+	private final AtomicLong missed;
+
+	private final AtomicLong lateness;
+
+	private final AtomicLong cancelled;
+
+	private final AtomicLong shed;
+
+	private final AtomicLong failed;
+
+	/**
+	 * Constructs a new monitor.
+	 */
+	public DeadlineMonitor() {
+		this.met = new AtomicLong();
+		this.missed = new AtomicLong();
+		this.lateness = new AtomicLong();
+		this.cancelled = new AtomicLong();
+		this.shed = new AtomicLong();
+		this.failed = new AtomicLong();
+	}
+
+	/**
+	 * Constructs a new monitor and registers the underlying filter with the
+	 * provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public DeadlineMonitor(AsyncHandlers handlers) {
+		this();
+		handlers.appendEnqueueFilter(this);
+	}
+
+	/**
+	 * Gets the number of messages completed by their deadline.
+	 * 
+	 * @return the number of deadlines met
+	 */
+	public long getMetCount() {
+		return met.get();
+	}
+
+	/**
+	 * Gets the number of messages completed after their deadline.
+	 * 
+	 * @return the number of deadlines missed
+	 */
+	public long getMissedCount() {
+		return missed.get();
+	}
+
+	/**
+	 * Gets the total time by which missed deadlines were missed.
+	 * 
+	 * @return the total lateness in milliseconds
+	 */
+	public long getTotalLateness() {
+		return lateness.get();
+	}
+
+	/**
+	 * Gets the number of messages with a deadline that were cancelled.
+	 * 
+	 * @return the number of cancelled messages
+	 */
+	public long getCancelledCount() {
+		return cancelled.get();
+	}
+
+	/**
+	 * Gets the number of messages with a deadline that were shed.
+	 * 
+	 * @return the number of shed messages
+	 */
+	public long getShedCount() {
+		return shed.get();
+	}
+
+	/**
+	 * Gets the number of messages with a deadline that failed with an
+	 * exception other than being shed.
+	 * 
+	 * @return the number of failed messages
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		// Count each message once, not once per retry
+		if (context.get(CONTEXT_KEY) != null)
+			return;
+		Message message = context.unwrap();
+		if (!(message instanceof ScheduledMessage))
+			return;
+		final long deadline = ((ScheduledMessage) message).getDeadline();
+		if (deadline == ScheduledMessage.NO_DEADLINE)
+			return;
+		context.put(CONTEXT_KEY, Boolean.TRUE);
+		final ListenableFuture<?> future = context.getFuture();
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				record(future, deadline);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		// Nothing to do
+	}
+
+	private void record(ListenableFuture<?> future, long deadline) {
+		try {
+			future.get();
+		} catch (CancellationException e) {
+			cancelled.incrementAndGet();
+			return;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MessageShedException)
+				shed.incrementAndGet();
+			else
+				failed.incrementAndGet();
+			return;
+		} catch (InterruptedException e) {
+			// Not reached, as the future is complete
+			Thread.currentThread().interrupt();
+			return;
+		}
+		long late = System.currentTimeMillis() - deadline;
+		if (late > 0) {
+			missed.incrementAndGet();
+			lateness.addAndGet(late);
+		} else {
+			met.incrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import org.whispercomm.c2dm4j.backoff.Backoff;
+
+/**
+ * The per-device backoff state of a {@link DeviceBackoffThrottle}, keyed by
+ * registration id. Implementations must be thread-safe and may drop the state
+ * of devices that have been idle or to bound their size, in which case the
+ * device starts again with no backoff.
+ * 
+ * @see CachedDeviceBackoffStore
+ * @see PackedDeviceBackoffStore
+ * @see MappedDeviceBackoffStore
+ * 
+ * @author David R. Bild
+ * 
+ */
+public interface DeviceBackoffStore {
+
+	/**
+	 * Gets the backoff for a device.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the device
+	 * @return the backoff, or {@code null} if the device has none
+	 */
+	public Backoff get(String registrationId);
+
+	/**
+	 * Gets the backoff for a device, creating one if the device has none.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the device
+	 * @return the backoff
+	 */
+	public Backoff getOrCreate(String registrationId);
+
+	/**
+	 * Removes the backoff for a device.
+	 * 
+	 * @param registrationId
+	 *            the registration id of the device
+	 */
+	public void remove(String registrationId);
+
+	/**
+	 * Gets the number of devices for which backoff state is kept.
+	 * 
+	 * @return the number of devices
+	 */
+	public long size();
+
+	/**
+	 * Gets the number of devices whose state was dropped after being idle or
+	 * after its backoff expired.
+	 * 
+	 * @return the number of expired devices
+	 */
+	public long getExpiredCount();
+
+	/**
+	 * Gets the number of devices whose state was evicted to bound the size of
+	 * the store.
+	 * 
+	 * @return the number of evicted devices
+	 */
+	public long getEvictedCount();
+
+}
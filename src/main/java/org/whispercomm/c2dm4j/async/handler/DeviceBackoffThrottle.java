@@ -15,8 +15,14 @@
  */
 package org.whispercomm.c2dm4j.async.handler;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.whispercomm.c2dm4j.Message;
 import org.whispercomm.c2dm4j.Response;
@@ -25,22 +31,56 @@ import org.whispercomm.c2dm4j.backoff.Attempt;
 import org.whispercomm.c2dm4j.backoff.Backoff;
 import org.whispercomm.c2dm4j.backoff.BackoffProvider;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * A message filter and response handler that implements per-device retry with
  * backoff for {@link ResponseType#DeviceQuotaExceeded
  * DeviceQuotaExceeded} responses.
+ * <p>
+ * By default, each message to a backed-off device is delayed individually. If
+ * constructed with a {@link ScheduledExecutorService}, the throttle instead
+ * parks the messages for a backed-off device in a single FIFO queue for that
+ * device, with one timer. Whenever the device's backoff allows, one message is
+ * released as a probe. A {@link ResponseType#Success Success} response
+ * releases the rest of the queue. A {@link ResponseType#NotRegistered
+ * NotRegistered} or {@link ResponseType#InvalidRegistration
+ * InvalidRegistration} response drops it, cancelling the parked messages.
+ * <p>
+ * The backoff state is kept in a {@link DeviceBackoffStore}. By default, this
+ * is a {@link CachedDeviceBackoffStore}, bounded in size and expiring idle
+ * devices. A {@link PackedDeviceBackoffStore} holds the state for many more
+ * devices in the same memory, and a {@link MappedDeviceBackoffStore} keeps it
+ * in a file across restarts.
  * 
  * @author David R. Bild
  * 
  */
 public class DeviceBackoffThrottle implements MessageFilter,
-		ResponseHandler<Response> {
-	static final String CONTEXT_KEY = DeviceBackoffThrottle.class
-			.getCanonicalName();
+		AsyncMessageFilter, ResponseHandler<Response> {
+	static final ContextKey<Attempt> CONTEXT_KEY = ContextKey.create(
+			DeviceBackoffThrottle.class.getCanonicalName(), Attempt.class);
+
+	private static final ListenableFuture<Void> DONE = Futures
+			.immediateFuture(null);
+
+	/*
+	 * Interval after releasing a probe message at which the next is released,
+	 * if the device's backoff still allows, when no response has arrived in
+	 * the meantime.
+	 */
+	private static final long DEFAULT_PROBE_INTERVAL = 1000;
+
+	private final DeviceBackoffStore store;
 
-	private final BackoffProvider provider;
+	private final ScheduledExecutorService timer;
 
-	private ConcurrentMap<String, Backoff> backoffs;
+	private final long probeInterval;
+
+	private final ConcurrentMap<String, DeviceQueue> queues;
 
 	/**
 	 * Constructs a new throttle that will use the specified provider to
@@ -50,8 +90,148 @@ public class DeviceBackoffThrottle implements MessageFilter,
 	 *            the provider to construct backoff objects as needed
 	 */
 	public DeviceBackoffThrottle(BackoffProvider provider) {
-		this.provider = provider;
-		this.backoffs = new ConcurrentHashMap<String, Backoff>();
+		this(provider, null, 0);
+	}
+
+	/**
+	 * Constructs a new throttle that will use the specified provider to
+	 * construct {@link Backoff} instances as needed and parks the messages for
+	 * backed-off devices in per-device queues. The queues' timers run on the
+	 * provided executor.
+	 * 
+	 * @param provider
+	 *            the provider to construct backoff objects as needed
+	 * @param timer
+	 *            the executor on which to run the per-device timers
+	 */
+	public DeviceBackoffThrottle(BackoffProvider provider,
+			ScheduledExecutorService timer) {
+		this(provider, timer, DEFAULT_PROBE_INTERVAL);
+	}
+
+	/**
+	 * Constructs a new parking throttle that will use the specified provider
+	 * to construct {@link Backoff} instances as needed and registers the
+	 * underlying filters and handlers with the provider {@link AsyncHandlers}
+	 * instance.
+	 * 
+	 * @param provider
+	 *            the provider to construct backoff objects as needed
+	 * @param timer
+	 *            the executor on which to run the per-device timers
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public DeviceBackoffThrottle(BackoffProvider provider,
+			ScheduledExecutorService timer, AsyncHandlers handlers) {
+		this(provider, timer);
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new throttle that will use the specified provider to
+	 * construct {@link Backoff} instances as needed and keeps backoff state
+	 * for at most {@code maxDevices} devices not in backoff, each for at most
+	 * {@code idleTimeout} milliseconds after its last use. Devices in backoff
+	 * are kept until their backoff expires.
+	 * 
+	 * @param provider
+	 *            the provider to construct backoff objects as needed
+	 * @param maxDevices
+	 *            the maximum number of devices for which to keep state
+	 * @param idleTimeout
+	 *            the time in milliseconds after which to drop the state of an
+	 *            idle device
+	 */
+	public DeviceBackoffThrottle(BackoffProvider provider, long maxDevices,
+			long idleTimeout) {
+		this(new CachedDeviceBackoffStore(provider, maxDevices, idleTimeout));
+	}
+
+	/**
+	 * Constructs a new throttle that will use the specified provider to
+	 * construct {@link Backoff} instances as needed, keeps backoff state for
+	 * at most {@code maxDevices} devices not in backoff, each for at most
+	 * {@code idleTimeout} milliseconds after its last use, and registers the
+	 * underlying filters and handlers with the provider {@link AsyncHandlers}
+	 * instance. Devices in backoff are kept until their backoff expires.
+	 * 
+	 * @param provider
+	 *            the provider to construct backoff objects as needed
+	 * @param maxDevices
+	 *            the maximum number of devices for which to keep state
+	 * @param idleTimeout
+	 *            the time in milliseconds after which to drop the state of an
+	 *            idle device
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public DeviceBackoffThrottle(BackoffProvider provider, long maxDevices,
+			long idleTimeout, AsyncHandlers handlers) {
+		this(provider, maxDevices, idleTimeout);
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new throttle that keeps backoff state in the specified
+	 * store.
+	 * 
+	 * @param store
+	 *            the store for the per-device backoff state
+	 */
+	public DeviceBackoffThrottle(DeviceBackoffStore store) {
+		this(store, null, 0);
+	}
+
+	/**
+	 * Constructs a new throttle that keeps backoff state in the specified
+	 * store and registers the underlying filters and handlers with the
+	 * provider {@link AsyncHandlers} instance.
+	 * 
+	 * @param store
+	 *            the store for the per-device backoff state
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public DeviceBackoffThrottle(DeviceBackoffStore store,
+			AsyncHandlers handlers) {
+		this(store);
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new parking throttle that keeps backoff state in the
+	 * specified store and registers the underlying filters and handlers with
+	 * the provider {@link AsyncHandlers} instance.
+	 * 
+	 * @param store
+	 *            the store for the per-device backoff state
+	 * @param timer
+	 *            the executor on which to run the per-device timers
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public DeviceBackoffThrottle(DeviceBackoffStore store,
+			ScheduledExecutorService timer, AsyncHandlers handlers) {
+		this(store, timer, DEFAULT_PROBE_INTERVAL);
+		register(handlers);
+	}
+
+	DeviceBackoffThrottle(BackoffProvider provider,
+			ScheduledExecutorService timer, long probeInterval) {
+		this(new CachedDeviceBackoffStore(provider), timer, probeInterval);
+	}
+
+	DeviceBackoffThrottle(DeviceBackoffStore store,
+			ScheduledExecutorService timer, long probeInterval) {
+		this.store = store;
+		this.timer = timer;
+		this.probeInterval = probeInterval;
+		this.queues = new ConcurrentHashMap<String, DeviceQueue>();
 	}
 
 	/**
@@ -69,8 +249,16 @@ public class DeviceBackoffThrottle implements MessageFilter,
 	public DeviceBackoffThrottle(BackoffProvider provider,
 			AsyncHandlers handlers) {
 		this(provider);
-		handlers.appendEnqueueFilter(this);
-		handlers.appendDequeueFilter(this);
+		register(handlers);
+	}
+
+	private void register(AsyncHandlers handlers) {
+		if (timer == null) {
+			handlers.appendEnqueueFilter(this);
+			handlers.appendDequeueFilter(this);
+		} else {
+			handlers.appendAsyncDequeueFilter(this);
+		}
 		handlers.appendResponseHandler(ResponseType.DeviceQuotaExceeded, this);
 		handlers.appendResponseHandler(ResponseType.Success, this);
 		handlers.appendResponseHandler(ResponseType.InvalidRegistration, this);
@@ -90,8 +278,108 @@ public class DeviceBackoffThrottle implements MessageFilter,
 		updateDelay(context, deviceKey);
 	}
 
+	@Override
+	public ListenableFuture<Void> enqueueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		// Waiting happens at dequeue, in the device's queue
+		return DONE;
+	}
+
+	@Override
+	public ListenableFuture<Void> dequeueFilterAsync(
+			final Context<Message, MessageDecision> context) {
+		if (timer == null) {
+			dequeueFilter(context);
+			return DONE;
+		}
+		switch (context.getDecision()) {
+		case SEND:
+			final String deviceKey = context.unwrap().getRegistrationId();
+			Attempt attempt = createAttempt(context, deviceKey);
+			boolean backedOff = attempt != null && attempt.delay() > 0;
+			if (!backedOff && !queues.containsKey(deviceKey))
+				return DONE;
+			// Begin a new attempt on release, so the outcome is recorded
+			// against the backoff state at the time of sending.
+			return Futures.transform(park(deviceKey),
+					new Function<Void, Void>() {
+						@Override
+						public Void apply(Void input) {
+							createAttempt(context, deviceKey);
+							return null;
+						}
+					});
+		default:
+			return DONE;
+		}
+	}
+
+	private ListenableFuture<Void> park(String deviceKey) {
+		for (;;) {
+			DeviceQueue queue = queues.get(deviceKey);
+			if (queue == null) {
+				DeviceQueue newQueue = new DeviceQueue(deviceKey);
+				queue = queues.putIfAbsent(deviceKey, newQueue);
+				if (queue == null)
+					queue = newQueue;
+			}
+			ListenableFuture<Void> parked = queue.park();
+			if (parked != null)
+				return parked;
+			// The queue was closed concurrently, so retry with a new one
+		}
+	}
+
+	private long backoffDelay(String deviceKey) {
+		Backoff backoff = retrieveBackoff(deviceKey);
+		return (backoff == null) ? 0 : backoff.begin().delay();
+	}
+
+	/**
+	 * Gets the number of messages parked waiting for their device's backoff to
+	 * expire. Always zero unless the throttle was constructed with a
+	 * {@code ScheduledExecutorService}.
+	 * 
+	 * @return the number of parked messages
+	 */
+	public int getParkedCount() {
+		int count = 0;
+		for (DeviceQueue queue : queues.values()) {
+			count += queue.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the number of devices for which backoff state is kept.
+	 * 
+	 * @return the number of devices
+	 */
+	public long getDeviceCount() {
+		return store.size();
+	}
+
+	/**
+	 * Gets the number of devices whose state was dropped after being idle.
+	 * 
+	 * @return the number of expired devices
+	 */
+	public long getExpiredCount() {
+		return store.getExpiredCount();
+	}
+
+	/**
+	 * Gets the number of devices whose state was evicted to bound the size of
+	 * the table.
+	 * 
+	 * @return the number of evicted devices
+	 */
+	public long getEvictedCount() {
+		return store.getEvictedCount();
+	}
+
 	private Backoff retrieveBackoff(String deviceKey) {
-		return backoffs.get(deviceKey);
+		return store.get(deviceKey);
 	}
 
 	private Attempt createAttempt(Context<Message, MessageDecision> context,
@@ -133,9 +421,14 @@ public class DeviceBackoffThrottle implements MessageFilter,
 			recordFailure(context, deviceKey);
 			return;
 		case Success:
+			removeBackoff(deviceKey);
+			releaseQueue(deviceKey, false);
+			return;
 		case InvalidRegistration:
 		case NotRegistered:
 			removeBackoff(deviceKey);
+			releaseQueue(deviceKey, true);
+			return;
 		default:
 			return;
 		}
@@ -152,22 +445,120 @@ public class DeviceBackoffThrottle implements MessageFilter,
 	}
 
 	private Attempt retrieveAttempt(Context<Response, ResultDecision> context) {
-		return context.get(CONTEXT_KEY, Attempt.class);
+		return context.get(CONTEXT_KEY);
 	}
 
 	private Backoff createOrRetrieveBackoff(String deviceKey) {
-		Backoff backoff = retrieveBackoff(deviceKey);
-		if (backoff == null) {
-			Backoff newBackoff = provider.createBackoff();
-			backoff = backoffs.putIfAbsent(deviceKey, newBackoff);
-			if (backoff == null)
-				backoff = newBackoff;
-		}
-		return backoff;
+		return store.getOrCreate(deviceKey);
 	}
 
 	private void removeBackoff(String deviceKey) {
-		backoffs.remove(deviceKey);
+		store.remove(deviceKey);
+	}
+
+	private void releaseQueue(String deviceKey, boolean drop) {
+		DeviceQueue queue = queues.get(deviceKey);
+		if (queue != null)
+			queue.releaseAll(drop);
+	}
+
+	/**
+	 * The parked messages for a single backed-off device and the timer that
+	 * releases them.
+	 */
+	private class DeviceQueue implements Runnable {
+		private final String deviceKey;
+
+		// Guarded by this
+		private final Queue<SettableFuture<Void>> parked;
+
+		// Guarded by this
+		private boolean timerScheduled;
+
+		// Guarded by this
+		private boolean closed;
+
+		public DeviceQueue(String deviceKey) {
+			this.deviceKey = deviceKey;
+			this.parked = new LinkedList<SettableFuture<Void>>();
+		}
+
+		/**
+		 * Parks a message.
+		 * 
+		 * @return a future that completes when the message is released, or
+		 *         {@code null} if the queue is closed
+		 */
+		public synchronized ListenableFuture<Void> park() {
+			if (closed)
+				return null;
+			SettableFuture<Void> future = SettableFuture.create();
+			parked.add(future);
+			schedule(backoffDelay(deviceKey));
+			return future;
+		}
+
+		public synchronized int size() {
+			return parked.size();
+		}
+
+		// Requires lock on this
+		private void schedule(long delay) {
+			if (timerScheduled)
+				return;
+			timerScheduled = true;
+			timer.schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		// Requires lock on this
+		private void close() {
+			closed = true;
+			queues.remove(deviceKey, this);
+		}
+
+		/**
+		 * Releases the next message, if the device's backoff allows.
+		 */
+		@Override
+		public void run() {
+			SettableFuture<Void> next;
+			synchronized (this) {
+				timerScheduled = false;
+				if (closed)
+					return;
+				long delay = backoffDelay(deviceKey);
+				if (delay > 0) {
+					schedule(delay);
+					return;
+				}
+				next = parked.poll();
+				if (parked.isEmpty())
+					close();
+				else
+					schedule(probeInterval);
+			}
+			if (next != null)
+				next.set(null);
+		}
+
+		/**
+		 * Releases or, if {@code drop} is set, cancels all parked messages and
+		 * closes the queue.
+		 */
+		public void releaseAll(boolean drop) {
+			List<SettableFuture<Void>> released;
+			synchronized (this) {
+				released = new ArrayList<SettableFuture<Void>>(parked);
+				parked.clear();
+				close();
+			}
+			for (SettableFuture<Void> future : released) {
+				if (drop)
+					future.cancel(false);
+				else
+					future.set(null);
+			}
+		}
 	}
 
 }
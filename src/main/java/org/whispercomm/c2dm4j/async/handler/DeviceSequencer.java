@@ -0,0 +1,280 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A message filter that preserves submission order per device. At most a
+ * fixed window of messages for the same registration id are in the pipeline
+ * at once; later messages wait, in submission order, at enqueue until an
+ * earlier one completes. With a window of one, a message is not scheduled
+ * until the previous message for its device has completed, including all of
+ * its retries, so messages are delivered in the order they were submitted.
+ * Messages for different devices are not ordered with respect to each other.
+ * <p>
+ * The waiting messages for a device are held in a small queue that is created
+ * when the device first has a message in the pipeline and discarded when it
+ * has none. There is no lock shared between devices. A message that completes
+ * while still waiting, e.g., because it was cancelled, leaves the queue
+ * without taking a slot.
+ * <p>
+ * This filter should be registered before any other enqueue filter that may
+ * delay messages.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DeviceSequencer implements AsyncMessageFilter {
+	static final ContextKey<Sequence> CONTEXT_KEY = ContextKey.create(
+			DeviceSequencer.class.getCanonicalName(), Sequence.class);
+
+	private static final ListenableFuture<Void> DONE = Futures
+			.immediateFuture(null);
+
+	private static final int DEFAULT_WINDOW = 1;
+
+	private final int window;
+
+	private final ConcurrentMap<String, Sequence> sequences;
+
+	/**
+	 * Constructs a new sequencer that admits one message per device at a
+	 * time.
+	 */
+	public DeviceSequencer() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructs a new sequencer.
+	 * 
+	 * @param window
+	 *            the maximum number of messages per device in the pipeline at
+	 *            once. Only a window of one guarantees in-order delivery;
+	 *            larger windows only keep messages in order until they are
+	 *            first scheduled.
+	 */
+	public DeviceSequencer(int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("Window must be at least 1.");
+		this.window = window;
+		this.sequences = new ConcurrentHashMap<String, Sequence>();
+	}
+
+	/**
+	 * Constructs a new sequencer that admits one message per device at a time
+	 * and registers the underlying filter with the provided
+	 * {@link AsyncHandlers} instance.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public DeviceSequencer(AsyncHandlers handlers) {
+		this(DEFAULT_WINDOW, handlers);
+	}
+
+	/**
+	 * Constructs a new sequencer and registers the underlying filter with the
+	 * provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param window
+	 *            the maximum number of messages per device in the pipeline at
+	 *            once
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public DeviceSequencer(int window, AsyncHandlers handlers) {
+		this(window);
+		handlers.appendAsyncEnqueueFilter(this);
+	}
+
+	/**
+	 * Gets the number of devices with messages in the pipeline.
+	 * 
+	 * @return the number of active devices
+	 */
+	public int getDeviceCount() {
+		return sequences.size();
+	}
+
+	/**
+	 * Gets the number of messages waiting for earlier messages to the same
+	 * device to complete.
+	 * 
+	 * @return the number of waiting messages
+	 */
+	public int getWaitingCount() {
+		int count = 0;
+		for (Sequence sequence : sequences.values()) {
+			count += sequence.waiting();
+		}
+		return count;
+	}
+
+	@Override
+	public ListenableFuture<Void> enqueueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			// Retries keep the place of the original submission
+			if (context.get(CONTEXT_KEY) != null)
+				return DONE;
+			return admit(context);
+		default:
+			return DONE;
+		}
+	}
+
+	@Override
+	public ListenableFuture<Void> dequeueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		return DONE;
+	}
+
+	private ListenableFuture<Void> admit(Context<Message, MessageDecision> context) {
+		String deviceKey = context.unwrap().getRegistrationId();
+		for (;;) {
+			Sequence sequence = sequences.get(deviceKey);
+			if (sequence == null) {
+				Sequence newSequence = new Sequence(deviceKey);
+				sequence = sequences.putIfAbsent(deviceKey, newSequence);
+				if (sequence == null)
+					sequence = newSequence;
+			}
+			ListenableFuture<Void> admitted = sequence.admit();
+			if (admitted != null) {
+				context.put(CONTEXT_KEY, sequence);
+				track(sequence, admitted, context.getFuture());
+				return admitted;
+			}
+			// The sequence was discarded concurrently, so retry with a new one
+		}
+	}
+
+	/**
+	 * Returns a message's slot when the message completes, once it holds one,
+	 * and withdraws the message from the queue if it completes while waiting.
+	 */
+	private void track(final Sequence sequence,
+			final ListenableFuture<Void> admitted,
+			final ListenableFuture<Response> future) {
+		if (admitted.isDone()) {
+			future.addListener(sequence, MoreExecutors.sameThreadExecutor());
+			return;
+		}
+		admitted.addListener(new Runnable() {
+			@Override
+			public void run() {
+				future.addListener(sequence,
+						MoreExecutors.sameThreadExecutor());
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				sequence.withdraw(admitted);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	/**
+	 * The messages in the pipeline for a single device. Runs when one of them
+	 * completes, admitting the next waiting message.
+	 */
+	class Sequence implements Runnable {
+		private final String deviceKey;
+
+		// Guarded by this
+		private int admitted;
+
+		// Guarded by this; allocated only when a message must wait
+		private ArrayDeque<SettableFuture<Void>> waiters;
+
+		// Guarded by this
+		private boolean closed;
+
+		Sequence(String deviceKey) {
+			this.deviceKey = deviceKey;
+		}
+
+		/**
+		 * Admits a message, or queues it behind the earlier messages.
+		 * 
+		 * @return a future that completes when the message is admitted, or
+		 *         {@code null} if the sequence was discarded
+		 */
+		synchronized ListenableFuture<Void> admit() {
+			if (closed)
+				return null;
+			if (admitted < window) {
+				++admitted;
+				return DONE;
+			}
+			if (waiters == null)
+				waiters = new ArrayDeque<SettableFuture<Void>>(4);
+			SettableFuture<Void> waiter = SettableFuture.create();
+			waiters.add(waiter);
+			return waiter;
+		}
+
+		/**
+		 * Removes a waiting message from the queue, unless it was already
+		 * admitted.
+		 * 
+		 * @param waiter
+		 *            the future returned by {@link #admit()} for the message
+		 */
+		synchronized void withdraw(ListenableFuture<Void> waiter) {
+			if (waiters != null && waiters.remove(waiter) && waiters.isEmpty())
+				waiters = null;
+		}
+
+		synchronized int waiting() {
+			return (waiters == null) ? 0 : waiters.size();
+		}
+
+		@Override
+		public void run() {
+			SettableFuture<Void> next = null;
+			synchronized (this) {
+				if (waiters != null) {
+					next = waiters.poll();
+					if (waiters.isEmpty())
+						waiters = null;
+				}
+				if (next == null && --admitted == 0) {
+					closed = true;
+					sequences.remove(deviceKey, this);
+				}
+			}
+			// The completed message's slot passes directly to the next
+			if (next != null)
+				next.set(null);
+		}
+	}
+
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.SuccessResponse;
+import org.whispercomm.c2dm4j.auth.AuthToken;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * An enqueue filter that suppresses duplicate submissions of the same message.
+ * Two messages are duplicates if they have the same registration id, collapse
+ * key, delay-while-idle flag, and data.
+ * <p>
+ * Each message is reduced to a 128-bit fingerprint, which is remembered for a
+ * configurable window. A duplicate pushed within the window is not sent;
+ * instead, its {@code Future} follows the outcome of the original (see
+ * {@link MessageDecision#FOLLOW}). If the original fails or is not delivered
+ * successfully, its fingerprint is forgotten, so that a later resubmission is
+ * sent.
+ * <p>
+ * Fingerprints are held in a bounded table of primitive arrays, costing a few
+ * dozen bytes each. When the table is full, the oldest fingerprint is
+ * forgotten early. While the original is in flight, the table refers to its
+ * {@code Future}. Once the original is delivered, only the id of the sent
+ * message is kept, as a bare array of UTF-8 bytes, and a later duplicate
+ * completes with a {@link SuccessResponse} for itself carrying that id. No
+ * {@code Message} is retained for the rest of the window.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DuplicateFilter implements MessageFilter {
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	/*
+	 * Remembered for a delivered original whose response carried no id.
+	 */
+	private static final byte[] NO_ID = new byte[0];
+
+	private final long window;
+
+	// Guarded by this
+	private final FingerprintTable table;
+
+	// Guarded by this
+	private long suppressed;
+
+	/**
+	 * Constructs a new filter.
+	 * 
+	 * @param window
+	 *            the duration (in milliseconds) for which a message is
+	 *            remembered
+	 * @param maxEntries
+	 *            the maximum number of messages remembered
+	 */
+	public DuplicateFilter(long window, int maxEntries) {
+		if (window < 1 || maxEntries < 1)
+			throw new IllegalArgumentException(
+					"Window and maximum entries must be positive.");
+		this.window = window;
+		this.table = new FingerprintTable(maxEntries);
+	}
+
+	/**
+	 * Constructs a new filter and registers it with the provided
+	 * {@link AsyncHandlers} instance. It should be registered before any
+	 * filter that delays or otherwise acts on messages.
+	 * 
+	 * @param window
+	 *            the duration (in milliseconds) for which a message is
+	 *            remembered
+	 * @param maxEntries
+	 *            the maximum number of messages remembered
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public DuplicateFilter(long window, int maxEntries, AsyncHandlers handlers) {
+		this(window, maxEntries);
+		handlers.appendEnqueueFilter(this);
+	}
+
+	/**
+	 * Gets the number of duplicate messages suppressed so far.
+	 * 
+	 * @return the number of suppressed messages
+	 */
+	public synchronized long getSuppressedCount() {
+		return suppressed;
+	}
+
+	/**
+	 * Gets the number of messages currently remembered.
+	 * 
+	 * @return the number of remembered messages
+	 */
+	public synchronized int size() {
+		table.expire(System.currentTimeMillis() - window);
+		return table.size();
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			break;
+		default:
+			return;
+		}
+
+		byte[] fingerprint = fingerprint(context.unwrap());
+		final long hi = toLong(fingerprint, 0);
+		final long lo = toLong(fingerprint, 8);
+		final ListenableFuture<Response> future = context.getFuture();
+
+		synchronized (this) {
+			table.expire(System.currentTimeMillis() - window);
+			Object original = table.get(hi, lo);
+			if (original == future) {
+				// The original itself, being retried
+				return;
+			} else if (original instanceof byte[]) {
+				++suppressed;
+				context.follow(Futures
+						.<Response> immediateFuture(new DuplicateResponse(
+								context.unwrap(), (byte[]) original)));
+				return;
+			} else if (original != null) {
+				++suppressed;
+				@SuppressWarnings("unchecked")
+				ListenableFuture<Response> pending = (ListenableFuture<Response>) original;
+				context.follow(pending);
+				return;
+			}
+			table.put(hi, lo, System.currentTimeMillis(), future);
+		}
+
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				byte[] delivered = delivered(future);
+				synchronized (DuplicateFilter.this) {
+					if (delivered == null)
+						table.remove(hi, lo, future);
+					else
+						table.replace(hi, lo, future, delivered);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		// Nothing to do
+	}
+
+	/**
+	 * Gets the compact outcome of a successfully delivered message.
+	 * 
+	 * @return the UTF-8 bytes of the sent message id, {@link #NO_ID} if it has
+	 *         none, or {@code null} if the message was not delivered
+	 *         successfully
+	 */
+	private static byte[] delivered(ListenableFuture<Response> future) {
+		Response response;
+		try {
+			response = future.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		} catch (InterruptedException e) {
+			// Not reached, as the future is complete
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (response.getResponseType() != ResponseType.Success)
+			return null;
+		String id = (response instanceof SuccessResponse) ? ((SuccessResponse) response)
+				.getSentMessageId() : null;
+		return (id == null) ? NO_ID : id.getBytes(Charsets.UTF_8);
+	}
+
+	/**
+	 * Gets what is remembered for a message: the original's {@code Future}
+	 * while it is in flight, its compact outcome once delivered, or
+	 * {@code null}. For tests.
+	 */
+	synchronized Object remembered(Message message) {
+		byte[] fingerprint = fingerprint(message);
+		return table.get(toLong(fingerprint, 0), toLong(fingerprint, 8));
+	}
+
+	/**
+	 * Computes the 128-bit fingerprint of a message. Strings are prefixed with
+	 * their lengths so that adjacent fields cannot run together, and data
+	 * entries are hashed in key order.
+	 */
+	static byte[] fingerprint(Message message) {
+		Hasher hasher = HASH.newHasher();
+		putString(hasher, message.getRegistrationId());
+		putString(hasher, message.getCollapseKey());
+		hasher.putBoolean(message.delayWhileIdle());
+		Map<String, String> data = message.getData();
+		Map<String, String> sorted = (data instanceof TreeMap) ? data
+				: new TreeMap<String, String>(data);
+		hasher.putInt(sorted.size());
+		for (Map.Entry<String, String> entry : sorted.entrySet()) {
+			putString(hasher, entry.getKey());
+			putString(hasher, entry.getValue());
+		}
+		return hasher.hash().asBytes();
+	}
+
+	private static void putString(Hasher hasher, String string) {
+		if (string == null) {
+			hasher.putInt(-1);
+		} else {
+			hasher.putInt(string.length());
+			hasher.putString(string);
+		}
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; ++i) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * A bounded table of fingerprints in insertion order. Entries live in a
+	 * ring of parallel arrays, so the oldest entry is always at the head, and
+	 * are found through an open-addressed index of ring positions.
+	 */
+	private static class FingerprintTable {
+		private final long[] his;
+		private final long[] los;
+		private final long[] times;
+		private final Object[] futures;
+
+		/*
+		 * Ring position + 1 of each entry, or 0 if empty. Linear probing.
+		 */
+		private final int[] index;
+		private final int mask;
+
+		private int head;
+		private int count;
+
+		public FingerprintTable(int capacity) {
+			his = new long[capacity];
+			los = new long[capacity];
+			times = new long[capacity];
+			futures = new Object[capacity];
+			int indexSize = Integer.highestOneBit(Math.max(2, 2 * capacity - 1)) << 1;
+			index = new int[indexSize];
+			mask = indexSize - 1;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		private int home(long hi, long lo) {
+			long h = hi ^ lo;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+
+		private int find(long hi, long lo) {
+			for (int p = home(hi, lo);; p = (p + 1) & mask) {
+				int slot = index[p] - 1;
+				if (slot < 0)
+					return -1;
+				if (his[slot] == hi && los[slot] == lo)
+					return p;
+			}
+		}
+
+		public Object get(long hi, long lo) {
+			int p = find(hi, lo);
+			return (p < 0) ? null : futures[index[p] - 1];
+		}
+
+		public void put(long hi, long lo, long time, Object future) {
+			if (count == his.length)
+				evictHead();
+			int slot = (head + count) % his.length;
+			his[slot] = hi;
+			los[slot] = lo;
+			times[slot] = time;
+			futures[slot] = future;
+			++count;
+			int p = home(hi, lo);
+			while (index[p] != 0)
+				p = (p + 1) & mask;
+			index[p] = slot + 1;
+		}
+
+		/**
+		 * Removes the entry for the fingerprint, if it still belongs to the
+		 * given future. Its ring slot is left in place, unindexed, until it
+		 * reaches the head.
+		 */
+		public void remove(long hi, long lo, Object future) {
+			int p = find(hi, lo);
+			if (p >= 0 && futures[index[p] - 1] == future) {
+				futures[index[p] - 1] = null;
+				unindex(p);
+			}
+		}
+
+		/**
+		 * Replaces the value of the entry for the fingerprint, if it still
+		 * belongs to the given future.
+		 */
+		public void replace(long hi, long lo, Object future, Object value) {
+			int p = find(hi, lo);
+			if (p >= 0 && futures[index[p] - 1] == future)
+				futures[index[p] - 1] = value;
+		}
+
+		/**
+		 * Evicts entries inserted before the given time.
+		 */
+		public void expire(long before) {
+			while (count > 0 && times[head] < before)
+				evictHead();
+		}
+
+		private void evictHead() {
+			if (futures[head] != null) {
+				futures[head] = null;
+				unindex(find(his[head], los[head]));
+			}
+			head = (head + 1) % his.length;
+			--count;
+		}
+
+		/**
+		 * Clears an index position, shifting later entries of the probe
+		 * sequence back so they remain reachable.
+		 */
+		private void unindex(int p) {
+			index[p] = 0;
+			for (int q = (p + 1) & mask; index[q] != 0; q = (q + 1) & mask) {
+				int slot = index[q] - 1;
+				int h = home(his[slot], los[slot]);
+				// Move the entry unless its home lies cyclically in (p, q]
+				boolean stays = (p <= q) ? (p < h && h <= q) : (p < h || h <= q);
+				if (!stays) {
+					index[p] = index[q];
+					index[q] = 0;
+					p = q;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The response with which a duplicate of a delivered original completes.
+	 */
+	private static class DuplicateResponse implements SuccessResponse {
+		private final Message message;
+		private final String sentMessageId;
+
+		public DuplicateResponse(Message message, byte[] sentMessageId) {
+			this.message = message;
+			this.sentMessageId = (sentMessageId == NO_ID) ? null : new String(
+					sentMessageId, Charsets.UTF_8);
+		}
+
+		@Override
+		public ResponseType getResponseType() {
+			return ResponseType.Success;
+		}
+
+		@Override
+		public Message getMessage() {
+			return message;
+		}
+
+		@Override
+		public boolean hasUpdatedAuthToken() {
+			return false;
+		}
+
+		@Override
+		public AuthToken getUpdatedAuthToken() {
+			return null;
+		}
+
+		@Override
+		public String getSentMessageId() {
+			return sentMessageId;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"DuplicateResponse(sentMessageId=%s, message=%s)",
+					sentMessageId, message);
+		}
+	}
+
+}
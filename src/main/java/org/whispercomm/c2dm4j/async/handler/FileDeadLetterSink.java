@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispercomm.c2dm4j.Message;
+
+/**
+ * A {@link DeadLetterSink} appending dead letters to a file, up to a maximum
+ * file size. Letters that would grow the file beyond the maximum are
+ * discarded.
+ * <p>
+ * Each letter is written as one line of tab-separated, URL-encoded (UTF-8)
+ * fields: the time given up (milliseconds since the epoch), the registration
+ * id, the collapse key, the number of attempts, the age in milliseconds, the
+ * reason, and the payload data as {@code key=value} pairs joined by
+ * {@code &}.
+ * <p>
+ * SLF4J is used for logging.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class FileDeadLetterSink implements DeadLetterSink {
+	protected static final String ENCODING = "UTF-8";
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(FileDeadLetterSink.class);
+
+	private final File file;
+
+	private final long maxBytes;
+
+	// Guarded by this
+	private Writer writer;
+
+	// Guarded by this
+	private long bytes;
+
+	// Guarded by this
+	private long discarded;
+
+	/**
+	 * Constructs a new sink appending to the specified file.
+	 * 
+	 * @param file
+	 *            the file to which to append letters
+	 * @param maxBytes
+	 *            the maximum size of the file in bytes
+	 */
+	public FileDeadLetterSink(File file, long maxBytes) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public synchronized void deadLetter(DeadLetter letter) {
+		try {
+			byte[] line = format(letter).getBytes(ENCODING);
+			if (writer == null)
+				open();
+			if (bytes + line.length > maxBytes) {
+				++discarded;
+				return;
+			}
+			writer.write(new String(line, ENCODING));
+			writer.flush();
+			bytes += line.length;
+		} catch (IOException e) {
+			++discarded;
+			LOGGER.warn(String.format(
+					"Failed to write C2DM dead letter to file %s", file), e);
+		}
+	}
+
+	// Requires lock on this
+	private void open() throws IOException {
+		bytes = file.length();
+		writer = new OutputStreamWriter(new FileOutputStream(file, true),
+				ENCODING);
+	}
+
+	/**
+	 * Closes the file. Letters received afterwards reopen it.
+	 */
+	public synchronized void close() {
+		IOUtils.closeQuietly(writer);
+		writer = null;
+	}
+
+	/**
+	 * Gets the number of letters discarded because the file was full or could
+	 * not be written.
+	 * 
+	 * @return the number of discarded letters
+	 */
+	public synchronized long getDiscardedCount() {
+		return discarded;
+	}
+
+	static String format(DeadLetter letter)
+			throws UnsupportedEncodingException {
+		Message message = letter.getMessage();
+		StringBuilder data = new StringBuilder();
+		for (Map.Entry<String, String> entry : message.getData().entrySet()) {
+			if (data.length() > 0)
+				data.append('&');
+			data.append(encode(entry.getKey())).append('=')
+					.append(encode(entry.getValue()));
+		}
+		return new StringBuilder().append(letter.getTime().getTime())
+				.append('\t').append(encode(message.getRegistrationId()))
+				.append('\t').append(encode(message.getCollapseKey()))
+				.append('\t').append(letter.getAttempts()).append('\t')
+				.append(letter.getAge()).append('\t')
+				.append(encode(letter.getReason())).append('\t')
+				.append(encode(data.toString())).append('\n').toString();
+	}
+
+	private static String encode(String value)
+			throws UnsupportedEncodingException {
+		return (value == null) ? "" : URLEncoder.encode(value, ENCODING);
+	}
+
+}
@@ -15,6 +15,8 @@
  */
 package org.whispercomm.c2dm4j.async.handler;
 
+import java.util.concurrent.ScheduledExecutorService;
+
 import org.whispercomm.c2dm4j.Message;
 import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.ResponseType;
@@ -22,23 +24,45 @@ import org.whispercomm.c2dm4j.UnavailableResponse;
 import org.whispercomm.c2dm4j.backoff.Attempt;
 import org.whispercomm.c2dm4j.backoff.Backoff;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * A message filter and response handler that implements global retry with
  * backoff for {@link ResponseType#QuotaExceeded QuotaExceeded} and
  * {@link ResponseType#ServiceUnavailable ServiceUnavailable} responses and
  * delays messages to respect {@code Retry-After} headers.
+ * <p>
+ * By default, each message is delayed individually, so every waiting message
+ * schedules its own timer. If constructed with a
+ * {@link ScheduledExecutorService}, the throttle instead parks waiting messages
+ * in a single queue with one timer (see {@link ParkingQueue}) and, when the
+ * backoff expires, releases them at a paced, ramping rate. This avoids sending
+ * the whole backlog at the instant the {@code Retry-After} time passes. A
+ * failure during the release closes the queue again for the new backoff, and
+ * a released message that finds the backoff in force parks again.
  * 
  * @author David R. Bild
  * 
  */
 public class GlobalBackoffThrottle implements MessageFilter,
-		ResponseHandler<Response> {
-	static final String CONTEXT_KEY = GlobalBackoffThrottle.class
-			.getCanonicalName();
+		AsyncMessageFilter, ResponseHandler<Response> {
+	static final ContextKey<Attempt> CONTEXT_KEY = ContextKey.create(
+			GlobalBackoffThrottle.class.getCanonicalName(), Attempt.class);
+
+	private static final ListenableFuture<Void> DONE = Futures
+			.immediateFuture(null);
+
+	private static final long DEFAULT_RELEASE_INTERVAL = 20;
+
+	private static final int DEFAULT_INITIAL_BATCH = 1;
 
-	private Backoff backoff;
+	private final Backoff backoff;
 
-	private long nextRetryTime;
+	private final ParkingQueue parking;
+
+	private volatile long nextRetryTime;
 
 	/**
 	 * Constructs a new throttle using the provided {@code Backoff} instance for
@@ -49,6 +73,48 @@ public class GlobalBackoffThrottle implements MessageFilter,
 	 */
 	public GlobalBackoffThrottle(Backoff backoff) {
 		this.backoff = backoff;
+		this.parking = null;
+	}
+
+	/**
+	 * Constructs a new throttle using the provided {@code Backoff} instance for
+	 * backoff that parks waiting messages in a single queue instead of
+	 * delaying each individually. The queue's timer runs on the provided
+	 * executor.
+	 * 
+	 * @param backoff
+	 *            the backoff object
+	 * @param timer
+	 *            the executor on which to run the parking queue's timer
+	 */
+	public GlobalBackoffThrottle(Backoff backoff,
+			ScheduledExecutorService timer) {
+		this(backoff, new ParkingQueue(timer, DEFAULT_RELEASE_INTERVAL,
+				DEFAULT_INITIAL_BATCH));
+	}
+
+	/**
+	 * Constructs a new parking throttle using the provided {@code Backoff}
+	 * instance for backoff and registers the underlying filters and handlers
+	 * with the provider {@link AsyncHandlers} instance.
+	 * 
+	 * @param backoff
+	 *            the backoff object
+	 * @param timer
+	 *            the executor on which to run the parking queue's timer
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public GlobalBackoffThrottle(Backoff backoff,
+			ScheduledExecutorService timer, AsyncHandlers handlers) {
+		this(backoff, timer);
+		register(handlers);
+	}
+
+	GlobalBackoffThrottle(Backoff backoff, ParkingQueue parking) {
+		this.backoff = backoff;
+		this.parking = parking;
 	}
 
 	/**
@@ -67,9 +133,23 @@ public class GlobalBackoffThrottle implements MessageFilter,
 		register(handlers);
 	}
 
-	private void register(AsyncHandlers handlers) {
-		handlers.appendEnqueueFilter(this);
-		handlers.appendDequeueFilter(this);
+	/**
+	 * Registers the underlying filters and handlers with the provided
+	 * {@link AsyncHandlers} instance. A single throttle may be registered with
+	 * several instances, e.g., to share the global backoff state across the
+	 * shards of a sharded manager.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	void register(AsyncHandlers handlers) {
+		if (parking == null) {
+			handlers.appendEnqueueFilter(this);
+			handlers.appendDequeueFilter(this);
+		} else {
+			handlers.appendAsyncDequeueFilter(this);
+		}
 		handlers.appendResponseHandler(ResponseType.ServiceUnavailable, this);
 		handlers.appendResponseHandler(ResponseType.QuotaExceeded, this);
 		handlers.appendResponseHandler(ResponseType.Success, this);
@@ -86,6 +166,62 @@ public class GlobalBackoffThrottle implements MessageFilter,
 		updateDelay(context);
 	}
 
+	@Override
+	public ListenableFuture<Void> enqueueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		// Waiting happens at dequeue, in the parking queue
+		return DONE;
+	}
+
+	@Override
+	public ListenableFuture<Void> dequeueFilterAsync(
+			final Context<Message, MessageDecision> context) {
+		if (parking == null) {
+			dequeueFilter(context);
+			return DONE;
+		}
+		switch (context.getDecision()) {
+		case SEND:
+			Attempt attempt = createAttempt(context);
+			long delay = Math.max(attempt.delay(), retryDelay());
+			if (delay > 0)
+				parking.closeUntil(System.currentTimeMillis() + delay);
+			ListenableFuture<Void> parked = parking.park();
+			if (parked.isDone())
+				return parked;
+			return awaitRelease(context, parked);
+		default:
+			return DONE;
+		}
+	}
+
+	private ListenableFuture<Void> awaitRelease(
+			final Context<Message, MessageDecision> context,
+			ListenableFuture<Void> parked) {
+		return Futures.transform(parked, new AsyncFunction<Void, Void>() {
+			@Override
+			public ListenableFuture<Void> apply(Void input) {
+				return released(context);
+			}
+		});
+	}
+
+	/**
+	 * Begins a new attempt for a message released from the parking queue, so
+	 * the outcome is recorded against the backoff state at the time of
+	 * sending. If a failure while the message was parked renewed the backoff,
+	 * the message parks again.
+	 */
+	private ListenableFuture<Void> released(
+			Context<Message, MessageDecision> context) {
+		Attempt attempt = createAttempt(context);
+		long delay = Math.max(attempt.delay(), retryDelay());
+		if (delay <= 0)
+			return DONE;
+		parking.closeUntil(System.currentTimeMillis() + delay);
+		return awaitRelease(context, parking.park());
+	}
+
 	private Attempt createAttempt(Context<Message, MessageDecision> context) {
 		Attempt attempt = backoff.begin();
 		context.put(CONTEXT_KEY, attempt);
@@ -117,11 +253,13 @@ public class GlobalBackoffThrottle implements MessageFilter,
 		switch (response.getResponseType()) {
 		case ServiceUnavailable:
 			retrieveAttempt(context).recordFailure();
+			closeForBackoff();
 			updateRetryAfter((UnavailableResponse) response);
 			context.setDecision(ResultDecision.RETRY);
 			return;
 		case QuotaExceeded:
 			retrieveAttempt(context).recordFailure();
+			closeForBackoff();
 			context.setDecision(ResultDecision.RETRY);
 			return;
 		case Success:
@@ -133,12 +271,38 @@ public class GlobalBackoffThrottle implements MessageFilter,
 	}
 
 	private Attempt retrieveAttempt(Context<Response, ResultDecision> context) {
-		return context.get(CONTEXT_KEY, Attempt.class);
+		return context.get(CONTEXT_KEY);
+	}
+
+	/**
+	 * Closes the parking queue for the backoff after a failure, stopping any
+	 * release in progress.
+	 */
+	private void closeForBackoff() {
+		if (parking == null)
+			return;
+		long delay = backoff.begin().delay();
+		if (delay > 0)
+			parking.closeUntil(System.currentTimeMillis() + delay);
 	}
 
 	private void updateRetryAfter(UnavailableResponse response) {
-		if (response.hasRetryAfter())
+		if (response.hasRetryAfter()) {
 			nextRetryTime = response.retryAfter().getTime();
+			if (parking != null)
+				parking.closeUntil(nextRetryTime);
+		}
+	}
+
+	/**
+	 * Gets the number of messages parked waiting for the backoff to expire.
+	 * Always zero unless the throttle was constructed with a
+	 * {@code ScheduledExecutorService}.
+	 * 
+	 * @return the number of parked messages
+	 */
+	public int getParkedCount() {
+		return (parking == null) ? 0 : parking.size();
 	}
 
 }
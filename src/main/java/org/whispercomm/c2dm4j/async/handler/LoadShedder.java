@@ -0,0 +1,276 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.ScheduledMessage;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * A message filter that bounds the number and age of messages waiting to be
+ * sent by dropping the least valuable ones. Dropped messages are completed
+ * with a {@link MessageShedException}.
+ * <p>
+ * A message is waiting from when it is enqueued until it is dequeued for
+ * sending, and again while waiting for a retry. When the number of waiting
+ * messages exceeds the maximum depth, the least valuable waiting message is
+ * dropped. Messages superseded by a newer message with the same registration
+ * id and collapse key are least valuable, as C2DM would collapse them anyway.
+ * The remaining messages are ranked by {@link ScheduledMessage#getPriority()}
+ * (the default for other messages) and then
+ * by age, older messages being less valuable. If the new message is the least
+ * valuable, it is rejected. A message that has waited longer than the maximum
+ * age since it was first submitted is dropped when next dequeued.
+ * <p>
+ * Messages chosen for dropping while waiting elsewhere in the pipeline (e.g.,
+ * for a backoff to expire) are completed right away, so their callers learn
+ * of it without waiting for the message to be dequeued. Filters holding
+ * resources for such a message release them on completion, and the pipeline
+ * drops the message when it next reaches a filter chain.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class LoadShedder implements AsyncMessageFilter {
+	static final ContextKey<Entry> CONTEXT_KEY = ContextKey.create(
+			LoadShedder.class.getCanonicalName(), Entry.class);
+
+	private static final ListenableFuture<Void> DONE = Futures
+			.immediateFuture(null);
+
+	private final int maxDepth;
+
+	private final long maxAge;
+
+	private final AtomicLong shedCount;
+
+	// Guarded by this; least valuable first
+	private final TreeSet<Entry> waiting;
+
+	// Guarded by this; newest entry for each device and collapse key
+	private final Map<String, Entry> latest;
+
+	// Guarded by this
+	private long sequence;
+
+	/**
+	 * Constructs a new shedder.
+	 * 
+	 * @param maxDepth
+	 *            the maximum number of waiting messages
+	 * @param maxAge
+	 *            the maximum time in milliseconds a message may wait before
+	 *            being sent, or 0 for no limit
+	 */
+	public LoadShedder(int maxDepth, long maxAge) {
+		if (maxDepth < 1)
+			throw new IllegalArgumentException("Depth must be at least 1.");
+		if (maxAge < 0)
+			throw new IllegalArgumentException("Age must not be negative.");
+		this.maxDepth = maxDepth;
+		this.maxAge = TimeUnit.MILLISECONDS.toNanos(maxAge);
+		this.shedCount = new AtomicLong();
+		this.waiting = new TreeSet<Entry>();
+		this.latest = new HashMap<String, Entry>();
+	}
+
+	/**
+	 * Constructs a new shedder and registers the underlying filter with the
+	 * provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param maxDepth
+	 *            the maximum number of waiting messages
+	 * @param maxAge
+	 *            the maximum time in milliseconds a message may wait before
+	 *            being sent, or 0 for no limit
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public LoadShedder(int maxDepth, long maxAge, AsyncHandlers handlers) {
+		this(maxDepth, maxAge);
+		handlers.appendAsyncEnqueueFilter(this);
+		handlers.appendAsyncDequeueFilter(this);
+	}
+
+	/**
+	 * Gets the number of messages dropped.
+	 * 
+	 * @return the number of dropped messages
+	 */
+	public long getShedCount() {
+		return shedCount.get();
+	}
+
+	/**
+	 * Gets the number of messages waiting to be sent.
+	 * 
+	 * @return the number of waiting messages
+	 */
+	public synchronized int getWaitingCount() {
+		return waiting.size();
+	}
+
+	@Override
+	public ListenableFuture<Void> enqueueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			Entry entry = context.get(CONTEXT_KEY);
+			if (entry == null) {
+				entry = track(context);
+			}
+			return admit(entry);
+		default:
+			return DONE;
+		}
+	}
+
+	private Entry track(Context<Message, MessageDecision> context) {
+		Message message = context.unwrap();
+		final Entry entry;
+		synchronized (this) {
+			entry = new Entry(context, message, System.nanoTime(), sequence++);
+			Entry superseded = latest.put(entry.collapseKey, entry);
+			if (superseded != null) {
+				boolean wasWaiting = waiting.remove(superseded);
+				superseded.superseded = true;
+				if (wasWaiting)
+					waiting.add(superseded);
+			}
+		}
+		context.put(CONTEXT_KEY, entry);
+		context.getFuture().addListener(new Runnable() {
+			@Override
+			public void run() {
+				untrack(entry);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		return entry;
+	}
+
+	private synchronized void untrack(Entry entry) {
+		waiting.remove(entry);
+		if (latest.get(entry.collapseKey) == entry)
+			latest.remove(entry.collapseKey);
+	}
+
+	private ListenableFuture<Void> admit(Entry entry) {
+		List<Entry> victims = null;
+		synchronized (this) {
+			if (entry.shed == null) {
+				waiting.add(entry);
+				while (waiting.size() > maxDepth) {
+					Entry victim = waiting.pollFirst();
+					victim.shed = victim.superseded ? "Superseded by a newer message."
+							: "Queue depth exceeded.";
+					shedCount.incrementAndGet();
+					if (victims == null)
+						victims = new ArrayList<Entry>(1);
+					victims.add(victim);
+				}
+			}
+		}
+		// Completed outside the lock, as completion runs the listeners
+		if (victims != null) {
+			for (Entry victim : victims) {
+				victim.context.fail(new MessageShedException(victim.shed));
+			}
+		}
+		return check(entry);
+	}
+
+	private static ListenableFuture<Void> check(Entry entry) {
+		if (entry.shed == null)
+			return DONE;
+		return Futures.immediateFailedFuture(new MessageShedException(
+				entry.shed));
+	}
+
+	@Override
+	public ListenableFuture<Void> dequeueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			Entry entry = context.get(CONTEXT_KEY);
+			// Messages to be delayed remain waiting
+			if (entry == null || context.getDelay() > 0)
+				return DONE;
+			synchronized (this) {
+				if (entry.shed == null) {
+					waiting.remove(entry);
+					if (maxAge > 0 && System.nanoTime() - entry.submitted > maxAge) {
+						entry.shed = "Queue age exceeded.";
+						shedCount.incrementAndGet();
+					}
+				}
+			}
+			return check(entry);
+		default:
+			return DONE;
+		}
+	}
+
+	/**
+	 * The shedding state of a message.
+	 */
+	static class Entry implements Comparable<Entry> {
+		private final Context<?, ?> context;
+		private final String collapseKey;
+		private final int priority;
+		private final long submitted;
+		private final long sequence;
+
+		// Guarded by the shedder; changed only while not in the waiting set
+		private boolean superseded;
+
+		// Guarded by the shedder; the reason the message was dropped
+		private String shed;
+
+		Entry(Context<?, ?> context, Message message, long submitted,
+				long sequence) {
+			this.context = context;
+			this.collapseKey = message.getRegistrationId() + '\u0000'
+					+ message.getCollapseKey();
+			this.priority = (message instanceof ScheduledMessage) ? ((ScheduledMessage) message)
+					.getPriority() : ScheduledMessage.DEFAULT_PRIORITY;
+			this.submitted = submitted;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry that) {
+			if (this.superseded != that.superseded)
+				return this.superseded ? -1 : 1;
+			if (this.priority != that.priority)
+				return (this.priority < that.priority) ? -1 : 1;
+			// Sequence order is submission order; older is less valuable
+			return (this.sequence < that.sequence) ? -1
+					: (this.sequence == that.sequence ? 0 : 1);
+		}
+	}
+
+}
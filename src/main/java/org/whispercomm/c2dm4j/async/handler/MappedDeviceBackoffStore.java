@@ -0,0 +1,404 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.whispercomm.c2dm4j.backoff.Backoff;
+import org.whispercomm.c2dm4j.backoff.Clock;
+
+/**
+ * A {@link PackedDeviceBackoffStore} whose table lives in a memory-mapped
+ * file, so the backoff state of devices survives restarts of the process.
+ * The file also holds a global backoff (see {@link #getGlobalBackoff()}) for
+ * use by a {@link GlobalBackoffThrottle}.
+ * <p>
+ * If the file already holds a table, the table is mapped as is. It must be
+ * opened with the capacity and backoff parameters it was created with, which
+ * are kept in its header. Nothing is read or validated beyond the header, so
+ * reopening takes about the same time for any table size. Entries
+ * that expired while the process was down are ignored and reused lazily, as
+ * in the in-memory table. Expiry times are read from {@link Clock#SYSTEM}, so
+ * they keep their meaning across restarts.
+ * <p>
+ * Updates are written to the mapping and reach the file as the operating
+ * system pages them out, even if the process dies. {@link #flush()} forces
+ * them out, and {@link #close()} also releases the mapping, e.g., before a
+ * planned shutdown. A file must be opened by at most one store at a time.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class MappedDeviceBackoffStore extends PackedDeviceBackoffStore
+		implements Closeable {
+
+	private static final int DEFAULT_CAPACITY = 1 << 20;
+
+	private static final float DEFAULT_SCALE = 1;
+
+	private static final int DEFAULT_MAX_COUNT = 20;
+
+	private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.HOURS
+			.toMillis(1);
+
+	private static final long GLOBAL_KEY = 1;
+
+	private final MappedSlots slots;
+
+	/**
+	 * Opens or creates a store in the given file, with room for about one
+	 * million devices, a minimum backoff duration of 1 millisecond and a
+	 * maximum duration of about 17.5 minutes.
+	 * 
+	 * @param file
+	 *            the file holding the table
+	 * @throws IOException
+	 *             if the file cannot be opened or does not hold a table
+	 * @throws IllegalArgumentException
+	 *             if the file holds a table created with other parameters
+	 */
+	public MappedDeviceBackoffStore(File file) throws IOException {
+		this(file, DEFAULT_CAPACITY, DEFAULT_SCALE, DEFAULT_MAX_COUNT,
+				Long.MAX_VALUE, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Opens or creates a store in the given file, with backoff durations
+	 * computed as for
+	 * {@link PackedDeviceBackoffStore#PackedDeviceBackoffStore(int, float, int, long, long)}
+	 * .
+	 * 
+	 * @param file
+	 *            the file holding the table
+	 * @param capacity
+	 *            the number of slots in a newly created table, rounded up to
+	 *            a power of two
+	 * @param scale
+	 *            scale parameter for the backoff formula
+	 * @param maxCount
+	 *            maxCount in the backoff formula, at most 62
+	 * @param maxInterval
+	 *            the maximum backoff duration in milliseconds
+	 * @param idleTimeout
+	 *            the time in milliseconds after a device's backoff expires
+	 *            after which its slot may be reused
+	 * @throws IOException
+	 *             if the file cannot be opened or does not hold a table
+	 * @throws IllegalArgumentException
+	 *             if the file holds a table created with other parameters
+	 */
+	public MappedDeviceBackoffStore(File file, int capacity, float scale,
+			int maxCount, long maxInterval, long idleTimeout)
+			throws IOException {
+		this(file, capacity, scale, maxCount, maxInterval, idleTimeout,
+				Clock.SYSTEM);
+	}
+
+	MappedDeviceBackoffStore(File file, int capacity, float scale,
+			int maxCount, long maxInterval, long idleTimeout, Clock clock)
+			throws IOException {
+		this(MappedSlots.open(file, capacity, scale, maxCount, maxInterval,
+				idleTimeout, clock), scale, maxCount, maxInterval,
+				idleTimeout, clock);
+	}
+
+	private MappedDeviceBackoffStore(MappedSlots slots, float scale,
+			int maxCount, long maxInterval, long idleTimeout, Clock clock) {
+		super(slots, slots.origin(), scale, maxCount, maxInterval,
+				idleTimeout, clock);
+		this.slots = slots;
+	}
+
+	/**
+	 * Gets the global backoff held in the file. Like the per-device backoffs,
+	 * its durations are computed by the formula with which this store was
+	 * constructed.
+	 * 
+	 * @return the global backoff
+	 */
+	public Backoff getGlobalBackoff() {
+		return slotBackoff(slots.length(), GLOBAL_KEY);
+	}
+
+	/**
+	 * Forces all updates out to the file.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the store has been closed
+	 */
+	public void flush() {
+		slots.force();
+	}
+
+	/**
+	 * Forces all updates out to the file and releases the mapping. The store
+	 * cannot be used afterwards. Java offers no way to unmap a file
+	 * explicitly, so the mapping is unmapped once it is garbage collected.
+	 * Closing a closed store has no effect.
+	 */
+	@Override
+	public void close() {
+		slots.close();
+	}
+
+	/**
+	 * Slots held in a memory-mapped file. The file starts with a header,
+	 * followed by the key and state of each slot and then of the global slot.
+	 * A byte buffer offers no atomic updates, so each run of slots is guarded
+	 * by one of a set of striped locks.
+	 */
+	static class MappedSlots implements Slots {
+		private static final long MAGIC = 0x6332646d346a4253L;
+
+		private static final int VERSION = 2;
+
+		/*
+		 * Offsets of the header fields
+		 */
+		private static final int VERSION_OFFSET = 8;
+
+		private static final int LENGTH_OFFSET = 12;
+
+		private static final int ORIGIN_OFFSET = 16;
+
+		private static final int SCALE_OFFSET = 24;
+
+		private static final int MAX_COUNT_OFFSET = 28;
+
+		private static final int MAX_INTERVAL_OFFSET = 32;
+
+		private static final int IDLE_TIMEOUT_OFFSET = 40;
+
+		private static final int HEADER_SIZE = 48;
+
+		private static final int SLOT_SIZE = 16;
+
+		private static final int STRIPES = 64;
+
+		/*
+		 * Largest table whose file can be mapped in a single buffer.
+		 */
+		private static final int MAX_LENGTH = 1 << 26;
+
+		private volatile MappedByteBuffer buffer;
+
+		private final int length;
+
+		private final long origin;
+
+		private final ReentrantLock[] locks;
+
+		private MappedSlots(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+			this.length = buffer.getInt(LENGTH_OFFSET);
+			this.origin = buffer.getLong(ORIGIN_OFFSET);
+			this.locks = new ReentrantLock[STRIPES];
+			for (int i = 0; i < STRIPES; ++i) {
+				locks[i] = new ReentrantLock();
+			}
+		}
+
+		/**
+		 * Maps the table in a file, creating it if the file is empty.
+		 * 
+		 * @param file
+		 *            the file
+		 * @param capacity
+		 *            the requested capacity of the table
+		 * @param scale
+		 *            scale parameter for the backoff formula
+		 * @param maxCount
+		 *            maxCount in the backoff formula
+		 * @param maxInterval
+		 *            the maximum backoff duration in milliseconds
+		 * @param idleTimeout
+		 *            the time in milliseconds after a device's backoff
+		 *            expires after which its slot may be reused
+		 * @param clock
+		 *            the clock from which to read the origin of a new table
+		 * @return the mapped slots
+		 * @throws IOException
+		 *             if the file cannot be mapped or does not hold a table
+		 * @throws IllegalArgumentException
+		 *             if the file holds a table created with other parameters
+		 */
+		static MappedSlots open(File file, int capacity, float scale,
+				int maxCount, long maxInterval, long idleTimeout, Clock clock)
+				throws IOException {
+			int length = tableSize(capacity);
+			if (length > MAX_LENGTH)
+				throw new IllegalArgumentException("Capacity must be at most "
+						+ MAX_LENGTH + ".");
+			checkMaxCount(maxCount);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if (size == 0) {
+					MappedByteBuffer buffer = channel.map(
+							FileChannel.MapMode.READ_WRITE, 0,
+							fileSize(length));
+					buffer.putInt(VERSION_OFFSET, VERSION);
+					buffer.putInt(LENGTH_OFFSET, length);
+					// Relative times start at one, as in the heap table
+					buffer.putLong(ORIGIN_OFFSET, clock.millis() - 1);
+					buffer.putFloat(SCALE_OFFSET, scale);
+					buffer.putInt(MAX_COUNT_OFFSET, maxCount);
+					buffer.putLong(MAX_INTERVAL_OFFSET, maxInterval);
+					buffer.putLong(IDLE_TIMEOUT_OFFSET, idleTimeout);
+					buffer.putLong(offset(length), GLOBAL_KEY);
+					buffer.putLong(0, MAGIC);
+					buffer.force();
+					return new MappedSlots(buffer);
+				}
+				if (size < HEADER_SIZE || size > fileSize(MAX_LENGTH))
+					throw notATable(file);
+				MappedByteBuffer buffer = channel.map(
+						FileChannel.MapMode.READ_WRITE, 0, size);
+				int stored = buffer.getInt(LENGTH_OFFSET);
+				if (buffer.getLong(0) != MAGIC
+						|| buffer.getInt(VERSION_OFFSET) != VERSION
+						|| stored < 1 || stored > MAX_LENGTH
+						|| Integer.bitCount(stored) != 1
+						|| size != fileSize(stored))
+					throw notATable(file);
+				float storedScale = buffer.getFloat(SCALE_OFFSET);
+				int storedMaxCount = buffer.getInt(MAX_COUNT_OFFSET);
+				long storedMaxInterval = buffer.getLong(MAX_INTERVAL_OFFSET);
+				long storedIdleTimeout = buffer.getLong(IDLE_TIMEOUT_OFFSET);
+				if (stored != length || Float.compare(storedScale, scale) != 0
+						|| storedMaxCount != maxCount
+						|| storedMaxInterval != maxInterval
+						|| storedIdleTimeout != idleTimeout)
+					throw new IllegalArgumentException(String.format(
+							"%s holds a table created with other parameters "
+									+ "(capacity %d, scale %s, max count %d, "
+									+ "max interval %d, idle timeout %d).",
+							file, stored, storedScale, storedMaxCount,
+							storedMaxInterval, storedIdleTimeout));
+				return new MappedSlots(buffer);
+			} finally {
+				// The mapping stays valid after the file is closed
+				raf.close();
+			}
+		}
+
+		private static IOException notATable(File file) {
+			return new IOException(String.format(
+					"%s does not hold a device backoff table.", file));
+		}
+
+		private static long fileSize(int length) {
+			return HEADER_SIZE + (length + 1L) * SLOT_SIZE;
+		}
+
+		private static int offset(int slot) {
+			return HEADER_SIZE + slot * SLOT_SIZE;
+		}
+
+		long origin() {
+			return origin;
+		}
+
+		void force() {
+			buffer().force();
+		}
+
+		/**
+		 * Forces the updates out and drops the mapping, once no run is in
+		 * use.
+		 */
+		void close() {
+			for (ReentrantLock lock : locks) {
+				lock.lock();
+			}
+			try {
+				MappedByteBuffer mapped = buffer;
+				if (mapped != null) {
+					mapped.force();
+					buffer = null;
+				}
+			} finally {
+				for (ReentrantLock lock : locks) {
+					lock.unlock();
+				}
+			}
+		}
+
+		private MappedByteBuffer buffer() {
+			MappedByteBuffer mapped = buffer;
+			if (mapped == null)
+				throw new IllegalStateException("Store has been closed.");
+			return mapped;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public void lock(int slot) {
+			locks[(slot / PROBES) & (STRIPES - 1)].lock();
+		}
+
+		@Override
+		public void unlock(int slot) {
+			locks[(slot / PROBES) & (STRIPES - 1)].unlock();
+		}
+
+		@Override
+		public long key(int slot) {
+			return buffer().getLong(offset(slot));
+		}
+
+		@Override
+		public boolean casKey(int slot, long expect, long update) {
+			MappedByteBuffer mapped = buffer();
+			if (mapped.getLong(offset(slot)) != expect)
+				return false;
+			mapped.putLong(offset(slot), update);
+			return true;
+		}
+
+		@Override
+		public long state(int slot) {
+			return buffer().getLong(offset(slot) + 8);
+		}
+
+		@Override
+		public boolean casState(int slot, long expect, long update) {
+			MappedByteBuffer mapped = buffer();
+			if (mapped.getLong(offset(slot) + 8) != expect)
+				return false;
+			mapped.putLong(offset(slot) + 8, update);
+			return true;
+		}
+
+		@Override
+		public void setState(int slot, long state) {
+			buffer().putLong(offset(slot) + 8, state);
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link DeadLetterSink} holding the most recent dead letters in memory, up
+ * to a fixed capacity. When full, the oldest letter is discarded to make room
+ * for a new one.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class MemoryDeadLetterSink implements DeadLetterSink {
+
+	private final int capacity;
+
+	// Guarded by this
+	private final ArrayDeque<DeadLetter> letters;
+
+	// Guarded by this
+	private long discarded;
+
+	/**
+	 * Constructs a new sink.
+	 * 
+	 * @param capacity
+	 *            the maximum number of letters held
+	 */
+	public MemoryDeadLetterSink(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1.");
+		this.capacity = capacity;
+		this.letters = new ArrayDeque<DeadLetter>();
+	}
+
+	@Override
+	public synchronized void deadLetter(DeadLetter letter) {
+		if (letters.size() == capacity) {
+			letters.poll();
+			++discarded;
+		}
+		letters.add(letter);
+	}
+
+	/**
+	 * Removes and returns the held letters.
+	 * 
+	 * @return the held letters, oldest first
+	 */
+	public synchronized List<DeadLetter> drain() {
+		List<DeadLetter> drained = new ArrayList<DeadLetter>(letters);
+		letters.clear();
+		return drained;
+	}
+
+	/**
+	 * Gets the number of letters held.
+	 * 
+	 * @return the number of letters held
+	 */
+	public synchronized int size() {
+		return letters.size();
+	}
+
+	/**
+	 * Gets the number of letters discarded to make room for newer ones.
+	 * 
+	 * @return the number of discarded letters
+	 */
+	public synchronized long getDiscardedCount() {
+		return discarded;
+	}
+
+}
@@ -34,5 +34,10 @@ public enum MessageDecision {
 	 * Cancel the message, returning a {@link CancellationException} in the
 	 * associated {@link Future}.
 	 */
-	CANCEL
+	CANCEL,
+	/**
+	 * Do not send the message, but complete the associated {@link Future} with
+	 * the outcome of the future passed to {@link Context#follow}.
+	 */
+	FOLLOW
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+/**
+ * Signals that a message was dropped without being sent because the pipeline
+ * was overloaded. Returned via the message's {@code Future}.
+ * 
+ * @see LoadShedder
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class MessageShedException extends Exception {
+	private static final long serialVersionUID = 2938410257381048841L;
+
+	/**
+	 * Constructs a {@code MessageShedException} with the specified message.
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	public MessageShedException(String message) {
+		super(message);
+	}
+
+}
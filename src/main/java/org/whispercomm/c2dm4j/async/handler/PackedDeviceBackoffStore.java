@@ -0,0 +1,585 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.whispercomm.c2dm4j.backoff.Attempt;
+import org.whispercomm.c2dm4j.backoff.Backoff;
+import org.whispercomm.c2dm4j.backoff.Clock;
+import org.whispercomm.c2dm4j.backoff.ExponentialBackoff;
+
+/**
+ * A compact {@link DeviceBackoffStore} holding the exponential backoff state
+ * of each device in two primitive longs, instead of a registration id string,
+ * a {@link Backoff} object and its state objects.
+ * <p>
+ * The state is kept in a fixed-capacity, open-addressed table keyed by a
+ * 64-bit fingerprint of the registration id. The failure count and expiry
+ * time of a device are packed into a single long, which attempts update by
+ * compare-and-set, so the table never locks. The backoff intervals are
+ * computed as for {@link ExponentialBackoff}.
+ * <p>
+ * A device is looked up in the short, aligned run of slots holding its home
+ * slot, starting at the home slot. The slot of a device whose backoff expired
+ * more than an idle timeout (by default one hour) ago is reused for another
+ * device. If none of the slots is free, the one whose backoff expires first
+ * is evicted. The capacity should
+ * thus be comfortably larger than the number of devices expected to be in
+ * backoff at once.
+ * <p>
+ * The table is best-effort. Two devices whose fingerprints collide share
+ * their backoff, and an attempt may update a slot just reused for another
+ * device. Both are rare and only cause a device to back off more or less than
+ * it should have.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class PackedDeviceBackoffStore implements DeviceBackoffStore {
+
+	private static final int DEFAULT_CAPACITY = 1 << 20;
+
+	private static final float DEFAULT_SCALE = 1;
+
+	private static final int DEFAULT_MAX_COUNT = 20;
+
+	private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.HOURS
+			.toMillis(1);
+
+	/*
+	 * The failure count is packed in the low bits of the state, the expiry
+	 * time (relative to the table's origin) in the remaining high bits.
+	 */
+	private static final int COUNT_BITS = 6;
+
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	private static final int MAX_COUNT = 62;
+
+	/*
+	 * Cap on intervals so that expiry times fit in the packed state.
+	 */
+	private static final long MAX_INTERVAL = 1L << 48;
+
+	/*
+	 * Number of slots searched for a device: the aligned run of slots holding
+	 * its home slot.
+	 */
+	static final int PROBES = 16;
+
+	private final int mask;
+
+	private final Slots slots;
+
+	private final float scale;
+
+	private final int maxCount;
+
+	private final long maxInterval;
+
+	private final long idleTimeout;
+
+	private final Clock clock;
+
+	private final long origin;
+
+	private final AtomicLong expiredCount;
+
+	private final AtomicLong evictedCount;
+
+	/**
+	 * Constructs a new store with room for about one million devices, a
+	 * minimum backoff duration of 1 millisecond and a maximum duration of
+	 * about 17.5 minutes.
+	 */
+	public PackedDeviceBackoffStore() {
+		this(DEFAULT_CAPACITY, DEFAULT_SCALE, DEFAULT_MAX_COUNT,
+				Long.MAX_VALUE, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Constructs a new store whose backoff durations are computed as follows:
+	 * </br> <code>
+	 * min(maxInterval, scale * Math.pow(2, min(count, maxCount)) - 1.0)) </br>
+	 * </code> where {@code count} is the number of consecutive failures.
+	 * 
+	 * @param capacity
+	 *            the number of slots in the table, rounded up to a power of
+	 *            two
+	 * @param scale
+	 *            scale parameter for the preceding formula
+	 * @param maxCount
+	 *            maxCount in the preceding formula, at most 62
+	 * @param maxInterval
+	 *            the maximum backoff duration in milliseconds
+	 * @param idleTimeout
+	 *            the time in milliseconds after a device's backoff expires
+	 *            after which its slot may be reused
+	 */
+	public PackedDeviceBackoffStore(int capacity, float scale, int maxCount,
+			long maxInterval, long idleTimeout) {
+		this(capacity, scale, maxCount, maxInterval, idleTimeout,
+				Clock.MONOTONIC);
+	}
+
+	/**
+	 * Constructs a new store as for
+	 * {@link #PackedDeviceBackoffStore(int, float, int, long, long)} that
+	 * reads the current time from the given clock.
+	 * 
+	 * @param capacity
+	 *            the number of slots in the table, rounded up to a power of
+	 *            two
+	 * @param scale
+	 *            scale parameter for the backoff formula
+	 * @param maxCount
+	 *            maxCount in the backoff formula, at most 62
+	 * @param maxInterval
+	 *            the maximum backoff duration in milliseconds
+	 * @param idleTimeout
+	 *            the time in milliseconds after a device's backoff expires
+	 *            after which its slot may be reused
+	 * @param clock
+	 *            the clock from which to read the current time
+	 */
+	public PackedDeviceBackoffStore(int capacity, float scale, int maxCount,
+			long maxInterval, long idleTimeout, Clock clock) {
+		// Relative times start at one, so that a packed state is never zero
+		this(new AtomicSlots(tableSize(capacity)), clock.millis() - 1, scale,
+				maxCount, maxInterval, idleTimeout, clock);
+	}
+
+	PackedDeviceBackoffStore(Slots slots, long origin, float scale,
+			int maxCount, long maxInterval, long idleTimeout, Clock clock) {
+		checkMaxCount(maxCount);
+		this.mask = slots.length() - 1;
+		this.slots = slots;
+		this.scale = scale;
+		this.maxCount = maxCount;
+		this.maxInterval = Math.min(maxInterval, MAX_INTERVAL);
+		this.idleTimeout = Math.min(idleTimeout, MAX_INTERVAL);
+		this.clock = clock;
+		this.origin = origin;
+		this.expiredCount = new AtomicLong();
+		this.evictedCount = new AtomicLong();
+	}
+
+	/**
+	 * Checks that a failure count cap fits in the packed state.
+	 * 
+	 * @param maxCount
+	 *            the cap
+	 * @throws IllegalArgumentException
+	 *             if the cap is out of range
+	 */
+	static void checkMaxCount(int maxCount) {
+		if (maxCount < 1 || maxCount > MAX_COUNT)
+			throw new IllegalArgumentException(
+					"Max count must be between 1 and " + MAX_COUNT + ".");
+	}
+
+	/**
+	 * Computes the number of slots for a table of the requested capacity.
+	 * 
+	 * @param capacity
+	 *            the requested capacity
+	 * @return the capacity rounded up to a power of two, and to at least the
+	 *         length of a probe run
+	 */
+	static int tableSize(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException(
+					"Capacity must be between 1 and 2^30.");
+		return Math.max(PROBES, Integer.highestOneBit(capacity - 1) << 1);
+	}
+
+	/**
+	 * Gets a backoff over a slot outside the table, e.g., one holding the
+	 * global backoff state alongside the table. The slot must already hold
+	 * the given key.
+	 * 
+	 * @param slot
+	 *            the slot
+	 * @param key
+	 *            the key held by the slot
+	 * @return the backoff
+	 */
+	Backoff slotBackoff(int slot, long key) {
+		return new SlotBackoff(slot, key);
+	}
+
+	/**
+	 * Gets the number of slots in the table.
+	 * 
+	 * @return the number of slots
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	@Override
+	public Backoff get(String registrationId) {
+		long key = fingerprint(registrationId);
+		int home = home(key);
+		slots.lock(home);
+		try {
+			int slot = find(key, home);
+			return (slot < 0) ? null : new SlotBackoff(slot, key);
+		} finally {
+			slots.unlock(home);
+		}
+	}
+
+	@Override
+	public Backoff getOrCreate(String registrationId) {
+		long key = fingerprint(registrationId);
+		int home = home(key);
+		slots.lock(home);
+		try {
+			for (;;) {
+				int slot = find(key, home);
+				if (slot < 0)
+					slot = claim(key, home);
+				if (slot >= 0)
+					return new SlotBackoff(slot, key);
+			}
+		} finally {
+			slots.unlock(home);
+		}
+	}
+
+	@Override
+	public void remove(String registrationId) {
+		long key = fingerprint(registrationId);
+		int home = home(key);
+		slots.lock(home);
+		try {
+			int slot = find(key, home);
+			if (slot >= 0 && slots.casKey(slot, key, 0))
+				slots.setState(slot, 0);
+		} finally {
+			slots.unlock(home);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This scans the whole table.
+	 */
+	@Override
+	public long size() {
+		long now = now();
+		long size = 0;
+		for (int run = 0; run <= mask; run += PROBES) {
+			slots.lock(run);
+			try {
+				for (int slot = run; slot < run + PROBES; ++slot) {
+					if (slots.key(slot) != 0
+							&& !isIdle(slots.state(slot), now))
+						++size;
+				}
+			} finally {
+				slots.unlock(run);
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	@Override
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	private int find(long key, int home) {
+		for (int i = 0; i < PROBES; ++i) {
+			int slot = probe(home, i);
+			if (slots.key(slot) == key)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Claims a slot for a device, reusing a free or idle slot if possible and
+	 * evicting the slot whose backoff expires first otherwise. A slot holding
+	 * a device not in backoff is free, so only devices still in backoff count
+	 * as evicted.
+	 * 
+	 * @param key
+	 *            the fingerprint of the device
+	 * @param home
+	 *            the home slot of the device
+	 * @return the claimed slot, or -1 if another thread raced for it
+	 */
+	private int claim(long key, int home) {
+		long now = now();
+		int victim = -1;
+		long victimState = Long.MAX_VALUE;
+		for (int i = 0; i < PROBES; ++i) {
+			int slot = probe(home, i);
+			long current = slots.key(slot);
+			long state = slots.state(slot);
+			if (current == 0 || state == 0 || isIdle(state, now)) {
+				if (!slots.casKey(slot, current, key))
+					return -1;
+				slots.setState(slot, 0);
+				if (current != 0 && state != 0)
+					expiredCount.incrementAndGet();
+				return slot;
+			}
+			if (state < victimState) {
+				victim = slot;
+				victimState = state;
+			}
+		}
+		long current = slots.key(victim);
+		if (!slots.casKey(victim, current, key))
+			return -1;
+		slots.setState(victim, 0);
+		evictedCount.incrementAndGet();
+		return victim;
+	}
+
+	private boolean isIdle(long state, long now) {
+		return state != 0 && expiry(state) + idleTimeout < now;
+	}
+
+	private long now() {
+		// Guards against a wall clock set back past the origin
+		return Math.max(1, clock.millis() - origin);
+	}
+
+	private long increment(long state) {
+		int count = count(state);
+		count = count < maxCount ? count + 1 : count;
+		long interval = Math.min(maxInterval,
+				(long) Math.ceil(scale * (Math.pow(2, count) - 1.0)));
+		return ((now() + interval) << COUNT_BITS) | count;
+	}
+
+	private int home(long key) {
+		return (int) key & mask;
+	}
+
+	/**
+	 * Gets the slot searched at a step of a probe run. The run wraps around
+	 * within the aligned run of slots holding the home slot, so that it never
+	 * crosses into another run.
+	 */
+	private static int probe(int home, int step) {
+		return (home & -PROBES) | ((home + step) & (PROBES - 1));
+	}
+
+	private static int count(long state) {
+		return (int) (state & COUNT_MASK);
+	}
+
+	private static long expiry(long state) {
+		return state >>> COUNT_BITS;
+	}
+
+	/**
+	 * Computes a 64-bit fingerprint of a registration id, using FNV-1a over
+	 * the characters followed by a final mix of the bits. The fingerprint is
+	 * never zero, which marks free slots.
+	 * 
+	 * @param registrationId
+	 *            the registration id
+	 * @return the fingerprint
+	 */
+	static long fingerprint(String registrationId) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0, n = registrationId.length(); i < n; ++i) {
+			h ^= registrationId.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (h == 0) ? 1 : h;
+	}
+
+	/**
+	 * A view of the backoff state in a single slot.
+	 */
+	private class SlotBackoff implements Backoff {
+		private final int slot;
+		private final long key;
+
+		public SlotBackoff(int slot, long key) {
+			this.slot = slot;
+			this.key = key;
+		}
+
+		@Override
+		public Attempt begin() {
+			slots.lock(slot);
+			try {
+				return new SlotAttempt(slot, key, slots.state(slot));
+			} finally {
+				slots.unlock(slot);
+			}
+		}
+	}
+
+	/**
+	 * Implementation of {@code Attempt} returned by {@link SlotBackoff}. As in
+	 * {@link org.whispercomm.c2dm4j.backoff.AbstractThreadSafeBackoff}, only
+	 * the first attempt to respond for a given state changes the state.
+	 */
+	private class SlotAttempt implements Attempt {
+		private final int slot;
+		private final long key;
+		private final long state;
+
+		public SlotAttempt(int slot, long key, long state) {
+			this.slot = slot;
+			this.key = key;
+			this.state = state;
+		}
+
+		@Override
+		public long delay() {
+			if (state == 0)
+				return 0;
+			long remaining = expiry(state) - now();
+			return (remaining < 0) ? 0 : remaining;
+		}
+
+		@Override
+		public void recordSuccess() {
+			slots.lock(slot);
+			try {
+				if (slots.key(slot) == key && slots.casState(slot, state, 0)
+						&& slot < slots.length())
+					// Frees the slot. Slots beyond the table are never
+					// claimed, so keep their keys.
+					slots.casKey(slot, key, 0);
+			} finally {
+				slots.unlock(slot);
+			}
+		}
+
+		@Override
+		public void recordFailure() {
+			slots.lock(slot);
+			try {
+				if (slots.key(slot) == key)
+					slots.casState(slot, state, increment(state));
+			} finally {
+				slots.unlock(slot);
+			}
+		}
+	}
+
+	/**
+	 * The storage of a table: pairs of a key and a packed state, each updated
+	 * atomically. Storage without atomic updates instead guards each aligned
+	 * run of {@link PackedDeviceBackoffStore#PROBES} slots with a lock, taken
+	 * once around all accesses to the run.
+	 */
+	interface Slots {
+		/**
+		 * Gets the number of slots in the table, a power of two. Storage may
+		 * hold further slots beyond these.
+		 */
+		int length();
+
+		/**
+		 * Locks the run of slots holding the given slot, if the storage
+		 * needs it.
+		 */
+		void lock(int slot);
+
+		/**
+		 * Unlocks the run of slots holding the given slot.
+		 */
+		void unlock(int slot);
+
+		long key(int slot);
+
+		boolean casKey(int slot, long expect, long update);
+
+		long state(int slot);
+
+		boolean casState(int slot, long expect, long update);
+
+		void setState(int slot, long state);
+	}
+
+	/**
+	 * Slots held in a pair of heap arrays.
+	 */
+	private static class AtomicSlots implements Slots {
+		private final AtomicLongArray keys;
+		private final AtomicLongArray states;
+
+		public AtomicSlots(int length) {
+			this.keys = new AtomicLongArray(length);
+			this.states = new AtomicLongArray(length);
+		}
+
+		@Override
+		public int length() {
+			return keys.length();
+		}
+
+		@Override
+		public void lock(int slot) {
+		}
+
+		@Override
+		public void unlock(int slot) {
+		}
+
+		@Override
+		public long key(int slot) {
+			return keys.get(slot);
+		}
+
+		@Override
+		public boolean casKey(int slot, long expect, long update) {
+			return keys.compareAndSet(slot, expect, update);
+		}
+
+		@Override
+		public long state(int slot) {
+			return states.get(slot);
+		}
+
+		@Override
+		public boolean casState(int slot, long expect, long update) {
+			return states.compareAndSet(slot, expect, update);
+		}
+
+		@Override
+		public void setState(int slot, long state) {
+			states.set(slot, state);
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A gate that parks waiting callers in a single FIFO queue while closed,
+ * instead of each caller scheduling its own timer.
+ * <p>
+ * The gate is closed until a given time by {@link #closeUntil(long)}, or until
+ * further notice by {@link #close()}. A single timer fires when it opens and releases the parked callers at a paced rate:
+ * first a small batch, then a batch twice as large every release interval,
+ * until the queue is drained. Closing the gate again stops the release, so a
+ * service that is still overloaded sees only the first few requests rather
+ * than the whole backlog at once. New callers park behind those already
+ * waiting, so the queue is released in order.
+ * 
+ * @author David R. Bild
+ * 
+ */
+class ParkingQueue {
+	private static final ListenableFuture<Void> OPEN = Futures
+			.immediateFuture(null);
+
+	/*
+	 * Open time of a gate closed until further notice
+	 */
+	private static final long CLOSED = Long.MAX_VALUE;
+
+	private final ScheduledExecutorService timer;
+
+	private final long releaseInterval;
+
+	private final int initialBatch;
+
+	// Guarded by this
+	private final Queue<SettableFuture<Void>> parked;
+
+	// Guarded by this
+	private boolean timerScheduled;
+
+	/*
+	 * Incremented whenever the timer is scheduled, so that a timer superseded
+	 * by reopening the gate does nothing when it fires.
+	 */
+	// Guarded by this
+	private long generation;
+
+	// Guarded by this
+	private int batch;
+
+	/*
+	 * Written only while holding the lock, but read without it on the fast
+	 * path.
+	 */
+	private volatile long openTime;
+
+	private volatile boolean empty;
+
+	/**
+	 * Constructs a new, open gate.
+	 * 
+	 * @param timer
+	 *            the executor on which to run the release timer
+	 * @param releaseInterval
+	 *            the interval between released batches, in milliseconds
+	 * @param initialBatch
+	 *            the number of callers released in the first batch after the
+	 *            gate opens
+	 */
+	public ParkingQueue(ScheduledExecutorService timer, long releaseInterval,
+			int initialBatch) {
+		if (releaseInterval < 1 || initialBatch < 1)
+			throw new IllegalArgumentException(
+					"Release interval and initial batch must be positive.");
+		this.timer = timer;
+		this.releaseInterval = releaseInterval;
+		this.initialBatch = initialBatch;
+		this.parked = new LinkedList<SettableFuture<Void>>();
+		this.batch = initialBatch;
+		this.empty = true;
+	}
+
+	/**
+	 * Parks the caller until the gate releases it. If the gate is open and no
+	 * other callers are waiting, the returned future is already complete.
+	 * 
+	 * @return a future that completes when the caller is released
+	 */
+	public ListenableFuture<Void> park() {
+		if (empty && System.currentTimeMillis() >= openTime)
+			return OPEN;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (parked.isEmpty() && now >= openTime)
+				return OPEN;
+			SettableFuture<Void> future = SettableFuture.create();
+			parked.add(future);
+			empty = false;
+			scheduleRelease(now);
+			return future;
+		}
+	}
+
+	/**
+	 * Closes the gate until the given time, if it is not already closed until
+	 * later. Any release in progress is stopped and restarts with the initial
+	 * batch when the gate opens again.
+	 * 
+	 * @param time
+	 *            the time in milliseconds since the epoch at which the gate
+	 *            opens
+	 */
+	public synchronized void closeUntil(long time) {
+		if (time > openTime) {
+			openTime = time;
+			batch = initialBatch;
+		}
+	}
+
+	/**
+	 * Closes the gate until it is opened again by {@link #openAt(long)}. Any
+	 * release in progress is stopped.
+	 */
+	public synchronized void close() {
+		openTime = CLOSED;
+		batch = initialBatch;
+	}
+
+	/**
+	 * Opens the gate at the given time, even if it was closed until later.
+	 * The release starts again with the initial batch.
+	 * 
+	 * @param time
+	 *            the time in milliseconds since the epoch at which the gate
+	 *            opens
+	 */
+	public synchronized void openAt(long time) {
+		openTime = time;
+		batch = initialBatch;
+		// Supersede a timer scheduled for the earlier open time
+		timerScheduled = false;
+		scheduleRelease(System.currentTimeMillis());
+	}
+
+	/**
+	 * Gets the time at which the gate opens.
+	 * 
+	 * @return the time in milliseconds since the epoch, or
+	 *         {@link Long#MAX_VALUE} if closed until further notice
+	 */
+	public long openTime() {
+		return openTime;
+	}
+
+	/**
+	 * Gets the number of parked callers.
+	 * 
+	 * @return the number of parked callers
+	 */
+	public synchronized int size() {
+		return parked.size();
+	}
+
+	// Requires lock on this
+	private void scheduleRelease(long now) {
+		if (timerScheduled || parked.isEmpty() || openTime == CLOSED)
+			return;
+		schedule(Math.max(openTime - now, 0));
+	}
+
+	// Requires lock on this
+	private void schedule(long delay) {
+		timerScheduled = true;
+		final long scheduled = ++generation;
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				release(scheduled);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void release(long scheduled) {
+		List<SettableFuture<Void>> released;
+		synchronized (this) {
+			if (scheduled != generation)
+				return;
+			timerScheduled = false;
+			long now = System.currentTimeMillis();
+			if (now < openTime) {
+				// Closed again since the timer was scheduled
+				scheduleRelease(now);
+				return;
+			}
+
+			int count = Math.min(batch, parked.size());
+			released = new ArrayList<SettableFuture<Void>>(count);
+			for (int i = 0; i < count; ++i) {
+				released.add(parked.poll());
+			}
+
+			if (parked.isEmpty()) {
+				batch = initialBatch;
+				empty = true;
+			} else {
+				batch = (batch > Integer.MAX_VALUE / 2) ? Integer.MAX_VALUE
+						: 2 * batch;
+				schedule(releaseInterval);
+			}
+		}
+
+		// Complete outside the lock, as listeners continue the pipeline
+		for (SettableFuture<Void> future : released) {
+			future.set(null);
+		}
+	}
+
+}
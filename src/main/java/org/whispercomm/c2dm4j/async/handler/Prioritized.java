@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+/**
+ * A {@link MessageFilter}, {@link AsyncMessageFilter}, {@link ResponseHandler},
+ * {@link AsyncResponseHandler}, or {@link ThrowableHandler} with an explicit
+ * position in its chain. Chains run in increasing order of priority, and in
+ * registration order among equal priorities. Filters and handlers that do not
+ * implement this interface have priority {@link #DEFAULT_PRIORITY}.
+ * <p>
+ * Combined with {@link Context#setFinalDecision(Enum)}, priorities let cheap
+ * deciding handlers run before expensive ones (e.g., logging or database
+ * updates), which can then check {@link Context#isDecisionFinal()} and skip
+ * their work for messages already decided. A final decision does not skip
+ * later handlers, as the built-in ones release resources and keep bookkeeping
+ * whatever the decision.
+ * <p>
+ * The priority is read once, when the filter or handler is registered.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public interface Prioritized {
+
+	/**
+	 * The priority of filters and handlers not implementing this interface.
+	 */
+	public static final int DEFAULT_PRIORITY = 0;
+
+	/**
+	 * Gets the priority of this filter or handler. Lower values run first.
+	 * 
+	 * @return the priority
+	 */
+	public int getPriority();
+
+}
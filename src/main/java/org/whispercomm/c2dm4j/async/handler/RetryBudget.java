@@ -0,0 +1,322 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+
+/**
+ * A message filter, response handler, and throwable handler that limits
+ * retries to a fraction of first attempts over a sliding window, so retries
+ * cannot amplify load while the C2DM service is struggling. A small number of
+ * retries per window is always allowed, so that retries are not starved when
+ * traffic is light.
+ * <p>
+ * Retries over budget are either deferred or dead-lettered. Deferred retries
+ * are delayed when dequeued for sending until the budget allows them. In
+ * dead-letter mode, a decision to retry over budget is changed to
+ * {@link ResultDecision#RETURN}, even if another handler marked it final, and
+ * the message is passed to a {@link DeadLetterSink}; the handlers must then be registered after any
+ * handler that decides to retry messages.
+ * <p>
+ * The window is divided into buckets that expire in turn. Counts are kept in
+ * striped counters, so recording attempts does not contend across threads.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class RetryBudget implements MessageFilter, ResponseHandler<Response>,
+		ThrowableHandler<Throwable> {
+	static final ContextKey<Message> CONTEXT_KEY = ContextKey.create(
+			RetryBudget.class.getCanonicalName(), Message.class);
+
+	static final ContextKey<Integer> COUNTED_KEY = ContextKey.create(
+			RetryBudget.class.getCanonicalName() + ".counted", Integer.class);
+
+	private static final int BUCKETS = 10;
+
+	private final double ratio;
+
+	private final int minRetries;
+
+	private final long bucketMillis;
+
+	private final DeadLetterSink sink;
+
+	private final AtomicReferenceArray<Bucket> buckets;
+
+	private final AtomicLong deferred;
+
+	private final AtomicLong rejected;
+
+	/**
+	 * Constructs a new budget that defers retries over budget.
+	 * 
+	 * @param ratio
+	 *            the maximum ratio of retries to first attempts
+	 * @param minRetries
+	 *            the number of retries allowed per window regardless of the
+	 *            ratio
+	 * @param window
+	 *            the duration of the sliding window in milliseconds
+	 */
+	public RetryBudget(double ratio, int minRetries, long window) {
+		this(ratio, minRetries, window, (DeadLetterSink) null);
+	}
+
+	/**
+	 * Constructs a new budget that dead-letters retries over budget.
+	 * 
+	 * @param ratio
+	 *            the maximum ratio of retries to first attempts
+	 * @param minRetries
+	 *            the number of retries allowed per window regardless of the
+	 *            ratio
+	 * @param window
+	 *            the duration of the sliding window in milliseconds
+	 * @param sink
+	 *            the sink for retries over budget, or {@code null} to defer
+	 *            them instead
+	 */
+	public RetryBudget(double ratio, int minRetries, long window,
+			DeadLetterSink sink) {
+		if (ratio < 0)
+			throw new IllegalArgumentException("Ratio must not be negative.");
+		if (minRetries < 0)
+			throw new IllegalArgumentException(
+					"Minimum retries must not be negative.");
+		if (window < BUCKETS)
+			throw new IllegalArgumentException(String.format(
+					"Window must be at least %d ms.", BUCKETS));
+		this.ratio = ratio;
+		this.minRetries = minRetries;
+		this.bucketMillis = window / BUCKETS;
+		this.sink = sink;
+		this.buckets = new AtomicReferenceArray<Bucket>(BUCKETS);
+		this.deferred = new AtomicLong();
+		this.rejected = new AtomicLong();
+	}
+
+	/**
+	 * Constructs a new budget that defers retries over budget and registers
+	 * the underlying filter with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param ratio
+	 *            the maximum ratio of retries to first attempts
+	 * @param minRetries
+	 *            the number of retries allowed per window regardless of the
+	 *            ratio
+	 * @param window
+	 *            the duration of the sliding window in milliseconds
+	 * @param handlers
+	 *            the handlers object with which to register the filter
+	 */
+	public RetryBudget(double ratio, int minRetries, long window,
+			AsyncHandlers handlers) {
+		this(ratio, minRetries, window, null, handlers);
+	}
+
+	/**
+	 * Constructs a new budget and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param ratio
+	 *            the maximum ratio of retries to first attempts
+	 * @param minRetries
+	 *            the number of retries allowed per window regardless of the
+	 *            ratio
+	 * @param window
+	 *            the duration of the sliding window in milliseconds
+	 * @param sink
+	 *            the sink for retries over budget, or {@code null} to defer
+	 *            them instead
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public RetryBudget(double ratio, int minRetries, long window,
+			DeadLetterSink sink, AsyncHandlers handlers) {
+		this(ratio, minRetries, window, sink);
+		handlers.appendDequeueFilter(this);
+		if (sink != null) {
+			handlers.appendEnqueueFilter(this);
+			for (ResponseType type : ResponseType.values()) {
+				handlers.appendResponseHandler(type, this);
+			}
+			handlers.appendThrowableHandler(Throwable.class, this);
+		}
+	}
+
+	/**
+	 * Gets the number of first attempts in the current window.
+	 * 
+	 * @return the number of first attempts
+	 */
+	public long getFirstAttempts() {
+		long sum = 0;
+		long now = currentBucket();
+		for (int i = 0; i < BUCKETS; ++i) {
+			Bucket bucket = buckets.get(i);
+			if (bucket != null && now - bucket.epoch < BUCKETS)
+				sum += bucket.firsts.sum();
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets the number of retries in the current window.
+	 * 
+	 * @return the number of retries
+	 */
+	public long getRetries() {
+		long sum = 0;
+		long now = currentBucket();
+		for (int i = 0; i < BUCKETS; ++i) {
+			Bucket bucket = buckets.get(i);
+			if (bucket != null && now - bucket.epoch < BUCKETS)
+				sum += bucket.retries.sum();
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets the number of times a retry over budget was deferred.
+	 * 
+	 * @return the number of deferrals
+	 */
+	public long getDeferredCount() {
+		return deferred.get();
+	}
+
+	/**
+	 * Gets the number of retries over budget passed to the dead-letter sink.
+	 * 
+	 * @return the number of dead-lettered retries
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		// Remember the message for the throwable context, which lacks it
+		if (sink != null && context.get(CONTEXT_KEY) == null)
+			context.put(CONTEXT_KEY, context.unwrap());
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			if (context.getDelay() > 0)
+				return;
+			// A later filter may delay the message and send it back through
+			// here, so count each attempt only once
+			int attempts = context.getAttempts();
+			Integer counted = context.get(COUNTED_KEY);
+			if (counted != null && counted.intValue() == attempts)
+				return;
+			if (attempts == 0) {
+				bucket().firsts.increment();
+			} else if (sink == null) {
+				// Retries in dead-letter mode were counted when decided
+				if (!tryRetry()) {
+					deferred.incrementAndGet();
+					context.setDelay(bucketMillis);
+					return;
+				}
+			}
+			context.put(COUNTED_KEY, attempts);
+			return;
+		default:
+			return;
+		}
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		decide(context, context.unwrap().getResponseType().name());
+	}
+
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		decide(context, context.unwrap().toString());
+	}
+
+	private void decide(Context<?, ResultDecision> context, String reason) {
+		if (context.getDecision() != ResultDecision.RETRY || tryRetry())
+			return;
+		rejected.incrementAndGet();
+		// Give up even if another handler made the retry final
+		context.overrideDecision(ResultDecision.RETURN);
+		context.setDelay(0);
+		sink.deadLetter(new DeadLetter(context.get(CONTEXT_KEY), context
+				.getAttempts(), context.getAge(), reason));
+	}
+
+	/**
+	 * Records a retry if the budget allows it.
+	 * 
+	 * @return {@code true} if the retry is within budget
+	 */
+	private boolean tryRetry() {
+		// Checking and recording are not atomic, so concurrent retries may
+		// overshoot the budget slightly.
+		if (getRetries() >= minRetries + ratio * getFirstAttempts())
+			return false;
+		bucket().retries.increment();
+		return true;
+	}
+
+	private long currentBucket() {
+		return System.currentTimeMillis() / bucketMillis;
+	}
+
+	private Bucket bucket() {
+		long epoch = currentBucket();
+		int index = (int) (epoch % BUCKETS);
+		for (;;) {
+			Bucket bucket = buckets.get(index);
+			if (bucket != null && bucket.epoch == epoch)
+				return bucket;
+			Bucket fresh = new Bucket(epoch);
+			if (buckets.compareAndSet(index, bucket, fresh))
+				return fresh;
+		}
+	}
+
+	/**
+	 * The counts for one slice of the window.
+	 */
+	private static final class Bucket {
+		private final long epoch;
+		private final StripedCounter firsts;
+		private final StripedCounter retries;
+
+		Bucket(long epoch) {
+			this.epoch = epoch;
+			this.firsts = new StripedCounter();
+			this.retries = new StripedCounter();
+		}
+	}
+
+}
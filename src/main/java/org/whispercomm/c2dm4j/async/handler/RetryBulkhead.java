@@ -0,0 +1,271 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A message filter, response handler, and throwable handler that isolates
+ * retries from first attempts. Requests in flight to the C2DM service draw
+ * from two separate pools of capacity: one for messages being sent for the
+ * first time and one for retries. After an outage, the backlog of retries can
+ * thus use only its share of the capacity, leaving the rest for fresh
+ * messages.
+ * <p>
+ * Messages dequeued while their pool is exhausted wait, in order, for a
+ * request from the same pool to complete. This filter should be registered as
+ * the last dequeue filter, so that no later filter can delay or cancel a
+ * message that already holds capacity.
+ * <p>
+ * Capacity is normally returned when the response or exception for a request
+ * is handled. It is also returned once the message completes, in case the
+ * message leaves the pipeline without a response being handled, e.g., when it
+ * is cancelled or a runtime exception escapes the send.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class RetryBulkhead implements AsyncMessageFilter,
+		ResponseHandler<Response>, ThrowableHandler<Throwable> {
+	static final ContextKey<Permit> PERMIT_KEY = ContextKey.create(
+			RetryBulkhead.class.getCanonicalName() + ".permit", Permit.class);
+
+	static final ContextKey<Boolean> SENT_KEY = ContextKey.create(
+			RetryBulkhead.class.getCanonicalName() + ".sent", Boolean.class);
+
+	private static final ListenableFuture<Void> DONE = Futures
+			.immediateFuture(null);
+
+	private final Pool fresh;
+
+	private final Pool retry;
+
+	/**
+	 * Constructs a new bulkhead.
+	 * 
+	 * @param capacity
+	 *            the total number of requests in flight, across both pools
+	 * @param retryShare
+	 *            the fraction of the capacity reserved for retries, between 0
+	 *            and 1 exclusive. Each pool receives at least one slot.
+	 */
+	public RetryBulkhead(int capacity, double retryShare) {
+		if (capacity < 2)
+			throw new IllegalArgumentException("Capacity must be at least 2.");
+		if (!(retryShare > 0 && retryShare < 1))
+			throw new IllegalArgumentException(
+					"Retry share must be between 0 and 1 exclusive.");
+		int retryCapacity = (int) Math.round(capacity * retryShare);
+		retryCapacity = Math.max(1, Math.min(capacity - 1, retryCapacity));
+		this.retry = new Pool(retryCapacity);
+		this.fresh = new Pool(capacity - retryCapacity);
+	}
+
+	/**
+	 * Constructs a new bulkhead and registers the underlying filters and
+	 * handlers with the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param capacity
+	 *            the total number of requests in flight, across both pools
+	 * @param retryShare
+	 *            the fraction of the capacity reserved for retries, between 0
+	 *            and 1 exclusive. Each pool receives at least one slot.
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public RetryBulkhead(int capacity, double retryShare,
+			AsyncHandlers handlers) {
+		this(capacity, retryShare);
+		handlers.appendAsyncEnqueueFilter(this);
+		handlers.appendAsyncDequeueFilter(this);
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, this);
+		}
+		handlers.appendThrowableHandler(Throwable.class, this);
+	}
+
+	/**
+	 * Gets the fraction of the first-attempt pool in use.
+	 * 
+	 * @return the utilization, between 0 and 1
+	 */
+	public double getFreshUtilization() {
+		return fresh.utilization();
+	}
+
+	/**
+	 * Gets the fraction of the retry pool in use.
+	 * 
+	 * @return the utilization, between 0 and 1
+	 */
+	public double getRetryUtilization() {
+		return retry.utilization();
+	}
+
+	/**
+	 * Gets the number of first attempts waiting for capacity.
+	 * 
+	 * @return the number of waiting first attempts
+	 */
+	public int getFreshWaiting() {
+		return fresh.waiting();
+	}
+
+	/**
+	 * Gets the number of retries waiting for capacity.
+	 * 
+	 * @return the number of waiting retries
+	 */
+	public int getRetryWaiting() {
+		return retry.waiting();
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public ListenableFuture<Void> enqueueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		// The message is being (re-)queued, so it no longer needs its slot
+		release(context);
+		return DONE;
+	}
+
+	@Override
+	public ListenableFuture<Void> dequeueFilterAsync(
+			Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			if (context.getDelay() > 0)
+				return DONE;
+			Pool pool = (context.get(SENT_KEY) != null) ? retry : fresh;
+			final Permit permit = new Permit(pool);
+			final ListenableFuture<Response> future = context.getFuture();
+			context.put(SENT_KEY, Boolean.TRUE);
+			context.put(PERMIT_KEY, permit);
+			ListenableFuture<Void> acquired = pool.acquire();
+			// Only a granted slot may be returned on completion
+			acquired.addListener(new Runnable() {
+				@Override
+				public void run() {
+					future.addListener(permit,
+							MoreExecutors.sameThreadExecutor());
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			return acquired;
+		default:
+			return DONE;
+		}
+	}
+
+	private void release(Context<?, ?> context) {
+		Permit permit = context.get(PERMIT_KEY);
+		if (permit != null) {
+			context.put(PERMIT_KEY, null);
+			permit.run();
+		}
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		release(context);
+	}
+
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		release(context);
+	}
+
+	/**
+	 * A slot drawn from a pool, returned at most once, whether by a handler or
+	 * on completion of the message.
+	 */
+	static class Permit implements Runnable {
+		private final Pool pool;
+		private final AtomicBoolean released;
+
+		public Permit(Pool pool) {
+			this.pool = pool;
+			this.released = new AtomicBoolean();
+		}
+
+		@Override
+		public void run() {
+			if (released.compareAndSet(false, true))
+				pool.release();
+		}
+	}
+
+	/**
+	 * A pool of capacity with a FIFO queue of waiting messages.
+	 */
+	static class Pool {
+		private final int capacity;
+
+		// Guarded by this
+		private int inUse;
+
+		// Guarded by this
+		private final Queue<SettableFuture<Void>> waiters;
+
+		public Pool(int capacity) {
+			this.capacity = capacity;
+			this.waiters = new LinkedList<SettableFuture<Void>>();
+		}
+
+		public synchronized ListenableFuture<Void> acquire() {
+			if (inUse < capacity && waiters.isEmpty()) {
+				++inUse;
+				return DONE;
+			}
+			SettableFuture<Void> waiter = SettableFuture.create();
+			waiters.add(waiter);
+			return waiter;
+		}
+
+		public void release() {
+			SettableFuture<Void> next;
+			synchronized (this) {
+				next = waiters.poll();
+				if (next == null)
+					--inUse;
+			}
+			// Hand the slot directly to the next waiter
+			if (next != null)
+				next.set(null);
+		}
+
+		public synchronized double utilization() {
+			return (double) inUse / capacity;
+		}
+
+		public synchronized int waiting() {
+			return waiters.size();
+		}
+	}
+
+}
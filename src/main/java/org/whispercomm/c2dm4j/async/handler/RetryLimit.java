@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+
+/**
+ * A message filter, response handler, and throwable handler that bounds the retries of a
+ * message. When an earlier handler decides to retry a message that has
+ * already been sent the maximum number of times, or that was first pushed
+ * longer ago than the maximum age, the decision is changed to
+ * {@link ResultDecision#RETURN}, completing the message's {@code Future} with
+ * the last response or exception, and the message is passed to a
+ * {@link DeadLetterSink}. This applies even to a retry another handler marked
+ * final.
+ * <p>
+ * This handler must be registered after any handler that decides to retry
+ * messages.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class RetryLimit implements MessageFilter, ResponseHandler<Response>,
+		ThrowableHandler<Throwable> {
+	static final ContextKey<Message> CONTEXT_KEY = ContextKey.create(
+			RetryLimit.class.getCanonicalName(), Message.class);
+
+	private final int maxAttempts;
+
+	private final long maxAge;
+
+	private final DeadLetterSink sink;
+
+	/**
+	 * Constructs a new retry limit.
+	 * 
+	 * @param maxAttempts
+	 *            the maximum number of times a message may be sent
+	 * @param maxAge
+	 *            the maximum time in milliseconds after a message is pushed
+	 *            during which it may be retried, or 0 for no limit
+	 * @param sink
+	 *            the sink for messages given up on
+	 */
+	public RetryLimit(int maxAttempts, long maxAge, DeadLetterSink sink) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException(
+					"Maximum attempts must be at least 1.");
+		if (maxAge < 0)
+			throw new IllegalArgumentException("Age must not be negative.");
+		this.maxAttempts = maxAttempts;
+		this.maxAge = maxAge;
+		this.sink = sink;
+	}
+
+	/**
+	 * Constructs a new retry limit and registers the underlying handlers with
+	 * the provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param maxAttempts
+	 *            the maximum number of times a message may be sent
+	 * @param maxAge
+	 *            the maximum time in milliseconds after a message is pushed
+	 *            during which it may be retried, or 0 for no limit
+	 * @param sink
+	 *            the sink for messages given up on
+	 * @param handlers
+	 *            the handlers object with which to register the handlers
+	 */
+	public RetryLimit(int maxAttempts, long maxAge, DeadLetterSink sink,
+			AsyncHandlers handlers) {
+		this(maxAttempts, maxAge, sink);
+		handlers.appendEnqueueFilter(this);
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, this);
+		}
+		handlers.appendThrowableHandler(Throwable.class, this);
+	}
+
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		// Remember the message for the throwable context, which lacks it
+		if (context.get(CONTEXT_KEY) == null)
+			context.put(CONTEXT_KEY, context.unwrap());
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		// Nothing to do
+	}
+
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		limit(context, context.unwrap().getResponseType().name());
+	}
+
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		limit(context, context.unwrap().toString());
+	}
+
+	private void limit(Context<?, ResultDecision> context, String reason) {
+		if (context.getDecision() != ResultDecision.RETRY)
+			return;
+		long age = context.getAge();
+		if (context.getAttempts() < maxAttempts
+				&& (maxAge == 0 || age < maxAge))
+			return;
+		// Give up even if another handler made the retry final
+		context.overrideDecision(ResultDecision.RETURN);
+		context.setDelay(0);
+		sink.deadLetter(new DeadLetter(context.get(CONTEXT_KEY), context
+				.getAttempts(), age, reason));
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread across several cells, so that threads incrementing it
+ * concurrently rarely contend on the same cell. Each thread increments the
+ * cell chosen by its id, and reading the counter sums the cells. Cells are
+ * spaced a cache line apart to avoid false sharing.
+ * 
+ * @author David R. Bild
+ * 
+ */
+final class StripedCounter {
+
+	/*
+	 * Number of longs per cell, so each cell sits on its own 64-byte line.
+	 */
+	private static final int PAD = 8;
+
+	private final int mask;
+
+	private final AtomicLongArray cells;
+
+	/**
+	 * Constructs a new counter with a cell per available processor, rounded
+	 * up to a power of two.
+	 */
+	StripedCounter() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	StripedCounter(int stripes) {
+		int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+		this.mask = size - 1;
+		this.cells = new AtomicLongArray(size * PAD);
+	}
+
+	void increment() {
+		long id = Thread.currentThread().getId();
+		int cell = (int) (id ^ (id >>> 16)) & mask;
+		cells.incrementAndGet(cell * PAD);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i <= mask; ++i) {
+			sum += cells.get(i * PAD);
+		}
+		return sum;
+	}
+
+}
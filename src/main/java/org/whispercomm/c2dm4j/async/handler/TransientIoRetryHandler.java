@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+import org.apache.http.NoHttpResponseException;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.backoff.Attempt;
+import org.whispercomm.c2dm4j.backoff.Backoff;
+
+/**
+ * A message filter, response handler, and throwable handler that implements
+ * retry with backoff for transient transport failures, such as refused
+ * connections, timeouts, and reset connections.
+ * <p>
+ * Transient failures are {@link SocketException SocketExceptions} (including
+ * {@code ConnectException} and {@code NoRouteToHostException}),
+ * {@link InterruptedIOException InterruptedIOExceptions} (including
+ * {@code SocketTimeoutException} and HttpClient's
+ * {@code ConnectTimeoutException}), {@link UnknownHostException
+ * UnknownHostExceptions}, and {@link NoHttpResponseException
+ * NoHttpResponseExceptions}. Other {@code IOException}s, such as an
+ * {@link org.whispercomm.c2dm4j.UnexpectedResponseException
+ * UnexpectedResponseException}, are not retried.
+ * <p>
+ * The backoff is shared by all messages, as a transport failure usually
+ * affects every message, not just the one that saw it. Any response from the
+ * C2DM service resets the backoff. A message is retried until it has been
+ * sent a maximum number of times (by default 10), after which its
+ * {@code Future} completes with the exception, so a dead endpoint does not
+ * keep messages pending forever.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class TransientIoRetryHandler implements MessageFilter,
+		ResponseHandler<Response>, ThrowableHandler<Throwable> {
+	static final ContextKey<Attempt> CONTEXT_KEY = ContextKey.create(
+			TransientIoRetryHandler.class.getCanonicalName(), Attempt.class);
+
+	private static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+	private final Backoff backoff;
+
+	private final int maxAttempts;
+
+	/**
+	 * Constructs a new handler using the provided {@code Backoff} instance for
+	 * backoff that sends a message at most 10 times.
+	 * 
+	 * @param backoff
+	 *            the backoff object
+	 */
+	public TransientIoRetryHandler(Backoff backoff) {
+		this(backoff, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * Constructs a new handler using the provided {@code Backoff} instance for
+	 * backoff.
+	 * 
+	 * @param backoff
+	 *            the backoff object
+	 * @param maxAttempts
+	 *            the maximum number of times a message may be sent
+	 */
+	public TransientIoRetryHandler(Backoff backoff, int maxAttempts) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException(
+					"Maximum attempts must be at least 1.");
+		this.backoff = backoff;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Constructs a new handler using the provided {@code Backoff} instance for
+	 * backoff and registers the underlying filters and handlers with the
+	 * provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param backoff
+	 *            the backoff object
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public TransientIoRetryHandler(Backoff backoff, AsyncHandlers handlers) {
+		this(backoff);
+		register(handlers);
+	}
+
+	/**
+	 * Constructs a new handler using the provided {@code Backoff} instance for
+	 * backoff and registers the underlying filters and handlers with the
+	 * provided {@link AsyncHandlers} instance.
+	 * 
+	 * @param backoff
+	 *            the backoff object
+	 * @param maxAttempts
+	 *            the maximum number of times a message may be sent
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	public TransientIoRetryHandler(Backoff backoff, int maxAttempts,
+			AsyncHandlers handlers) {
+		this(backoff, maxAttempts);
+		register(handlers);
+	}
+
+	/**
+	 * Registers the underlying filters and handlers with the provided
+	 * {@link AsyncHandlers} instance. A single handler may be registered with
+	 * several instances, e.g., to share the backoff state across the shards of
+	 * a sharded manager.
+	 * 
+	 * @param handlers
+	 *            the handlers object with which to register the filters and
+	 *            handlers
+	 */
+	void register(AsyncHandlers handlers) {
+		handlers.appendEnqueueFilter(this);
+		handlers.appendDequeueFilter(this);
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, this);
+		}
+		handlers.appendThrowableHandler(IOException.class, this);
+	}
+
+	/**
+	 * Determines if the exception is a transient transport failure that is
+	 * worth retrying.
+	 * 
+	 * @param t
+	 *            the exception
+	 * @return {@code true} if the exception is transient
+	 */
+	static boolean isTransient(Throwable t) {
+		return (t instanceof SocketException)
+				|| (t instanceof InterruptedIOException)
+				|| (t instanceof UnknownHostException)
+				|| (t instanceof NoHttpResponseException);
+	}
+
+	// ------------------------- Filter Messages ------------------------------
+	@Override
+	public void enqueueFilter(Context<Message, MessageDecision> context) {
+		updateDelay(context);
+	}
+
+	@Override
+	public void dequeueFilter(Context<Message, MessageDecision> context) {
+		updateDelay(context);
+	}
+
+	private void updateDelay(Context<Message, MessageDecision> context) {
+		switch (context.getDecision()) {
+		case SEND:
+			Attempt attempt = backoff.begin();
+			context.put(CONTEXT_KEY, attempt);
+			if (attempt.delay() > context.getDelay())
+				context.setDelay(attempt.delay());
+			return;
+		default:
+			return;
+		}
+	}
+
+	// ------------------------- Handle Responses -----------------------------
+	@Override
+	public void handleResponse(Context<Response, ResultDecision> context) {
+		// Any response means the transport is working
+		Attempt attempt = context.get(CONTEXT_KEY);
+		if (attempt != null)
+			attempt.recordSuccess();
+	}
+
+	@Override
+	public void handleThrowable(Context<Throwable, ResultDecision> context) {
+		if (!isTransient(context.unwrap()))
+			return;
+		Attempt attempt = context.get(CONTEXT_KEY);
+		if (attempt != null)
+			attempt.recordFailure();
+		if (context.getAttempts() < maxAttempts)
+			context.setDecision(ResultDecision.RETRY);
+	}
+
+}
@@ -34,25 +34,48 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p>
  * Implementing children must override the {@link #computeInterval(int)} method
  * to convert the internal failure count to an absolute backoff duration.
+ * Children whose next interval depends on the previous one, such as
+ * decorrelated jitter, may instead override
+ * {@link #computeInterval(int, long)}.
+ * <p>
+ * Expiry times are read from a {@link Clock}, by default
+ * {@link Clock#MONOTONIC}, so adjustments to the wall clock do not stretch or
+ * cut short a backoff.
  * 
  * @author David R. Bild
  * 
  */
 public abstract class AbstractThreadSafeBackoff implements Backoff {
 
-	private static final State NO_BACKOFF = new State(0, 0);
+	private static final State NO_BACKOFF = new State(0, 0, 0);
 
 	private final int maxCount;
 
+	private final Clock clock;
+
 	private AtomicReference<State> state;
 
 	/**
-	 * Constructs a new backoff with a maximum backoff count.
+	 * Constructs a new backoff with a maximum backoff count, using the
+	 * monotonic clock.
 	 * 
 	 * @param maxCount
 	 */
 	protected AbstractThreadSafeBackoff(int maxCount) {
+		this(maxCount, Clock.MONOTONIC);
+	}
+
+	/**
+	 * Constructs a new backoff with a maximum backoff count, using the given
+	 * clock.
+	 * 
+	 * @param maxCount
+	 * @param clock
+	 *            the clock from which to read the current time
+	 */
+	protected AbstractThreadSafeBackoff(int maxCount, Clock clock) {
 		this.maxCount = maxCount;
+		this.clock = clock;
 		this.state = new AtomicReference<State>(NO_BACKOFF);
 	}
 
@@ -66,6 +89,21 @@ public abstract class AbstractThreadSafeBackoff implements Backoff {
 	 */
 	protected abstract long computeInterval(int count);
 
+	/**
+	 * Computes an absolute backoff duration from the given count of consecutive
+	 * failures and the previous duration. The default implementation ignores
+	 * the previous duration and calls {@link #computeInterval(int)}.
+	 * 
+	 * @param count
+	 *            number of consecutive failures
+	 * @param previousInterval
+	 *            the previous backoff duration, or 0 after a success
+	 * @return the backoff duration
+	 */
+	protected long computeInterval(int count, long previousInterval) {
+		return computeInterval(count);
+	}
+
 	@Override
 	public Attempt begin() {
 		return new AttemptImpl(this, state.get());
@@ -104,22 +142,25 @@ public abstract class AbstractThreadSafeBackoff implements Backoff {
 	private State increment(State state) {
 		int count = state.count();
 		count = count < maxCount ? count + 1 : count;
-		return new State(count, System.currentTimeMillis()
-				+ computeInterval(count));
+		long interval = computeInterval(count, state.interval());
+		return new State(count, interval, clock.millis() + interval);
 	}
 
 	/**
-	 * The state of the backoff algorithm as a failure count and expiry time.
+	 * The state of the backoff algorithm as a failure count, the interval
+	 * computed for it, and expiry time.
 	 * 
 	 * @author David R. Bild
 	 * 
 	 */
 	private static class State {
 		private final int count;
+		private final long interval;
 		private final long expiry;
 
-		public State(int count, long expiry) {
+		public State(int count, long interval, long expiry) {
 			this.count = count;
+			this.interval = interval;
 			this.expiry = expiry;
 		}
 
@@ -127,6 +168,10 @@ public abstract class AbstractThreadSafeBackoff implements Backoff {
 			return count;
 		}
 
+		public long interval() {
+			return interval;
+		}
+
 		public long expiry() {
 			return expiry;
 		}
@@ -151,8 +196,10 @@ public abstract class AbstractThreadSafeBackoff implements Backoff {
 
 		@Override
 		public long delay() {
+			if (state == NO_BACKOFF)
+				return 0;
 			long expiry = state.expiry();
-			long current = System.currentTimeMillis();
+			long current = backoff.clock.millis();
 			return (expiry < current) ? 0 : expiry - current;
 		}
 
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.backoff;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A source of the current time for backoff computations. Only differences
+ * between readings are meaningful, so implementations may be monotonic clocks
+ * unaffected by adjustments to the wall clock.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public interface Clock {
+
+	/**
+	 * A monotonic clock backed by {@link System#nanoTime()}.
+	 */
+	public static final Clock MONOTONIC = new Clock() {
+		@Override
+		public long millis() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+		}
+	};
+
+	/**
+	 * A wall clock backed by {@link System#currentTimeMillis()}. Unlike
+	 * {@link #MONOTONIC}, its readings are comparable across restarts of the
+	 * process, so backoff state that outlives the process must use it.
+	 */
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long millis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Gets the current reading of the clock.
+	 * 
+	 * @return the current time in milliseconds, relative to an arbitrary
+	 *         origin
+	 */
+	public long millis();
+
+}
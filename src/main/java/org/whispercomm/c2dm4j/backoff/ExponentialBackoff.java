@@ -28,6 +28,8 @@ public class ExponentialBackoff extends AbstractThreadSafeBackoff {
 
 	private final float scale;
 
+	private final long maxInterval;
+
 	/**
 	 * Constructs a new backoff with a minimum backoff duration of 1 millisecond
 	 * and a maximum duration of about about 17.5 minutes.
@@ -48,13 +50,35 @@ public class ExponentialBackoff extends AbstractThreadSafeBackoff {
 	 *            maxCount in the preceding formula
 	 */
 	public ExponentialBackoff(float scale, int maxCount) {
-		super(maxCount);
+		this(scale, maxCount, Long.MAX_VALUE, Clock.MONOTONIC);
+	}
+
+	/**
+	 * Constructs a new backoff whose delay duration is computed as for
+	 * {@link #ExponentialBackoff(float, int)}, but capped at
+	 * {@code maxInterval}, and that reads the current time from the given
+	 * clock.
+	 * 
+	 * @param scale
+	 *            scale parameter for the preceding formula
+	 * @param maxCount
+	 *            maxCount in the preceding formula
+	 * @param maxInterval
+	 *            the maximum delay duration in milliseconds
+	 * @param clock
+	 *            the clock from which to read the current time
+	 */
+	public ExponentialBackoff(float scale, int maxCount, long maxInterval,
+			Clock clock) {
+		super(maxCount, clock);
 		this.scale = scale;
+		this.maxInterval = maxInterval;
 	}
 
 	@Override
 	protected long computeInterval(int count) {
-		return (long) Math.ceil(scale * (Math.pow(2, count) - 1.0));
+		return Math.min(maxInterval,
+				(long) Math.ceil(scale * (Math.pow(2, count) - 1.0)));
 	}
 
 	/**
@@ -67,6 +91,8 @@ public class ExponentialBackoff extends AbstractThreadSafeBackoff {
 	public static class Provider implements BackoffProvider {
 		private final float scale;
 		private final int maxCount;
+		private final long maxInterval;
+		private final Clock clock;
 
 		/**
 		 * Constructs a provider that builds backoff instances with a minimum
@@ -89,13 +115,35 @@ public class ExponentialBackoff extends AbstractThreadSafeBackoff {
 		 *            max count parameter for the preceding formula
 		 */
 		public Provider(float scale, int maxCount) {
+			this(scale, maxCount, Long.MAX_VALUE, Clock.MONOTONIC);
+		}
+
+		/**
+		 * Constructs a provider that builds backoff instances whose delay
+		 * durations are computed as for {@link #Provider(float, int)}, but
+		 * capped at {@code maxInterval}, and that read the current time from
+		 * the given clock.
+		 * 
+		 * @param scale
+		 *            scale parameter for the preceding formula
+		 * @param maxCount
+		 *            max count parameter for the preceding formula
+		 * @param maxInterval
+		 *            the maximum delay duration in milliseconds
+		 * @param clock
+		 *            the clock from which to read the current time
+		 */
+		public Provider(float scale, int maxCount, long maxInterval,
+				Clock clock) {
 			this.scale = scale;
 			this.maxCount = maxCount;
+			this.maxInterval = maxInterval;
+			this.clock = clock;
 		}
 
 		@Override
 		public Backoff createBackoff() {
-			return new ExponentialBackoff(scale, maxCount);
+			return new ExponentialBackoff(scale, maxCount, maxInterval, clock);
 		}
 	}
 
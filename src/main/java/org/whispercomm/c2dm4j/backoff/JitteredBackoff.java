@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.backoff;
+
+import java.util.Random;
+
+/**
+ * Implementation of {@code Backoff} in which the backoff duration grows
+ * exponentially in the consecutive failure count, like
+ * {@link ExponentialBackoff}, but is randomized so that clients that failed
+ * together do not retry together. The duration is capped at a maximum
+ * interval. With {@code base = min(maxInterval, scale * (2^count - 1))}, the
+ * strategies are
+ * <ul>
+ * <li>{@link Jitter#FULL}: uniform in {@code [0, base]},</li>
+ * <li>{@link Jitter#EQUAL}: {@code base / 2} plus uniform in
+ * {@code [0, base / 2]}, and</li>
+ * <li>{@link Jitter#DECORRELATED}: uniform in
+ * {@code [scale, 3 * previous]}, capped at {@code maxInterval}, where
+ * {@code previous} is the previous duration. The failure count is not used.</li>
+ * </ul>
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class JitteredBackoff extends AbstractThreadSafeBackoff {
+
+	/**
+	 * A strategy for randomizing the backoff duration.
+	 */
+	public static enum Jitter {
+		/**
+		 * Uniform between zero and the exponential duration. Spreads retries
+		 * the most.
+		 */
+		FULL,
+
+		/**
+		 * Half the exponential duration plus uniform up to the other half.
+		 * Guarantees a minimum wait.
+		 */
+		EQUAL,
+
+		/**
+		 * Uniform between the scale and three times the previous duration.
+		 */
+		DECORRELATED
+	}
+
+	/*
+	 * Large enough that the exponential duration reaches any cap
+	 */
+	private static final int MAX_COUNT = 62;
+
+	private final Jitter jitter;
+
+	private final float scale;
+
+	private final long maxInterval;
+
+	private final Random random;
+
+	/**
+	 * Constructs a new backoff using the monotonic clock.
+	 * 
+	 * @param jitter
+	 *            the jitter strategy
+	 * @param scale
+	 *            the scale parameter in milliseconds
+	 * @param maxInterval
+	 *            the maximum delay duration in milliseconds
+	 */
+	public JitteredBackoff(Jitter jitter, float scale, long maxInterval) {
+		this(jitter, scale, maxInterval, Clock.MONOTONIC, null);
+	}
+
+	/**
+	 * Constructs a new backoff.
+	 * 
+	 * @param jitter
+	 *            the jitter strategy
+	 * @param scale
+	 *            the scale parameter in milliseconds
+	 * @param maxInterval
+	 *            the maximum delay duration in milliseconds
+	 * @param clock
+	 *            the clock from which to read the current time
+	 * @param random
+	 *            the source of randomness, or {@code null} to use a new
+	 *            {@link Random} owned by this instance
+	 */
+	public JitteredBackoff(Jitter jitter, float scale, long maxInterval,
+			Clock clock, Random random) {
+		super(MAX_COUNT, clock);
+		if (scale <= 0)
+			throw new IllegalArgumentException("Scale must be positive.");
+		if (maxInterval < scale)
+			throw new IllegalArgumentException(
+					"Maximum interval must be at least the scale.");
+		this.jitter = jitter;
+		this.scale = scale;
+		this.maxInterval = maxInterval;
+		this.random = (random == null) ? new Random() : random;
+	}
+
+	@Override
+	protected long computeInterval(int count) {
+		return computeInterval(count, 0);
+	}
+
+	@Override
+	protected long computeInterval(int count, long previousInterval) {
+		switch (jitter) {
+		case FULL:
+			return uniform(0, base(count));
+		case EQUAL:
+			long base = base(count);
+			return base / 2 + uniform(0, base - base / 2);
+		case DECORRELATED:
+			long min = (long) Math.ceil(scale);
+			long grown = (previousInterval > Long.MAX_VALUE / 3) ? Long.MAX_VALUE
+					: 3 * previousInterval;
+			long max = Math.max(min, grown);
+			return Math.min(maxInterval, uniform(min, max));
+		default:
+			throw new AssertionError(jitter);
+		}
+	}
+
+	private long base(int count) {
+		return Math.min(maxInterval,
+				(long) Math.ceil(scale * (Math.pow(2, count) - 1.0)));
+	}
+
+	/**
+	 * Draws uniformly from {@code [min, max]}.
+	 */
+	private long uniform(long min, long max) {
+		long value = min + (long) (random.nextDouble() * ((double) max - min + 1));
+		return Math.min(max, value);
+	}
+
+	/**
+	 * Provider for constructing instances of {@code JitteredBackoff} at
+	 * runtime.
+	 * 
+	 * @author David R. Bild
+	 * 
+	 */
+	public static class Provider implements BackoffProvider {
+		private final Jitter jitter;
+		private final float scale;
+		private final long maxInterval;
+		private final Clock clock;
+
+		/**
+		 * Constructs a provider that builds backoff instances using the
+		 * monotonic clock.
+		 * 
+		 * @param jitter
+		 *            the jitter strategy
+		 * @param scale
+		 *            the scale parameter in milliseconds
+		 * @param maxInterval
+		 *            the maximum delay duration in milliseconds
+		 */
+		public Provider(Jitter jitter, float scale, long maxInterval) {
+			this(jitter, scale, maxInterval, Clock.MONOTONIC);
+		}
+
+		/**
+		 * Constructs a provider that builds backoff instances.
+		 * 
+		 * @param jitter
+		 *            the jitter strategy
+		 * @param scale
+		 *            the scale parameter in milliseconds
+		 * @param maxInterval
+		 *            the maximum delay duration in milliseconds
+		 * @param clock
+		 *            the clock from which to read the current time
+		 */
+		public Provider(Jitter jitter, float scale, long maxInterval,
+				Clock clock) {
+			this.jitter = jitter;
+			this.scale = scale;
+			this.maxInterval = maxInterval;
+			this.clock = clock;
+		}
+
+		@Override
+		public Backoff createBackoff() {
+			return new JitteredBackoff(jitter, scale, maxInterval, clock, null);
+		}
+	}
+
+}
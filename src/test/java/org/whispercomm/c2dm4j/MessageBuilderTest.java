@@ -15,6 +15,7 @@
  */
 package org.whispercomm.c2dm4j;
 
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -64,6 +65,11 @@ public class MessageBuilderTest {
 		assertThat(builder.delayWhileIdle(true), is(builder));
 	}
 
+	@Test
+	public void deadlineReturnsSameBuilder() {
+		assertThat(builder.deadline(new Date()), is(builder));
+	}
+
 	@Test
 	public void putReturnsSameBuilder() {
 		assertThat(builder.put(DATA_KEY, DATA_VALUE), is(builder));
@@ -94,6 +100,47 @@ public class MessageBuilderTest {
 		assertThat(message.getData(), is(data));
 	}
 
+	@Test
+	public void buildReturnsScheduledMessage() {
+		Message message = builder.registrationId(REGISTRATION_ID)
+				.collapseKey(COLLAPSE_KEY).build();
+		assertThat(message, is(instanceOf(ScheduledMessage.class)));
+	}
+
+	@Test
+	public void buildReturnsMessageContainingDeadline() {
+		ScheduledMessage message = (ScheduledMessage) builder
+				.registrationId(REGISTRATION_ID).collapseKey(COLLAPSE_KEY)
+				.deadline(new Date(1000L)).build();
+		assertThat(message.getDeadline(), is(1000L));
+	}
+
+	@Test
+	public void buildReturnsMessageContainingPriority() {
+		ScheduledMessage message = (ScheduledMessage) builder
+				.registrationId(REGISTRATION_ID).collapseKey(COLLAPSE_KEY)
+				.priority(5).build();
+		assertThat(message.getPriority(), is(5));
+	}
+
+	@Test
+	public void deadlineAndPriorityDefault() {
+		ScheduledMessage message = (ScheduledMessage) builder
+				.registrationId(REGISTRATION_ID).collapseKey(COLLAPSE_KEY)
+				.build();
+		assertThat(message.getDeadline(), is(ScheduledMessage.NO_DEADLINE));
+		assertThat(message.getPriority(),
+				is(ScheduledMessage.DEFAULT_PRIORITY));
+	}
+
+	@Test
+	public void nullDeadlineClearsDeadline() {
+		ScheduledMessage message = (ScheduledMessage) builder
+				.registrationId(REGISTRATION_ID).collapseKey(COLLAPSE_KEY)
+				.deadline(1000L).deadline((Date) null).build();
+		assertThat(message.getDeadline(), is(ScheduledMessage.NO_DEADLINE));
+	}
+
 	@Test(expected = IllegalStateException.class)
 	public void buildThrowsExceptionForMissingRegistrationId() {
 		builder.collapseKey(COLLAPSE_KEY);
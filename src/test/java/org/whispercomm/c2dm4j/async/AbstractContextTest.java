@@ -20,6 +20,7 @@ import static org.junit.Assert.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.whispercomm.c2dm4j.async.handler.ContextKey;
 
 /**
  * Abstract unit test for children of {@link AbstractContext}.
@@ -94,4 +95,34 @@ public abstract class AbstractContextTest<T, E extends Enum<E>> {
 		assertThat(cut.get("MyKey", String.class), is(value));
 	}
 
+	@Test
+	public void typedPutIsRetrievableViaTypedGet() {
+		ContextKey<String> key = ContextKey.create("MyKey", String.class);
+		cut.put(key, "My Value String");
+		assertThat(cut.get(key), is("My Value String"));
+	}
+
+	@Test
+	public void typedGetOfMissingKeyReturnsNull() {
+		ContextKey<String> key = ContextKey.create("MyKey", String.class);
+		assertThat(cut.get(key), is(nullValue()));
+	}
+
+	@Test
+	public void typedKeyIsRetrievableViaObjectGet() {
+		ContextKey<String> key = ContextKey.create("MyKey", String.class);
+		cut.put((Object) key, "My Value String");
+		assertThat(cut.get(key), is("My Value String"));
+		assertThat(cut.get((Object) key, String.class), is("My Value String"));
+	}
+
+	@Test
+	public void keysWithSameNameAreDistinct() {
+		ContextKey<String> first = ContextKey.create("MyKey", String.class);
+		ContextKey<String> second = ContextKey.create("MyKey", String.class);
+		cut.put(first, "first");
+		assertThat(cut.get(second), is(nullValue()));
+		assertThat(cut.get("MyKey"), is(nullValue()));
+	}
+
 }
@@ -15,26 +15,51 @@
  */
 package org.whispercomm.c2dm4j.async;
 
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
 
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.whispercomm.c2dm4j.C2dmManager;
 import org.whispercomm.c2dm4j.Message;
 import org.whispercomm.c2dm4j.MessageBuilder;
 import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.ResponseType;
 import org.whispercomm.c2dm4j.async.handler.AsyncHandlers;
 import org.whispercomm.c2dm4j.async.handler.AsyncHandlersFactory;
+import org.whispercomm.c2dm4j.async.handler.AsyncMessageFilter;
+import org.whispercomm.c2dm4j.async.handler.AsyncResponseHandler;
+import org.whispercomm.c2dm4j.async.handler.Context;
+import org.whispercomm.c2dm4j.async.handler.DeadLetter;
+import org.whispercomm.c2dm4j.async.handler.DuplicateFilter;
+import org.whispercomm.c2dm4j.async.handler.MemoryDeadLetterSink;
+import org.whispercomm.c2dm4j.async.handler.MessageDecision;
+import org.whispercomm.c2dm4j.async.handler.MessageFilter;
+import org.whispercomm.c2dm4j.async.handler.ResultDecision;
+import org.whispercomm.c2dm4j.async.handler.RetryLimit;
 import org.whispercomm.c2dm4j.async.handler.GlobalBackoffThrottle;
 import org.whispercomm.c2dm4j.backoff.ExponentialBackoff;
+import org.whispercomm.c2dm4j.backoff.TestableBackoff;
 import org.whispercomm.c2dm4j.impl.MockC2dmManager;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * Tests for (@link AsyncC2dmManager}.
  * 
@@ -87,4 +112,253 @@ public class AsyncC2dmManagerTest {
 		Future<Response> fut = cut.pushMessage(msg);
 		assertThat(fut.get().getResponseType(), is(ResponseType.Success));
 	}
+
+	@Test(timeout = 1000)
+	public void testExhaustedRetriesAreDeadLettered()
+			throws InterruptedException, ExecutionException {
+		new GlobalBackoffThrottle(new ExponentialBackoff(), handlers);
+		MemoryDeadLetterSink sink = new MemoryDeadLetterSink(10);
+		new RetryLimit(2, 0, sink, handlers);
+
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.Success);
+
+		Future<Response> fut = cut.pushMessage(msg);
+		assertThat(fut.get().getResponseType(), is(ResponseType.QuotaExceeded));
+		DeadLetter letter = sink.drain().get(0);
+		assertThat(letter.getMessage(), is(msg));
+		assertThat(letter.getAttempts(), is(2));
+	}
+
+	@Test(timeout = 1000)
+	public void testRetriesOnFailureWithParkingThrottle()
+			throws InterruptedException, ExecutionException {
+		new GlobalBackoffThrottle(new ExponentialBackoff(), executor, handlers);
+
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.Success);
+
+		Future<Response> fut = cut.pushMessage(msg);
+		assertThat(fut.get().getResponseType(), is(ResponseType.Success));
+	}
+
+	@Test(timeout = 1000)
+	public void testRetriesOnFailureDeadlineOrdered()
+			throws InterruptedException, ExecutionException {
+		cut = new AsyncC2dmManagerImpl(manager, handlers, executor, true);
+		new GlobalBackoffThrottle(new ExponentialBackoff(), handlers);
+
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.Success);
+
+		Future<Response> fut = cut.pushMessage(msg);
+		assertThat(fut.get().getResponseType(), is(ResponseType.Success));
+	}
+
+	@Test(timeout = 1000)
+	public void testAsyncEnqueueFiltersOffCallingThread()
+			throws InterruptedException, ExecutionException {
+		AsyncC2dmManager cut = AsyncC2dmManagerFactory.createAsyncEnqueue(
+				manager, handlers, executor);
+		final Thread caller = Thread.currentThread();
+		final AtomicBoolean filteredOnCaller = new AtomicBoolean();
+		handlers.appendEnqueueFilter(new MessageFilter() {
+			@Override
+			public void enqueueFilter(Context<Message, MessageDecision> context) {
+				if (Thread.currentThread() == caller)
+					filteredOnCaller.set(true);
+			}
+
+			@Override
+			public void dequeueFilter(Context<Message, MessageDecision> context) {
+			}
+		});
+		new GlobalBackoffThrottle(new ExponentialBackoff(), handlers);
+
+		manager.enqueue(ResponseType.QuotaExceeded);
+		manager.enqueue(ResponseType.Success);
+
+		Future<Response> fut = cut.pushMessage(msg);
+		assertThat(fut.get().getResponseType(), is(ResponseType.Success));
+		assertThat(filteredOnCaller.get(), is(false));
+	}
+
+	@Test(timeout = 1000)
+	public void testFinalEnqueueDecisionDoesNotSkipDequeueFilters()
+			throws InterruptedException, ExecutionException {
+		final AtomicBoolean dequeued = new AtomicBoolean();
+		handlers.appendEnqueueFilter(new MessageFilter() {
+			@Override
+			public void enqueueFilter(Context<Message, MessageDecision> context) {
+				context.setFinalDecision(MessageDecision.SEND);
+			}
+
+			@Override
+			public void dequeueFilter(Context<Message, MessageDecision> context) {
+			}
+		});
+		handlers.appendDequeueFilter(new MessageFilter() {
+			@Override
+			public void enqueueFilter(Context<Message, MessageDecision> context) {
+			}
+
+			@Override
+			public void dequeueFilter(Context<Message, MessageDecision> context) {
+				dequeued.set(true);
+			}
+		});
+
+		manager.enqueue(ResponseType.Success);
+		Future<Response> fut = cut.pushMessage(msg);
+		assertThat(fut.get().getResponseType(), is(ResponseType.Success));
+		assertThat(dequeued.get(), is(true));
+	}
+
+	@Test(timeout = 1000)
+	public void testCancelPendingStopsMessages() throws InterruptedException {
+		final SettableFuture<Void> gate = SettableFuture.create();
+		handlers.appendAsyncEnqueueFilter(new AsyncMessageFilter() {
+			@Override
+			public ListenableFuture<Void> enqueueFilterAsync(
+					Context<Message, MessageDecision> context) {
+				return gate;
+			}
+
+			@Override
+			public ListenableFuture<Void> dequeueFilterAsync(
+					Context<Message, MessageDecision> context) {
+				return Futures.immediateFuture(null);
+			}
+		});
+
+		// No responses are queued, so a send would fail the future
+		Future<Response> first = cut.pushMessage(msg);
+		Future<Response> second = cut.pushMessage(msg);
+		assertThat(cut.getPendingCount(msg.getRegistrationId()), is(2));
+		assertThat(cut.getPending(msg.getRegistrationId()).size(), is(2));
+
+		assertThat(cut.cancelPending(msg.getRegistrationId()), is(2));
+		gate.set(null);
+		assertThat(first.isCancelled(), is(true));
+		assertThat(second.isCancelled(), is(true));
+		assertThat(cut.getPendingCount(msg.getRegistrationId()), is(0));
+	}
+
+	@Test(timeout = 1000)
+	public void testPushMessageAtSendsLater() throws InterruptedException,
+			ExecutionException {
+		manager.enqueue(ResponseType.Success);
+		long start = System.currentTimeMillis();
+		Future<Response> fut = cut.pushMessageAt(msg, new Date(start + 100));
+		assertThat(cut.getPendingCount(msg.getRegistrationId()), is(1));
+		assertThat(fut.get().getResponseType(), is(ResponseType.Success));
+		assertThat(System.currentTimeMillis() - start,
+				is(greaterThanOrEqualTo(100L)));
+	}
+
+	@Test(timeout = 1000)
+	public void testCancelPendingStopsScheduledMessages()
+			throws InterruptedException {
+		// No responses are queued, so a send would fail the future
+		Future<Response> fut = cut.pushMessageAt(msg,
+				new Date(System.currentTimeMillis() + 50));
+		assertThat(cut.cancelPending(msg.getRegistrationId()), is(1));
+		Thread.sleep(100);
+		assertThat(fut.isCancelled(), is(true));
+	}
+
+	@Test(timeout = 1000)
+	public void testDuplicateFollowsOriginal() throws InterruptedException,
+			ExecutionException {
+		new DuplicateFilter(10000, 100, handlers);
+
+		// Only one response is queued, so a second send would fail
+		manager.enqueue(ResponseType.Success);
+		Future<Response> original = cut.pushMessage(msg);
+		Future<Response> duplicate = cut.pushMessage(msg);
+		// The same response while the original is in flight, an equivalent
+		// one once it has been delivered
+		assertThat(duplicate.get().getResponseType(), is(original.get()
+				.getResponseType()));
+		assertThat(duplicate.get().getMessage(), is(msg));
+	}
+
+	@Test(timeout = 1000)
+	public void testWaitsForAsyncResponseHandler()
+			throws InterruptedException, ExecutionException {
+		final SettableFuture<Void> pending = SettableFuture.create();
+		final CountDownLatch called = new CountDownLatch(1);
+		handlers.appendAsyncResponseHandler(ResponseType.Success,
+				new AsyncResponseHandler<Response>() {
+					@Override
+					public ListenableFuture<Void> handleResponseAsync(
+							Context<Response, ResultDecision> context) {
+						called.countDown();
+						return pending;
+					}
+				});
+
+		manager.enqueue(ResponseType.Success);
+		Future<Response> fut = cut.pushMessage(msg);
+		called.await();
+		assertThat(fut.isDone(), is(false));
+
+		pending.set(null);
+		assertThat(fut.get().getResponseType(), is(ResponseType.Success));
+	}
+
+	@Test(timeout = 1000)
+	public void testFailedAsyncResponseHandlerFailsMessage()
+			throws InterruptedException {
+		final IllegalStateException cause = new IllegalStateException();
+		handlers.appendAsyncResponseHandler(ResponseType.Success,
+				new AsyncResponseHandler<Response>() {
+					@Override
+					public ListenableFuture<Void> handleResponseAsync(
+							Context<Response, ResultDecision> context) {
+						SettableFuture<Void> failed = SettableFuture.create();
+						failed.setException(cause);
+						return failed;
+					}
+				});
+
+		manager.enqueue(ResponseType.Success);
+		Future<Response> fut = cut.pushMessage(msg);
+		try {
+			fut.get();
+			fail("Expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), is((Throwable) cause));
+		}
+	}
+	@Test(timeout = 1000)
+	public void testMessageCancelledWhileParkedIsNotSent() throws Exception {
+		C2dmManager c2dm = mock(C2dmManager.class);
+		cut = new AsyncC2dmManagerImpl(c2dm, handlers, executor);
+		TestableBackoff backoff = new TestableBackoff();
+		backoff.setDelay(100L);
+		GlobalBackoffThrottle throttle = new GlobalBackoffThrottle(backoff,
+				executor, handlers);
+
+		Future<Response> fut = cut.pushMessage(msg);
+		while (throttle.getParkedCount() == 0) {
+			Thread.sleep(1);
+		}
+		backoff.setDelay(0L);
+		assertThat(cut.cancelPending(msg.getRegistrationId()), is(1));
+
+		// Wait for the parking queue to release the message
+		while (throttle.getParkedCount() != 0) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(50);
+		verify(c2dm, never()).pushMessage(org.mockito.Matchers.any(Message.class));
+		assertThat(fut.isCancelled(), is(true));
+	}
+
 }
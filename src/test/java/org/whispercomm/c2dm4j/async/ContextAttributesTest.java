@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.whispercomm.c2dm4j.async.handler.ContextKey;
+
+/**
+ * Unit tests for {@link ContextAttributes}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class ContextAttributesTest {
+
+	@Test
+	public void keysCreatedAfterInstanceAreStored() {
+		ContextAttributes cut = ContextAttributes.obtain();
+		ContextKey<String> key = ContextKey.create("Late", String.class);
+		cut.put(key, "value");
+		assertThat((String) cut.get(key), is("value"));
+	}
+
+	@Test
+	public void recycledInstanceIsEmpty() {
+		ContextKey<String> key = ContextKey.create("MyKey", String.class);
+		ContextAttributes cut = ContextAttributes.obtain();
+		cut.put(key, "value");
+		cut.put("MyKey", "value");
+		cut.recycle();
+
+		assertThat(cut.get(key), is(nullValue()));
+		assertThat(cut.get("MyKey"), is(nullValue()));
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+
+/**
+ * Unit tests for {@link DeadlineReadyQueue}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DeadlineReadyQueueTest {
+
+	private List<Runnable> tasks;
+
+	private List<MessageContext> processed;
+
+	private DeadlineReadyQueue cut;
+
+	@Before
+	public void setup() {
+		tasks = new ArrayList<Runnable>();
+		processed = new ArrayList<MessageContext>();
+		cut = new DeadlineReadyQueue(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		}, new DeadlineReadyQueue.Processor() {
+			@Override
+			public void process(MessageContext context) {
+				processed.add(context);
+			}
+		});
+	}
+
+	private static MessageContext context(Long deadline) {
+		MessageBuilder builder = new MessageBuilder().registrationId("device")
+				.collapseKey("collapsekey");
+		if (deadline != null)
+			builder.deadline(new Date(deadline));
+		return TestContextFactory.createMessageContext(builder.build());
+	}
+
+	private void runTasks() {
+		for (Runnable task : tasks) {
+			task.run();
+		}
+		tasks.clear();
+	}
+
+	@Test
+	public void processesEarliestDeadlineFirst() {
+		MessageContext late = context(3000L);
+		MessageContext early = context(1000L);
+		MessageContext middle = context(2000L);
+		cut.add(late);
+		cut.add(early);
+		cut.add(middle);
+		assertThat(cut.size(), is(3));
+
+		runTasks();
+		assertThat(processed, contains(early, middle, late));
+		assertThat(cut.size(), is(0));
+	}
+
+	@Test
+	public void messagesWithoutDeadlineFollowInSubmissionOrder() {
+		MessageContext first = context(null);
+		MessageContext second = context(null);
+		MessageContext urgent = context(1000L);
+		cut.add(second);
+		cut.add(first);
+		cut.add(urgent);
+
+		runTasks();
+		assertThat(processed, contains(urgent, first, second));
+	}
+
+	@Test
+	public void otherMessagesHaveNoDeadline() {
+		MessageContext other = TestContextFactory.createMessageContext(mock(
+				Message.class));
+		MessageContext urgent = context(1000L);
+		cut.add(other);
+		cut.add(urgent);
+
+		runTasks();
+		assertThat(processed, contains(urgent, other));
+	}
+
+	@Test
+	public void retriesKeepOriginalSubmissionTime() {
+		MessageContext original = context(null);
+		MessageContext later = context(null);
+		cut.add(later);
+		cut.add(new MessageContext(original, original.unwrap()));
+
+		runTasks();
+		assertThat(processed.get(0).unwrap(), is(original.unwrap()));
+	}
+
+}
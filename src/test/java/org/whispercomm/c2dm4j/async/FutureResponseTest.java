@@ -22,6 +22,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.whispercomm.c2dm4j.Response;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -100,10 +102,45 @@ public class FutureResponseTest {
 		assertThat(cut.isDone(), is(true));
 	}
 
+	@Test
+	public void listenersRunOnResponse() {
+		Runnable listener = mock(Runnable.class);
+		cut.addListener(listener, MoreExecutors.sameThreadExecutor());
+		verify(listener, never()).run();
+		cut.setResponse(mock(Response.class));
+		verify(listener).run();
+	}
+
+	@Test
+	public void listenersRunOnCancelled() {
+		Runnable listener = mock(Runnable.class);
+		cut.addListener(listener, MoreExecutors.sameThreadExecutor());
+		cut.setCancelled();
+		verify(listener).run();
+	}
+
 	@Test
 	public void setIsDoneReturnsFalseIfCancelled() {
 		cut.setCancelled();
 		assertThat(cut.isDone(), is(false));
 	}
 
+	@Test
+	public void firstCompletionWins() throws InterruptedException,
+			ExecutionException {
+		Response response = mock(Response.class);
+		assertThat(cut.setResponse(response), is(true));
+		assertThat(cut.setThrowable(mock(Throwable.class)), is(false));
+		assertThat(cut.setCancelled(), is(false));
+		assertThat(cut.get(), is(response));
+	}
+
+	@Test
+	public void cancelledFutureIgnoresLaterResponse() {
+		assertThat(cut.setCancelled(), is(true));
+		assertThat(cut.setResponse(mock(Response.class)), is(false));
+		assertThat(cut.isCancelled(), is(true));
+		assertThat(cut.isComplete(), is(true));
+	}
+
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Unit tests for {@link PendingIndex}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class PendingIndexTest {
+
+	private PendingIndex cut;
+
+	@Before
+	public void setup() {
+		cut = new PendingIndex();
+	}
+
+	private MessageContext add(String registrationId) {
+		Message message = new MessageBuilder().registrationId(registrationId)
+				.collapseKey("collapsekey").build();
+		MessageContext context = TestContextFactory
+				.createMessageContext(message);
+		cut.add(context);
+		return context;
+	}
+
+	@Test
+	public void getReturnsPendingMessagesInOrder() {
+		MessageContext first = add("device");
+		MessageContext second = add("device");
+		add("other");
+		assertThat(cut.get("device"),
+				contains(first.unwrap(), second.unwrap()));
+		assertThat(cut.count("device"), is(2));
+		assertThat(cut.count("other"), is(1));
+	}
+
+	@Test
+	public void unknownDeviceHasNoPendingMessages() {
+		assertThat(cut.get("device").isEmpty(), is(true));
+		assertThat(cut.count("device"), is(0));
+		assertThat(cut.cancel("device"), is(0));
+	}
+
+	@Test
+	public void completedMessagesAreRemoved() {
+		MessageContext context = add("device");
+		context.getFutureResponse().setResponse(
+				TestResponseFactory.createResponse());
+		assertThat(cut.count("device"), is(0));
+		assertThat(cut.devices(), is(0));
+	}
+
+	@Test
+	public void cancelCancelsOnlyThatDevice() {
+		MessageContext first = add("device");
+		MessageContext second = add("device");
+		MessageContext other = add("other");
+		assertThat(cut.cancel("device"), is(2));
+		assertThat(first.getFutureResponse().isCancelled(), is(true));
+		assertThat(second.getFutureResponse().isCancelled(), is(true));
+		assertThat(other.getFutureResponse().isCancelled(), is(false));
+		assertThat(cut.count("device"), is(0));
+		assertThat(cut.devices(), is(1));
+	}
+
+	@Test
+	public void deviceCanBeReusedAfterEmptying() {
+		cut.cancel("device");
+		add("device").getFutureResponse().setCancelled();
+		add("device");
+		assertThat(cut.count("device"), is(1));
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.C2dmManager;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.async.handler.AsyncHandlers;
+import org.whispercomm.c2dm4j.async.handler.AsyncHandlersFactory;
+import org.whispercomm.c2dm4j.async.handler.Context;
+import org.whispercomm.c2dm4j.async.handler.MessageDecision;
+import org.whispercomm.c2dm4j.async.handler.MessageFilter;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Unit tests for {@link RingBufferAsyncC2dmManager}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class RingBufferAsyncC2dmManagerTest {
+
+	private static final C2dmManager SUCCESS = new C2dmManager() {
+		@Override
+		public Response pushMessage(Message msg) {
+			return TestResponseFactory.createResponse(ResponseType.Success,
+					msg);
+		}
+	};
+
+	private ScheduledExecutorService executor;
+
+	private AsyncHandlers handlers;
+
+	private RingBufferAsyncC2dmManager cut;
+
+	@Before
+	public void setup() {
+		executor = new ScheduledThreadPoolExecutor(2);
+		handlers = AsyncHandlersFactory.createEmpty();
+		cut = AsyncC2dmManagerFactory.createRingBuffer(SUCCESS, handlers,
+				executor, 8);
+	}
+
+	@After
+	public void teardown() {
+		cut.shutdown();
+		executor.shutdown();
+	}
+
+	private static Message message(int i) {
+		return new MessageBuilder().registrationId("device" + i)
+				.collapseKey("collapsekey").build();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void ringSizeMustBePowerOfTwo() {
+		AsyncC2dmManagerFactory.createRingBuffer(SUCCESS, handlers, executor,
+				6);
+	}
+
+	@Test(timeout = 1000)
+	public void messageIsSent() throws Exception {
+		Message msg = message(0);
+		assertThat(cut.pushMessage(msg).get().getMessage(), is(msg));
+	}
+
+	@Test(timeout = 5000)
+	public void manyMessagesFromManyProducersAreAllSent() throws Exception {
+		cut.shutdown();
+		cut = AsyncC2dmManagerFactory.createRingBuffer(SUCCESS, handlers,
+				executor, 8, true);
+		final int producers = 4;
+		final int perProducer = 1000;
+		final List<List<Future<Response>>> futures = new ArrayList<List<Future<Response>>>();
+		final CountDownLatch done = new CountDownLatch(producers);
+		ScheduledExecutorService pool = Executors
+				.newScheduledThreadPool(producers);
+		for (int p = 0; p < producers; ++p) {
+			final List<Future<Response>> list = new ArrayList<Future<Response>>();
+			futures.add(list);
+			final int base = p * perProducer;
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perProducer; ++i) {
+						list.add(cut.pushMessage(message(base + i)));
+					}
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		pool.shutdown();
+
+		for (int p = 0; p < producers; ++p) {
+			List<Future<Response>> list = futures.get(p);
+			assertThat(list.size(), is(perProducer));
+			for (int i = 0; i < perProducer; ++i) {
+				assertThat(list.get(i).get().getMessage(),
+						is(message(p * perProducer + i)));
+			}
+		}
+		assertThat(cut.backlog(), is(0L));
+	}
+
+	@Test(timeout = 1000)
+	public void enqueueFiltersRunOnConsumerThread() throws Exception {
+		final List<Thread> threads = new ArrayList<Thread>();
+		handlers.appendEnqueueFilter(new MessageFilter() {
+			@Override
+			public void enqueueFilter(Context<Message, MessageDecision> context) {
+				threads.add(Thread.currentThread());
+			}
+
+			@Override
+			public void dequeueFilter(Context<Message, MessageDecision> context) {
+			}
+		});
+		cut.pushMessage(message(0)).get();
+		assertThat(threads.size(), is(1));
+		assertThat(threads.get(0), is(not(Thread.currentThread())));
+	}
+
+	@Test(timeout = 1000)
+	public void pushToFullRingFails() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		handlers.appendEnqueueFilter(new MessageFilter() {
+			@Override
+			public void enqueueFilter(Context<Message, MessageDecision> context) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void dequeueFilter(Context<Message, MessageDecision> context) {
+			}
+		});
+		// Stall the consumer, then fill the ring
+		Future<Response> first = cut.pushMessage(message(0));
+		entered.await();
+		for (int i = 1; i <= 8; ++i) {
+			cut.pushMessage(message(i));
+		}
+
+		Future<Response> rejected = cut.pushMessage(message(9));
+		assertThat(rejected.isDone(), is(true));
+		try {
+			rejected.get();
+			fail("Expected the push to be rejected.");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(),
+					is(instanceOf(RejectedExecutionException.class)));
+		}
+
+		release.countDown();
+		assertThat(first.get().getMessage(), is(message(0)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void pushAfterShutdownIsRejected() {
+		cut.shutdown();
+		cut.pushMessage(message(0));
+	}
+
+}
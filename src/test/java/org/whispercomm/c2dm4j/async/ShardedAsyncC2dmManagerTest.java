@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.impl.MockC2dmManager;
+
+/**
+ * Unit tests for {@link ShardedAsyncC2dmManager}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class ShardedAsyncC2dmManagerTest {
+
+	private static final int SHARDS = 4;
+
+	private List<AsyncC2dmManager> shards;
+
+	private ShardedAsyncC2dmManager cut;
+
+	@Before
+	public void setup() {
+		shards = new ArrayList<AsyncC2dmManager>();
+		for (int i = 0; i < SHARDS; ++i) {
+			shards.add(mock(AsyncC2dmManager.class));
+		}
+		cut = new ShardedAsyncC2dmManager(shards);
+	}
+
+	private static Message createMessage(String registrationId) {
+		return new MessageBuilder().registrationId(registrationId)
+				.collapseKey("collapsekey").build();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorRejectsNoShards() {
+		new ShardedAsyncC2dmManager(Collections.<AsyncC2dmManager> emptyList());
+	}
+
+	@Test
+	public void sameDeviceAlwaysUsesSameShard() {
+		Message msg = createMessage("device");
+
+		cut.pushMessage(msg);
+		cut.pushMessage(msg);
+
+		AsyncC2dmManager shard = cut.shardFor("device");
+		verify(shard, times(2)).pushMessage(msg);
+		for (AsyncC2dmManager other : shards) {
+			if (other != shard)
+				verifyZeroInteractions(other);
+		}
+	}
+
+	@Test
+	public void pendingQueriesUseDeviceShard() {
+		AsyncC2dmManager shard = cut.shardFor("device");
+		when(shard.getPendingCount("device")).thenReturn(3);
+		when(shard.cancelPending("device")).thenReturn(3);
+
+		assertThat(cut.getPendingCount("device"), is(3));
+		assertThat(cut.cancelPending("device"), is(3));
+		cut.getPending("device");
+		verify(shard).getPending("device");
+	}
+
+	@Test
+	public void devicesAreSpreadAcrossAllShards() {
+		int[] counts = new int[SHARDS];
+		for (int i = 0; i < 1000; ++i) {
+			counts[ShardedAsyncC2dmManager.shardIndex("device" + i, SHARDS)]++;
+		}
+		for (int count : counts) {
+			assertThat(count, is(greaterThan(150)));
+		}
+	}
+
+	@Test(timeout = 1000)
+	public void factoryCreatesWorkingShards() throws InterruptedException,
+			ExecutionException {
+		MockC2dmManager manager = new MockC2dmManager();
+		List<ScheduledExecutorService> executors = new ArrayList<ScheduledExecutorService>();
+		for (int i = 0; i < SHARDS; ++i) {
+			executors.add(new ScheduledThreadPoolExecutor(1));
+		}
+		AsyncC2dmManager sharded = AsyncC2dmManagerFactory.createSharded(
+				manager, executors);
+
+		manager.enqueue(ResponseType.Success);
+		manager.enqueue(ResponseType.Success);
+		Future<Response> first = sharded.pushMessage(createMessage("a"));
+		Future<Response> second = sharded.pushMessage(createMessage("b"));
+		assertThat(first.get().getResponseType(), is(ResponseType.Success));
+		assertThat(second.get().getResponseType(), is(ResponseType.Success));
+	}
+
+}
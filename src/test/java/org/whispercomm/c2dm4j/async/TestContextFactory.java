@@ -18,8 +18,11 @@ package org.whispercomm.c2dm4j.async;
 import org.whispercomm.c2dm4j.Message;
 import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.TestMessageFactory;
+import org.whispercomm.c2dm4j.async.handler.Context;
 import org.whispercomm.c2dm4j.impl.TestResponseFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Factory to create {@link MessageContext}, {@link ResponseContext}, and
  * {@link ThrowableContext} objects for test.
@@ -54,4 +57,24 @@ public class TestContextFactory {
 		return new ThrowableContext(new FutureResponse(), t);
 	}
 
+	public static void complete(Context<?, ?> context, Response response) {
+		((AbstractContext<?, ?>) context).getFutureResponse().setResponse(
+				response);
+	}
+
+	public static void cancel(Context<?, ?> context) {
+		((AbstractContext<?, ?>) context).getFutureResponse().setCancelled();
+	}
+
+	public static ListenableFuture<Response> getFollowed(
+			Context<Message, ?> context) {
+		return ((MessageContext) context).getFollowed();
+	}
+
+	public static void addAttempts(Context<?, ?> context, int attempts) {
+		for (int i = 0; i < attempts; ++i) {
+			((AbstractContext<?, ?>) context).addAttempt();
+		}
+	}
+
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Unit tests for {@link TimingWheel}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class TimingWheelTest {
+
+	private ScheduledExecutorService timer;
+
+	private List<MessageContext> released;
+
+	private TimingWheel cut;
+
+	@Before
+	public void setup() {
+		timer = mock(ScheduledExecutorService.class);
+		released = new ArrayList<MessageContext>();
+		cut = new TimingWheel(timer, 1, 4, new TimingWheel.Releaser() {
+			@Override
+			public void release(MessageContext context) {
+				released.add(context);
+			}
+		});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorRejectsWheelSizeNotPowerOfTwo() {
+		new TimingWheel(timer, 1, 3, null);
+	}
+
+	@Test
+	public void firstScheduleStartsTicking() {
+		cut.schedule(TestContextFactory.createMessageContext(), 10);
+		cut.schedule(TestContextFactory.createMessageContext(), 10);
+		verify(timer).scheduleAtFixedRate(org.mockito.Matchers.any(Runnable.class),
+				eq(TimeUnit.MILLISECONDS.toNanos(1)),
+				eq(TimeUnit.MILLISECONDS.toNanos(1)),
+				eq(TimeUnit.NANOSECONDS));
+	}
+
+	@Test
+	public void releasesOnlyDueMessages() throws InterruptedException {
+		MessageContext soon = TestContextFactory.createMessageContext();
+		MessageContext later = TestContextFactory.createMessageContext();
+		cut.schedule(soon, 5);
+		cut.schedule(later, 60000);
+		assertThat(cut.size(), is(2));
+
+		Thread.sleep(20);
+		cut.advance();
+		assertThat(released, contains(soon));
+		assertThat(cut.size(), is(1));
+	}
+
+	@Test
+	public void keepsMessagesDueInLaterRevolutions()
+			throws InterruptedException {
+		// The wheel spans 4 ms, so this message wraps around many times
+		MessageContext context = TestContextFactory.createMessageContext();
+		cut.schedule(context, 30);
+		for (int i = 0; i < 5; ++i) {
+			Thread.sleep(2);
+			cut.advance();
+		}
+		assertThat(released.isEmpty(), is(true));
+
+		Thread.sleep(40);
+		cut.advance();
+		assertThat(released, contains(context));
+	}
+
+	@Test
+	public void neverReleasesEarly() {
+		cut.schedule(TestContextFactory.createMessageContext(), 1000);
+		cut.advance();
+		assertThat(released.isEmpty(), is(true));
+	}
+
+	@Test
+	public void cancelledMessagesAreUnlinked() throws InterruptedException {
+		MessageContext cancelled = TestContextFactory.createMessageContext();
+		MessageContext kept = TestContextFactory.createMessageContext();
+		cut.schedule(cancelled, 5);
+		cut.schedule(kept, 5);
+		cut.advance();
+
+		TestContextFactory.cancel(cancelled);
+		assertThat(cut.size(), is(1));
+
+		Thread.sleep(20);
+		cut.advance();
+		assertThat(released, contains(kept));
+		assertThat(cut.size(), is(0));
+	}
+
+	@Test
+	public void messagesCancelledBeforeTickAreDropped()
+			throws InterruptedException {
+		MessageContext context = TestContextFactory.createMessageContext();
+		cut.schedule(context, 5);
+		TestContextFactory.cancel(context);
+		assertThat(cut.size(), is(0));
+
+		Thread.sleep(20);
+		cut.advance();
+		assertThat(released.isEmpty(), is(true));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void idleWheelStopsTicking() throws InterruptedException {
+		ScheduledFuture ticking = mock(ScheduledFuture.class);
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		when(
+				timer.scheduleAtFixedRate(task.capture(),
+						org.mockito.Matchers.anyLong(),
+						org.mockito.Matchers.anyLong(),
+						org.mockito.Matchers.any(TimeUnit.class))).thenReturn(
+				ticking);
+
+		cut.schedule(TestContextFactory.createMessageContext(), 5);
+		task.getValue().run();
+		verify(ticking, never()).cancel(org.mockito.Matchers.anyBoolean());
+
+		Thread.sleep(20);
+		task.getValue().run();
+		assertThat(released.size(), is(1));
+		verify(ticking).cancel(false);
+
+		// Scheduling again restarts it
+		cut.schedule(TestContextFactory.createMessageContext(), 5);
+		verify(timer, times(2)).scheduleAtFixedRate(
+				org.mockito.Matchers.any(Runnable.class),
+				org.mockito.Matchers.anyLong(),
+				org.mockito.Matchers.anyLong(),
+				org.mockito.Matchers.any(TimeUnit.class));
+	}
+
+}
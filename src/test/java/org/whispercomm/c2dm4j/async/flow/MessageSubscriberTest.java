@@ -0,0 +1,209 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.flow;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.TestMessageFactory;
+import org.whispercomm.c2dm4j.async.AsyncC2dmManager;
+import org.whispercomm.c2dm4j.async.flow.Flow.Subscriber;
+import org.whispercomm.c2dm4j.async.flow.Flow.Subscription;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Unit tests for {@link MessageSubscriber}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class MessageSubscriberTest {
+
+	private List<SettableFuture<Response>> futures;
+
+	private Subscription upstream;
+
+	private MessageSubscriber cut;
+
+	@Before
+	public void setup() {
+		futures = new ArrayList<SettableFuture<Response>>();
+		AsyncC2dmManager manager = new AsyncC2dmManager() {
+			@Override
+			public SettableFuture<Response> pushMessage(Message msg) {
+				SettableFuture<Response> future = SettableFuture.create();
+				futures.add(future);
+				return future;
+			}
+
+			@Override
+			public SettableFuture<Response> pushMessageAt(Message msg,
+					Date time) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public List<Message> getPending(String registrationId) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public int getPendingCount(String registrationId) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public int cancelPending(String registrationId) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		upstream = mock(Subscription.class);
+		cut = new MessageSubscriber(manager, 2);
+	}
+
+	private void complete(int i) {
+		futures.get(i).set(
+				TestResponseFactory.createResponse(ResponseType.Success,
+						TestMessageFactory.create()));
+	}
+
+	@Test
+	public void initiallyRequestsMaxInFlight() {
+		cut.onSubscribe(upstream);
+		verify(upstream).request(2);
+	}
+
+	@Test
+	public void requestsMoreAsMessagesComplete() {
+		cut.onSubscribe(upstream);
+		cut.onNext(TestMessageFactory.create());
+		cut.onNext(TestMessageFactory.create());
+		assertThat(cut.inFlight(), is(2));
+
+		complete(0);
+		verify(upstream).request(1);
+		assertThat(cut.inFlight(), is(1));
+	}
+
+	@Test
+	public void secondUpstreamIsCancelled() {
+		cut.onSubscribe(upstream);
+		Subscription second = mock(Subscription.class);
+		cut.onSubscribe(second);
+		verify(second).cancel();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void resultsWaitForDownstreamDemand() {
+		Subscriber<Future<Response>> downstream = mock(Subscriber.class);
+		cut.subscribe(downstream);
+		Subscription results = captureSubscription(downstream);
+
+		cut.onSubscribe(upstream);
+		cut.onNext(TestMessageFactory.create());
+		complete(0);
+		verify(downstream, never()).onNext(org.mockito.Matchers.any(Future.class));
+		verify(upstream, never()).request(1);
+
+		results.request(1);
+		verify(downstream).onNext(futures.get(0));
+		verify(upstream).request(1);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void completesAfterOutstandingMessages() {
+		Subscriber<Future<Response>> downstream = mock(Subscriber.class);
+		cut.subscribe(downstream);
+		captureSubscription(downstream).request(Long.MAX_VALUE);
+
+		cut.onSubscribe(upstream);
+		cut.onNext(TestMessageFactory.create());
+		cut.onComplete();
+		verify(downstream, never()).onComplete();
+
+		complete(0);
+		verify(downstream).onNext(futures.get(0));
+		verify(downstream).onComplete();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void cancelCancelsUpstream() {
+		Subscriber<Future<Response>> downstream = mock(Subscriber.class);
+		cut.subscribe(downstream);
+		cut.onSubscribe(upstream);
+
+		captureSubscription(downstream).cancel();
+		verify(upstream).cancel();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void rejectedSubscriberCannotCancelAcceptedOne() {
+		Subscriber<Future<Response>> first = mock(Subscriber.class);
+		cut.subscribe(first);
+		cut.onSubscribe(upstream);
+
+		Subscriber<Future<Response>> second = mock(Subscriber.class);
+		cut.subscribe(second);
+		verify(second).onError(org.mockito.Matchers.any(IllegalStateException.class));
+		Subscription rejected = captureSubscription(second);
+		rejected.request(0);
+		rejected.cancel();
+		verify(upstream, never()).cancel();
+		verify(first, never()).onError(org.mockito.Matchers.any(Throwable.class));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void nonPositiveRequestSignalsErrorOnce() {
+		Subscriber<Future<Response>> downstream = mock(Subscriber.class);
+		cut.subscribe(downstream);
+		cut.onSubscribe(upstream);
+
+		captureSubscription(downstream).request(0);
+		verify(upstream).cancel();
+		verify(downstream).onError(org.mockito.Matchers.any(IllegalArgumentException.class));
+
+		cut.onComplete();
+		verify(downstream, never()).onComplete();
+	}
+
+	private static Subscription captureSubscription(
+			Subscriber<Future<Response>> subscriber) {
+		ArgumentCaptor<Subscription> captor = ArgumentCaptor
+				.forClass(Subscription.class);
+		verify(subscriber).onSubscribe(captor.capture());
+		return captor.getValue();
+	}
+
+}
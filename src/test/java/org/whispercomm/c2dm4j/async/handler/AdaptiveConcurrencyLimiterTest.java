@@ -0,0 +1,238 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.TestMessageFactory;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Unit tests for {@link AdaptiveConcurrencyLimiter}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+	private AdaptiveConcurrencyLimiter cut;
+
+	@Before
+	public void setup() {
+		cut = new AdaptiveConcurrencyLimiter(4, 1, 100);
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new AdaptiveConcurrencyLimiter(handlers);
+
+		verify(handlers).appendAsyncEnqueueFilter(cut);
+		verify(handlers).appendAsyncDequeueFilter(cut);
+		for (ResponseType type : ResponseType.values()) {
+			verify(handlers).appendResponseHandler(type, cut);
+		}
+		verify(handlers).appendThrowableHandler(IOException.class, cut);
+	}
+
+	private Context<Message, MessageDecision> dequeue() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		assertThat(cut.dequeueFilterAsync(context).isDone(), is(true));
+		return context;
+	}
+
+	private Context<Response, ResultDecision> respond(
+			Context<Message, MessageDecision> messageContext, ResponseType type) {
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(type,
+						TestMessageFactory.create()));
+		context.put(AdaptiveConcurrencyLimiter.CONTEXT_KEY, messageContext
+				.get(AdaptiveConcurrencyLimiter.CONTEXT_KEY));
+		cut.handleResponse(context);
+		return context;
+	}
+
+	@Test
+	public void dequeueAcquiresSlotsUpToLimit() {
+		for (int i = 0; i < 4; ++i) {
+			assertThat(dequeue().getDelay(), is(0L));
+		}
+		assertThat(cut.getInFlight(), is(4));
+
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		assertThat(cut.dequeueFilterAsync(context).isDone(), is(false));
+		assertThat(cut.getInFlight(), is(4));
+		assertThat(cut.getWaiting(), is(1));
+	}
+
+	@Test
+	public void freedSlotIsHandedToWaitersInOrder() {
+		Context<Message, MessageDecision> first = dequeue();
+		Context<Message, MessageDecision> second = dequeue();
+		for (int i = 0; i < 2; ++i) {
+			dequeue();
+		}
+		Context<Message, MessageDecision> waiting1 = TestContextFactory
+				.createMessageContext();
+		ListenableFuture<Void> future1 = cut.dequeueFilterAsync(waiting1);
+		Context<Message, MessageDecision> waiting2 = TestContextFactory
+				.createMessageContext();
+		ListenableFuture<Void> future2 = cut.dequeueFilterAsync(waiting2);
+
+		respond(first, ResponseType.Success);
+		assertThat(future1.isDone(), is(true));
+		assertThat(future2.isDone(), is(false));
+		assertThat(waiting1.get(AdaptiveConcurrencyLimiter.CONTEXT_KEY),
+				is(notNullValue()));
+		assertThat(cut.getInFlight(), is(4));
+
+		respond(second, ResponseType.Success);
+		assertThat(future2.isDone(), is(true));
+		assertThat(cut.getWaiting(), is(0));
+	}
+
+	@Test
+	public void newMessagesDoNotOvertakeWaiters() {
+		Context<Message, MessageDecision> first = dequeue();
+		for (int i = 0; i < 3; ++i) {
+			dequeue();
+		}
+		ListenableFuture<Void> waiter = cut.dequeueFilterAsync(TestContextFactory
+				.createMessageContext());
+		TestContextFactory.cancel(first);
+		// The freed slot went to the waiter, not a newcomer
+		assertThat(waiter.isDone(), is(true));
+		assertThat(cut.dequeueFilterAsync(
+				TestContextFactory.createMessageContext()).isDone(), is(false));
+	}
+
+	@Test
+	public void dequeueIgnoresDelayedMessages() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		context.setDelay(100L);
+		assertThat(cut.dequeueFilterAsync(context).isDone(), is(true));
+		assertThat(cut.getInFlight(), is(0));
+		assertThat(context.getDelay(), is(100L));
+	}
+
+	@Test
+	public void responseReleasesSlot() {
+		Context<Message, MessageDecision> context = dequeue();
+		respond(context, ResponseType.Success);
+		assertThat(cut.getInFlight(), is(0));
+	}
+
+	@Test
+	public void enqueueReleasesSlot() {
+		Context<Message, MessageDecision> context = dequeue();
+		cut.enqueueFilterAsync(context);
+		assertThat(cut.getInFlight(), is(0));
+		cut.enqueueFilterAsync(context);
+		assertThat(cut.getInFlight(), is(0));
+	}
+
+	@Test
+	public void throwableReleasesSlotAndCutsLimit() {
+		Context<Message, MessageDecision> messageContext = dequeue();
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(new IOException());
+		context.put(AdaptiveConcurrencyLimiter.CONTEXT_KEY,
+				messageContext.get(AdaptiveConcurrencyLimiter.CONTEXT_KEY));
+		cut.handleThrowable(context);
+		assertThat(cut.getInFlight(), is(0));
+		assertThat(cut.getLimit(), is(2));
+	}
+
+	@Test
+	public void throttlingCutsLimit() {
+		respond(dequeue(), ResponseType.QuotaExceeded);
+		assertThat(cut.getLimit(), is(2));
+		respond(dequeue(), ResponseType.ServiceUnavailable);
+		assertThat(cut.getLimit(), is(1));
+		respond(dequeue(), ResponseType.ServiceUnavailable);
+		assertThat(cut.getLimit(), is(1));
+	}
+
+	@Test
+	public void throttlingCutsLimitOncePerRoundTrip() {
+		Context<Message, MessageDecision> first = dequeue();
+		Context<Message, MessageDecision> second = dequeue();
+		Context<Message, MessageDecision> third = dequeue();
+		respond(first, ResponseType.QuotaExceeded);
+		respond(second, ResponseType.ServiceUnavailable);
+		respond(third, ResponseType.QuotaExceeded);
+		assertThat(cut.getLimit(), is(2));
+
+		// A request sent after the cut sees the new limit
+		respond(dequeue(), ResponseType.QuotaExceeded);
+		assertThat(cut.getLimit(), is(1));
+	}
+
+	@Test
+	public void saturatedSuccessesRaiseLimit() {
+		for (int round = 0; round < 20; ++round) {
+			Context<?, ?>[] contexts = new Context<?, ?>[cut.getLimit()];
+			for (int i = 0; i < contexts.length; ++i) {
+				contexts[i] = dequeue();
+			}
+			for (Context<?, ?> context : contexts) {
+				@SuppressWarnings("unchecked")
+				Context<Message, MessageDecision> messageContext = (Context<Message, MessageDecision>) context;
+				respond(messageContext, ResponseType.Success);
+			}
+		}
+		assertThat(cut.getLimit(), is(greaterThan(4)));
+	}
+
+	@Test
+	public void idleSuccessesDoNotRaiseLimit() {
+		for (int i = 0; i < 100; ++i) {
+			respond(dequeue(), ResponseType.Success);
+		}
+		// A scheduling hiccup may look like rising latency and cut the limit
+		assertThat(cut.getLimit(), is(lessThanOrEqualTo(4)));
+	}
+
+	@Test
+	public void completionReleasesSlotWithoutResponse() {
+		Context<Message, MessageDecision> context = dequeue();
+		TestContextFactory.complete(context, TestResponseFactory
+				.createResponse(ResponseType.Success,
+						TestMessageFactory.create()));
+		assertThat(cut.getInFlight(), is(0));
+
+		// A late response does not release the slot again
+		dequeue();
+		respond(context, ResponseType.Success);
+		assertThat(cut.getInFlight(), is(1));
+	}
+
+}
@@ -17,7 +17,17 @@ package org.whispercomm.c2dm4j.async.handler;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -28,6 +38,9 @@ import org.whispercomm.c2dm4j.TestMessageFactory;
 import org.whispercomm.c2dm4j.async.TestContextFactory;
 import org.whispercomm.c2dm4j.impl.TestResponseFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * Unit tests for {@link AsyncHandlersImpl}.
  * 
@@ -91,7 +104,7 @@ public class AsyncHandlersImplTest {
 
 	@SuppressWarnings("unchecked")
 	@Test
-	public void onlyMatchingThrowableHandlersCalled() {
+	public void throwableHandlersCalledForTypeAndSubtypes() {
 		ThrowableHandler<Throwable> handlerException = mock(ThrowableHandler.class);
 		ThrowableHandler<Throwable> handlerRuntime = mock(ThrowableHandler.class);
 		cut.appendThrowableHandler(Exception.class, handlerException);
@@ -108,6 +121,303 @@ public class AsyncHandlersImplTest {
 
 		cut.handleThrowable(runtimeContext);
 		verify(handlerRuntime).handleThrowable(runtimeContext);
-		verify(handlerException, never()).handleThrowable(runtimeContext);
+		verify(handlerException).handleThrowable(runtimeContext);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void throwableHandlerRegisteredForSeveralTypesCalledOnce() {
+		ThrowableHandler<Throwable> handler = mock(ThrowableHandler.class);
+		cut.appendThrowableHandler(Exception.class, handler);
+		cut.appendThrowableHandler(RuntimeException.class, handler);
+
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(new RuntimeException("runtimeexception"));
+
+		cut.handleThrowable(context);
+		verify(handler, times(1)).handleThrowable(context);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void throwableHandlerAppendedAfterDispatchIsCalled() {
+		ThrowableHandler<Throwable> first = mock(ThrowableHandler.class);
+		ThrowableHandler<Throwable> second = mock(ThrowableHandler.class);
+		cut.appendThrowableHandler(Exception.class, first);
+
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(new RuntimeException("runtimeexception"));
+		cut.handleThrowable(context);
+
+		cut.appendThrowableHandler(RuntimeException.class, second);
+		cut.handleThrowable(context);
+		verify(first, times(2)).handleThrowable(context);
+		verify(second, times(1)).handleThrowable(context);
+	}
+
+	@Test
+	public void synchronousChainIsAlreadyComplete() {
+		cut.appendEnqueueFilter(mock(MessageFilter.class));
+		assertThat(
+				cut.filterMessageEnqueue(
+						TestContextFactory.createMessageContext()).isDone(),
+				is(true));
+	}
+
+	@Test
+	public void filtersAfterPendingAsyncFilterWaitForIt() {
+		SettableFuture<Void> pending = SettableFuture.create();
+		AsyncMessageFilter async = mock(AsyncMessageFilter.class);
+		MessageFilter after = mock(MessageFilter.class);
+		cut.appendAsyncDequeueFilter(async);
+		cut.appendDequeueFilter(after);
+
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		when(async.dequeueFilterAsync(context)).thenReturn(pending);
+
+		ListenableFuture<Void> result = cut.filterMessageDequeue(context);
+		assertThat(result.isDone(), is(false));
+		verify(after, never()).dequeueFilter(context);
+
+		pending.set(null);
+		verify(after).dequeueFilter(context);
+		assertThat(result.isDone(), is(true));
+	}
+
+	@Test(expected = ExecutionException.class)
+	public void failedAsyncFilterFailsChain() throws Exception {
+		SettableFuture<Void> pending = SettableFuture.create();
+		AsyncMessageFilter async = mock(AsyncMessageFilter.class);
+		MessageFilter after = mock(MessageFilter.class);
+		cut.appendAsyncEnqueueFilter(async);
+		cut.appendEnqueueFilter(after);
+
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		when(async.enqueueFilterAsync(context)).thenReturn(pending);
+
+		ListenableFuture<Void> result = cut.filterMessageEnqueue(context);
+		pending.setException(new RuntimeException("datastore unavailable"));
+		verify(after, never()).enqueueFilter(context);
+		result.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void asyncResponseHandlerCalledForType() {
+		AsyncResponseHandler<Response> handler = mock(AsyncResponseHandler.class);
+		cut.appendAsyncResponseHandler(ResponseType.NotRegistered, handler);
+
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.NotRegistered, TestMessageFactory.create()));
+		SettableFuture<Void> pending = SettableFuture.create();
+		when(handler.handleResponseAsync(context)).thenReturn(pending);
+
+		ListenableFuture<Void> result = cut.handleResponse(context);
+		verify(handler).handleResponseAsync(context);
+		assertThat(result.isDone(), is(false));
+		pending.set(null);
+		assertThat(result.isDone(), is(true));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void finalDecisionRunsRemainingResponseHandlers() {
+		ResponseHandler<Response> after = mock(ResponseHandler.class);
+		cut.appendResponseHandler(ResponseType.Success,
+				new ResponseHandler<Response>() {
+					@Override
+					public void handleResponse(
+							Context<Response, ResultDecision> context) {
+						context.setFinalDecision(ResultDecision.RETURN);
+					}
+				});
+		cut.appendResponseHandler(ResponseType.Success, after);
+
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.Success, TestMessageFactory.create()));
+		assertThat(cut.handleResponse(context).isDone(), is(true));
+		assertThat(context.isDecisionFinal(), is(true));
+		verify(after).handleResponse(context);
+	}
+
+	@Test
+	public void finalDecisionIsFrozen() {
+		cut.appendEnqueueFilter(new MessageFilter() {
+			@Override
+			public void enqueueFilter(Context<Message, MessageDecision> context) {
+				context.setFinalDecision(MessageDecision.CANCEL);
+			}
+
+			@Override
+			public void dequeueFilter(Context<Message, MessageDecision> context) {
+			}
+		});
+		cut.appendEnqueueFilter(new MessageFilter() {
+			@Override
+			public void enqueueFilter(Context<Message, MessageDecision> context) {
+				context.setDecision(MessageDecision.SEND);
+				context.setFinalDecision(MessageDecision.SEND);
+				context.follow(SettableFuture.<Response> create());
+			}
+
+			@Override
+			public void dequeueFilter(Context<Message, MessageDecision> context) {
+			}
+		});
+
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		cut.filterMessageEnqueue(context);
+		assertThat(context.getDecision(), is(MessageDecision.CANCEL));
+		assertThat(TestContextFactory.getFollowed(context), is(nullValue()));
+	}
+
+	@Test
+	public void finalDecisionDuringPendingAsyncFilterRunsRemainingFilters() {
+		final SettableFuture<Void> pending = SettableFuture.create();
+		MessageFilter after = mock(MessageFilter.class);
+		cut.appendAsyncEnqueueFilter(new AsyncMessageFilter() {
+			@Override
+			public ListenableFuture<Void> enqueueFilterAsync(
+					Context<Message, MessageDecision> context) {
+				context.setFinalDecision(MessageDecision.CANCEL);
+				return pending;
+			}
+
+			@Override
+			public ListenableFuture<Void> dequeueFilterAsync(
+					Context<Message, MessageDecision> context) {
+				return pending;
+			}
+		});
+		cut.appendEnqueueFilter(after);
+
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		ListenableFuture<Void> result = cut.filterMessageEnqueue(context);
+		verify(after, never()).enqueueFilter(context);
+		pending.set(null);
+		assertThat(result.isDone(), is(true));
+		verify(after).enqueueFilter(context);
+		assertThat(context.getDecision(), is(MessageDecision.CANCEL));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void finalDecisionRunsRemainingThrowableHandlers() {
+		ThrowableHandler<Throwable> after = mock(ThrowableHandler.class);
+		cut.appendThrowableHandler(Exception.class,
+				new ThrowableHandler<Throwable>() {
+					@Override
+					public void handleThrowable(
+							Context<Throwable, ResultDecision> context) {
+						context.setFinalDecision(ResultDecision.RETRY);
+					}
+				});
+		cut.appendThrowableHandler(Exception.class, after);
+
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(new Exception("exception"));
+		cut.handleThrowable(context);
+		assertThat(context.getDecision(), is(ResultDecision.RETRY));
+		verify(after).handleThrowable(context);
+	}
+
+	@Test
+	public void finalDecisionStillReleasesLimiterPermit() {
+		cut.appendResponseHandler(ResponseType.Success,
+				new ResponseHandler<Response>() {
+					@Override
+					public void handleResponse(
+							Context<Response, ResultDecision> context) {
+						context.setFinalDecision(ResultDecision.RETURN);
+					}
+				});
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4,
+				1, 100, cut);
+
+		Context<Message, MessageDecision> messageContext = TestContextFactory
+				.createMessageContext();
+		cut.filterMessageDequeue(messageContext);
+		assertThat(limiter.getInFlight(), is(1));
+
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.Success, TestMessageFactory.create()));
+		context.put(AdaptiveConcurrencyLimiter.CONTEXT_KEY,
+				messageContext.get(AdaptiveConcurrencyLimiter.CONTEXT_KEY));
+		cut.handleResponse(context);
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+		assertThat(limiter.getInFlight(), is(0));
+	}
+
+	@Test
+	public void filtersRunInPriorityThenRegistrationOrder() {
+		List<String> order = new ArrayList<String>();
+		cut.appendDequeueFilter(new RecordingFilter(order, "default"));
+		cut.appendDequeueFilter(new PrioritizedFilter(order, "late", 10));
+		cut.appendDequeueFilter(new PrioritizedFilter(order, "early", -10));
+		cut.appendDequeueFilter(new PrioritizedFilter(order, "default2", 0));
+
+		cut.filterMessageDequeue(TestContextFactory.createMessageContext());
+		assertThat(order, contains("early", "default", "default2", "late"));
+	}
+
+	@Test
+	public void throwableHandlersRunInPriorityOrder() {
+		List<String> order = new ArrayList<String>();
+		cut.appendThrowableHandler(Exception.class, new PrioritizedFilter(
+				order, "late", 5));
+		cut.appendThrowableHandler(RuntimeException.class,
+				new PrioritizedFilter(order, "early", -5));
+
+		cut.handleThrowable(TestContextFactory
+				.createThrowableContext(new RuntimeException("runtimeexception")));
+		assertThat(order, contains("early", "late"));
+	}
+
+	private static class RecordingFilter implements MessageFilter,
+			ThrowableHandler<Throwable> {
+		private final List<String> order;
+		private final String name;
+
+		RecordingFilter(List<String> order, String name) {
+			this.order = order;
+			this.name = name;
+		}
+
+		@Override
+		public void enqueueFilter(Context<Message, MessageDecision> context) {
+			order.add(name);
+		}
+
+		@Override
+		public void dequeueFilter(Context<Message, MessageDecision> context) {
+			order.add(name);
+		}
+
+		@Override
+		public void handleThrowable(Context<Throwable, ResultDecision> context) {
+			order.add(name);
+		}
+	}
+
+	private static class PrioritizedFilter extends RecordingFilter implements
+			Prioritized {
+		private final int priority;
+
+		PrioritizedFilter(List<String> order, String name, int priority) {
+			super(order, name);
+			this.priority = priority;
+		}
+
+		@Override
+		public int getPriority() {
+			return priority;
+		}
 	}
 }
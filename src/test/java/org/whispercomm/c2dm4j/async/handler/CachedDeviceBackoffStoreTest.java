@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.backoff.Backoff;
+import org.whispercomm.c2dm4j.backoff.TestableBackoff;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Unit tests for {@link CachedDeviceBackoffStore}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class CachedDeviceBackoffStoreTest {
+
+	private FakeTicker ticker;
+
+	private CachedDeviceBackoffStore cut;
+
+	@Before
+	public void setup() {
+		ticker = new FakeTicker();
+		cut = new CachedDeviceBackoffStore(new TestableBackoff.Provider(),
+				100, 1000, ticker);
+	}
+
+	@Test
+	public void getOrCreateReturnsSameBackoff() {
+		assertThat(cut.get("device"), is(nullValue()));
+		Backoff backoff = cut.getOrCreate("device");
+		assertThat(cut.getOrCreate("device"), is(sameInstance(backoff)));
+		assertThat(cut.get("device"), is(sameInstance(backoff)));
+		assertThat(cut.size(), is(1L));
+	}
+
+	@Test
+	public void removeDropsDevice() {
+		cut.getOrCreate("device");
+		cut.remove("device");
+		assertThat(cut.get("device"), is(nullValue()));
+		assertThat(cut.size(), is(0L));
+		assertThat(cut.getExpiredCount(), is(0L));
+		assertThat(cut.getEvictedCount(), is(0L));
+	}
+
+	@Test
+	public void idleDevicesExpire() {
+		cut.getOrCreate("device1");
+		cut.getOrCreate("device2");
+		ticker.advance(600);
+		cut.get("device2");
+		ticker.advance(600);
+		assertThat(cut.size(), is(1L));
+		assertThat(cut.getExpiredCount(), is(1L));
+	}
+
+	@Test
+	public void fullCacheEvictsDevicesNotInBackoff() {
+		cut = new CachedDeviceBackoffStore(new TestableBackoff.Provider(), 2,
+				1000, ticker);
+		for (int i = 0; i < 10; ++i) {
+			cut.getOrCreate("device" + i);
+		}
+		assertThat(cut.size(), is(2L));
+		assertThat(cut.getEvictedCount(), is(8L));
+	}
+
+	@Test
+	public void deviceInBackoffSurvivesFullCache() {
+		cut = new CachedDeviceBackoffStore(new TestableBackoff.Provider(), 2,
+				1000, ticker);
+		TestableBackoff held = (TestableBackoff) cut.getOrCreate("held");
+		held.setDelay(500);
+		for (int i = 0; i < 10; ++i) {
+			cut.getOrCreate("device" + i);
+		}
+		assertThat(cut.getEvictedCount(), is(8L));
+		assertThat(cut.get("held"), is(sameInstance((Backoff) held)));
+	}
+
+	@Test
+	public void deviceInBackoffSurvivesIdleTimeout() {
+		TestableBackoff held = (TestableBackoff) cut.getOrCreate("held");
+		held.setDelay(500);
+		ticker.advance(1200);
+		assertThat(cut.size(), is(1L));
+		assertThat(cut.getExpiredCount(), is(0L));
+		assertThat(cut.getOrCreate("held"), is(sameInstance((Backoff) held)));
+	}
+
+	@Test
+	public void retainedDeviceIsDroppedOnceBackoffExpires() {
+		TestableBackoff held = (TestableBackoff) cut.getOrCreate("held");
+		held.setDelay(500);
+		ticker.advance(1200);
+		assertThat(cut.size(), is(1L));
+		held.setDelay(0);
+		assertThat(cut.size(), is(0L));
+		assertThat(cut.getExpiredCount(), is(1L));
+		assertThat(cut.get("held"), is(nullValue()));
+	}
+
+	private static class FakeTicker extends Ticker {
+		private long nanos;
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+
+		public void advance(long millis) {
+			nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.TestMessageFactory;
+import org.whispercomm.c2dm4j.UnexpectedResponseException;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.async.handler.CircuitBreaker.State;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Unit tests for {@link CircuitBreaker}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class CircuitBreakerTest {
+
+	private static final long OPEN_PERIOD = 50;
+
+	private CircuitBreaker cut;
+
+	@Before
+	public void setup() {
+		cut = new CircuitBreaker(0.5, 4, OPEN_PERIOD, 1);
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new CircuitBreaker(handlers);
+
+		verify(handlers).appendEnqueueFilter(cut);
+		verify(handlers).appendDequeueFilter(cut);
+		for (ResponseType type : ResponseType.values()) {
+			verify(handlers).appendResponseHandler(type, cut);
+		}
+		verify(handlers).appendThrowableHandler(IOException.class, cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	private Context<Message, MessageDecision> dequeue() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		cut.dequeueFilter(context);
+		return context;
+	}
+
+	private void succeed(Context<Message, MessageDecision> messageContext) {
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.Success, TestMessageFactory.create()));
+		context.put(CircuitBreaker.CONTEXT_KEY,
+				messageContext.get(CircuitBreaker.CONTEXT_KEY));
+		cut.handleResponse(context);
+	}
+
+	private void fail(Context<Message, MessageDecision> messageContext,
+			IOException e) {
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(e);
+		context.put(CircuitBreaker.CONTEXT_KEY,
+				messageContext.get(CircuitBreaker.CONTEXT_KEY));
+		cut.handleThrowable(context);
+	}
+
+	private void trip() {
+		for (int i = 0; i < 4; ++i) {
+			fail(dequeue(), new ConnectException());
+		}
+	}
+
+	@Test
+	public void closedBreakerPassesMessages() {
+		assertThat(dequeue().getDelay(), is(0L));
+		assertThat(cut.getState(), is(State.CLOSED));
+	}
+
+	@Test
+	public void opensWhenFailureRateReachesThreshold() {
+		succeed(dequeue());
+		succeed(dequeue());
+		fail(dequeue(), new ConnectException());
+		assertThat(cut.getState(), is(State.CLOSED));
+		fail(dequeue(), new ConnectException());
+		assertThat(cut.getState(), is(State.OPEN));
+		assertThat(cut.getOpenCount(), is(1L));
+	}
+
+	@Test
+	public void nonTransientFailuresDoNotCount() {
+		for (int i = 0; i < 4; ++i) {
+			fail(dequeue(), new UnexpectedResponseException("bad"));
+		}
+		assertThat(cut.getState(), is(State.CLOSED));
+	}
+
+	@Test
+	public void openBreakerParksMessages() {
+		trip();
+		long delay = dequeue().getDelay();
+		assertThat(delay, is(greaterThan(0L)));
+		assertThat(delay, is(lessThanOrEqualTo(OPEN_PERIOD)));
+	}
+
+	@Test
+	public void halfOpenBreakerAllowsOneProbe() throws InterruptedException {
+		trip();
+		Thread.sleep(OPEN_PERIOD + 10);
+		Context<Message, MessageDecision> probe = dequeue();
+		assertThat(probe.getDelay(), is(0L));
+		assertThat(cut.getState(), is(State.HALF_OPEN));
+		assertThat(dequeue().getDelay(), is(greaterThan(0L)));
+	}
+
+	@Test
+	public void successfulProbeClosesBreaker() throws InterruptedException {
+		trip();
+		Thread.sleep(OPEN_PERIOD + 10);
+		succeed(dequeue());
+		assertThat(cut.getState(), is(State.CLOSED));
+		assertThat(dequeue().getDelay(), is(0L));
+	}
+
+	@Test
+	public void failedProbeReopensBreaker() throws InterruptedException {
+		trip();
+		Thread.sleep(OPEN_PERIOD + 10);
+		fail(dequeue(), new ConnectException());
+		assertThat(cut.getState(), is(State.OPEN));
+		assertThat(cut.getOpenCount(), is(2L));
+	}
+
+	@Test
+	public void requeuedProbeReleasesSlot() throws InterruptedException {
+		trip();
+		Thread.sleep(OPEN_PERIOD + 10);
+		Context<Message, MessageDecision> probe = dequeue();
+		cut.enqueueFilter(probe);
+		assertThat(dequeue().getDelay(), is(0L));
+	}
+
+	@Test
+	public void lateOutcomesWhileOpenAreIgnored() {
+		Context<Message, MessageDecision> late = dequeue();
+		trip();
+		succeed(late);
+		assertThat(cut.getState(), is(State.OPEN));
+	}
+
+	@Test
+	public void cancelledProbeReleasesSlot() throws InterruptedException {
+		trip();
+		Thread.sleep(OPEN_PERIOD + 10);
+		Context<Message, MessageDecision> probe = dequeue();
+		TestContextFactory.cancel(probe);
+		assertThat(dequeue().getDelay(), is(0L));
+		assertThat(cut.getState(), is(State.HALF_OPEN));
+	}
+
+	@Test
+	public void probeCompletedWithoutOutcomeReleasesSlot()
+			throws InterruptedException {
+		trip();
+		Thread.sleep(OPEN_PERIOD + 10);
+		Context<Message, MessageDecision> probe = dequeue();
+		TestContextFactory.complete(probe, TestResponseFactory.createResponse(
+				ResponseType.Success, TestMessageFactory.create()));
+		assertThat(dequeue().getDelay(), is(0L));
+	}
+
+	@Test
+	public void parkingBreakerRegistersAsyncDequeueFilter() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new CircuitBreaker(mock(ScheduledExecutorService.class),
+				handlers);
+
+		verify(handlers).appendEnqueueFilter(cut);
+		verify(handlers).appendAsyncDequeueFilter(cut);
+		verify(handlers, never()).appendDequeueFilter(cut);
+	}
+
+	@Test
+	public void parkingBreakerHoldsMessagesAndReleasesProbesFromQueue()
+			throws InterruptedException {
+		ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+		cut = new CircuitBreaker(0.5, 4, OPEN_PERIOD, 1, new ParkingQueue(
+				timer, 10, 1));
+		trip();
+
+		Context<Message, MessageDecision> first = TestContextFactory
+				.createMessageContext();
+		Context<Message, MessageDecision> second = TestContextFactory
+				.createMessageContext();
+		ListenableFuture<Void> firstParked = cut.dequeueFilterAsync(first);
+		ListenableFuture<Void> secondParked = cut.dequeueFilterAsync(second);
+		assertThat(firstParked.isDone(), is(false));
+		assertThat(cut.getParkedCount(), is(2));
+		assertThat(first.getDelay(), is(0L));
+
+		// The first release after the open period makes a single probe
+		Thread.sleep(OPEN_PERIOD + 10);
+		releaser(timer, 1).run();
+		assertThat(firstParked.isDone(), is(true));
+		assertThat(first.get(CircuitBreaker.CONTEXT_KEY),
+				is(notNullValue()));
+		assertThat(cut.getState(), is(State.HALF_OPEN));
+		assertThat(secondParked.isDone(), is(false));
+
+		// The queue stays closed while the probe is in flight
+		releaser(timer, 2).run();
+		assertThat(secondParked.isDone(), is(false));
+
+		// A successful probe closes the breaker and releases the rest
+		succeed(first);
+		assertThat(cut.getState(), is(State.CLOSED));
+		releaser(timer, 3).run();
+		assertThat(secondParked.isDone(), is(true));
+		assertThat(second.get(CircuitBreaker.CONTEXT_KEY), is(nullValue()));
+		assertThat(cut.getParkedCount(), is(0));
+	}
+
+	@Test
+	public void cancelledParkedProbeLetsNextMessageProbe()
+			throws InterruptedException {
+		ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+		cut = new CircuitBreaker(0.5, 4, OPEN_PERIOD, 1, new ParkingQueue(
+				timer, 10, 1));
+		trip();
+		Thread.sleep(OPEN_PERIOD + 10);
+
+		Context<Message, MessageDecision> probe = TestContextFactory
+				.createMessageContext();
+		assertThat(cut.dequeueFilterAsync(probe).isDone(), is(true));
+		Context<Message, MessageDecision> next = TestContextFactory
+				.createMessageContext();
+		ListenableFuture<Void> nextParked = cut.dequeueFilterAsync(next);
+		assertThat(nextParked.isDone(), is(false));
+
+		TestContextFactory.cancel(probe);
+		releaser(timer, 1).run();
+		assertThat(nextParked.isDone(), is(true));
+		assertThat(next.get(CircuitBreaker.CONTEXT_KEY), is(notNullValue()));
+	}
+
+	private static Runnable releaser(ScheduledExecutorService timer,
+			int times) {
+		ArgumentCaptor<Runnable> captor = ArgumentCaptor
+				.forClass(Runnable.class);
+		verify(timer, times(times)).schedule(captor.capture(), anyLong(),
+				eq(TimeUnit.MILLISECONDS));
+		return captor.getValue();
+	}
+
+}
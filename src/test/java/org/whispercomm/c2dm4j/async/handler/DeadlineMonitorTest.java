@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Unit tests for {@link DeadlineMonitor}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DeadlineMonitorTest {
+
+	private DeadlineMonitor cut;
+
+	@Before
+	public void setup() {
+		cut = new DeadlineMonitor();
+	}
+
+	private Context<Message, MessageDecision> enqueue(Date deadline) {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext(new MessageBuilder()
+						.registrationId("device").collapseKey("collapsekey")
+						.deadline(deadline).build());
+		cut.enqueueFilter(context);
+		return context;
+	}
+
+	private static void complete(Context<Message, MessageDecision> context) {
+		TestContextFactory.complete(context,
+				TestResponseFactory.createResponse());
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new DeadlineMonitor(handlers);
+		verify(handlers).appendEnqueueFilter(cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	@Test
+	public void countsMetDeadlines() {
+		complete(enqueue(new Date(System.currentTimeMillis() + 60000)));
+		assertThat(cut.getMetCount(), is(1L));
+		assertThat(cut.getMissedCount(), is(0L));
+	}
+
+	@Test
+	public void countsMissedDeadlines() {
+		complete(enqueue(new Date(System.currentTimeMillis() - 60000)));
+		assertThat(cut.getMetCount(), is(0L));
+		assertThat(cut.getMissedCount(), is(1L));
+		assertThat(cut.getTotalLateness(), is(greaterThanOrEqualTo(60000L)));
+	}
+
+	@Test
+	public void retriesAreCountedOnce() {
+		Context<Message, MessageDecision> context = enqueue(new Date(
+				System.currentTimeMillis() + 60000));
+		cut.enqueueFilter(context);
+		complete(context);
+		assertThat(cut.getMetCount(), is(1L));
+	}
+
+	@Test
+	public void unsentMessagesAreCountedSeparately() {
+		Date past = new Date(System.currentTimeMillis() - 60000);
+		TestContextFactory.cancel(enqueue(past));
+		enqueue(past).fail(new MessageShedException("shed"));
+		enqueue(past).fail(new IOException());
+		assertThat(cut.getMetCount(), is(0L));
+		assertThat(cut.getMissedCount(), is(0L));
+		assertThat(cut.getTotalLateness(), is(0L));
+		assertThat(cut.getCancelledCount(), is(1L));
+		assertThat(cut.getShedCount(), is(1L));
+		assertThat(cut.getFailedCount(), is(1L));
+	}
+
+	@Test
+	public void messagesWithoutDeadlineAreNotCounted() {
+		complete(enqueue(null));
+		assertThat(cut.getMetCount(), is(0L));
+		assertThat(cut.getMissedCount(), is(0L));
+	}
+
+}
@@ -15,9 +15,13 @@
  */
 package org.whispercomm.c2dm4j.async.handler;
 
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
 import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.ResponseType;
 import org.whispercomm.c2dm4j.TestMessageFactory;
@@ -25,6 +29,10 @@ import org.whispercomm.c2dm4j.async.TestContextFactory;
 import org.whispercomm.c2dm4j.backoff.Attempt;
 import org.whispercomm.c2dm4j.backoff.TestableBackoff;
 import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+import org.mockito.ArgumentCaptor;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -258,4 +266,191 @@ public class DeviceBackoffThrottleTest {
 		assertThat(context.getDecision(), is(ResultDecision.RETRY));
 	}
 
+
+	// ------------------------- Parking Mode ---------------------------------
+
+	private ScheduledExecutorService setupParking() {
+		ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+		cut = new DeviceBackoffThrottle(provider, timer, 1000);
+		return timer;
+	}
+
+	private static Runnable capturedTimer(ScheduledExecutorService timer,
+			int times) {
+		ArgumentCaptor<Runnable> captor = ArgumentCaptor
+				.forClass(Runnable.class);
+		verify(timer, times(times)).schedule(captor.capture(), anyLong(),
+				eq(TimeUnit.MILLISECONDS));
+		return captor.getValue();
+	}
+
+	private ListenableFuture<Void> dequeueAsync() {
+		return cut.dequeueFilterAsync(TestContextFactory.createMessageContext());
+	}
+
+	private void respond(ResponseType type) {
+		cut.handleResponse(TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(type,
+						TestMessageFactory.create())));
+	}
+
+	@Test
+	public void parkingConstructorRegistersAsyncDequeueFilter() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new DeviceBackoffThrottle(provider,
+				mock(ScheduledExecutorService.class), handlers);
+
+		verify(handlers).appendAsyncDequeueFilter(cut);
+		verify(handlers).appendResponseHandler(
+				ResponseType.DeviceQuotaExceeded, cut);
+		verify(handlers).appendResponseHandler(ResponseType.NotRegistered, cut);
+		verify(handlers).appendResponseHandler(
+				ResponseType.InvalidRegistration, cut);
+		verify(handlers).appendResponseHandler(ResponseType.Success, cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	@Test
+	public void parkingPassesDevicesWithoutBackoff() {
+		ScheduledExecutorService timer = setupParking();
+		assertThat(dequeueAsync().isDone(), is(true));
+		verifyZeroInteractions(timer);
+	}
+
+	@Test
+	public void parkingParksBackedOffDeviceWithSingleTimer() {
+		ScheduledExecutorService timer = setupParking();
+		provider.setDelay(100L);
+		prime();
+
+		assertThat(dequeueAsync().isDone(), is(false));
+		assertThat(dequeueAsync().isDone(), is(false));
+		assertThat(cut.getParkedCount(), is(2));
+		capturedTimer(timer, 1);
+	}
+
+	@Test
+	public void parkingReleasesOneAtATimeWhenBackoffAllows() {
+		ScheduledExecutorService timer = setupParking();
+		provider.setDelay(100L);
+		prime();
+		ListenableFuture<Void> first = dequeueAsync();
+		ListenableFuture<Void> second = dequeueAsync();
+
+		// Still backed off, so nothing is released
+		capturedTimer(timer, 1).run();
+		assertThat(first.isDone(), is(false));
+
+		provider.mostRecent().setDelay(0L);
+		capturedTimer(timer, 2).run();
+		assertThat(first.isDone(), is(true));
+		assertThat(second.isDone(), is(false));
+
+		capturedTimer(timer, 3).run();
+		assertThat(second.isDone(), is(true));
+		assertThat(cut.getParkedCount(), is(0));
+	}
+
+	@Test
+	public void parkingSuccessReleasesQueue() {
+		setupParking();
+		provider.setDelay(100L);
+		prime();
+		ListenableFuture<Void> first = dequeueAsync();
+		ListenableFuture<Void> second = dequeueAsync();
+
+		respond(ResponseType.Success);
+		assertThat(first.isDone(), is(true));
+		assertThat(second.isDone(), is(true));
+		assertThat(first.isCancelled(), is(false));
+		assertThat(cut.getParkedCount(), is(0));
+	}
+
+	@Test
+	public void parkingNotRegisteredDropsQueue() {
+		setupParking();
+		provider.setDelay(100L);
+		prime();
+		ListenableFuture<Void> first = dequeueAsync();
+
+		respond(ResponseType.NotRegistered);
+		assertThat(first.isCancelled(), is(true));
+		assertThat(cut.getParkedCount(), is(0));
+		assertThat(dequeueAsync().isDone(), is(true));
+	}
+
+	private void prime(String registrationId) {
+		Message message = new MessageBuilder().registrationId(registrationId)
+				.collapseKey("collapsekey").build();
+		cut.handleResponse(TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.DeviceQuotaExceeded, message)));
+	}
+
+	@Test
+	public void tableIsBoundedBySize() {
+		cut = new DeviceBackoffThrottle(provider, 2, 60000);
+		for (int i = 0; i < 10; ++i) {
+			prime("device" + i);
+		}
+		// The cache may evict before it is entirely full
+		long count = cut.getDeviceCount();
+		assertThat(count, is(lessThanOrEqualTo(2L)));
+		assertThat(cut.getEvictedCount(), is(10 - count));
+	}
+
+	@Test
+	public void idleDevicesExpire() {
+		FakeTicker ticker = new FakeTicker();
+		cut = new DeviceBackoffThrottle(new CachedDeviceBackoffStore(provider,
+				100, 1000, ticker));
+		prime("device1");
+		prime("device2");
+		ticker.advance(600);
+		prime("device2");
+		ticker.advance(600);
+		assertThat(cut.getDeviceCount(), is(1L));
+		assertThat(cut.getExpiredCount(), is(1L));
+		assertThat(cut.getEvictedCount(), is(0L));
+	}
+
+	@Test
+	public void removedDevicesAreNotCountedAsEvicted() {
+		prime();
+		cut.handleResponse(TestContextFactory
+				.createResponseContext(TestResponseFactory.createSuccess()));
+		assertThat(cut.getDeviceCount(), is(0L));
+		assertThat(cut.getExpiredCount(), is(0L));
+		assertThat(cut.getEvictedCount(), is(0L));
+	}
+
+	@Test
+	public void packedStoreBacksOffDevice() {
+		cut = new DeviceBackoffThrottle(new PackedDeviceBackoffStore(16, 1000,
+				4, Long.MAX_VALUE, 60000));
+		prime();
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		cut.enqueueFilter(context);
+		assertThat(context.getDelay(), is(greaterThan(0L)));
+		assertThat(cut.getDeviceCount(), is(1L));
+
+		cut.handleResponse(TestContextFactory
+				.createResponseContext(TestResponseFactory.createSuccess()));
+		assertThat(cut.getDeviceCount(), is(0L));
+	}
+
+	private static class FakeTicker extends Ticker {
+		private long nanos;
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+
+		public void advance(long millis) {
+			nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+	}
+
 }
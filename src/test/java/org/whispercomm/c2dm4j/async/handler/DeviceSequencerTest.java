@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Unit tests for {@link DeviceSequencer}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DeviceSequencerTest {
+
+	private DeviceSequencer cut;
+
+	@Before
+	public void setup() {
+		cut = new DeviceSequencer();
+	}
+
+	private static Context<Message, MessageDecision> context(
+			String registrationId) {
+		return TestContextFactory.createMessageContext(new MessageBuilder()
+				.registrationId(registrationId).collapseKey("collapsekey")
+				.build());
+	}
+
+	private static void complete(Context<Message, MessageDecision> context) {
+		TestContextFactory.complete(context,
+				TestResponseFactory.createResponse());
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new DeviceSequencer(handlers);
+		verify(handlers).appendAsyncEnqueueFilter(cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	@Test
+	public void laterMessagesWaitForEarlierOnes() {
+		Context<Message, MessageDecision> first = context("device");
+		Context<Message, MessageDecision> second = context("device");
+		Context<Message, MessageDecision> third = context("device");
+		assertThat(cut.enqueueFilterAsync(first).isDone(), is(true));
+		ListenableFuture<Void> secondAdmitted = cut.enqueueFilterAsync(second);
+		ListenableFuture<Void> thirdAdmitted = cut.enqueueFilterAsync(third);
+		assertThat(secondAdmitted.isDone(), is(false));
+		assertThat(cut.getWaitingCount(), is(2));
+
+		complete(first);
+		assertThat(secondAdmitted.isDone(), is(true));
+		assertThat(thirdAdmitted.isDone(), is(false));
+
+		complete(second);
+		assertThat(thirdAdmitted.isDone(), is(true));
+		assertThat(cut.getWaitingCount(), is(0));
+	}
+
+	@Test
+	public void devicesAreIndependent() {
+		assertThat(cut.enqueueFilterAsync(context("a")).isDone(), is(true));
+		assertThat(cut.enqueueFilterAsync(context("b")).isDone(), is(true));
+		assertThat(cut.getDeviceCount(), is(2));
+	}
+
+	@Test
+	public void retriesKeepTheirPlace() {
+		Context<Message, MessageDecision> first = context("device");
+		cut.enqueueFilterAsync(first);
+		cut.enqueueFilterAsync(context("device"));
+		assertThat(cut.enqueueFilterAsync(first).isDone(), is(true));
+		assertThat(cut.getWaitingCount(), is(1));
+	}
+
+	@Test
+	public void windowAllowsPipelining() {
+		cut = new DeviceSequencer(2);
+		assertThat(cut.enqueueFilterAsync(context("device")).isDone(), is(true));
+		assertThat(cut.enqueueFilterAsync(context("device")).isDone(), is(true));
+		assertThat(cut.enqueueFilterAsync(context("device")).isDone(),
+				is(false));
+	}
+
+	@Test
+	public void idleDevicesAreDiscarded() {
+		Context<Message, MessageDecision> first = context("device");
+		cut.enqueueFilterAsync(first);
+		complete(first);
+		assertThat(cut.getDeviceCount(), is(0));
+
+		assertThat(cut.enqueueFilterAsync(context("device")).isDone(), is(true));
+		assertThat(cut.getDeviceCount(), is(1));
+	}
+
+	@Test
+	public void cancelledMessagesAreNotSequenced() {
+		Context<Message, MessageDecision> context = context("device");
+		context.setDecision(MessageDecision.CANCEL);
+		assertThat(cut.enqueueFilterAsync(context).isDone(), is(true));
+		assertThat(cut.getDeviceCount(), is(0));
+	}
+
+	@Test
+	public void cancelledWaiterLeavesQueueWithoutSlot() {
+		Context<Message, MessageDecision> first = context("device");
+		Context<Message, MessageDecision> second = context("device");
+		Context<Message, MessageDecision> third = context("device");
+		cut.enqueueFilterAsync(first);
+		ListenableFuture<Void> secondAdmitted = cut.enqueueFilterAsync(second);
+		ListenableFuture<Void> thirdAdmitted = cut.enqueueFilterAsync(third);
+
+		// The middle message is cancelled while the first is in flight
+		complete(second);
+		assertThat(secondAdmitted.isDone(), is(false));
+		assertThat(thirdAdmitted.isDone(), is(false));
+		assertThat(cut.getWaitingCount(), is(1));
+
+		complete(first);
+		assertThat(secondAdmitted.isDone(), is(false));
+		assertThat(thirdAdmitted.isDone(), is(true));
+
+		complete(third);
+		assertThat(cut.getDeviceCount(), is(0));
+	}
+
+}
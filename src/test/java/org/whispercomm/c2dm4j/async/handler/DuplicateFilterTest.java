@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.SuccessResponse;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Unit tests for {@link DuplicateFilter}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class DuplicateFilterTest {
+
+	private DuplicateFilter cut;
+
+	@Before
+	public void setup() {
+		cut = new DuplicateFilter(10000, 100);
+	}
+
+	private static Message message(String registrationId) {
+		return new MessageBuilder().registrationId(registrationId)
+				.collapseKey("collapsekey").put("a", "1").put("b", "2")
+				.build();
+	}
+
+	private Context<Message, MessageDecision> enqueue(Message message) {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext(message);
+		cut.enqueueFilter(context);
+		return context;
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new DuplicateFilter(1000, 10, handlers);
+		verify(handlers).appendEnqueueFilter(cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	@Test
+	public void firstSubmissionIsSent() {
+		assertThat(enqueue(message("device")).getDecision(),
+				is(MessageDecision.SEND));
+		assertThat(cut.size(), is(1));
+	}
+
+	@Test
+	public void duplicateFollowsOriginal() {
+		enqueue(message("device"));
+		Context<Message, MessageDecision> duplicate = enqueue(message("device"));
+		assertThat(duplicate.getDecision(), is(MessageDecision.FOLLOW));
+		assertThat(cut.getSuppressedCount(), is(1L));
+	}
+
+	@Test
+	public void differentMessagesAreNotDuplicates() {
+		enqueue(message("device1"));
+		assertThat(enqueue(message("device2")).getDecision(),
+				is(MessageDecision.SEND));
+		Message otherData = new MessageBuilder().registrationId("device1")
+				.collapseKey("collapsekey").put("a", "1").put("b", "3")
+				.build();
+		assertThat(enqueue(otherData).getDecision(), is(MessageDecision.SEND));
+		assertThat(cut.getSuppressedCount(), is(0L));
+	}
+
+	@Test
+	public void fingerprintIgnoresDataOrder() {
+		Message ab = new MessageBuilder().registrationId("device")
+				.collapseKey("collapsekey").put("a", "1").put("b", "2")
+				.build();
+		Message ba = new MessageBuilder().registrationId("device")
+				.collapseKey("collapsekey").put("b", "2").put("a", "1")
+				.build();
+		assertThat(DuplicateFilter.fingerprint(ab),
+				is(DuplicateFilter.fingerprint(ba)));
+	}
+
+	@Test
+	public void fingerprintSeparatesFields() {
+		Message first = new MessageBuilder().registrationId("ab")
+				.collapseKey("c").build();
+		Message second = new MessageBuilder().registrationId("a")
+				.collapseKey("bc").build();
+		assertThat(DuplicateFilter.fingerprint(first),
+				is(not(DuplicateFilter.fingerprint(second))));
+	}
+
+	@Test
+	public void retriedOriginalIsNotSuppressed() {
+		Context<Message, MessageDecision> original = enqueue(message("device"));
+		cut.enqueueFilter(original);
+		assertThat(original.getDecision(), is(MessageDecision.SEND));
+	}
+
+	@Test
+	public void cancelledMessagesAreIgnored() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext(message("device"));
+		context.setDecision(MessageDecision.CANCEL);
+		cut.enqueueFilter(context);
+		assertThat(cut.size(), is(0));
+	}
+
+	@Test
+	public void fingerprintsExpireAfterWindow() throws InterruptedException {
+		cut = new DuplicateFilter(20, 100);
+		enqueue(message("device"));
+		Thread.sleep(40);
+		assertThat(enqueue(message("device")).getDecision(),
+				is(MessageDecision.SEND));
+	}
+
+	@Test
+	public void oldestFingerprintEvictedWhenFull() {
+		cut = new DuplicateFilter(10000, 2);
+		enqueue(message("device1"));
+		enqueue(message("device2"));
+		enqueue(message("device3"));
+		assertThat(cut.size(), is(2));
+		assertThat(enqueue(message("device3")).getDecision(),
+				is(MessageDecision.FOLLOW));
+		assertThat(enqueue(message("device1")).getDecision(),
+				is(MessageDecision.SEND));
+	}
+
+	@Test
+	public void manyFingerprintsRemainReachableAfterEviction() {
+		cut = new DuplicateFilter(10000, 64);
+		for (int i = 0; i < 1000; ++i) {
+			enqueue(message("device" + i));
+		}
+		for (int i = 1000 - 64; i < 1000; ++i) {
+			assertThat(enqueue(message("device" + i)).getDecision(),
+					is(MessageDecision.FOLLOW));
+		}
+	}
+
+	@Test
+	public void deliveredOriginalIsRememberedCompactly()
+			throws InterruptedException, ExecutionException {
+		Message message = message("device");
+		Context<Message, MessageDecision> original = enqueue(message);
+		assertThat(cut.remembered(message),
+				is(sameInstance((Object) original.getFuture())));
+
+		TestContextFactory.complete(original,
+				TestResponseFactory.createSuccess("id-1", message));
+		assertThat(cut.remembered(message), is(instanceOf(byte[].class)));
+
+		Message copy = message("device");
+		Context<Message, MessageDecision> duplicate = enqueue(copy);
+		assertThat(duplicate.getDecision(), is(MessageDecision.FOLLOW));
+		SuccessResponse response = (SuccessResponse) TestContextFactory
+				.getFollowed(duplicate).get();
+		assertThat(response.getSentMessageId(), is("id-1"));
+		assertThat(response.getMessage(), is(sameInstance(copy)));
+	}
+
+	@Test
+	public void deliveredOriginalWithoutIdIsRemembered()
+			throws InterruptedException, ExecutionException {
+		Message message = message("device");
+		Context<Message, MessageDecision> original = enqueue(message);
+		TestContextFactory.complete(original,
+				TestResponseFactory.createResponse(ResponseType.Success, message));
+
+		SuccessResponse response = (SuccessResponse) TestContextFactory
+				.getFollowed(enqueue(message("device"))).get();
+		assertThat(response.getSentMessageId(), is(nullValue()));
+	}
+
+	@Test
+	public void failedOriginalIsForgotten() {
+		Message message = message("device");
+		Context<Message, MessageDecision> original = enqueue(message);
+		TestContextFactory.complete(original, TestResponseFactory
+				.createResponse(ResponseType.DeviceQuotaExceeded, message));
+		assertThat(cut.remembered(message), is(nullValue()));
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+
+/**
+ * Unit tests for {@link FileDeadLetterSink}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class FileDeadLetterSinkTest {
+
+	private File file;
+
+	private FileDeadLetterSink cut;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("deadletters", ".txt");
+		cut = new FileDeadLetterSink(file, 1000);
+	}
+
+	@After
+	public void teardown() {
+		cut.close();
+		file.delete();
+	}
+
+	private static DeadLetter letter() {
+		Message message = new MessageBuilder().registrationId("device id")
+				.collapseKey("key").put("a", "1\t2").build();
+		return new DeadLetter(message, 3, 500, "QuotaExceeded", 1000L);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<String> lines() throws IOException {
+		return FileUtils.readLines(file, "UTF-8");
+	}
+
+	@Test
+	public void appendsOneEncodedLinePerLetter() throws IOException {
+		cut.deadLetter(letter());
+		cut.deadLetter(letter());
+		List<String> lines = lines();
+		assertThat(lines.size(), is(2));
+		assertThat(lines.get(0),
+				is("1000\tdevice+id\tkey\t3\t500\tQuotaExceeded\ta%3D1%25092"));
+	}
+
+	@Test
+	public void discardsLettersBeyondMaxSize() throws IOException {
+		cut = new FileDeadLetterSink(file, 60);
+		cut.deadLetter(letter());
+		cut.deadLetter(letter());
+		assertThat(lines().size(), is(1));
+		assertThat(cut.getDiscardedCount(), is(1L));
+	}
+
+	@Test
+	public void appendsToExistingFile() throws IOException {
+		cut.deadLetter(letter());
+		cut.close();
+		cut = new FileDeadLetterSink(file, 1000);
+		cut.deadLetter(letter());
+		assertThat(lines().size(), is(2));
+	}
+
+}
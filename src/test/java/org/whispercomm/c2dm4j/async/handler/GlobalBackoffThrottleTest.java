@@ -16,9 +16,12 @@
 package org.whispercomm.c2dm4j.async.handler;
 
 import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.whispercomm.c2dm4j.Message;
 import org.whispercomm.c2dm4j.Response;
 import org.whispercomm.c2dm4j.ResponseType;
@@ -29,6 +32,8 @@ import org.whispercomm.c2dm4j.backoff.Attempt;
 import org.whispercomm.c2dm4j.backoff.TestableBackoff;
 import org.whispercomm.c2dm4j.impl.TestResponseFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import static org.whispercomm.c2dm4j.test.Matchers.*;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -199,4 +204,126 @@ public class GlobalBackoffThrottleTest {
 		cut.enqueueFilter(messageContext);
 		assertThat(messageContext.getDelay(), is(approx(10000L, 50)));
 	}
+
+	@Test
+	public void parkingConstructorRegistersAsyncDequeueFilter() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new GlobalBackoffThrottle(backoff,
+				mock(ScheduledExecutorService.class), handlers);
+
+		verify(handlers).appendAsyncDequeueFilter(cut);
+		verify(handlers).appendResponseHandler(ResponseType.QuotaExceeded, cut);
+		verify(handlers).appendResponseHandler(ResponseType.ServiceUnavailable,
+				cut);
+		verify(handlers).appendResponseHandler(ResponseType.Success, cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	@Test
+	public void parkingDequeueFilterPassesWithoutBackoff() {
+		cut = new GlobalBackoffThrottle(backoff,
+				mock(ScheduledExecutorService.class));
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+
+		assertThat(cut.dequeueFilterAsync(context).isDone(), is(true));
+		assertThat(context.getDelay(), is(0L));
+		assertThat(cut.getParkedCount(), is(0));
+	}
+
+	@Test
+	public void parkingDequeueFilterParksDuringBackoff() {
+		ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+		cut = new GlobalBackoffThrottle(backoff, timer);
+		backoff.setDelay(10000L);
+
+		ListenableFuture<Void> first = cut.dequeueFilterAsync(TestContextFactory
+				.createMessageContext());
+		ListenableFuture<Void> second = cut
+				.dequeueFilterAsync(TestContextFactory.createMessageContext());
+		assertThat(first.isDone(), is(false));
+		assertThat(second.isDone(), is(false));
+		assertThat(cut.getParkedCount(), is(2));
+	}
+
+	@Test
+	public void parkingDequeueFilterParksUntilRetryAfter() {
+		cut = new GlobalBackoffThrottle(backoff,
+				mock(ScheduledExecutorService.class));
+		UnavailableResponse response = TestResponseFactory.createUnavailable(
+				new Date(System.currentTimeMillis() + 10000),
+				TestMessageFactory.create());
+		Context<Response, ResultDecision> responseContext = TestContextFactory
+				.createResponseContext(response);
+		responseContext.put(GlobalBackoffThrottle.CONTEXT_KEY, backoff.begin());
+		cut.handleResponse(responseContext);
+
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		assertThat(cut.enqueueFilterAsync(context).isDone(), is(true));
+		assertThat(context.getDelay(), is(0L));
+		assertThat(cut.dequeueFilterAsync(context).isDone(), is(false));
+	}
+
+	@Test
+	public void failureDuringReleaseStopsRelease() throws InterruptedException {
+		ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+		cut = new GlobalBackoffThrottle(backoff, timer);
+		backoff.setDelay(1L);
+		Context<Message, MessageDecision> first = TestContextFactory
+				.createMessageContext();
+		ListenableFuture<Void> firstParked = cut.dequeueFilterAsync(first);
+		ListenableFuture<Void> second = cut
+				.dequeueFilterAsync(TestContextFactory.createMessageContext());
+		ListenableFuture<Void> third = cut
+				.dequeueFilterAsync(TestContextFactory.createMessageContext());
+
+		// Open the gate and release the first batch of one
+		backoff.setDelay(0L);
+		Thread.sleep(5);
+		ArgumentCaptor<Runnable> releaser = ArgumentCaptor
+				.forClass(Runnable.class);
+		verify(timer).schedule(releaser.capture(), anyLong(),
+				eq(TimeUnit.MILLISECONDS));
+		releaser.getValue().run();
+		assertThat(firstParked.isDone(), is(true));
+		assertThat(second.isDone(), is(false));
+
+		// The released message is throttled
+		backoff.setDelay(10000L);
+		Context<Response, ResultDecision> responseContext = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.QuotaExceeded,
+						TestMessageFactory.create()));
+		responseContext.put(GlobalBackoffThrottle.CONTEXT_KEY,
+				first.get(GlobalBackoffThrottle.CONTEXT_KEY));
+		cut.handleResponse(responseContext);
+
+		releaser.getValue().run();
+		assertThat(second.isDone(), is(false));
+		assertThat(third.isDone(), is(false));
+		assertThat(cut.getParkedCount(), is(2));
+	}
+
+	@Test
+	public void releasedMessageParksAgainDuringBackoff()
+			throws InterruptedException {
+		ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+		cut = new GlobalBackoffThrottle(backoff, timer);
+		backoff.setDelay(1L);
+		ListenableFuture<Void> parked = cut
+				.dequeueFilterAsync(TestContextFactory.createMessageContext());
+
+		// Backed off again by the time the message is released
+		backoff.setDelay(10000L);
+		Thread.sleep(5);
+		ArgumentCaptor<Runnable> releaser = ArgumentCaptor
+				.forClass(Runnable.class);
+		verify(timer).schedule(releaser.capture(), anyLong(),
+				eq(TimeUnit.MILLISECONDS));
+		releaser.getValue().run();
+		assertThat(parked.isDone(), is(false));
+		assertThat(cut.getParkedCount(), is(1));
+	}
+
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Unit tests for {@link LoadShedder}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class LoadShedderTest {
+
+	private LoadShedder cut;
+
+	@Before
+	public void setup() {
+		cut = new LoadShedder(2, 0);
+	}
+
+	private static Context<Message, MessageDecision> context(
+			String registrationId, int priority) {
+		return TestContextFactory.createMessageContext(new MessageBuilder()
+				.registrationId(registrationId).collapseKey("collapsekey")
+				.priority(priority).build());
+	}
+
+	private static boolean isShed(ListenableFuture<Void> future)
+			throws InterruptedException {
+		try {
+			future.get();
+			return false;
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), is(instanceOf(MessageShedException.class)));
+			return true;
+		}
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new LoadShedder(10, 0, handlers);
+		verify(handlers).appendAsyncEnqueueFilter(cut);
+		verify(handlers).appendAsyncDequeueFilter(cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	@Test
+	public void admitsUpToMaxDepth() throws InterruptedException {
+		assertThat(isShed(cut.enqueueFilterAsync(context("a", 0))), is(false));
+		assertThat(isShed(cut.enqueueFilterAsync(context("b", 0))), is(false));
+		assertThat(cut.getWaitingCount(), is(2));
+		assertThat(cut.getShedCount(), is(0L));
+	}
+
+	@Test
+	public void shedsLowestPriorityFirst() throws InterruptedException {
+		Context<Message, MessageDecision> low = context("a", 0);
+		cut.enqueueFilterAsync(low);
+		cut.enqueueFilterAsync(context("b", 5));
+		assertThat(isShed(cut.enqueueFilterAsync(context("c", 5))), is(false));
+		assertThat(cut.getShedCount(), is(1L));
+		assertThat(isShed(cut.dequeueFilterAsync(low)), is(true));
+	}
+
+	@Test
+	public void shedMessagesAreCompletedWhenChosen()
+			throws InterruptedException {
+		Context<Message, MessageDecision> low = context("a", 0);
+		cut.enqueueFilterAsync(low);
+		cut.enqueueFilterAsync(context("b", 5));
+		cut.enqueueFilterAsync(context("c", 5));
+		assertThat(low.getFuture().isDone(), is(true));
+		try {
+			low.getFuture().get();
+			fail("Expected the shed message to fail.");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), is(instanceOf(MessageShedException.class)));
+		}
+		// Completion also stops tracking it
+		assertThat(cut.getWaitingCount(), is(2));
+	}
+
+	@Test
+	public void shedsOldestAmongEqualPriority() throws InterruptedException {
+		Context<Message, MessageDecision> old = context("a", 0);
+		cut.enqueueFilterAsync(old);
+		cut.enqueueFilterAsync(context("b", 0));
+		cut.enqueueFilterAsync(context("c", 0));
+		assertThat(isShed(cut.dequeueFilterAsync(old)), is(true));
+	}
+
+	@Test
+	public void rejectsNewMessageOfLowestValue() throws InterruptedException {
+		cut.enqueueFilterAsync(context("a", 5));
+		cut.enqueueFilterAsync(context("b", 5));
+		assertThat(isShed(cut.enqueueFilterAsync(context("c", 0))), is(true));
+		assertThat(cut.getWaitingCount(), is(2));
+	}
+
+	@Test
+	public void shedsSupersededMessagesFirst() throws InterruptedException {
+		Context<Message, MessageDecision> superseded = context("a", 5);
+		Context<Message, MessageDecision> other = context("b", 0);
+		cut.enqueueFilterAsync(superseded);
+		cut.enqueueFilterAsync(other);
+		cut.enqueueFilterAsync(context("a", 5));
+		assertThat(isShed(cut.dequeueFilterAsync(superseded)), is(true));
+		assertThat(isShed(cut.dequeueFilterAsync(other)), is(false));
+	}
+
+	@Test
+	public void sentMessagesNoLongerWait() throws InterruptedException {
+		Context<Message, MessageDecision> context = context("a", 0);
+		cut.enqueueFilterAsync(context);
+		assertThat(isShed(cut.dequeueFilterAsync(context)), is(false));
+		assertThat(cut.getWaitingCount(), is(0));
+	}
+
+	@Test
+	public void completedMessagesAreForgotten() {
+		Context<Message, MessageDecision> context = context("a", 0);
+		cut.enqueueFilterAsync(context);
+		TestContextFactory.complete(context,
+				TestResponseFactory.createResponse());
+		assertThat(cut.getWaitingCount(), is(0));
+	}
+
+	@Test
+	public void shedsMessagesOlderThanMaxAge() throws InterruptedException {
+		cut = new LoadShedder(10, 1);
+		Context<Message, MessageDecision> context = context("a", 0);
+		cut.enqueueFilterAsync(context);
+		Thread.sleep(5);
+		assertThat(isShed(cut.dequeueFilterAsync(context)), is(true));
+		assertThat(cut.getShedCount(), is(1L));
+	}
+
+}
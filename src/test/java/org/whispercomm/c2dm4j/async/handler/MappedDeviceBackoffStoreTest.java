@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.whispercomm.c2dm4j.backoff.Backoff;
+import org.whispercomm.c2dm4j.backoff.TestableClock;
+
+/**
+ * Unit tests for {@link MappedDeviceBackoffStore}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class MappedDeviceBackoffStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	private TestableClock clock;
+
+	private MappedDeviceBackoffStore cut;
+
+	@Before
+	public void setup() throws IOException {
+		file = new File(folder.getRoot(), "backoff.table");
+		clock = new TestableClock(1000000);
+		cut = open(16);
+	}
+
+	private MappedDeviceBackoffStore open(int capacity) throws IOException {
+		return new MappedDeviceBackoffStore(file, capacity, 10, 4,
+				Long.MAX_VALUE, 1000, clock);
+	}
+
+	private void fail(String registrationId) {
+		cut.getOrCreate(registrationId).begin().recordFailure();
+	}
+
+	@Test
+	public void newTableIsEmpty() {
+		assertThat(cut.get("device"), is(nullValue()));
+		assertThat(cut.size(), is(0L));
+		assertThat(cut.getGlobalBackoff().begin().delay(), is(0L));
+	}
+
+	@Test
+	public void deviceBackoffSurvivesReopen() throws IOException {
+		fail("device");
+		fail("device");
+		cut.flush();
+
+		cut = open(16);
+		assertThat(cut.get("device").begin().delay(), is(30L));
+		fail("device");
+		assertThat(cut.get("device").begin().delay(), is(70L));
+	}
+
+	@Test
+	public void globalBackoffSurvivesReopen() throws IOException {
+		cut.getGlobalBackoff().begin().recordFailure();
+
+		cut = open(16);
+		assertThat(cut.getGlobalBackoff().begin().delay(), is(10L));
+		assertThat(cut.size(), is(0L));
+	}
+
+	@Test
+	public void globalBackoffSurvivesSuccess() {
+		Backoff global = cut.getGlobalBackoff();
+		global.begin().recordFailure();
+		global.begin().recordSuccess();
+		assertThat(global.begin().delay(), is(0L));
+		global.begin().recordFailure();
+		assertThat(global.begin().delay(), is(10L));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void reopenWithOtherCapacityFails() throws IOException {
+		cut.close();
+		open(1024);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void reopenWithOtherParametersFails() throws IOException {
+		cut.close();
+		new MappedDeviceBackoffStore(file, 16, 10, 5, Long.MAX_VALUE, 1000,
+				clock);
+	}
+
+	@Test
+	public void closeForcesUpdatesOut() throws IOException {
+		fail("device");
+		cut.close();
+		cut.close();
+
+		cut = open(16);
+		assertThat(cut.get("device").begin().delay(), is(10L));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void closedStoreCannotBeUsed() {
+		cut.close();
+		cut.get("device");
+	}
+
+	@Test
+	public void entriesExpiredWhileClosedAreIgnored() throws IOException {
+		fail("device");
+		clock.advance(5000);
+
+		cut = open(16);
+		assertThat(cut.size(), is(0L));
+		assertThat(cut.get("device").begin().delay(), is(0L));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherFiles() throws IOException {
+		File other = folder.newFile("other");
+		FileOutputStream out = new FileOutputStream(other);
+		try {
+			out.write(new byte[64]);
+		} finally {
+			out.close();
+		}
+		file = other;
+		open(16);
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.TestMessageFactory;
+
+/**
+ * Unit tests for {@link MemoryDeadLetterSink}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class MemoryDeadLetterSinkTest {
+
+	private MemoryDeadLetterSink cut;
+
+	@Before
+	public void setup() {
+		cut = new MemoryDeadLetterSink(2);
+	}
+
+	private static DeadLetter letter(String reason) {
+		return new DeadLetter(TestMessageFactory.create(), 1, 0, reason);
+	}
+
+	@Test
+	public void drainReturnsLettersOldestFirst() {
+		DeadLetter first = letter("first");
+		DeadLetter second = letter("second");
+		cut.deadLetter(first);
+		cut.deadLetter(second);
+		assertThat(cut.drain(), contains(first, second));
+		assertThat(cut.size(), is(0));
+	}
+
+	@Test
+	public void discardsOldestWhenFull() {
+		cut.deadLetter(letter("first"));
+		DeadLetter second = letter("second");
+		DeadLetter third = letter("third");
+		cut.deadLetter(second);
+		cut.deadLetter(third);
+		assertThat(cut.drain(), contains(second, third));
+		assertThat(cut.getDiscardedCount(), is(1L));
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.backoff.Attempt;
+import org.whispercomm.c2dm4j.backoff.Backoff;
+import org.whispercomm.c2dm4j.backoff.TestableClock;
+
+/**
+ * Unit tests for {@link PackedDeviceBackoffStore}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class PackedDeviceBackoffStoreTest {
+
+	private TestableClock clock;
+
+	private PackedDeviceBackoffStore cut;
+
+	@Before
+	public void setup() {
+		clock = new TestableClock(-5000);
+		cut = new PackedDeviceBackoffStore(64, 10, 4, Long.MAX_VALUE, 1000,
+				clock);
+	}
+
+	private void fail(String registrationId) {
+		cut.getOrCreate(registrationId).begin().recordFailure();
+	}
+
+	@Test
+	public void unknownDeviceHasNoBackoff() {
+		assertThat(cut.get("device"), is(nullValue()));
+		assertThat(cut.size(), is(0L));
+	}
+
+	@Test
+	public void failuresIncreaseBackoffExponentially() {
+		fail("device");
+		assertThat(cut.get("device").begin().delay(), is(10L));
+		fail("device");
+		assertThat(cut.get("device").begin().delay(), is(30L));
+		fail("device");
+		assertThat(cut.get("device").begin().delay(), is(70L));
+		assertThat(cut.size(), is(1L));
+	}
+
+	@Test
+	public void backoffIsCappedAtMaxCount() {
+		for (int i = 0; i < 10; ++i) {
+			fail("device");
+		}
+		assertThat(cut.get("device").begin().delay(), is(150L));
+	}
+
+	@Test
+	public void delayDecreasesWithTime() {
+		fail("device");
+		clock.advance(4);
+		assertThat(cut.get("device").begin().delay(), is(6L));
+		clock.advance(10);
+		assertThat(cut.get("device").begin().delay(), is(0L));
+	}
+
+	@Test
+	public void successResetsBackoff() {
+		fail("device");
+		fail("device");
+		cut.get("device").begin().recordSuccess();
+		assertThat(cut.get("device"), is(nullValue()));
+		assertThat(cut.size(), is(0L));
+		fail("device");
+		assertThat(cut.get("device").begin().delay(), is(10L));
+	}
+
+	@Test
+	public void onlyFirstConcurrentAttemptChangesState() {
+		Backoff backoff = cut.getOrCreate("device");
+		Attempt first = backoff.begin();
+		Attempt second = backoff.begin();
+		first.recordFailure();
+		second.recordFailure();
+		assertThat(backoff.begin().delay(), is(10L));
+	}
+
+	@Test
+	public void devicesAreIndependent() {
+		fail("device1");
+		fail("device1");
+		fail("device2");
+		assertThat(cut.get("device1").begin().delay(), is(30L));
+		assertThat(cut.get("device2").begin().delay(), is(10L));
+		assertThat(cut.size(), is(2L));
+	}
+
+	@Test
+	public void removeDropsDevice() {
+		fail("device");
+		cut.remove("device");
+		assertThat(cut.get("device"), is(nullValue()));
+		assertThat(cut.size(), is(0L));
+		assertThat(cut.getExpiredCount(), is(0L));
+		assertThat(cut.getEvictedCount(), is(0L));
+	}
+
+	@Test
+	public void idleDevicesAreReclaimed() {
+		cut = new PackedDeviceBackoffStore(16, 10, 4, Long.MAX_VALUE, 1000,
+				clock);
+		for (int i = 0; i < 16; ++i) {
+			fail("device" + i);
+		}
+		assertThat(cut.size(), is(16L));
+		clock.advance(2000);
+		assertThat(cut.size(), is(0L));
+
+		fail("other");
+		assertThat(cut.getExpiredCount(), is(1L));
+		assertThat(cut.getEvictedCount(), is(0L));
+	}
+
+	@Test
+	public void fullTableEvictsEarliestExpiry() {
+		cut = new PackedDeviceBackoffStore(16, 10, 4, Long.MAX_VALUE, 1000,
+				clock);
+		for (int i = 0; i < 16; ++i) {
+			fail("device" + i);
+			clock.advance(1);
+		}
+		fail("other");
+		assertThat(cut.size(), is(16L));
+		assertThat(cut.getEvictedCount(), is(1L));
+		assertThat(cut.get("device0"), is(nullValue()));
+		assertThat(cut.get("other").begin().delay(), is(10L));
+	}
+
+	@Test
+	public void devicesNotInBackoffAreReusedWithoutEviction() {
+		cut = new PackedDeviceBackoffStore(16, 10, 4, Long.MAX_VALUE, 1000,
+				clock);
+		for (int i = 0; i < 16; ++i) {
+			cut.getOrCreate("device" + i);
+		}
+		fail("other");
+		assertThat(cut.get("other").begin().delay(), is(10L));
+		assertThat(cut.getEvictedCount(), is(0L));
+		assertThat(cut.getExpiredCount(), is(0L));
+	}
+
+	@Test
+	public void successFreesSlotForAnotherDevice() {
+		cut = new PackedDeviceBackoffStore(16, 10, 4, Long.MAX_VALUE, 1000,
+				clock);
+		for (int i = 0; i < 16; ++i) {
+			fail("device" + i);
+		}
+		cut.get("device3").begin().recordSuccess();
+		fail("other");
+		assertThat(cut.get("other").begin().delay(), is(10L));
+		assertThat(cut.size(), is(16L));
+		assertThat(cut.getEvictedCount(), is(0L));
+	}
+
+	@Test
+	public void capacityIsRoundedUpToPowerOfTwo() {
+		assertThat(new PackedDeviceBackoffStore(100, 1, 4, 10, 10)
+				.getCapacity(), is(128));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxCountIsLimited() {
+		new PackedDeviceBackoffStore(16, 1, 63, 10, 10);
+	}
+
+	@Test
+	public void fingerprintIsNeverZero() {
+		assertThat(PackedDeviceBackoffStore.fingerprint(""), is(not(0L)));
+		assertThat(PackedDeviceBackoffStore.fingerprint("a"),
+				is(not(PackedDeviceBackoffStore.fingerprint("b"))));
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Unit tests for {@link ParkingQueue}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class ParkingQueueTest {
+
+	private ScheduledExecutorService timer;
+
+	private ParkingQueue cut;
+
+	@Before
+	public void setup() {
+		timer = mock(ScheduledExecutorService.class);
+		cut = new ParkingQueue(timer, 10, 1);
+	}
+
+	private List<ListenableFuture<Void>> park(int count) {
+		List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+		for (int i = 0; i < count; ++i) {
+			futures.add(cut.park());
+		}
+		return futures;
+	}
+
+	private Runnable capturedReleaser(int times) {
+		ArgumentCaptor<Runnable> captor = ArgumentCaptor
+				.forClass(Runnable.class);
+		verify(timer, times(times)).schedule(captor.capture(), anyLong(),
+				eq(TimeUnit.MILLISECONDS));
+		return captor.getValue();
+	}
+
+	private static int countDone(List<ListenableFuture<Void>> futures) {
+		int done = 0;
+		for (ListenableFuture<Void> future : futures) {
+			if (future.isDone())
+				++done;
+		}
+		return done;
+	}
+
+	private void closeBriefly() {
+		cut.closeUntil(System.currentTimeMillis() + 20);
+	}
+
+	private static void awaitOpen() throws InterruptedException {
+		Thread.sleep(30);
+	}
+
+	@Test
+	public void openGateDoesNotPark() {
+		assertThat(cut.park().isDone(), is(true));
+		verifyZeroInteractions(timer);
+	}
+
+	@Test
+	public void closedGateParksWithSingleTimer() throws InterruptedException {
+		closeBriefly();
+		List<ListenableFuture<Void>> futures = park(5);
+		assertThat(countDone(futures), is(0));
+		assertThat(cut.size(), is(5));
+		verify(timer, times(1)).schedule(any(Runnable.class), anyLong(),
+				eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void releaseRampsUpInOrder() throws InterruptedException {
+		closeBriefly();
+		List<ListenableFuture<Void>> futures = park(7);
+		awaitOpen();
+
+		capturedReleaser(1).run();
+		assertThat(countDone(futures), is(1));
+		assertThat(futures.get(0).isDone(), is(true));
+
+		capturedReleaser(2).run();
+		assertThat(countDone(futures), is(3));
+		assertThat(futures.get(2).isDone(), is(true));
+
+		capturedReleaser(3).run();
+		assertThat(countDone(futures), is(7));
+		assertThat(cut.size(), is(0));
+	}
+
+	@Test
+	public void newCallersParkBehindWaitingCallers()
+			throws InterruptedException {
+		closeBriefly();
+		List<ListenableFuture<Void>> futures = park(2);
+		awaitOpen();
+
+		capturedReleaser(1).run();
+		ListenableFuture<Void> late = cut.park();
+		assertThat(late.isDone(), is(false));
+
+		capturedReleaser(2).run();
+		assertThat(countDone(futures), is(2));
+		assertThat(late.isDone(), is(true));
+	}
+
+	@Test
+	public void closingAgainStopsRelease() throws InterruptedException {
+		closeBriefly();
+		List<ListenableFuture<Void>> futures = park(4);
+		awaitOpen();
+
+		capturedReleaser(1).run();
+		assertThat(countDone(futures), is(1));
+
+		cut.closeUntil(System.currentTimeMillis() + 10000);
+		capturedReleaser(2).run();
+		assertThat(countDone(futures), is(1));
+		verify(timer).schedule(any(Runnable.class), longThat(greaterThan(5000L)),
+				eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void gateReopensAfterDraining() throws InterruptedException {
+		closeBriefly();
+		park(1);
+		awaitOpen();
+
+		capturedReleaser(1).run();
+		assertThat(cut.park().isDone(), is(true));
+	}
+
+	@Test
+	public void closedGateWaitsToBeOpened() {
+		cut.close();
+		ListenableFuture<Void> parked = cut.park();
+		assertThat(parked.isDone(), is(false));
+		verifyZeroInteractions(timer);
+
+		cut.openAt(System.currentTimeMillis());
+		capturedReleaser(1).run();
+		assertThat(parked.isDone(), is(true));
+	}
+
+	@Test
+	public void openingEarlierSupersedesScheduledRelease() {
+		cut.closeUntil(System.currentTimeMillis() + 10000);
+		ListenableFuture<Void> parked = cut.park();
+		Runnable stale = capturedReleaser(1);
+
+		cut.openAt(System.currentTimeMillis());
+		Runnable current = capturedReleaser(2);
+		stale.run();
+		assertThat(parked.isDone(), is(false));
+		current.run();
+		assertThat(parked.isDone(), is(true));
+	}
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.TestMessageFactory;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Unit tests for {@link RetryBudget}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class RetryBudgetTest {
+
+	private static final long WINDOW = 60000;
+
+	private MemoryDeadLetterSink sink;
+
+	private RetryBudget cut;
+
+	@Before
+	public void setup() {
+		sink = new MemoryDeadLetterSink(10);
+		cut = new RetryBudget(0.2, 1, WINDOW);
+	}
+
+	@Test
+	public void constructorRegistersDequeueFilterWhenDeferring() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new RetryBudget(0.2, 1, WINDOW, handlers);
+		verify(handlers).appendDequeueFilter(cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	@Test
+	public void constructorRegistersHandlersWhenDeadLettering() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new RetryBudget(0.2, 1, WINDOW, sink, handlers);
+		verify(handlers).appendEnqueueFilter(cut);
+		verify(handlers).appendDequeueFilter(cut);
+		for (ResponseType type : ResponseType.values()) {
+			verify(handlers).appendResponseHandler(type, cut);
+		}
+		verify(handlers).appendThrowableHandler(Throwable.class, cut);
+	}
+
+	private Context<Message, MessageDecision> dequeue(int attempts) {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		TestContextFactory.addAttempts(context, attempts);
+		cut.dequeueFilter(context);
+		return context;
+	}
+
+	private Context<Response, ResultDecision> respond(ResultDecision decision) {
+		Message message = TestMessageFactory.create();
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.QuotaExceeded, message));
+		context.put(RetryBudget.CONTEXT_KEY, message);
+		TestContextFactory.addAttempts(context, 1);
+		context.setDecision(decision);
+		cut.handleResponse(context);
+		return context;
+	}
+
+	@Test
+	public void firstAttemptsAreCounted() {
+		for (int i = 0; i < 10; ++i) {
+			assertThat(dequeue(0).getDelay(), is(0L));
+		}
+		assertThat(cut.getFirstAttempts(), is(10L));
+		assertThat(cut.getRetries(), is(0L));
+	}
+
+	@Test
+	public void attemptsAreCountedOnceAcrossDequeues() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		cut.dequeueFilter(context);
+		// Delayed by a later filter and dequeued again
+		cut.dequeueFilter(context);
+		assertThat(cut.getFirstAttempts(), is(1L));
+
+		TestContextFactory.addAttempts(context, 1);
+		cut.dequeueFilter(context);
+		cut.dequeueFilter(context);
+		assertThat(cut.getRetries(), is(1L));
+	}
+
+	@Test
+	public void deferredRetriesAreCountedWhenAllowed() {
+		dequeue(1);
+		Context<Message, MessageDecision> context = dequeue(1);
+		assertThat(context.getDelay(), is(greaterThan(0L)));
+		assertThat(context.get(RetryBudget.COUNTED_KEY), is(nullValue()));
+	}
+
+	@Test
+	public void delayedMessagesAreIgnored() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		context.setDelay(100L);
+		cut.dequeueFilter(context);
+		assertThat(context.getDelay(), is(100L));
+		assertThat(cut.getFirstAttempts(), is(0L));
+	}
+
+	@Test
+	public void minimumRetriesAreAllowedWithoutTraffic() {
+		assertThat(dequeue(1).getDelay(), is(0L));
+		assertThat(dequeue(1).getDelay(), is(greaterThan(0L)));
+		assertThat(cut.getRetries(), is(1L));
+		assertThat(cut.getDeferredCount(), is(1L));
+	}
+
+	@Test
+	public void retriesAreLimitedToRatioOfFirstAttempts() {
+		for (int i = 0; i < 20; ++i) {
+			dequeue(0);
+		}
+		// 1 minimum + 20% of 20 first attempts
+		for (int i = 0; i < 5; ++i) {
+			assertThat(dequeue(2).getDelay(), is(0L));
+		}
+		assertThat(dequeue(2).getDelay(), is(greaterThan(0L)));
+		assertThat(cut.getRetries(), is(5L));
+	}
+
+	@Test
+	public void overBudgetRetriesAreDeadLettered() {
+		cut = new RetryBudget(0.2, 1, WINDOW, sink);
+		assertThat(respond(ResultDecision.RETRY).getDecision(),
+				is(ResultDecision.RETRY));
+		Context<Response, ResultDecision> context = respond(ResultDecision.RETRY);
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+		assertThat(cut.getRejectedCount(), is(1L));
+
+		DeadLetter letter = sink.drain().get(0);
+		assertThat(letter.getMessage(), is(context.unwrap().getMessage()));
+		assertThat(letter.getReason(), is("QuotaExceeded"));
+	}
+
+	@Test
+	public void finalOverBudgetRetriesAreDeadLettered() {
+		cut = new RetryBudget(0, 0, WINDOW, sink);
+		Message message = TestMessageFactory.create();
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.QuotaExceeded, message));
+		context.put(RetryBudget.CONTEXT_KEY, message);
+		context.setFinalDecision(ResultDecision.RETRY);
+		cut.handleResponse(context);
+
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+		assertThat(sink.size(), is(1));
+	}
+
+	@Test
+	public void deadLetterModeDoesNotRecountRetriesOnDequeue() {
+		cut = new RetryBudget(0.2, 1, WINDOW, sink);
+		respond(ResultDecision.RETRY);
+		assertThat(dequeue(1).getDelay(), is(0L));
+		assertThat(cut.getRetries(), is(1L));
+	}
+
+	@Test
+	public void returnedMessagesAreIgnored() {
+		cut = new RetryBudget(0, 0, WINDOW, sink);
+		assertThat(respond(ResultDecision.RETURN).getDecision(),
+				is(ResultDecision.RETURN));
+		assertThat(sink.size(), is(0));
+	}
+
+	@Test
+	public void overBudgetThrowablesAreDeadLettered() {
+		cut = new RetryBudget(0, 0, WINDOW, sink);
+		Message message = TestMessageFactory.create();
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(new IOException());
+		context.put(RetryBudget.CONTEXT_KEY, message);
+		context.setDecision(ResultDecision.RETRY);
+		cut.handleThrowable(context);
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+		assertThat(sink.drain().get(0).getMessage(), is(message));
+	}
+
+	@Test
+	public void countsExpireWithWindow() throws InterruptedException {
+		cut = new RetryBudget(0.2, 1, 50);
+		dequeue(0);
+		dequeue(1);
+		Thread.sleep(60);
+		assertThat(cut.getFirstAttempts(), is(0L));
+		assertThat(cut.getRetries(), is(0L));
+	}
+
+}
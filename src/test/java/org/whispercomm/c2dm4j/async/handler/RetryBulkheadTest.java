@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.TestMessageFactory;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Unit tests for {@link RetryBulkhead}.
+ *
+ * @author David R. Bild
+ *
+ */
+public class RetryBulkheadTest {
+
+	private RetryBulkhead cut;
+
+	@Before
+	public void setup() {
+		cut = new RetryBulkhead(4, 0.25);
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new RetryBulkhead(4, 0.25, handlers);
+
+		verify(handlers).appendAsyncEnqueueFilter(cut);
+		verify(handlers).appendAsyncDequeueFilter(cut);
+		for (ResponseType type : ResponseType.values()) {
+			verify(handlers).appendResponseHandler(type, cut);
+		}
+		verify(handlers).appendThrowableHandler(Throwable.class, cut);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorRejectsInvalidShare() {
+		new RetryBulkhead(4, 1.0);
+	}
+
+	private Context<Message, MessageDecision> dequeue(
+			Context<Message, MessageDecision> context) {
+		assertThat(cut.dequeueFilterAsync(context).isDone(), is(true));
+		return context;
+	}
+
+	private Context<Message, MessageDecision> dequeueFresh() {
+		return dequeue(TestContextFactory.createMessageContext());
+	}
+
+	private Context<Message, MessageDecision> dequeueRetry() {
+		Context<Message, MessageDecision> context = dequeueFresh();
+		respond(context);
+		return dequeue(context);
+	}
+
+	private void respond(Context<Message, MessageDecision> messageContext) {
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.ServiceUnavailable,
+						TestMessageFactory.create()));
+		context.put(RetryBulkhead.PERMIT_KEY,
+				messageContext.get(RetryBulkhead.PERMIT_KEY));
+		cut.handleResponse(context);
+		messageContext.put(RetryBulkhead.PERMIT_KEY, null);
+	}
+
+	@Test
+	public void sharesCapacityBetweenPools() {
+		dequeueFresh();
+		assertThat(cut.getFreshUtilization(), is(closeTo(1.0 / 3, 1e-9)));
+		dequeueRetry();
+		assertThat(cut.getRetryUtilization(), is(1.0));
+		assertThat(cut.getFreshUtilization(), is(closeTo(1.0 / 3, 1e-9)));
+	}
+
+	@Test
+	public void retriesDoNotStarveFreshMessages() {
+		dequeueRetry();
+		ListenableFuture<Void> retry = cut.dequeueFilterAsync(retryContext());
+		assertThat(retry.isDone(), is(false));
+		assertThat(cut.getRetryWaiting(), is(1));
+
+		for (int i = 0; i < 3; ++i) {
+			dequeueFresh();
+		}
+		assertThat(cut.getFreshUtilization(), is(1.0));
+	}
+
+	private Context<Message, MessageDecision> retryContext() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		context.put(RetryBulkhead.SENT_KEY, Boolean.TRUE);
+		return context;
+	}
+
+	@Test
+	public void releaseHandsSlotToNextWaiter() {
+		Context<Message, MessageDecision> first = dequeueRetry();
+		ListenableFuture<Void> second = cut.dequeueFilterAsync(retryContext());
+		assertThat(second.isDone(), is(false));
+
+		respond(first);
+		assertThat(second.isDone(), is(true));
+		assertThat(cut.getRetryWaiting(), is(0));
+		assertThat(cut.getRetryUtilization(), is(1.0));
+	}
+
+	@Test
+	public void dequeueIgnoresDelayedMessages() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		context.setDelay(100L);
+		dequeue(context);
+		assertThat(cut.getFreshUtilization(), is(0.0));
+		assertThat(context.get(RetryBulkhead.SENT_KEY), is(nullValue()));
+	}
+
+	@Test
+	public void enqueueReleasesSlot() {
+		Context<Message, MessageDecision> context = dequeueFresh();
+		cut.enqueueFilterAsync(context);
+		assertThat(cut.getFreshUtilization(), is(0.0));
+		cut.enqueueFilterAsync(context);
+		assertThat(cut.getFreshUtilization(), is(0.0));
+	}
+
+	@Test
+	public void throwableReleasesSlot() {
+		Context<Message, MessageDecision> messageContext = dequeueFresh();
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext();
+		context.put(RetryBulkhead.PERMIT_KEY,
+				messageContext.get(RetryBulkhead.PERMIT_KEY));
+		cut.handleThrowable(context);
+		assertThat(cut.getFreshUtilization(), is(0.0));
+	}
+
+	@Test
+	public void completionReleasesSlotWithoutResponse() {
+		Context<Message, MessageDecision> context = dequeueFresh();
+		TestContextFactory.complete(context, TestResponseFactory
+				.createResponse(ResponseType.Success,
+						TestMessageFactory.create()));
+		assertThat(cut.getFreshUtilization(), is(0.0));
+
+		respond(context);
+		assertThat(cut.getFreshUtilization(), is(0.0));
+	}
+
+	@Test
+	public void completedWaiterPassesSlotOn() {
+		Context<Message, MessageDecision> first = dequeueRetry();
+		Context<Message, MessageDecision> second = retryContext();
+		cut.dequeueFilterAsync(second);
+		TestContextFactory.complete(second, TestResponseFactory
+				.createResponse(ResponseType.Success,
+						TestMessageFactory.create()));
+		assertThat(cut.getRetryWaiting(), is(1));
+
+		respond(first);
+		assertThat(cut.getRetryWaiting(), is(0));
+		assertThat(cut.getRetryUtilization(), is(0.0));
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.TestMessageFactory;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Unit tests for {@link RetryLimit}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class RetryLimitTest {
+
+	private MemoryDeadLetterSink sink;
+
+	private RetryLimit cut;
+
+	@Before
+	public void setup() {
+		sink = new MemoryDeadLetterSink(10);
+		cut = new RetryLimit(3, 0, sink);
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new RetryLimit(3, 0, sink, handlers);
+		verify(handlers).appendEnqueueFilter(cut);
+		for (ResponseType type : ResponseType.values()) {
+			verify(handlers).appendResponseHandler(type, cut);
+		}
+		verify(handlers).appendThrowableHandler(Throwable.class, cut);
+	}
+
+	private Context<Response, ResultDecision> respond(int attempts) {
+		return respond(attempts, 0);
+	}
+
+	private Context<Response, ResultDecision> respond(int attempts,
+			long sleep) {
+		Message message = TestMessageFactory.create();
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.QuotaExceeded, message));
+		context.put(RetryLimit.CONTEXT_KEY, message);
+		TestContextFactory.addAttempts(context, attempts);
+		context.setDecision(ResultDecision.RETRY);
+		try {
+			Thread.sleep(sleep);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		cut.handleResponse(context);
+		return context;
+	}
+
+	@Test
+	public void retriesBelowLimitAreAllowed() {
+		assertThat(respond(2).getDecision(), is(ResultDecision.RETRY));
+		assertThat(sink.size(), is(0));
+	}
+
+	@Test
+	public void retriesAtLimitAreDeadLettered() {
+		Context<Response, ResultDecision> context = respond(3);
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+
+		DeadLetter letter = sink.drain().get(0);
+		assertThat(letter.getMessage(), is(context.unwrap().getMessage()));
+		assertThat(letter.getAttempts(), is(3));
+		assertThat(letter.getReason(), is("QuotaExceeded"));
+	}
+
+	@Test
+	public void finalRetriesAtLimitAreDeadLettered() {
+		Message message = TestMessageFactory.create();
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.QuotaExceeded, message));
+		context.put(RetryLimit.CONTEXT_KEY, message);
+		TestContextFactory.addAttempts(context, 3);
+		context.setFinalDecision(ResultDecision.RETRY);
+		cut.handleResponse(context);
+
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+		assertThat(context.isDecisionFinal(), is(true));
+		assertThat(sink.size(), is(1));
+	}
+
+	@Test
+	public void returnedMessagesAreIgnored() {
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext();
+		TestContextFactory.addAttempts(context, 5);
+		cut.handleResponse(context);
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+		assertThat(sink.size(), is(0));
+	}
+
+	@Test
+	public void oldMessagesAreDeadLettered() {
+		cut = new RetryLimit(100, 1, sink);
+		assertThat(respond(1, 5).getDecision(), is(ResultDecision.RETURN));
+		assertThat(sink.size(), is(1));
+	}
+
+	@Test
+	public void exhaustedThrowablesAreDeadLettered() {
+		Message message = TestMessageFactory.create();
+		Context<Message, MessageDecision> messageContext = TestContextFactory
+				.createMessageContext(message);
+		cut.enqueueFilter(messageContext);
+
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(new IOException());
+		context.put(RetryLimit.CONTEXT_KEY,
+				messageContext.get(RetryLimit.CONTEXT_KEY));
+		TestContextFactory.addAttempts(context, 3);
+		context.setDecision(ResultDecision.RETRY);
+		cut.handleThrowable(context);
+
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+		assertThat(sink.drain().get(0).getMessage(), is(message));
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.async.handler;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.TestMessageFactory;
+import org.whispercomm.c2dm4j.UnexpectedResponseException;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.backoff.TestableBackoff;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Unit tests for {@link TransientIoRetryHandler}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class TransientIoRetryHandlerTest {
+
+	private TestableBackoff backoff;
+
+	private TransientIoRetryHandler cut;
+
+	@Before
+	public void setup() {
+		backoff = new TestableBackoff();
+		cut = new TransientIoRetryHandler(backoff);
+	}
+
+	@Test
+	public void constructorRegistersWithAsyncHandlers() {
+		AsyncHandlers handlers = mock(AsyncHandlers.class);
+		cut = new TransientIoRetryHandler(backoff, handlers);
+
+		verify(handlers).appendEnqueueFilter(cut);
+		verify(handlers).appendDequeueFilter(cut);
+		for (ResponseType type : ResponseType.values()) {
+			verify(handlers).appendResponseHandler(type, cut);
+		}
+		verify(handlers).appendThrowableHandler(IOException.class, cut);
+		verifyNoMoreInteractions(handlers);
+	}
+
+	@Test
+	public void filterDelaysByBackoff() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		backoff.setDelay(100L);
+		cut.dequeueFilter(context);
+		assertThat(context.getDelay(), is(100L));
+	}
+
+	@Test
+	public void filterDoesNotShortenExistingDelay() {
+		Context<Message, MessageDecision> context = TestContextFactory
+				.createMessageContext();
+		context.setDelay(200L);
+		backoff.setDelay(100L);
+		cut.enqueueFilter(context);
+		assertThat(context.getDelay(), is(200L));
+	}
+
+	private Context<Throwable, ResultDecision> fail(IOException e) {
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(e);
+		context.put(TransientIoRetryHandler.CONTEXT_KEY, backoff.begin());
+		cut.handleThrowable(context);
+		return context;
+	}
+
+	@Test
+	public void transientFailuresAreRetried() {
+		assertThat(fail(new ConnectException()).getDecision(),
+				is(ResultDecision.RETRY));
+		assertThat(fail(new SocketTimeoutException()).getDecision(),
+				is(ResultDecision.RETRY));
+		assertThat(backoff.failureRecorded(), is(true));
+	}
+
+	@Test
+	public void failuresAreNotRetriedAfterMaxAttempts() {
+		cut = new TransientIoRetryHandler(backoff, 3);
+		Context<Throwable, ResultDecision> context = TestContextFactory
+				.createThrowableContext(new ConnectException());
+		context.put(TransientIoRetryHandler.CONTEXT_KEY, backoff.begin());
+		TestContextFactory.addAttempts(context, 2);
+		cut.handleThrowable(context);
+		assertThat(context.getDecision(), is(ResultDecision.RETRY));
+
+		context = TestContextFactory
+				.createThrowableContext(new ConnectException());
+		context.put(TransientIoRetryHandler.CONTEXT_KEY, backoff.begin());
+		TestContextFactory.addAttempts(context, 3);
+		cut.handleThrowable(context);
+		assertThat(context.getDecision(), is(ResultDecision.RETURN));
+		assertThat(backoff.failureRecorded(), is(true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxAttemptsMustBePositive() {
+		new TransientIoRetryHandler(backoff, 0);
+	}
+
+	@Test
+	public void otherFailuresAreNotRetried() {
+		assertThat(fail(new UnexpectedResponseException("bad")).getDecision(),
+				is(ResultDecision.RETURN));
+		assertThat(backoff.failureRecorded(), is(false));
+	}
+
+	@Test
+	public void responsesRecordSuccess() {
+		Context<Response, ResultDecision> context = TestContextFactory
+				.createResponseContext(TestResponseFactory.createResponse(
+						ResponseType.QuotaExceeded, TestMessageFactory.create()));
+		context.put(TransientIoRetryHandler.CONTEXT_KEY, backoff.begin());
+		cut.handleResponse(context);
+		assertThat(backoff.successRecorded(), is(true));
+	}
+
+}
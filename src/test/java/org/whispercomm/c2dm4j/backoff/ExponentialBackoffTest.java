@@ -108,4 +108,26 @@ public class ExponentialBackoffTest {
 		attempt.recordSuccess();
 		assertThat(cut.begin().delay(), is(approx(70L, 10)));
 	}
+
+	@Test
+	public void delayIsCappedAtMaxInterval() {
+		cut = new ExponentialBackoff(10, 5, 100, new TestableClock(0));
+		for (int i = 0; i < 5; ++i) {
+			cut.begin().recordFailure();
+		}
+		assertThat(cut.begin().delay(), is(100L));
+	}
+
+	@Test
+	public void delayFollowsClock() {
+		TestableClock clock = new TestableClock(-5000);
+		cut = new ExponentialBackoff(10, 5, Long.MAX_VALUE, clock);
+		cut.begin().recordFailure();
+		cut.begin().recordFailure();
+		assertThat(cut.begin().delay(), is(30L));
+		clock.advance(20);
+		assertThat(cut.begin().delay(), is(10L));
+		clock.advance(20);
+		assertThat(cut.begin().delay(), is(0L));
+	}
 }
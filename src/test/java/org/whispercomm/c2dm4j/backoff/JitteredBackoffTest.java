@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.backoff;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.c2dm4j.backoff.JitteredBackoff.Jitter;
+
+/**
+ * Unit tests for {@link JitteredBackoff}.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class JitteredBackoffTest {
+
+	private TestableClock clock;
+
+	private Random random;
+
+	@Before
+	public void setup() {
+		// Negative, like a System.nanoTime() reading may be
+		clock = new TestableClock(-1000000L);
+		random = new Random(42);
+	}
+
+	private JitteredBackoff create(Jitter jitter) {
+		return new JitteredBackoff(jitter, 10, 1000, clock, random);
+	}
+
+	private static long fail(Backoff backoff, int times) {
+		for (int i = 0; i < times; ++i) {
+			backoff.begin().recordFailure();
+		}
+		return backoff.begin().delay();
+	}
+
+	@Test
+	public void initialDelayIsZero() {
+		for (Jitter jitter : Jitter.values()) {
+			assertThat(create(jitter).begin().delay(), is(0L));
+		}
+	}
+
+	@Test
+	public void fullJitterStaysWithinExponentialBound() {
+		for (int i = 0; i < 100; ++i) {
+			// 10 * (2^3 - 1) = 70
+			assertThat(fail(create(Jitter.FULL), 3),
+					is(both(greaterThanOrEqualTo(0L)).and(
+							lessThanOrEqualTo(70L))));
+		}
+	}
+
+	@Test
+	public void equalJitterWaitsAtLeastHalf() {
+		for (int i = 0; i < 100; ++i) {
+			assertThat(fail(create(Jitter.EQUAL), 3),
+					is(both(greaterThanOrEqualTo(35L)).and(
+							lessThanOrEqualTo(70L))));
+		}
+	}
+
+	@Test
+	public void decorrelatedJitterStaysWithinBounds() {
+		JitteredBackoff cut = create(Jitter.DECORRELATED);
+		for (int i = 0; i < 100; ++i) {
+			long delay = fail(cut, 1);
+			assertThat(delay, is(both(greaterThanOrEqualTo(10L)).and(
+					lessThanOrEqualTo(1000L))));
+		}
+	}
+
+	@Test
+	public void intervalsAreCapped() {
+		for (Jitter jitter : Jitter.values()) {
+			assertThat(fail(create(jitter), 40), is(lessThanOrEqualTo(1000L)));
+		}
+	}
+
+	@Test
+	public void jitterSpreadsDelays() {
+		Set<Long> delays = new HashSet<Long>();
+		for (int i = 0; i < 20; ++i) {
+			delays.add(fail(create(Jitter.FULL), 5));
+		}
+		assertThat(delays.size(), is(greaterThan(1)));
+	}
+
+	@Test
+	public void delayFollowsClock() {
+		JitteredBackoff cut = create(Jitter.EQUAL);
+		long delay = fail(cut, 3);
+		clock.advance(delay - 5);
+		assertThat(cut.begin().delay(), is(5L));
+		clock.advance(10);
+		assertThat(cut.begin().delay(), is(0L));
+	}
+
+	@Test
+	public void successResetsDelay() {
+		JitteredBackoff cut = create(Jitter.DECORRELATED);
+		fail(cut, 3);
+		cut.begin().recordSuccess();
+		assertThat(cut.begin().delay(), is(0L));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxIntervalBelowScaleIsRejected() {
+		new JitteredBackoff(Jitter.FULL, 10, 5);
+	}
+
+}
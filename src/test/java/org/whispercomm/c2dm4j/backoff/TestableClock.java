@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.backoff;
+
+/**
+ * A {@link Clock} that only advances when told to.
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class TestableClock implements Clock {
+
+	private volatile long millis;
+
+	public TestableClock(long millis) {
+		this.millis = millis;
+	}
+
+	@Override
+	public long millis() {
+		return millis;
+	}
+
+	public void advance(long delta) {
+		millis += delta;
+	}
+
+}
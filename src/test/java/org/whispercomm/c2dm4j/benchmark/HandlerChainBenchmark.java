@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.benchmark;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.async.TestContextFactory;
+import org.whispercomm.c2dm4j.async.handler.AsyncHandlers;
+import org.whispercomm.c2dm4j.async.handler.AsyncHandlersFactory;
+import org.whispercomm.c2dm4j.async.handler.Context;
+import org.whispercomm.c2dm4j.async.handler.Prioritized;
+import org.whispercomm.c2dm4j.async.handler.ResponseHandler;
+import org.whispercomm.c2dm4j.async.handler.ResultDecision;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Measures the cost of dispatching a response through a chain of eight
+ * handlers, like one an application might register: a cheap classifier,
+ * metrics counters, a per-device registration store, an audit log formatter,
+ * and a simulated database update. The chain is run with the classifier
+ * marking {@code Success} decisions final, so the expensive handlers return
+ * early, and without, so every handler does its work. Not run as part of the
+ * unit tests. Run with:
+ * <p>
+ * <code>java -cp ... org.whispercomm.c2dm4j.benchmark.HandlerChainBenchmark [iterations] [successPercent]</code>
+ * 
+ * @author David R. Bild
+ * 
+ */
+public class HandlerChainBenchmark {
+
+	private static final int DEVICES = 1024;
+
+	private static volatile Object sink;
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int successPercent = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+
+		Response[] responses = new Response[100];
+		for (int i = 0; i < responses.length; ++i) {
+			Message msg = new MessageBuilder().registrationId("device" + i)
+					.collapseKey("collapsekey").put("key", "value").build();
+			ResponseType type = (i < successPercent) ? ResponseType.Success
+					: ResponseType.QuotaExceeded;
+			responses[i] = TestResponseFactory.createResponse(type, msg);
+		}
+
+		// Warm up
+		run(chain(true), responses, iterations / 4);
+		run(chain(false), responses, iterations / 4);
+
+		for (boolean finalDecisions : new boolean[] { false, true, false, true }) {
+			long nanos = run(chain(finalDecisions), responses, iterations);
+			System.out.printf(
+					"final=%-5b handlers=8 success=%d%% %8.1f ns/response%n",
+					finalDecisions, successPercent, (double) nanos
+							/ iterations);
+		}
+	}
+
+	private static long run(AsyncHandlers handlers, Response[] responses,
+			int iterations) {
+		long begin = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			Context<Response, ResultDecision> context = TestContextFactory
+					.createResponseContext(responses[i % responses.length]);
+			handlers.handleResponse(context);
+		}
+		return System.nanoTime() - begin;
+	}
+
+	private static AsyncHandlers chain(boolean finalDecisions) {
+		AsyncHandlers handlers = AsyncHandlersFactory.createEmpty();
+		// Registered in an order other than the intended one, so the
+		// priorities determine the chain
+		register(handlers, new DatabaseUpdate());
+		register(handlers, new AuditLog());
+		register(handlers, new Classifier(finalDecisions));
+		register(handlers, new Counter());
+		register(handlers, new Counter());
+		register(handlers, new Counter());
+		register(handlers, new RegistrationStore());
+		register(handlers, new AuditLog());
+		return handlers;
+	}
+
+	private static void register(AsyncHandlers handlers,
+			ResponseHandler<Response> handler) {
+		for (ResponseType type : ResponseType.values()) {
+			handlers.appendResponseHandler(type, handler);
+		}
+	}
+
+	/**
+	 * Decides successes immediately and retries everything else.
+	 */
+	private static class Classifier implements ResponseHandler<Response>,
+			Prioritized {
+		private final boolean finalDecisions;
+
+		Classifier(boolean finalDecisions) {
+			this.finalDecisions = finalDecisions;
+		}
+
+		@Override
+		public int getPriority() {
+			return -100;
+		}
+
+		@Override
+		public void handleResponse(Context<Response, ResultDecision> context) {
+			if (context.unwrap().getResponseType() != ResponseType.Success)
+				context.setDecision(ResultDecision.RETRY);
+			else if (finalDecisions)
+				context.setFinalDecision(ResultDecision.RETURN);
+		}
+	}
+
+	private static class Counter implements ResponseHandler<Response> {
+		private final AtomicLong count = new AtomicLong();
+
+		@Override
+		public void handleResponse(Context<Response, ResultDecision> context) {
+			count.incrementAndGet();
+		}
+	}
+
+	private static class RegistrationStore implements
+			ResponseHandler<Response> {
+		private final ConcurrentMap<String, ResponseType> last = new ConcurrentHashMap<String, ResponseType>();
+
+		@Override
+		public void handleResponse(Context<Response, ResultDecision> context) {
+			Response response = context.unwrap();
+			String device = response.getMessage().getRegistrationId();
+			last.put(device, response.getResponseType());
+			if (last.size() > DEVICES)
+				last.clear();
+		}
+	}
+
+	private static class AuditLog implements ResponseHandler<Response>,
+			Prioritized {
+		@Override
+		public int getPriority() {
+			return 50;
+		}
+
+		@Override
+		public void handleResponse(Context<Response, ResultDecision> context) {
+			if (context.isDecisionFinal())
+				return;
+			Response response = context.unwrap();
+			sink = String.format("%s %s %s", response.getMessage()
+					.getRegistrationId(), response.getResponseType(),
+					context.getDecision());
+		}
+	}
+
+	/**
+	 * Stands in for a database round-trip by hashing the message repeatedly.
+	 */
+	private static class DatabaseUpdate implements ResponseHandler<Response>,
+			Prioritized {
+		@Override
+		public int getPriority() {
+			return 100;
+		}
+
+		@Override
+		public void handleResponse(Context<Response, ResultDecision> context) {
+			if (context.isDecisionFinal())
+				return;
+			int hash = context.unwrap().getMessage().hashCode();
+			for (int i = 0; i < 200; ++i) {
+				hash = 31 * hash + i;
+				hash ^= hash >>> 7;
+			}
+			sink = hash;
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.whispercomm.c2dm4j.C2dmManager;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.async.AsyncC2dmManager;
+import org.whispercomm.c2dm4j.async.AsyncC2dmManagerFactory;
+import org.whispercomm.c2dm4j.async.RingBufferAsyncC2dmManager;
+import org.whispercomm.c2dm4j.async.handler.AsyncHandlersFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Compares the producer-side enqueue rate and {@code pushMessage} latency of
+ * the ring buffer manager against the default manager, for increasing numbers
+ * of producer threads. Not run as part of the unit tests. Run with:
+ * <p>
+ * <code>java -cp ... org.whispercomm.c2dm4j.benchmark.RingBufferEnqueueBenchmark [maxProducers] [messagesPerProducer] [ringSize]</code>
+ *
+ * @author David R. Bild
+ *
+ */
+public class RingBufferEnqueueBenchmark {
+
+	private static final C2dmManager SUCCESS = new C2dmManager() {
+		@Override
+		public Response pushMessage(Message msg) {
+			return TestResponseFactory.createResponse(ResponseType.Success,
+					msg);
+		}
+	};
+
+	private static final int PIPELINE_THREADS = 4;
+
+	public static void main(String[] args) throws Exception {
+		int maxProducers = args.length > 0 ? Integer.parseInt(args[0])
+				: Runtime.getRuntime().availableProcessors();
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 250000;
+		int ringSize = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 16;
+
+		Message msg = new MessageBuilder().registrationId("device")
+				.collapseKey("collapsekey").build();
+
+		// Warm up
+		runBoth(1, messages, ringSize, msg, false);
+
+		for (int n = 1; n <= maxProducers; n *= 2) {
+			runBoth(n, messages, ringSize, msg, true);
+		}
+	}
+
+	private static void runBoth(int producers, int messages, int ringSize,
+			Message msg, boolean report) throws Exception {
+		ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(
+				PIPELINE_THREADS);
+		// Block rather than reject, so every message is measured
+		RingBufferAsyncC2dmManager ring = AsyncC2dmManagerFactory
+				.createRingBuffer(SUCCESS, AsyncHandlersFactory.create(executor),
+						executor, ringSize, true);
+		Result result = run(ring, producers, messages, msg);
+		ring.shutdown();
+		executor.shutdown();
+		if (report)
+			result.report("ring", producers);
+
+		executor = new ScheduledThreadPoolExecutor(PIPELINE_THREADS);
+		result = run(AsyncC2dmManagerFactory.create(SUCCESS, executor),
+				producers, messages, msg);
+		executor.shutdown();
+		if (report)
+			result.report("default", producers);
+	}
+
+	private static Result run(final AsyncC2dmManager manager,
+			int producers, final int messages, final Message msg)
+			throws Exception {
+		final Result result = new Result(producers * messages);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(producers);
+		final Future<?>[] last = new Future<?>[producers];
+		for (int p = 0; p < producers; ++p) {
+			final int producer = p;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					int offset = producer * messages;
+					Future<Response> future = null;
+					for (int i = 0; i < messages; ++i) {
+						long before = System.nanoTime();
+						future = manager.pushMessage(msg);
+						result.latencies[offset + i] = System.nanoTime()
+								- before;
+					}
+					last[producer] = future;
+					done.countDown();
+				}
+			}).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		result.enqueueNanos = System.nanoTime() - begin;
+		for (Future<?> future : last) {
+			future.get();
+		}
+		return result;
+	}
+
+	private static class Result {
+		private final long[] latencies;
+		private long enqueueNanos;
+
+		public Result(int messages) {
+			this.latencies = new long[messages];
+		}
+
+		public void report(String name, int producers) {
+			Arrays.sort(latencies);
+			System.out.printf(
+					"%-8s producers=%-3d %12.0f enqueues/s  p50=%6dns  p99=%8dns  p99.9=%9dns%n",
+					name, producers, latencies.length / (enqueueNanos / 1e9),
+					percentile(0.50), percentile(0.99), percentile(0.999));
+		}
+
+		private long percentile(double p) {
+			return latencies[(int) (p * (latencies.length - 1))];
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 The Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whispercomm.c2dm4j.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.whispercomm.c2dm4j.C2dmManager;
+import org.whispercomm.c2dm4j.Message;
+import org.whispercomm.c2dm4j.MessageBuilder;
+import org.whispercomm.c2dm4j.Response;
+import org.whispercomm.c2dm4j.ResponseType;
+import org.whispercomm.c2dm4j.async.AsyncC2dmManager;
+import org.whispercomm.c2dm4j.async.AsyncC2dmManagerFactory;
+import org.whispercomm.c2dm4j.impl.TestResponseFactory;
+
+/**
+ * Compares the throughput of a single pipeline with {@code N} threads against
+ * a sharded manager with {@code N} single-threaded shards. Not run as part of
+ * the unit tests. Run with:
+ * <p>
+ * <code>java -cp ... org.whispercomm.c2dm4j.benchmark.ShardedThroughputBenchmark [maxShards] [messages]</code>
+ *
+ * @author David R. Bild
+ *
+ */
+public class ShardedThroughputBenchmark {
+
+	private static final C2dmManager SUCCESS = new C2dmManager() {
+		@Override
+		public Response pushMessage(Message msg) {
+			return TestResponseFactory.createResponse(ResponseType.Success,
+					msg);
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+				.getRuntime().availableProcessors();
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+
+		List<Message> batch = new ArrayList<Message>(messages);
+		for (int i = 0; i < messages; ++i) {
+			batch.add(new MessageBuilder().registrationId("device" + (i % 10000))
+					.collapseKey("collapsekey").build());
+		}
+
+		// Warm up
+		List<ScheduledExecutorService> warmup = createExecutors(1, 1);
+		run(AsyncC2dmManagerFactory.create(SUCCESS, warmup.get(0)), batch);
+		shutdown(warmup);
+
+		for (int n = 1; n <= maxShards; n *= 2) {
+			List<ScheduledExecutorService> executors = createExecutors(n, 1);
+			AsyncC2dmManager sharded = AsyncC2dmManagerFactory.createSharded(
+					SUCCESS, executors);
+			report("sharded", n, run(sharded, batch), messages);
+			shutdown(executors);
+
+			List<ScheduledExecutorService> single = createExecutors(1, n);
+			AsyncC2dmManager unsharded = AsyncC2dmManagerFactory.create(
+					SUCCESS, single.get(0));
+			report("unsharded", n, run(unsharded, batch), messages);
+			shutdown(single);
+		}
+	}
+
+	private static List<ScheduledExecutorService> createExecutors(int count,
+			int threads) {
+		List<ScheduledExecutorService> executors = new ArrayList<ScheduledExecutorService>();
+		for (int i = 0; i < count; ++i) {
+			executors.add(new ScheduledThreadPoolExecutor(threads));
+		}
+		return executors;
+	}
+
+	private static void shutdown(List<ScheduledExecutorService> executors) {
+		for (ScheduledExecutorService executor : executors) {
+			executor.shutdown();
+		}
+	}
+
+	private static long run(AsyncC2dmManager manager, List<Message> batch)
+			throws Exception {
+		List<Future<Response>> futures = new ArrayList<Future<Response>>(
+				batch.size());
+		long start = System.nanoTime();
+		for (Message msg : batch) {
+			futures.add(manager.pushMessage(msg));
+		}
+		for (Future<Response> future : futures) {
+			future.get();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, int threads, long nanos,
+			int messages) {
+		System.out.printf("%-10s threads=%-3d %10.0f msgs/s%n", name, threads,
+				messages / (nanos / 1e9));
+	}
+
+}